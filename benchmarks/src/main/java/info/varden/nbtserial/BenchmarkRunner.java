@@ -0,0 +1,33 @@
+package info.varden.nbtserial;
+
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.options.CommandLineOptions;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+/**
+ * <p>The entry point of {@code benchmarks.jar}. Works like JMH's own main class and accepts
+ * the same command line options, but always enables the GC profiler, so that every result
+ * also reports the number of bytes allocated per operation
+ * ({@code gc.alloc.rate.norm}).</p>
+ * 
+ * @author Marius
+ */
+public final class BenchmarkRunner {
+	private BenchmarkRunner() {}
+	
+	public static void main(String[] args) throws Exception {
+		CommandLineOptions cmd = new CommandLineOptions(args);
+		if (cmd.shouldHelp()) {
+			cmd.showHelp();
+			return;
+		}
+		if (cmd.shouldList()) {
+			new Runner(cmd).list();
+			return;
+		}
+		Options options = new OptionsBuilder().parent(cmd).addProfiler(GCProfiler.class).build();
+		new Runner(options).run();
+	}
+}
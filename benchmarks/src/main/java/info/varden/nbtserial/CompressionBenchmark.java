@@ -0,0 +1,115 @@
+package info.varden.nbtserial;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.Deflater;
+
+import net.minecraft.nbt.CompressedStreamTools;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * <p>Measures the throughput of {@link NBTPipeline} with each {@link NBTCompression} format,
+ * against serializing to a compound and compressing it with
+ * {@link CompressedStreamTools#writeCompressed}, and the other way around. The fixture is a
+ * map of 1,000 names to scores, which compresses about as well as typical game data.</p>
+ * <p>The reading benchmarks decode data that was written once during setup.</p>
+ * 
+ * @author Marius
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class CompressionBenchmark {
+	private static final int MAP_SIZE = 1000;
+	
+	private static final NBTPipeline NONE = NBTPipeline.of(NBTCompression.NONE);
+	private static final NBTPipeline GZIP = NBTPipeline.of(NBTCompression.GZIP);
+	private static final NBTPipeline DEFLATE_FAST = NBTPipeline.of(NBTCompression.DEFLATE, Deflater.BEST_SPEED);
+	private static final NBTPipeline LZ4 = NBTPipeline.of(NBTCompression.LZ4);
+	
+	private Fixtures.Scores scores;
+	
+	private byte[] compressedStreamToolsBytes;
+	private byte[] noneBytes;
+	private byte[] gzipBytes;
+	private byte[] deflateFastBytes;
+	private byte[] lz4Bytes;
+	
+	@Setup
+	public void setup() throws Exception {
+		this.scores = Fixtures.Scores.of(MAP_SIZE);
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		CompressedStreamTools.writeCompressed(NBTSerializer.serialize(this.scores), out);
+		this.compressedStreamToolsBytes = out.toByteArray();
+		this.noneBytes = NONE.encode(this.scores);
+		this.gzipBytes = GZIP.encode(this.scores);
+		this.deflateFastBytes = DEFLATE_FAST.encode(this.scores);
+		this.lz4Bytes = LZ4.encode(this.scores);
+	}
+	
+	@Benchmark
+	public byte[] writeCompressedStreamTools() throws Exception {
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		CompressedStreamTools.writeCompressed(NBTSerializer.serialize(this.scores), out);
+		return out.toByteArray();
+	}
+	
+	@Benchmark
+	public byte[] encodeNone() throws Exception {
+		return NONE.encode(this.scores);
+	}
+	
+	@Benchmark
+	public byte[] encodeGzip() throws Exception {
+		return GZIP.encode(this.scores);
+	}
+	
+	@Benchmark
+	public byte[] encodeDeflateFast() throws Exception {
+		return DEFLATE_FAST.encode(this.scores);
+	}
+	
+	@Benchmark
+	public byte[] encodeLz4() throws Exception {
+		return LZ4.encode(this.scores);
+	}
+	
+	@Benchmark
+	public Fixtures.Scores readCompressedStreamTools() throws Exception {
+		return NBTSerializer.deserialize(Fixtures.Scores.class, CompressedStreamTools.readCompressed(new ByteArrayInputStream(this.compressedStreamToolsBytes)));
+	}
+	
+	@Benchmark
+	public Fixtures.Scores decodeNone() throws Exception {
+		return NONE.decode(Fixtures.Scores.class, this.noneBytes);
+	}
+	
+	@Benchmark
+	public Fixtures.Scores decodeGzip() throws Exception {
+		return GZIP.decode(Fixtures.Scores.class, this.gzipBytes);
+	}
+	
+	@Benchmark
+	public Fixtures.Scores decodeDeflateFast() throws Exception {
+		return DEFLATE_FAST.decode(Fixtures.Scores.class, this.deflateFastBytes);
+	}
+	
+	@Benchmark
+	public Fixtures.Scores decodeLz4() throws Exception {
+		return LZ4.decode(Fixtures.Scores.class, this.lz4Bytes);
+	}
+}
@@ -0,0 +1,107 @@
+package info.varden.nbtserial;
+
+import java.lang.reflect.Field;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+
+import net.minecraft.nbt.NBTTagCompound;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+/**
+ * <p>Compares the ways {@link NBTSerializer} can copy the fields of the README's
+ * {@link Person} into an {@link NBTTagCompound}: the original path, which reads every field
+ * through {@link Field#get(Object)} and unboxes primitives, against the {@link FieldAccessor}
+ * engine with both its method handle and its reflective implementations.</p>
+ * <p>Only the field transfer is measured; the {@code hobbies} list is read but not converted,
+ * so that the list encoding does not drown out the difference.</p>
+ * 
+ * @author Marius
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class FieldAccessorBenchmark {
+	private Person person;
+	
+	private Field[] fields;
+	private String[] names;
+	private FieldAccessor[] methodHandles;
+	private FieldAccessor[] reflective;
+	
+	@Setup
+	public void setup() throws Exception {
+		this.person = new Person("Alice", 31, new ArrayList<String>(Arrays.asList("Skiing", "Knitting", "Card games")), "Has a crush on Bob");
+		
+		String[] declared = {"name", "age", "hobbies", "secret"};
+		this.fields = new Field[declared.length];
+		this.names = new String[declared.length];
+		this.methodHandles = new FieldAccessor[declared.length];
+		this.reflective = new FieldAccessor[declared.length];
+		for (int i = 0; i < declared.length; i++) {
+			Field f = Person.class.getDeclaredField(declared[i]);
+			f.setAccessible(true);
+			this.fields[i] = f;
+			this.names[i] = declared[i];
+			this.methodHandles[i] = FieldAccessor.methodHandle(f);
+			this.reflective[i] = FieldAccessor.reflective(f);
+		}
+	}
+	
+	/**
+	 * <p>The original field transfer: {@code Field.get()} followed by a cast and unboxing of
+	 * primitive values.</p>
+	 */
+	@Benchmark
+	public NBTTagCompound boxedFieldGet() throws IllegalAccessException {
+		NBTTagCompound t = new NBTTagCompound();
+		for (int i = 0; i < this.fields.length; i++) {
+			Field f = this.fields[i];
+			Object fv = f.get(this.person);
+			if (fv == null) continue;
+			if (f.getType() == int.class) t.setInteger(this.names[i], (Integer) fv);
+			else if (fv instanceof String) t.setString(this.names[i], (String) fv);
+		}
+		return t;
+	}
+	
+	@Benchmark
+	public NBTTagCompound methodHandleAccessors() throws IllegalAccessException {
+		return transfer(this.methodHandles);
+	}
+	
+	@Benchmark
+	public NBTTagCompound reflectiveAccessors() throws IllegalAccessException {
+		return transfer(this.reflective);
+	}
+	
+	private NBTTagCompound transfer(FieldAccessor[] accessors) throws IllegalAccessException {
+		NBTTagCompound t = new NBTTagCompound();
+		for (int i = 0; i < accessors.length; i++) {
+			if (this.fields[i].getType() == int.class) {
+				t.setInteger(this.names[i], accessors[i].getInt(this.person));
+			} else {
+				Object fv = accessors[i].get(this.person);
+				if (fv instanceof String) t.setString(this.names[i], (String) fv);
+			}
+		}
+		return t;
+	}
+	
+	/**
+	 * <p>A full {@link NBTSerializer#serialize(INBTSerializable)} of the {@link Person},
+	 * including the {@code hobbies} list. Run with
+	 * {@code -Dinfo.varden.nbtserial.accessors=reflective} to measure the fallback.</p>
+	 */
+	@Benchmark
+	public NBTTagCompound serializePerson() throws Exception {
+		return NBTSerializer.serialize(this.person);
+	}
+}
@@ -0,0 +1,167 @@
+package info.varden.nbtserial;
+
+import java.nio.ByteBuffer;
+import java.nio.IntBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+
+/**
+ * <p>The classes serialized by {@link SerializerBenchmark}, one for each shape of data that
+ * is benchmarked.</p>
+ * 
+ * @author Marius
+ */
+public final class Fixtures {
+	private Fixtures() {}
+	
+	/**
+	 * <p>A class with only primitive fields, one of each supported type.</p>
+	 */
+	public static class Flat implements INBTSerializable {
+		@NBTSerialize public byte b = 1;
+		@NBTSerialize public boolean z = true;
+		@NBTSerialize public short s = 2;
+		@NBTSerialize public int i = 3;
+		@NBTSerialize public long l = 4L;
+		@NBTSerialize public float f = 5.0F;
+		@NBTSerialize public double d = 6.0D;
+	}
+	
+	/**
+	 * <p>A chain of nested instances, each holding the next one in a field.</p>
+	 */
+	public static class Node implements INBTSerializable {
+		@NBTSerialize public int depth;
+		@NBTSerialize public String label;
+		@NBTSerialize public Node child;
+		
+		public static Node chain(int depth) {
+			Node root = null;
+			for (int i = depth - 1; i >= 0; i--) {
+				Node n = new Node();
+				n.depth = i;
+				n.label = "node" + i;
+				n.child = root;
+				root = n;
+			}
+			return root;
+		}
+	}
+	
+	/**
+	 * <p>A large list of strings.</p>
+	 */
+	public static class Strings implements INBTSerializable {
+		@NBTSerialize public ArrayList<String> values;
+		
+		public static Strings of(int size) {
+			Strings s = new Strings();
+			s.values = new ArrayList<String>(size);
+			for (int i = 0; i < size; i++) s.values.add("value" + i);
+			return s;
+		}
+	}
+	
+	/**
+	 * <p>A map from strings to integers.</p>
+	 */
+	public static class Scores implements INBTSerializable {
+		@NBTSerialize public HashMap<String, Integer> scores;
+		
+		public static Scores of(int size) {
+			Scores s = new Scores();
+			s.scores = new HashMap<String, Integer>();
+			for (int i = 0; i < size; i++) s.scores.put("player" + i, i);
+			return s;
+		}
+	}
+	
+	/**
+	 * <p>The same map as {@link Scores}, written with {@link MapLayout#COMPOUND}.</p>
+	 */
+	public static class CompactScores implements INBTSerializable {
+		@NBTSerialize(mapLayout = MapLayout.COMPOUND) public HashMap<String, Integer> scores;
+		
+		public static CompactScores of(int size) {
+			CompactScores s = new CompactScores();
+			s.scores = Scores.of(size).scores;
+			return s;
+		}
+	}
+	
+	/**
+	 * <p>An int array and a boxed Integer array of the same size.</p>
+	 */
+	public static class IntArrays implements INBTSerializable {
+		@NBTSerialize public int[] ints;
+		@NBTSerialize public Integer[] boxed;
+		
+		public static IntArrays of(int size) {
+			IntArrays a = new IntArrays();
+			a.ints = new int[size];
+			a.boxed = new Integer[size];
+			for (int i = 0; i < size; i++) {
+				a.ints[i] = i;
+				a.boxed[i] = i;
+			}
+			return a;
+		}
+	}
+	
+	/**
+	 * <p>A long array and a float array, which are packed into byte array tags.</p>
+	 */
+	public static class PackedArrays implements INBTSerializable {
+		@NBTSerialize public long[] bits;
+		@NBTSerialize public float[] heights;
+		
+		public static PackedArrays of(int size) {
+			PackedArrays a = new PackedArrays();
+			a.bits = new long[size];
+			a.heights = new float[size];
+			for (int i = 0; i < size; i++) {
+				a.bits[i] = i * 0x9E3779B97F4A7C15L;
+				a.heights[i] = i * 0.5F;
+			}
+			return a;
+		}
+	}
+	
+	/**
+	 * <p>A chunk of block data, as kept in region-style save files, with its arrays held in
+	 * buffers so that they can be views of a mapped file.</p>
+	 */
+	public static class Chunk implements INBTSerializable {
+		@NBTSerialize public int x;
+		@NBTSerialize public int z;
+		@NBTSerialize public ByteBuffer blocks;
+		@NBTSerialize public IntBuffer heights;
+		
+		public static Chunk of(int size) {
+			Chunk c = new Chunk();
+			c.x = 12;
+			c.z = -3;
+			c.blocks = ByteBuffer.allocate(size);
+			for (int i = 0; i < size; i++) c.blocks.put(i, (byte) i);
+			c.heights = IntBuffer.allocate(256);
+			for (int i = 0; i < 256; i++) c.heights.put(i, 64 + i % 8);
+			return c;
+		}
+	}
+	
+	/**
+	 * <p>Only the position of a {@link Chunk}, for reading it without its block data.</p>
+	 */
+	public static class ChunkPosition implements INBTSerializable {
+		@NBTSerialize public int x;
+		@NBTSerialize public int z;
+	}
+	
+	/**
+	 * <p>The README's {@link Person}.</p>
+	 */
+	public static Person alice() {
+		return new Person("Alice", 31, new ArrayList<String>(Arrays.asList("Skiing", "Knitting", "Card games")), "Has a crush on Bob");
+	}
+}
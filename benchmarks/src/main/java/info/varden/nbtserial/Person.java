@@ -0,0 +1,34 @@
+package info.varden.nbtserial;
+
+import java.util.ArrayList;
+
+/**
+ * <p>The example class from the README, used as a benchmark fixture.</p>
+ * 
+ * @author Marius
+ */
+public class Person implements INBTSerializable {
+	
+	@Deprecated
+	public Person() {}
+	
+	public Person(String name, int age, ArrayList<String> hobbies, String secret) {
+		this.name = name;
+		this.age = age;
+		this.hobbies = hobbies;
+		this.secret = secret;
+	}
+	
+	@NBTSerialize
+	public String name;
+	
+	@NBTSerialize
+	public int age;
+	
+	@NBTSerialize
+	public ArrayList<String> hobbies;
+	
+	@NBTSerialize
+	private String secret;
+	
+}
@@ -0,0 +1,192 @@
+package info.varden.nbtserial;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+
+import net.minecraft.nbt.CompressedStreamTools;
+import net.minecraft.nbt.NBTTagCompound;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * <p>Measures the throughput of {@link NBTSerializer#serialize(INBTSerializable)} and
+ * {@link NBTSerializer#deserialize(Class, NBTTagCompound)} for the shapes of data in
+ * {@link Fixtures}. Run through {@link BenchmarkRunner} to also get the number of bytes
+ * allocated per operation.</p>
+ * <p>The deserialization benchmarks read from compounds that were serialized once during
+ * setup.</p>
+ * 
+ * @author Marius
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class SerializerBenchmark {
+	/**
+	 * The number of elements in the large list, map and array fixtures, and the depth of the
+	 * nested fixture.
+	 */
+	private static final int LIST_SIZE = 10000;
+	private static final int MAP_SIZE = 1000;
+	private static final int ARRAY_SIZE = 10000;
+	private static final int DEPTH = 64;
+	private static final int CHUNK_SIZE = 65536;
+	
+	private Fixtures.Flat flat;
+	private Person person;
+	private Fixtures.Node nested;
+	private Fixtures.Strings strings;
+	private Fixtures.Scores scores;
+	private Fixtures.CompactScores compactScores;
+	private Fixtures.IntArrays arrays;
+	private Fixtures.PackedArrays packed;
+	
+	private NBTTagCompound flatTag;
+	private NBTTagCompound personTag;
+	private NBTTagCompound nestedTag;
+	private NBTTagCompound stringsTag;
+	private NBTTagCompound scoresTag;
+	private NBTTagCompound compactScoresTag;
+	private NBTTagCompound arraysTag;
+	private NBTTagCompound packedTag;
+	
+	private Fixtures.Node trackedNested;
+	private NBTTracker<Fixtures.Node> nestedTracker;
+	
+	private Person refilledPerson;
+	private Fixtures.Node refilledNested;
+	private Fixtures.Strings refilledStrings;
+	
+	private byte[] nestedBytes;
+	private byte[] nestedSchemaBytes;
+	private byte[] chunkBytes;
+	private ByteBuffer chunkBuffer;
+	
+	@Setup
+	public void setup() throws Exception {
+		this.flat = new Fixtures.Flat();
+		this.person = Fixtures.alice();
+		this.nested = Fixtures.Node.chain(DEPTH);
+		this.strings = Fixtures.Strings.of(LIST_SIZE);
+		this.scores = Fixtures.Scores.of(MAP_SIZE);
+		this.compactScores = Fixtures.CompactScores.of(MAP_SIZE);
+		this.arrays = Fixtures.IntArrays.of(ARRAY_SIZE);
+		this.packed = Fixtures.PackedArrays.of(ARRAY_SIZE);
+		
+		this.flatTag = NBTSerializer.serialize(this.flat);
+		this.personTag = NBTSerializer.serialize(this.person);
+		this.nestedTag = NBTSerializer.serialize(this.nested);
+		this.stringsTag = NBTSerializer.serialize(this.strings);
+		this.scoresTag = NBTSerializer.serialize(this.scores);
+		this.compactScoresTag = NBTSerializer.serialize(this.compactScores);
+		this.arraysTag = NBTSerializer.serialize(this.arrays);
+		this.packedTag = NBTSerializer.serialize(this.packed);
+		
+		this.trackedNested = Fixtures.Node.chain(DEPTH);
+		this.nestedTracker = new NBTTracker<Fixtures.Node>(this.trackedNested);
+		this.nestedTracker.serialize();
+		
+		this.refilledPerson = Fixtures.alice();
+		this.refilledNested = Fixtures.Node.chain(DEPTH);
+		this.refilledStrings = Fixtures.Strings.of(LIST_SIZE);
+		
+		ByteArrayOutputStream nested = new ByteArrayOutputStream();
+		NBTSerializer.writeTo(this.nested, nested);
+		this.nestedBytes = nested.toByteArray();
+		nested.reset();
+		NBTSerializer.writeTo(this.nested, nested, true);
+		this.nestedSchemaBytes = nested.toByteArray();
+		
+		ByteArrayOutputStream chunk = new ByteArrayOutputStream();
+		CompressedStreamTools.write(NBTSerializer.serialize(Fixtures.Chunk.of(CHUNK_SIZE)), new DataOutputStream(chunk));
+		this.chunkBytes = chunk.toByteArray();
+		this.chunkBuffer = ByteBuffer.allocateDirect(this.chunkBytes.length);
+		this.chunkBuffer.put(this.chunkBytes).flip();
+	}
+	
+	/*
+	 * Serialization.
+	 */
+	
+	@Benchmark public NBTTagCompound serializeFlat() throws Exception        { return NBTSerializer.serialize(this.flat); }
+	@Benchmark public NBTTagCompound serializePerson() throws Exception      { return NBTSerializer.serialize(this.person); }
+	@Benchmark public NBTTagCompound serializeNested() throws Exception      { return NBTSerializer.serialize(this.nested); }
+	@Benchmark public NBTTagCompound serializeStringList() throws Exception  { return NBTSerializer.serialize(this.strings); }
+	@Benchmark public NBTTagCompound serializeMap() throws Exception         { return NBTSerializer.serialize(this.scores); }
+	@Benchmark public NBTTagCompound serializeCompactMap() throws Exception  { return NBTSerializer.serialize(this.compactScores); }
+	@Benchmark public NBTTagCompound serializeArrays() throws Exception      { return NBTSerializer.serialize(this.arrays); }
+	@Benchmark public NBTTagCompound serializePackedArrays() throws Exception { return NBTSerializer.serialize(this.packed); }
+	
+	/*
+	 * Incremental serialization of the nested fixture, where only the field of the outermost
+	 * node changes between calls.
+	 */
+	
+	@Benchmark
+	public NBTTagCompound serializeNestedTracked() throws Exception {
+		this.trackedNested.depth++;
+		return this.nestedTracker.serialize();
+	}
+	
+	@Benchmark
+	public NBTTagCompound deltaNestedTracked() throws Exception {
+		this.trackedNested.depth++;
+		return this.nestedTracker.delta();
+	}
+	
+	/*
+	 * Deserialization.
+	 */
+	
+	@Benchmark public Fixtures.Flat deserializeFlat() throws Exception           { return NBTSerializer.deserialize(Fixtures.Flat.class, this.flatTag); }
+	@Benchmark public Person deserializePerson() throws Exception                { return NBTSerializer.deserialize(Person.class, this.personTag); }
+	@Benchmark public Fixtures.Node deserializeNested() throws Exception         { return NBTSerializer.deserialize(Fixtures.Node.class, this.nestedTag); }
+	@Benchmark public Fixtures.Strings deserializeStringList() throws Exception  { return NBTSerializer.deserialize(Fixtures.Strings.class, this.stringsTag); }
+	@Benchmark public Fixtures.Scores deserializeMap() throws Exception          { return NBTSerializer.deserialize(Fixtures.Scores.class, this.scoresTag); }
+	@Benchmark public Fixtures.CompactScores deserializeCompactMap() throws Exception { return NBTSerializer.deserialize(Fixtures.CompactScores.class, this.compactScoresTag); }
+	@Benchmark public Fixtures.IntArrays deserializeArrays() throws Exception    { return NBTSerializer.deserialize(Fixtures.IntArrays.class, this.arraysTag); }
+	@Benchmark public Fixtures.PackedArrays deserializePackedArrays() throws Exception { return NBTSerializer.deserialize(Fixtures.PackedArrays.class, this.packedTag); }
+	
+	/*
+	 * Deserialization into instances that are reused from call to call, as with instances
+	 * taken from an NBTPool.
+	 */
+	
+	@Benchmark public Person refillPerson() throws Exception                { NBTSerializer.refill(this.refilledPerson, this.personTag); return this.refilledPerson; }
+	@Benchmark public Fixtures.Node refillNested() throws Exception         { NBTSerializer.refill(this.refilledNested, this.nestedTag); return this.refilledNested; }
+	@Benchmark public Fixtures.Strings refillStringList() throws Exception  { NBTSerializer.refill(this.refilledStrings, this.stringsTag); return this.refilledStrings; }
+	
+	/*
+	 * Reading the nested fixture from its binary form, without and with the schema
+	 * fingerprint of its class.
+	 */
+	
+	@Benchmark public Fixtures.Node readNested() throws Exception            { return NBTSerializer.readFrom(Fixtures.Node.class, new DataInputStream(new ByteArrayInputStream(this.nestedBytes))); }
+	@Benchmark public Fixtures.Node readNestedWithSchema() throws Exception  { return NBTSerializer.readFrom(Fixtures.Node.class, new DataInputStream(new ByteArrayInputStream(this.nestedSchemaBytes))); }
+	
+	/*
+	 * Reading a chunk of block data from its binary form, through a stream, which copies its
+	 * arrays, and from a buffer like a mapped file, which does not. The position benchmark
+	 * only looks up the two small tags.
+	 */
+	
+	@Benchmark public Fixtures.Chunk readChunk() throws Exception                           { return NBTSerializer.readFrom(Fixtures.Chunk.class, new DataInputStream(new ByteArrayInputStream(this.chunkBytes))); }
+	@Benchmark public Fixtures.Chunk deserializeMappedChunk() throws Exception              { return NBTSerializer.deserialize(Fixtures.Chunk.class, NBTMappedCompound.wrap(this.chunkBuffer)); }
+	@Benchmark public Fixtures.ChunkPosition deserializeMappedChunkPosition() throws Exception { return NBTSerializer.deserialize(Fixtures.ChunkPosition.class, NBTMappedCompound.wrap(this.chunkBuffer)); }
+}
@@ -0,0 +1,503 @@
+package info.varden.nbtserial.processor;
+
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import javax.annotation.processing.AbstractProcessor;
+import javax.annotation.processing.RoundEnvironment;
+import javax.annotation.processing.SupportedAnnotationTypes;
+import javax.lang.model.SourceVersion;
+import javax.lang.model.element.AnnotationMirror;
+import javax.lang.model.element.AnnotationValue;
+import javax.lang.model.element.Element;
+import javax.lang.model.element.ElementKind;
+import javax.lang.model.element.ExecutableElement;
+import javax.lang.model.element.Modifier;
+import javax.lang.model.element.NestingKind;
+import javax.lang.model.element.PackageElement;
+import javax.lang.model.element.TypeElement;
+import javax.lang.model.element.VariableElement;
+import javax.lang.model.type.ArrayType;
+import javax.lang.model.type.DeclaredType;
+import javax.lang.model.type.TypeKind;
+import javax.lang.model.type.TypeMirror;
+import javax.tools.Diagnostic;
+
+/**
+ * <p>Generates a serializer for every {@code INBTSerializable} class that declares or
+ * inherits {@code @NBTSerialize} annotated fields. For a class {@code com.example.Person}, the
+ * serializer is generated as {@code com.example.Person$NBTCodec}, a subclass of
+ * {@code GeneratedCodec} that {@code NBTSerializer} picks up automatically at runtime.</p>
+ * <p>The generated code reads and writes fields directly and creates and reads NBT tags with
+ * straight-line calls such as {@code setInteger()}, for primitives, their wrappers, strings
+ * and byte and int arrays. Private fields, and fields of any other type, are handled through
+ * the slots of {@code GeneratedCodec}, which use the same accessors and codecs as the
+ * reflective serializer. The output is identical either way.</p>
+ * <p>Classes that the generated code cannot refer to, such as private nested classes, are
+ * skipped with a warning, and are serialized through reflection as before. Abstract classes
+ * are skipped silently, as they are never instantiated; the serializers of their subclasses
+ * include the fields that they declare.</p>
+ * 
+ * @author Marius
+ */
+/*
+ * Every class is looked at, since a class without annotations of its own may still inherit
+ * annotated fields from a superclass that is compiled separately.
+ */
+@SupportedAnnotationTypes("*")
+public class NBTSerializeProcessor extends AbstractProcessor {
+	private static final String NBT_SERIALIZE = "info.varden.nbtserial.NBTSerialize";
+	private static final String SERIALIZABLE = "info.varden.nbtserial.INBTSerializable";
+	private static final String GENERATED_CODEC = "info.varden.nbtserial.GeneratedCodec";
+	private static final String SUFFIX = "$NBTCodec";
+	
+	@Override
+	public SourceVersion getSupportedSourceVersion() {
+		return SourceVersion.latestSupported();
+	}
+	
+	@Override
+	public boolean process(Set<? extends TypeElement> annotations, RoundEnvironment roundEnv) {
+		TypeElement annotation = this.processingEnv.getElementUtils().getTypeElement(NBT_SERIALIZE);
+		if (annotation == null) return false;
+		
+		/*
+		 * Collect the classes being compiled, including nested ones. Each class that has
+		 * annotated fields, whether declared or inherited, gets one serializer.
+		 */
+		Set<TypeElement> classes = new LinkedHashSet<TypeElement>();
+		for (Element e : roundEnv.getRootElements()) collect(e, classes);
+		for (TypeElement type : classes) {
+			List<VariableElement> fields = fieldsOf(type);
+			if (fields.isEmpty() || !canGenerate(type)) continue;
+			try {
+				generate(type, fields);
+			} catch (IOException e) {
+				this.processingEnv.getMessager().printMessage(Diagnostic.Kind.ERROR, "Could not generate NBT serializer: " + e, type);
+			}
+		}
+		return false;
+	}
+	
+	/**
+	 * <p>Adds the given element to the set if it is a class, and does the same for the
+	 * classes nested in it.</p>
+	 */
+	private static void collect(Element e, Set<TypeElement> classes) {
+		if (e.getKind() != ElementKind.CLASS) return;
+		classes.add((TypeElement) e);
+		for (Element member : e.getEnclosedElements()) collect(member, classes);
+	}
+	
+	/**
+	 * <p>Gets the annotated fields of the given class and its superclasses, in the same order
+	 * as {@code ClassPlan}: the fields of a superclass before those of its subclasses, and the
+	 * fields of each class in declaration order.</p>
+	 * 
+	 * @param type The class.
+	 * @return The annotated fields.
+	 */
+	private static List<VariableElement> fieldsOf(TypeElement type) {
+		List<TypeElement> hierarchy = new ArrayList<TypeElement>();
+		for (TypeElement t = type; t != null; ) {
+			if (t.getQualifiedName().contentEquals("java.lang.Object")) break;
+			hierarchy.add(0, t);
+			TypeMirror superclass = t.getSuperclass();
+			t = superclass.getKind() == TypeKind.DECLARED ? (TypeElement) ((DeclaredType) superclass).asElement() : null;
+		}
+		List<VariableElement> fields = new ArrayList<VariableElement>();
+		for (TypeElement t : hierarchy) {
+			for (Element e : t.getEnclosedElements()) {
+				if (e.getKind() == ElementKind.FIELD && annotation(e) != null) fields.add((VariableElement) e);
+			}
+		}
+		return fields;
+	}
+	
+	/**
+	 * <p>Checks whether a serializer can be generated for the given class, and warns if it
+	 * cannot.</p>
+	 * 
+	 * @param type The class.
+	 * @return Whether a serializer can be generated.
+	 */
+	private boolean canGenerate(TypeElement type) {
+		TypeElement serializable = this.processingEnv.getElementUtils().getTypeElement(SERIALIZABLE);
+		if (serializable == null || !this.processingEnv.getTypeUtils().isAssignable(erasure(type.asType()), erasure(serializable.asType()))) {
+			/*
+			 * Annotated fields in classes that are not serializable are ignored by the
+			 * serializer, so there is nothing to generate.
+			 */
+			return false;
+		}
+		if (type.getModifiers().contains(Modifier.ABSTRACT)) return false;
+		for (Element e = type; e instanceof TypeElement; e = e.getEnclosingElement()) {
+			TypeElement t = (TypeElement) e;
+			if (t.getModifiers().contains(Modifier.PRIVATE)) {
+				warn(type, "private classes cannot be referred to by the generated code");
+				return false;
+			}
+			if (t.getNestingKind() == NestingKind.LOCAL || t.getNestingKind() == NestingKind.ANONYMOUS) {
+				warn(type, "local and anonymous classes cannot be referred to by the generated code");
+				return false;
+			}
+			if (t.getNestingKind() == NestingKind.MEMBER && !t.getModifiers().contains(Modifier.STATIC)) {
+				warn(type, "inner classes cannot be instantiated without an enclosing instance");
+				return false;
+			}
+		}
+		return true;
+	}
+	
+	private void warn(TypeElement type, String reason) {
+		this.processingEnv.getMessager().printMessage(Diagnostic.Kind.WARNING, "No NBT serializer generated for " + type.getQualifiedName() + ", as " + reason + "; it is serialized through reflection instead", type);
+	}
+	
+	/**
+	 * <p>Writes the source file of the serializer for the given class.</p>
+	 * 
+	 * @param type The class.
+	 * @param annotated The annotated fields of the class and its superclasses.
+	 * @throws IOException if the source file cannot be written.
+	 */
+	private void generate(TypeElement type, List<VariableElement> annotated) throws IOException {
+		PackageElement pkg = this.processingEnv.getElementUtils().getPackageOf(type);
+		String packageName = pkg.isUnnamed() ? "" : pkg.getQualifiedName().toString();
+		String binaryName = this.processingEnv.getElementUtils().getBinaryName(type).toString();
+		String simpleName = (packageName.isEmpty() ? binaryName : binaryName.substring(packageName.length() + 1)) + SUFFIX;
+		String typeName = type.getQualifiedName().toString();
+		
+		/*
+		 * Fields that are serialized to the same tag would overwrite each other, which
+		 * NBTSerializer refuses at runtime. Reporting it now saves finding out later.
+		 */
+		List<FieldSource> fields = new ArrayList<FieldSource>();
+		Map<String, FieldSource> byTagName = new HashMap<String, FieldSource>();
+		for (VariableElement e : annotated) {
+			FieldSource f = new FieldSource(e, pkg, fields.size());
+			FieldSource other = byTagName.put(f.tagName, f);
+			if (other != null) {
+				this.processingEnv.getMessager().printMessage(Diagnostic.Kind.ERROR, "Fields " + other.describe() + " and " + f.describe() + " of " + type.getQualifiedName() + " are both serialized to tag " + f.tagName, type);
+				return;
+			}
+			fields.add(f);
+		}
+		
+		PrintWriter w = new PrintWriter(this.processingEnv.getFiler().createSourceFile(packageName.isEmpty() ? simpleName : packageName + "." + simpleName, type).openWriter());
+		try {
+			if (!packageName.isEmpty()) {
+				w.println("package " + packageName + ";");
+				w.println();
+			}
+			w.println("/**");
+			w.println(" * <p>The NBT serializer of {@link " + typeName + "}, generated by " + getClass().getSimpleName() + ".</p>");
+			w.println(" * <p><b>Do not edit.</b> Changes are overwritten the next time the class is compiled.</p>");
+			w.println(" */");
+			w.println("@SuppressWarnings({\"unchecked\", \"rawtypes\"})");
+			w.println("public final class " + simpleName + " extends " + GENERATED_CODEC + "<" + typeName + "> {");
+			for (FieldSource f : fields) {
+				if (f.slot) w.println("\tprivate final Slot s" + f.index + " = slot(\"" + escape(f.tagName) + "\");");
+			}
+			w.println("\t");
+			w.println("\tpublic " + simpleName + "() {");
+			w.println("\t\tsuper(" + typeName + ".class);");
+			w.println("\t}");
+			w.println("\t");
+			w.println("\t@Override");
+			w.println("\tpublic net.minecraft.nbt.NBTTagCompound serialize(" + typeName + " object) throws IllegalAccessException, info.varden.nbtserial.UnserializableClassException {");
+			w.println("\t\tnet.minecraft.nbt.NBTTagCompound t = new net.minecraft.nbt.NBTTagCompound();");
+			for (FieldSource f : fields) f.writeSerialize(w);
+			w.println("\t\treturn t;");
+			w.println("\t}");
+			w.println("\t");
+			w.println("\t@Override");
+			w.println("\tpublic void deserialize(" + typeName + " object, net.minecraft.nbt.NBTTagCompound data, boolean interpretMissingFieldValuesAsNull) throws IllegalAccessException, InstantiationException, info.varden.nbtserial.UnserializableClassException {");
+			for (FieldSource f : fields) f.writeDeserialize(w);
+			w.println("\t}");
+			w.println("}");
+		} finally {
+			w.close();
+		}
+	}
+	
+	/**
+	 * <p>Checks whether the generated code, in the given package, can access the given field
+	 * directly.</p>
+	 */
+	private boolean isAccessible(VariableElement field, PackageElement pkg) {
+		Set<Modifier> mods = field.getModifiers();
+		if (mods.contains(Modifier.PRIVATE) || mods.contains(Modifier.STATIC)) return false;
+		/*
+		 * Fields inherited from a class in another package must be public, and so must that
+		 * class, as the generated code is not a subclass.
+		 */
+		boolean samePackage = this.processingEnv.getElementUtils().getPackageOf(field).equals(pkg);
+		if (!samePackage && !mods.contains(Modifier.PUBLIC)) return false;
+		return isVisible(field.getEnclosingElement(), pkg);
+	}
+	
+	/**
+	 * <p>Checks whether the generated code, in the given package, can refer to the given
+	 * class by name.</p>
+	 */
+	private boolean isVisible(Element type, PackageElement pkg) {
+		boolean samePackage = this.processingEnv.getElementUtils().getPackageOf(type).equals(pkg);
+		for (Element e = type; e instanceof TypeElement; e = e.getEnclosingElement()) {
+			if (e.getModifiers().contains(Modifier.PRIVATE)) return false;
+			if (!samePackage && !e.getModifiers().contains(Modifier.PUBLIC)) return false;
+		}
+		return true;
+	}
+	
+	/**
+	 * <p>Checks whether the generated code, in the given package, can refer to the given
+	 * type by name, which is not the case for type variables and classes that are not
+	 * visible.</p>
+	 */
+	private boolean isNameable(TypeMirror type, PackageElement pkg) {
+		while (type.getKind() == TypeKind.ARRAY) type = ((ArrayType) type).getComponentType();
+		if (type.getKind().isPrimitive()) return true;
+		if (type.getKind() != TypeKind.DECLARED) return false;
+		return isVisible(((DeclaredType) type).asElement(), pkg);
+	}
+	
+	/**
+	 * <p>Gets the {@code @NBTSerialize} annotation of the given element.</p>
+	 */
+	private static AnnotationMirror annotation(Element e) {
+		for (AnnotationMirror a : e.getAnnotationMirrors()) {
+			if (((TypeElement) a.getAnnotationType().asElement()).getQualifiedName().contentEquals(NBT_SERIALIZE)) return a;
+		}
+		return null;
+	}
+	
+	private TypeMirror erasure(TypeMirror type) {
+		return this.processingEnv.getTypeUtils().erasure(type);
+	}
+	
+	/**
+	 * <p>Escapes a string for use in a string literal.</p>
+	 */
+	private static String escape(String s) {
+		StringBuilder sb = new StringBuilder(s.length());
+		for (int i = 0; i < s.length(); i++) {
+			char c = s.charAt(i);
+			if (c == '"' || c == '\\') sb.append('\\').append(c);
+			else if (c < 0x20 || c > 0x7E) sb.append(String.format("\\u%04x", (int) c));
+			else sb.append(c);
+		}
+		return sb.toString();
+	}
+	
+	/**
+	 * <p>The ways the generated code transfers a field value to and from an NBT tag. Each
+	 * direct kind names the method of {@code NBTTagCompound} that writes the value, the NBT
+	 * tag class that holds it, the expression that reads the value from such a tag, and the
+	 * method of {@code NBTTagCompound} and of {@code GeneratedCodec.Slot} that read and write
+	 * the primitive value of a field.</p>
+	 */
+	private enum Transfer {
+		/*
+		 * Primitives.
+		 */
+		BYTE        ("setByte",         null,               null,                       "getByte",      "Byte"),
+		BOOLEAN     ("setBoolean",      null,               null,                       "getBoolean",   "Boolean"),
+		SHORT       ("setShort",        null,               null,                       "getShort",     "Short"),
+		INT         ("setInteger",      null,               null,                       "getInteger",   "Int"),
+		LONG        ("setLong",         null,               null,                       "getLong",      "Long"),
+		FLOAT       ("setFloat",        null,               null,                       "getFloat",     "Float"),
+		DOUBLE      ("setDouble",       null,               null,                       "getDouble",    "Double"),
+		
+		/*
+		 * Wrappers, strings and arrays that map to exactly one NBT tag type.
+		 */
+		BOXED_BYTE      ("setByte",         "NBTTagByte",       "Byte.valueOf(%s.getByte())",           null, null),
+		BOXED_BOOLEAN   ("setBoolean",      "NBTTagByte",       "Boolean.valueOf(%s.getByte() != 0)",   null, null),
+		BOXED_SHORT     ("setShort",        "NBTTagShort",      "Short.valueOf(%s.getShort())",         null, null),
+		BOXED_INT       ("setInteger",      "NBTTagInt",        "Integer.valueOf(%s.getInt())",         null, null),
+		BOXED_LONG      ("setLong",         "NBTTagLong",       "Long.valueOf(%s.getLong())",           null, null),
+		BOXED_FLOAT     ("setFloat",        "NBTTagFloat",      "Float.valueOf(%s.getFloat())",         null, null),
+		BOXED_DOUBLE    ("setDouble",       "NBTTagDouble",     "Double.valueOf(%s.getDouble())",       null, null),
+		STRING          ("setString",       "NBTTagString",     "%s.getString()",                       null, null),
+		BYTE_ARRAY      ("setByteArray",    "NBTTagByteArray",  "%s.getByteArray()",                    null, null),
+		INT_ARRAY       ("setIntArray",     "NBTTagIntArray",   "%s.getIntArray()",                     null, null),
+		
+		/*
+		 * Everything else goes through the codec of the field.
+		 */
+		CODEC       (null, null, null, null, null);
+		
+		final String setter;
+		final String tagClass;
+		final String read;
+		final String getter;
+		final String slotSuffix;
+		
+		Transfer(String setter, String tagClass, String read, String getter, String slotSuffix) {
+			this.setter = setter;
+			this.tagClass = tagClass;
+			this.read = read;
+			this.getter = getter;
+			this.slotSuffix = slotSuffix;
+		}
+		
+		boolean isPrimitive() {
+			return this.getter != null;
+		}
+	}
+	
+	/**
+	 * <p>An annotated field, and the code that the generated serializer uses for it.</p>
+	 */
+	private final class FieldSource {
+		final VariableElement field;
+		final int index;
+		final String name;
+		final String tagName;
+		final String typeName;
+		final Transfer transfer;
+		/**
+		 * Whether the field is of a primitive type. This is not the same as the transfer
+		 * being primitive, as primitives that no NBT tag type matches, such as {@code char},
+		 * go through the codec of the field.
+		 */
+		final boolean primitive;
+		/**
+		 * Whether the generated code reads and writes the field through a slot, rather than
+		 * directly.
+		 */
+		final boolean slot;
+		final boolean readable;
+		final boolean writable;
+		
+		FieldSource(VariableElement field, PackageElement pkg, int index) {
+			this.field = field;
+			this.index = index;
+			this.name = field.getSimpleName().toString();
+			
+			/*
+			 * The tag name and type override are read from the annotation mirror, as the
+			 * annotation class itself is not available to the processor.
+			 */
+			String tagName = "";
+			boolean overridden = false;
+			for (Map.Entry<? extends ExecutableElement, ? extends AnnotationValue> e : annotation(field).getElementValues().entrySet()) {
+				String key = e.getKey().getSimpleName().toString();
+				if (key.equals("name")) tagName = (String) e.getValue().getValue();
+				if (key.equals("typeOverride")) overridden = !((TypeMirror) e.getValue().getValue()).toString().equals("java.lang.Object");
+			}
+			this.tagName = tagName.isEmpty() ? this.name : tagName;
+			
+			TypeMirror type = field.asType();
+			this.typeName = erasure(type).toString();
+			Transfer t = transferOf(type);
+			/*
+			 * A type override changes what is instantiated on deserialization, which only
+			 * the codec of the field knows how to handle. Primitives ignore it.
+			 */
+			if (overridden && !t.isPrimitive()) t = Transfer.CODEC;
+			this.transfer = t;
+			this.primitive = type.getKind().isPrimitive();
+			
+			/*
+			 * Fields are accessed directly only if the generated code can also name their
+			 * type.
+			 */
+			this.readable = isAccessible(field, pkg) && isNameable(type, pkg);
+			this.writable = this.readable && !field.getModifiers().contains(Modifier.FINAL);
+			this.slot = !this.writable || t == Transfer.CODEC;
+		}
+		
+		String describe() {
+			return ((TypeElement) this.field.getEnclosingElement()).getQualifiedName() + "." + this.name;
+		}
+		
+		private String read() {
+			if (this.readable) return "object." + this.name;
+			if (this.transfer.isPrimitive()) return "this.s" + this.index + ".get" + this.transfer.slotSuffix + "(object)";
+			if (this.transfer == Transfer.CODEC) return "this.s" + this.index + ".get(object)";
+			return "(" + this.typeName + ") this.s" + this.index + ".get(object)";
+		}
+		
+		private String write(String value) {
+			if (this.writable) return "object." + this.name + " = " + value + ";";
+			if (this.transfer.isPrimitive()) return "this.s" + this.index + ".set" + this.transfer.slotSuffix + "(object, " + value + ");";
+			return "this.s" + this.index + ".set(object, " + value + ");";
+		}
+		
+		void writeSerialize(PrintWriter w) {
+			String tn = "\"" + escape(this.tagName) + "\"";
+			if (this.transfer.isPrimitive()) {
+				w.println("\t\tt." + this.transfer.setter + "(" + tn + ", " + read() + ");");
+				return;
+			}
+			String v = "v" + this.index;
+			w.println("\t\t" + (this.transfer == Transfer.CODEC ? "Object" : this.typeName) + " " + v + " = " + read() + ";");
+			if (this.transfer == Transfer.CODEC) {
+				w.println("\t\tif (" + v + " != null) t.setTag(" + tn + ", this.s" + this.index + ".encode(" + v + "));");
+			} else {
+				w.println("\t\tif (" + v + " != null) t." + this.transfer.setter + "(" + tn + ", " + v + ");");
+			}
+		}
+		
+		void writeDeserialize(PrintWriter w) {
+			String tn = "\"" + escape(this.tagName) + "\"";
+			String value;
+			if (this.transfer.isPrimitive()) {
+				value = "data." + this.transfer.getter + "(" + tn + ")";
+			} else if (this.transfer == Transfer.CODEC) {
+				value = this.writable ? "(" + this.typeName + ") this.s" + this.index + ".decode(data.getTag(" + tn + "))" : "this.s" + this.index + ".decode(data.getTag(" + tn + "))";
+			} else {
+				value = String.format(this.transfer.read, "((net.minecraft.nbt." + this.transfer.tagClass + ") data.getTag(" + tn + "))");
+			}
+			w.println("\t\tif (data.hasKey(" + tn + ")) " + write(value));
+			/*
+			 * Like the reflective serializer, missing primitives cannot be set to null.
+			 */
+			if (this.primitive) {
+				w.println("\t\telse if (interpretMissingFieldValuesAsNull) throw new IllegalArgumentException(\"Cannot set primitive field to null\");");
+			} else {
+				w.println("\t\telse if (interpretMissingFieldValuesAsNull) " + write("null"));
+			}
+		}
+	}
+	
+	/**
+	 * <p>Gets the way a field of the given type is transferred.</p>
+	 */
+	private static Transfer transferOf(TypeMirror type) {
+		switch (type.getKind()) {
+		case BYTE:      return Transfer.BYTE;
+		case BOOLEAN:   return Transfer.BOOLEAN;
+		case SHORT:     return Transfer.SHORT;
+		case INT:       return Transfer.INT;
+		case LONG:      return Transfer.LONG;
+		case FLOAT:     return Transfer.FLOAT;
+		case DOUBLE:    return Transfer.DOUBLE;
+		case ARRAY:
+			TypeKind component = ((ArrayType) type).getComponentType().getKind();
+			if (component == TypeKind.BYTE) return Transfer.BYTE_ARRAY;
+			if (component == TypeKind.INT) return Transfer.INT_ARRAY;
+			return Transfer.CODEC;
+		case DECLARED:
+			String name = ((TypeElement) ((DeclaredType) type).asElement()).getQualifiedName().toString();
+			if (name.equals("java.lang.String"))    return Transfer.STRING;
+			if (name.equals("java.lang.Byte"))      return Transfer.BOXED_BYTE;
+			if (name.equals("java.lang.Boolean"))   return Transfer.BOXED_BOOLEAN;
+			if (name.equals("java.lang.Short"))     return Transfer.BOXED_SHORT;
+			if (name.equals("java.lang.Integer"))   return Transfer.BOXED_INT;
+			if (name.equals("java.lang.Long"))      return Transfer.BOXED_LONG;
+			if (name.equals("java.lang.Float"))     return Transfer.BOXED_FLOAT;
+			if (name.equals("java.lang.Double"))    return Transfer.BOXED_DOUBLE;
+			return Transfer.CODEC;
+		default:
+			return Transfer.CODEC;
+		}
+	}
+}
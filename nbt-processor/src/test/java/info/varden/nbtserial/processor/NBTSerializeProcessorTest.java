@@ -0,0 +1,245 @@
+package info.varden.nbtserial.processor;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.File;
+import java.io.IOException;
+import java.lang.reflect.Array;
+import java.lang.reflect.Field;
+import java.net.URL;
+import java.net.URLClassLoader;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import javax.tools.Diagnostic;
+import javax.tools.DiagnosticCollector;
+import javax.tools.JavaCompiler;
+import javax.tools.JavaFileObject;
+import javax.tools.StandardJavaFileManager;
+import javax.tools.ToolProvider;
+
+import info.varden.nbtserial.GeneratedCodec;
+import info.varden.nbtserial.INBTSerializable;
+import info.varden.nbtserial.NBTCodec;
+import info.varden.nbtserial.NBTCodecs;
+import info.varden.nbtserial.NBTSerializer;
+import net.minecraft.nbt.NBTBase;
+import net.minecraft.nbt.NBTTagCompound;
+import net.minecraft.nbt.NBTTagShort;
+
+import org.junit.Test;
+
+/**
+ * <p>Tests for {@link NBTSerializeProcessor}: a fixture is compiled once with the processor
+ * and once without it, and the generated serializer must compile and produce the same NBT
+ * data as the reflective serializer.</p>
+ * 
+ * @author Marius
+ */
+public class NBTSerializeProcessorTest {
+	/*
+	 * The fixture has fields of every way the generated code handles them: direct, through
+	 * a slot because they are private or inherited, and through the codec of the field
+	 * because no NBT tag type matches them, like char.
+	 */
+	private static final String BASE = "package fixture;\n"
+			+ "import info.varden.nbtserial.*;\n"
+			+ "public class Base implements INBTSerializable {\n"
+			+ "	@NBTSerialize private int hidden;\n"
+			+ "	@NBTSerialize protected String label;\n"
+			+ "	@NBTSerialize public char initial;\n"
+			+ "}\n";
+	private static final String FIXTURE = "package fixture;\n"
+			+ "import info.varden.nbtserial.*;\n"
+			+ "public class Fixture extends Base {\n"
+			+ "	@NBTSerialize public char c;\n"
+			+ "	@NBTSerialize private char secretChar;\n"
+			+ "	@NBTSerialize private long secret;\n"
+			+ "	@NBTSerialize(name = \"n\") public int number;\n"
+			+ "	@NBTSerialize public boolean flag;\n"
+			+ "	@NBTSerialize public int[] values;\n"
+			+ "	@NBTSerialize public Integer boxed;\n"
+			+ "	@NBTSerialize public Character boxedChar;\n"
+			+ "	@NBTSerialize public java.util.ArrayList<String> list;\n"
+			+ "}\n";
+	
+	static {
+		NBTCodec<Character> chars = new NBTCodec<Character>() {
+			@Override
+			public int getTagId() {
+				return NBTSerializer.NBT_TAG_SHORT;
+			}
+			
+			@Override
+			public NBTBase toTag(Character value) {
+				return new NBTTagShort((short) value.charValue());
+			}
+			
+			@Override
+			public Character fromTag(NBTBase tag, Class<? extends Character> type) {
+				return Character.valueOf((char) ((NBTTagShort) tag).getShort());
+			}
+		};
+		NBTCodecs.register(char.class, chars);
+		NBTCodecs.register(Character.class, chars);
+	}
+	
+	@Test
+	public void generatedSerializerMatchesReflection() throws Exception {
+		ClassLoader generated = compile(true);
+		ClassLoader reflective = compile(false);
+		Class<?> withCodec = generated.loadClass("fixture.Fixture");
+		Class<?> without = reflective.loadClass("fixture.Fixture");
+		@SuppressWarnings("unchecked")
+		GeneratedCodec<INBTSerializable> codec = (GeneratedCodec<INBTSerializable>) generated.loadClass("fixture.Fixture$NBTCodec").getConstructor().newInstance();
+		
+		INBTSerializable a = fill((INBTSerializable) withCodec.getConstructor().newInstance());
+		INBTSerializable b = fill((INBTSerializable) without.getConstructor().newInstance());
+		NBTTagCompound expected = NBTSerializer.serialize(b);
+		assertEquals(expected, codec.serialize(a));
+		assertEquals(expected, NBTSerializer.serialize(a));
+		
+		INBTSerializable readA = (INBTSerializable) withCodec.getConstructor().newInstance();
+		INBTSerializable readB = (INBTSerializable) without.getConstructor().newInstance();
+		codec.deserialize(readA, expected, false);
+		NBTSerializer.deserialize(readB, expected, false);
+		assertSameFields(readB, readA);
+		assertSameFields(b, readA);
+	}
+	
+	@Test
+	public void missingPrimitivesAreRejectedLikeReflection() throws Exception {
+		ClassLoader generated = compile(true);
+		ClassLoader reflective = compile(false);
+		@SuppressWarnings("unchecked")
+		GeneratedCodec<INBTSerializable> codec = (GeneratedCodec<INBTSerializable>) generated.loadClass("fixture.Fixture$NBTCodec").getConstructor().newInstance();
+		
+		NBTTagCompound data = NBTSerializer.serialize(fill((INBTSerializable) reflective.loadClass("fixture.Fixture").getConstructor().newInstance()));
+		for (String missing : new String[] { "c", "secretChar", "hidden" }) {
+			NBTTagCompound partial = (NBTTagCompound) data.copy();
+			partial.removeTag(missing);
+			try {
+				codec.deserialize((INBTSerializable) generated.loadClass("fixture.Fixture").getConstructor().newInstance(), partial, true);
+				fail("Generated serializer set primitive " + missing + " to null");
+			} catch (IllegalArgumentException e) {
+				/* Expected. */
+			}
+			try {
+				NBTSerializer.deserialize((INBTSerializable) reflective.loadClass("fixture.Fixture").getConstructor().newInstance(), partial, true);
+				fail("Reflective serializer set primitive " + missing + " to null");
+			} catch (IllegalArgumentException e) {
+				/* Expected. */
+			}
+		}
+		
+		/*
+		 * Missing objects are set to null by both.
+		 */
+		NBTTagCompound partial = (NBTTagCompound) data.copy();
+		partial.removeTag("boxedChar");
+		INBTSerializable a = fill((INBTSerializable) generated.loadClass("fixture.Fixture").getConstructor().newInstance());
+		codec.deserialize(a, partial, true);
+		assertEquals(null, value(a, "boxedChar"));
+	}
+	
+	/**
+	 * <p>Compiles the fixture into a new directory, and creates a class loader for it.</p>
+	 * 
+	 * @param process Whether the processor is run.
+	 */
+	private static ClassLoader compile(boolean process) throws IOException {
+		File dir = Files.createTempDirectory("nbt-processor-test").toFile();
+		File src = new File(dir, "src/fixture");
+		File out = new File(dir, "classes");
+		if (!src.mkdirs() || !out.mkdirs()) throw new IOException("Cannot create " + dir);
+		File base = new File(src, "Base.java");
+		File fixture = new File(src, "Fixture.java");
+		Files.write(base.toPath(), BASE.getBytes(StandardCharsets.UTF_8));
+		Files.write(fixture.toPath(), FIXTURE.getBytes(StandardCharsets.UTF_8));
+		
+		JavaCompiler javac = ToolProvider.getSystemJavaCompiler();
+		DiagnosticCollector<JavaFileObject> diagnostics = new DiagnosticCollector<JavaFileObject>();
+		StandardJavaFileManager files = javac.getStandardFileManager(diagnostics, null, StandardCharsets.UTF_8);
+		try {
+			String classpath = location(INBTSerializable.class) + File.pathSeparator + location(NBTTagCompound.class);
+			List<String> options = new ArrayList<String>(Arrays.asList("-d", out.getPath(), "-classpath", classpath));
+			if (!process) options.add("-proc:none");
+			JavaCompiler.CompilationTask task = javac.getTask(null, files, diagnostics, options, null, files.getJavaFileObjects(base, fixture));
+			if (process) task.setProcessors(Collections.singletonList(new NBTSerializeProcessor()));
+			boolean ok = task.call();
+			StringBuilder errors = new StringBuilder();
+			for (Diagnostic<? extends JavaFileObject> d : diagnostics.getDiagnostics()) {
+				if (d.getKind() == Diagnostic.Kind.ERROR) errors.append(d).append('\n');
+			}
+			assertTrue("Fixture does not compile:\n" + errors, ok);
+		} finally {
+			files.close();
+		}
+		assertEquals(process, new File(out, "fixture/Fixture$NBTCodec.class").isFile());
+		return new URLClassLoader(new URL[] { out.toURI().toURL() }, NBTSerializeProcessorTest.class.getClassLoader());
+	}
+	
+	private static String location(Class<?> type) {
+		try {
+			return new File(type.getProtectionDomain().getCodeSource().getLocation().toURI()).getPath();
+		} catch (Exception e) {
+			throw new AssertionError(e);
+		}
+	}
+	
+	private static INBTSerializable fill(INBTSerializable o) throws IllegalAccessException {
+		set(o, "hidden", 17);
+		set(o, "label", "label");
+		set(o, "initial", 'M');
+		set(o, "c", 'c');
+		set(o, "secretChar", '\u00e9');
+		set(o, "secret", 0x123456789L);
+		set(o, "number", -5);
+		set(o, "flag", true);
+		set(o, "values", new int[] { 1, 2, 3 });
+		set(o, "boxed", 9);
+		set(o, "boxedChar", 'x');
+		set(o, "list", new ArrayList<String>(Arrays.asList("a", "b")));
+		return o;
+	}
+	
+	private static Field field(Class<?> type, String name) {
+		for (Class<?> c = type; c != null; c = c.getSuperclass()) {
+			try {
+				Field f = c.getDeclaredField(name);
+				f.setAccessible(true);
+				return f;
+			} catch (NoSuchFieldException e) {
+				/* Look in the superclass. */
+			}
+		}
+		throw new AssertionError("No field " + name);
+	}
+	
+	private static void set(Object o, String name, Object value) throws IllegalAccessException {
+		field(o.getClass(), name).set(o, value);
+	}
+	
+	private static Object value(Object o, String name) throws IllegalAccessException {
+		return field(o.getClass(), name).get(o);
+	}
+	
+	private static void assertSameFields(Object expected, Object actual) throws IllegalAccessException {
+		for (String name : new String[] { "hidden", "label", "initial", "c", "secretChar", "secret", "number", "flag", "values", "boxed", "boxedChar", "list" }) {
+			Object e = value(expected, name);
+			Object a = value(actual, name);
+			if (e != null && e.getClass().isArray()) {
+				assertEquals(name, Array.getLength(e), Array.getLength(a));
+				for (int i = 0; i < Array.getLength(e); i++) assertEquals(name, Array.get(e, i), Array.get(a, i));
+			} else {
+				assertEquals(name, e, a);
+			}
+		}
+	}
+}
@@ -0,0 +1,55 @@
+package net.minecraft.nbt;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInput;
+import java.io.DataInputStream;
+import java.io.DataOutput;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * <p>Stand-in for Minecraft's NBT stream helpers, which read and write an unnamed root
+ * compound tag, optionally GZIP compressed.</p>
+ * 
+ * @author Marius
+ */
+public class CompressedStreamTools {
+	public static NBTTagCompound readCompressed(InputStream in) throws IOException {
+		DataInputStream dis = new DataInputStream(new BufferedInputStream(new GZIPInputStream(in)));
+		try {
+			return read(dis);
+		} finally {
+			dis.close();
+		}
+	}
+	
+	public static void writeCompressed(NBTTagCompound compound, OutputStream out) throws IOException {
+		DataOutputStream dos = new DataOutputStream(new BufferedOutputStream(new GZIPOutputStream(out)));
+		try {
+			write(compound, dos);
+		} finally {
+			dos.close();
+		}
+	}
+	
+	public static NBTTagCompound read(DataInput in) throws IOException {
+		byte id = in.readByte();
+		if (id == 0) return new NBTTagCompound();
+		in.readUTF();
+		NBTBase tag = NBTBase.createNewByType(id);
+		if (!(tag instanceof NBTTagCompound)) throw new IOException("Root tag must be a named compound tag");
+		tag.read(in, 0);
+		return (NBTTagCompound) tag;
+	}
+	
+	public static void write(NBTTagCompound compound, DataOutput out) throws IOException {
+		out.writeByte(compound.getId());
+		out.writeUTF("");
+		compound.write(out);
+	}
+}
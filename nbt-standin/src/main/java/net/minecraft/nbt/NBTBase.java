@@ -0,0 +1,66 @@
+package net.minecraft.nbt;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+
+/**
+ * <p>A stand-in for Minecraft's NBT tag base class, so that the serializer can be built and
+ * benchmarked without a Minecraft jar. Only the parts of the API that the serializer uses are
+ * provided, and they read and write the same binary format.</p>
+ * 
+ * @author Marius
+ */
+public abstract class NBTBase {
+	/**
+	 * <p>Writes the payload of this tag, excluding its type and name.</p>
+	 */
+	abstract void write(DataOutput out) throws IOException;
+	
+	/**
+	 * <p>Reads the payload of this tag, excluding its type and name.</p>
+	 */
+	abstract void read(DataInput in, int depth) throws IOException;
+	
+	public abstract byte getId();
+	
+	public abstract NBTBase copy();
+	
+	public boolean hasNoTags() {
+		return false;
+	}
+	
+	/**
+	 * <p>Creates an empty tag of the given type, to read a payload into.</p>
+	 */
+	static NBTBase createNewByType(byte id) {
+		switch (id) {
+		case 0:     return new NBTTagEnd();
+		case 1:     return new NBTTagByte();
+		case 2:     return new NBTTagShort();
+		case 3:     return new NBTTagInt();
+		case 4:     return new NBTTagLong();
+		case 5:     return new NBTTagFloat();
+		case 6:     return new NBTTagDouble();
+		case 7:     return new NBTTagByteArray();
+		case 8:     return new NBTTagString();
+		case 9:     return new NBTTagList();
+		case 10:    return new NBTTagCompound();
+		case 11:    return new NBTTagIntArray();
+		default:    return null;
+		}
+	}
+	
+	/**
+	 * <p>The base class of all numeric tags. Every numeric tag can be read as any numeric
+	 * type.</p>
+	 */
+	public abstract static class NBTPrimitive extends NBTBase {
+		public abstract long getLong();
+		public abstract int getInt();
+		public abstract short getShort();
+		public abstract byte getByte();
+		public abstract double getDouble();
+		public abstract float getFloat();
+	}
+}
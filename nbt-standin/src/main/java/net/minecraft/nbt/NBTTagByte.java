@@ -0,0 +1,47 @@
+package net.minecraft.nbt;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+
+/**
+ * <p>Stand-in for the byte tag.</p>
+ * 
+ * @author Marius
+ */
+public class NBTTagByte extends NBTBase.NBTPrimitive {
+	private byte data;
+	
+	NBTTagByte() {}
+	
+	public NBTTagByte(byte data) {
+		this.data = data;
+	}
+	
+	@Override void write(DataOutput out) throws IOException         { out.writeByte(this.data); }
+	@Override void read(DataInput in, int depth) throws IOException { this.data = in.readByte(); }
+	@Override public byte getId()                                   { return 1; }
+	@Override public NBTBase copy()                                 { return new NBTTagByte(this.data); }
+	
+	@Override public long getLong()                                 { return this.data; }
+	@Override public int getInt()                                   { return this.data; }
+	@Override public short getShort()                               { return this.data; }
+	@Override public byte getByte()                                 { return this.data; }
+	@Override public double getDouble()                             { return this.data; }
+	@Override public float getFloat()                               { return (float) this.data; }
+	
+	@Override
+	public boolean equals(Object o) {
+		return o instanceof NBTTagByte && ((NBTTagByte) o).data == this.data;
+	}
+	
+	@Override
+	public int hashCode() {
+		return this.data;
+	}
+	
+	@Override
+	public String toString() {
+		return String.valueOf(this.data);
+	}
+}
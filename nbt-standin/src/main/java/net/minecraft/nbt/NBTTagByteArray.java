@@ -0,0 +1,52 @@
+package net.minecraft.nbt;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.util.Arrays;
+
+/**
+ * <p>Stand-in for the byte array tag.</p>
+ * 
+ * @author Marius
+ */
+public class NBTTagByteArray extends NBTBase {
+	private byte[] data;
+	
+	NBTTagByteArray() {}
+	
+	public NBTTagByteArray(byte[] data) {
+		this.data = data;
+	}
+	
+	@Override
+	void write(DataOutput out) throws IOException {
+		out.writeInt(this.data.length);
+		out.write(this.data);
+	}
+	
+	@Override
+	void read(DataInput in, int depth) throws IOException {
+		this.data = new byte[in.readInt()];
+		in.readFully(this.data);
+	}
+	
+	@Override public byte getId()       { return 7; }
+	@Override public NBTBase copy()     { return new NBTTagByteArray(this.data.clone()); }
+	public byte[] getByteArray()        { return this.data; }
+	
+	@Override
+	public boolean equals(Object o) {
+		return o instanceof NBTTagByteArray && Arrays.equals(((NBTTagByteArray) o).data, this.data);
+	}
+	
+	@Override
+	public int hashCode() {
+		return Arrays.hashCode(this.data);
+	}
+	
+	@Override
+	public String toString() {
+		return "[" + this.data.length + " bytes]";
+	}
+}
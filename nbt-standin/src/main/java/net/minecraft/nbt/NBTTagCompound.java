@@ -0,0 +1,150 @@
+package net.minecraft.nbt;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.Set;
+
+/**
+ * <p>Stand-in for the compound tag. Like Minecraft's, it keeps its children in a
+ * {@link HashMap} and writes them in its iteration order.</p>
+ * 
+ * @author Marius
+ */
+public class NBTTagCompound extends NBTBase {
+	private Map<String, NBTBase> tagMap = new HashMap<String, NBTBase>();
+	
+	@Override
+	void write(DataOutput out) throws IOException {
+		for (Entry<String, NBTBase> e : this.tagMap.entrySet()) {
+			NBTBase tag = e.getValue();
+			out.writeByte(tag.getId());
+			if (tag.getId() != 0) {
+				out.writeUTF(e.getKey());
+				tag.write(out);
+			}
+		}
+		out.writeByte(0);
+	}
+	
+	@Override
+	void read(DataInput in, int depth) throws IOException {
+		if (depth > 512) throw new RuntimeException("Tried to read NBT tag with too high complexity, depth > 512");
+		this.tagMap.clear();
+		byte id;
+		while ((id = in.readByte()) != 0) {
+			String name = in.readUTF();
+			NBTBase tag = createNewByType(id);
+			tag.read(in, depth + 1);
+			this.tagMap.put(name, tag);
+		}
+	}
+	
+	@Override
+	public byte getId() {
+		return 10;
+	}
+	
+	public Set<String> getKeySet() {
+		return this.tagMap.keySet();
+	}
+	
+	public void setTag(String key, NBTBase value)           { this.tagMap.put(key, value); }
+	public void setByte(String key, byte value)             { this.tagMap.put(key, new NBTTagByte(value)); }
+	public void setShort(String key, short value)           { this.tagMap.put(key, new NBTTagShort(value)); }
+	public void setInteger(String key, int value)           { this.tagMap.put(key, new NBTTagInt(value)); }
+	public void setLong(String key, long value)             { this.tagMap.put(key, new NBTTagLong(value)); }
+	public void setFloat(String key, float value)           { this.tagMap.put(key, new NBTTagFloat(value)); }
+	public void setDouble(String key, double value)         { this.tagMap.put(key, new NBTTagDouble(value)); }
+	public void setString(String key, String value)         { this.tagMap.put(key, new NBTTagString(value)); }
+	public void setByteArray(String key, byte[] value)      { this.tagMap.put(key, new NBTTagByteArray(value)); }
+	public void setIntArray(String key, int[] value)        { this.tagMap.put(key, new NBTTagIntArray(value)); }
+	public void setBoolean(String key, boolean value)       { setByte(key, (byte) (value ? 1 : 0)); }
+	
+	public NBTBase getTag(String key) {
+		return this.tagMap.get(key);
+	}
+	
+	public byte getTagId(String key) {
+		NBTBase tag = this.tagMap.get(key);
+		return tag == null ? 0 : tag.getId();
+	}
+	
+	public boolean hasKey(String key) {
+		return this.tagMap.containsKey(key);
+	}
+	
+	/*
+	 * Getters return a default value if the tag is missing or of the wrong type. Numeric
+	 * getters accept any numeric tag.
+	 */
+	
+	public byte getByte(String key)         { NBTBase t = this.tagMap.get(key); return t instanceof NBTPrimitive ? ((NBTPrimitive) t).getByte() : 0; }
+	public short getShort(String key)       { NBTBase t = this.tagMap.get(key); return t instanceof NBTPrimitive ? ((NBTPrimitive) t).getShort() : 0; }
+	public int getInteger(String key)       { NBTBase t = this.tagMap.get(key); return t instanceof NBTPrimitive ? ((NBTPrimitive) t).getInt() : 0; }
+	public long getLong(String key)         { NBTBase t = this.tagMap.get(key); return t instanceof NBTPrimitive ? ((NBTPrimitive) t).getLong() : 0L; }
+	public float getFloat(String key)       { NBTBase t = this.tagMap.get(key); return t instanceof NBTPrimitive ? ((NBTPrimitive) t).getFloat() : 0.0F; }
+	public double getDouble(String key)     { NBTBase t = this.tagMap.get(key); return t instanceof NBTPrimitive ? ((NBTPrimitive) t).getDouble() : 0.0D; }
+	public boolean getBoolean(String key)   { return getByte(key) != 0; }
+	
+	public String getString(String key) {
+		NBTBase tag = this.tagMap.get(key);
+		return tag instanceof NBTTagString ? ((NBTTagString) tag).getString() : "";
+	}
+	
+	public byte[] getByteArray(String key) {
+		NBTBase tag = this.tagMap.get(key);
+		return tag instanceof NBTTagByteArray ? ((NBTTagByteArray) tag).getByteArray() : new byte[0];
+	}
+	
+	public int[] getIntArray(String key) {
+		NBTBase tag = this.tagMap.get(key);
+		return tag instanceof NBTTagIntArray ? ((NBTTagIntArray) tag).getIntArray() : new int[0];
+	}
+	
+	public NBTTagCompound getCompoundTag(String key) {
+		NBTBase tag = this.tagMap.get(key);
+		return tag instanceof NBTTagCompound ? (NBTTagCompound) tag : new NBTTagCompound();
+	}
+	
+	public NBTTagList getTagList(String key, int type) {
+		NBTBase tag = this.tagMap.get(key);
+		if (!(tag instanceof NBTTagList)) return new NBTTagList();
+		NBTTagList list = (NBTTagList) tag;
+		return list.tagCount() > 0 && list.getTagType() != type ? new NBTTagList() : list;
+	}
+	
+	public void removeTag(String key) {
+		this.tagMap.remove(key);
+	}
+	
+	@Override
+	public boolean hasNoTags() {
+		return this.tagMap.isEmpty();
+	}
+	
+	@Override
+	public NBTBase copy() {
+		NBTTagCompound copy = new NBTTagCompound();
+		for (Entry<String, NBTBase> e : this.tagMap.entrySet()) copy.setTag(e.getKey(), e.getValue().copy());
+		return copy;
+	}
+	
+	@Override
+	public boolean equals(Object o) {
+		return o instanceof NBTTagCompound && ((NBTTagCompound) o).tagMap.equals(this.tagMap);
+	}
+	
+	@Override
+	public int hashCode() {
+		return this.tagMap.hashCode();
+	}
+	
+	@Override
+	public String toString() {
+		return this.tagMap.toString();
+	}
+}
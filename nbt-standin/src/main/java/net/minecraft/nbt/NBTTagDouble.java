@@ -0,0 +1,47 @@
+package net.minecraft.nbt;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+
+/**
+ * <p>Stand-in for the double tag.</p>
+ * 
+ * @author Marius
+ */
+public class NBTTagDouble extends NBTBase.NBTPrimitive {
+	private double data;
+	
+	NBTTagDouble() {}
+	
+	public NBTTagDouble(double data) {
+		this.data = data;
+	}
+	
+	@Override void write(DataOutput out) throws IOException         { out.writeDouble(this.data); }
+	@Override void read(DataInput in, int depth) throws IOException { this.data = in.readDouble(); }
+	@Override public byte getId()                                   { return 6; }
+	@Override public NBTBase copy()                                 { return new NBTTagDouble(this.data); }
+	
+	@Override public long getLong()                                 { return (long) this.data; }
+	@Override public int getInt()                                   { return (int) Math.floor(this.data); }
+	@Override public short getShort()                               { return (short) ((int) Math.floor(this.data)); }
+	@Override public byte getByte()                                 { return (byte) ((int) Math.floor(this.data)); }
+	@Override public double getDouble()                             { return this.data; }
+	@Override public float getFloat()                               { return (float) this.data; }
+	
+	@Override
+	public boolean equals(Object o) {
+		return o instanceof NBTTagDouble && ((NBTTagDouble) o).data == this.data;
+	}
+	
+	@Override
+	public int hashCode() {
+		return (int) (Double.doubleToLongBits(this.data) ^ (Double.doubleToLongBits(this.data) >>> 32));
+	}
+	
+	@Override
+	public String toString() {
+		return String.valueOf(this.data);
+	}
+}
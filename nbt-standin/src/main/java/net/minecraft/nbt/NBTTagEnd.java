@@ -0,0 +1,17 @@
+package net.minecraft.nbt;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+
+/**
+ * <p>Stand-in for the tag that terminates a compound tag.</p>
+ * 
+ * @author Marius
+ */
+class NBTTagEnd extends NBTBase {
+	@Override void write(DataOutput out)            {}
+	@Override void read(DataInput in, int depth)    {}
+	@Override public byte getId()                   { return 0; }
+	@Override public NBTBase copy()                 { return new NBTTagEnd(); }
+	@Override public String toString()              { return "END"; }
+}
@@ -0,0 +1,47 @@
+package net.minecraft.nbt;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+
+/**
+ * <p>Stand-in for the float tag.</p>
+ * 
+ * @author Marius
+ */
+public class NBTTagFloat extends NBTBase.NBTPrimitive {
+	private float data;
+	
+	NBTTagFloat() {}
+	
+	public NBTTagFloat(float data) {
+		this.data = data;
+	}
+	
+	@Override void write(DataOutput out) throws IOException         { out.writeFloat(this.data); }
+	@Override void read(DataInput in, int depth) throws IOException { this.data = in.readFloat(); }
+	@Override public byte getId()                                   { return 5; }
+	@Override public NBTBase copy()                                 { return new NBTTagFloat(this.data); }
+	
+	@Override public long getLong()                                 { return (long) this.data; }
+	@Override public int getInt()                                   { return (int) Math.floor(this.data); }
+	@Override public short getShort()                               { return (short) ((int) Math.floor(this.data)); }
+	@Override public byte getByte()                                 { return (byte) ((int) Math.floor(this.data)); }
+	@Override public double getDouble()                             { return this.data; }
+	@Override public float getFloat()                               { return this.data; }
+	
+	@Override
+	public boolean equals(Object o) {
+		return o instanceof NBTTagFloat && ((NBTTagFloat) o).data == this.data;
+	}
+	
+	@Override
+	public int hashCode() {
+		return Float.floatToIntBits(this.data);
+	}
+	
+	@Override
+	public String toString() {
+		return String.valueOf(this.data);
+	}
+}
@@ -0,0 +1,47 @@
+package net.minecraft.nbt;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+
+/**
+ * <p>Stand-in for the int tag.</p>
+ * 
+ * @author Marius
+ */
+public class NBTTagInt extends NBTBase.NBTPrimitive {
+	private int data;
+	
+	NBTTagInt() {}
+	
+	public NBTTagInt(int data) {
+		this.data = data;
+	}
+	
+	@Override void write(DataOutput out) throws IOException         { out.writeInt(this.data); }
+	@Override void read(DataInput in, int depth) throws IOException { this.data = in.readInt(); }
+	@Override public byte getId()                                   { return 3; }
+	@Override public NBTBase copy()                                 { return new NBTTagInt(this.data); }
+	
+	@Override public long getLong()                                 { return this.data; }
+	@Override public int getInt()                                   { return this.data; }
+	@Override public short getShort()                               { return (short) this.data; }
+	@Override public byte getByte()                                 { return (byte) this.data; }
+	@Override public double getDouble()                             { return this.data; }
+	@Override public float getFloat()                               { return (float) this.data; }
+	
+	@Override
+	public boolean equals(Object o) {
+		return o instanceof NBTTagInt && ((NBTTagInt) o).data == this.data;
+	}
+	
+	@Override
+	public int hashCode() {
+		return this.data;
+	}
+	
+	@Override
+	public String toString() {
+		return String.valueOf(this.data);
+	}
+}
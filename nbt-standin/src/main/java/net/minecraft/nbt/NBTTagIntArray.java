@@ -0,0 +1,52 @@
+package net.minecraft.nbt;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.util.Arrays;
+
+/**
+ * <p>Stand-in for the int array tag.</p>
+ * 
+ * @author Marius
+ */
+public class NBTTagIntArray extends NBTBase {
+	private int[] data;
+	
+	NBTTagIntArray() {}
+	
+	public NBTTagIntArray(int[] data) {
+		this.data = data;
+	}
+	
+	@Override
+	void write(DataOutput out) throws IOException {
+		out.writeInt(this.data.length);
+		for (int i : this.data) out.writeInt(i);
+	}
+	
+	@Override
+	void read(DataInput in, int depth) throws IOException {
+		this.data = new int[in.readInt()];
+		for (int i = 0; i < this.data.length; i++) this.data[i] = in.readInt();
+	}
+	
+	@Override public byte getId()       { return 11; }
+	@Override public NBTBase copy()     { return new NBTTagIntArray(this.data.clone()); }
+	public int[] getIntArray()          { return this.data; }
+	
+	@Override
+	public boolean equals(Object o) {
+		return o instanceof NBTTagIntArray && Arrays.equals(((NBTTagIntArray) o).data, this.data);
+	}
+	
+	@Override
+	public int hashCode() {
+		return Arrays.hashCode(this.data);
+	}
+	
+	@Override
+	public String toString() {
+		return Arrays.toString(this.data);
+	}
+}
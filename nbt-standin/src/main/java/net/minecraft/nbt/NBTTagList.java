@@ -0,0 +1,95 @@
+package net.minecraft.nbt;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * <p>Stand-in for the list tag. All elements of a list must be of the same tag type; elements
+ * of any other type are silently dropped when appended, like Minecraft does.</p>
+ * 
+ * @author Marius
+ */
+public class NBTTagList extends NBTBase {
+	private List<NBTBase> tagList = new ArrayList<NBTBase>();
+	private byte tagType = 0;
+	
+	@Override
+	void write(DataOutput out) throws IOException {
+		this.tagType = this.tagList.isEmpty() ? 0 : this.tagList.get(0).getId();
+		out.writeByte(this.tagType);
+		out.writeInt(this.tagList.size());
+		for (NBTBase tag : this.tagList) tag.write(out);
+	}
+	
+	@Override
+	void read(DataInput in, int depth) throws IOException {
+		if (depth > 512) throw new RuntimeException("Tried to read NBT tag with too high complexity, depth > 512");
+		this.tagType = in.readByte();
+		int count = in.readInt();
+		this.tagList = new ArrayList<NBTBase>(count);
+		for (int i = 0; i < count; i++) {
+			NBTBase tag = createNewByType(this.tagType);
+			tag.read(in, depth + 1);
+			this.tagList.add(tag);
+		}
+	}
+	
+	@Override
+	public byte getId() {
+		return 9;
+	}
+	
+	public void appendTag(NBTBase tag) {
+		if (this.tagType == 0) this.tagType = tag.getId();
+		else if (this.tagType != tag.getId()) return;
+		this.tagList.add(tag);
+	}
+	
+	public NBTBase get(int index) {
+		return index >= 0 && index < this.tagList.size() ? this.tagList.get(index) : new NBTTagEnd();
+	}
+	
+	public NBTTagCompound getCompoundTagAt(int index) {
+		NBTBase tag = get(index);
+		return tag instanceof NBTTagCompound ? (NBTTagCompound) tag : new NBTTagCompound();
+	}
+	
+	public int tagCount() {
+		return this.tagList.size();
+	}
+	
+	public int getTagType() {
+		return this.tagType;
+	}
+	
+	@Override
+	public boolean hasNoTags() {
+		return this.tagList.isEmpty();
+	}
+	
+	@Override
+	public NBTBase copy() {
+		NBTTagList copy = new NBTTagList();
+		copy.tagType = this.tagType;
+		for (NBTBase tag : this.tagList) copy.tagList.add(tag.copy());
+		return copy;
+	}
+	
+	@Override
+	public boolean equals(Object o) {
+		return o instanceof NBTTagList && ((NBTTagList) o).tagType == this.tagType && ((NBTTagList) o).tagList.equals(this.tagList);
+	}
+	
+	@Override
+	public int hashCode() {
+		return this.tagList.hashCode() ^ this.tagType;
+	}
+	
+	@Override
+	public String toString() {
+		return this.tagList.toString();
+	}
+}
@@ -0,0 +1,47 @@
+package net.minecraft.nbt;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+
+/**
+ * <p>Stand-in for the long tag.</p>
+ * 
+ * @author Marius
+ */
+public class NBTTagLong extends NBTBase.NBTPrimitive {
+	private long data;
+	
+	NBTTagLong() {}
+	
+	public NBTTagLong(long data) {
+		this.data = data;
+	}
+	
+	@Override void write(DataOutput out) throws IOException         { out.writeLong(this.data); }
+	@Override void read(DataInput in, int depth) throws IOException { this.data = in.readLong(); }
+	@Override public byte getId()                                   { return 4; }
+	@Override public NBTBase copy()                                 { return new NBTTagLong(this.data); }
+	
+	@Override public long getLong()                                 { return this.data; }
+	@Override public int getInt()                                   { return (int) this.data; }
+	@Override public short getShort()                               { return (short) this.data; }
+	@Override public byte getByte()                                 { return (byte) this.data; }
+	@Override public double getDouble()                             { return this.data; }
+	@Override public float getFloat()                               { return (float) this.data; }
+	
+	@Override
+	public boolean equals(Object o) {
+		return o instanceof NBTTagLong && ((NBTTagLong) o).data == this.data;
+	}
+	
+	@Override
+	public int hashCode() {
+		return (int) (this.data ^ (this.data >>> 32));
+	}
+	
+	@Override
+	public String toString() {
+		return String.valueOf(this.data);
+	}
+}
@@ -0,0 +1,47 @@
+package net.minecraft.nbt;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+
+/**
+ * <p>Stand-in for the short tag.</p>
+ * 
+ * @author Marius
+ */
+public class NBTTagShort extends NBTBase.NBTPrimitive {
+	private short data;
+	
+	NBTTagShort() {}
+	
+	public NBTTagShort(short data) {
+		this.data = data;
+	}
+	
+	@Override void write(DataOutput out) throws IOException         { out.writeShort(this.data); }
+	@Override void read(DataInput in, int depth) throws IOException { this.data = in.readShort(); }
+	@Override public byte getId()                                   { return 2; }
+	@Override public NBTBase copy()                                 { return new NBTTagShort(this.data); }
+	
+	@Override public long getLong()                                 { return this.data; }
+	@Override public int getInt()                                   { return this.data; }
+	@Override public short getShort()                               { return this.data; }
+	@Override public byte getByte()                                 { return (byte) this.data; }
+	@Override public double getDouble()                             { return this.data; }
+	@Override public float getFloat()                               { return (float) this.data; }
+	
+	@Override
+	public boolean equals(Object o) {
+		return o instanceof NBTTagShort && ((NBTTagShort) o).data == this.data;
+	}
+	
+	@Override
+	public int hashCode() {
+		return this.data;
+	}
+	
+	@Override
+	public String toString() {
+		return String.valueOf(this.data);
+	}
+}
@@ -0,0 +1,44 @@
+package net.minecraft.nbt;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+
+/**
+ * <p>Stand-in for the string tag.</p>
+ * 
+ * @author Marius
+ */
+public class NBTTagString extends NBTBase {
+	private String data;
+	
+	public NBTTagString() {
+		this.data = "";
+	}
+	
+	public NBTTagString(String data) {
+		if (data == null) throw new IllegalArgumentException("Empty string not allowed");
+		this.data = data;
+	}
+	
+	@Override void write(DataOutput out) throws IOException         { out.writeUTF(this.data); }
+	@Override void read(DataInput in, int depth) throws IOException { this.data = in.readUTF(); }
+	@Override public byte getId()                                   { return 8; }
+	@Override public NBTBase copy()                                 { return new NBTTagString(this.data); }
+	public String getString()                                       { return this.data; }
+	
+	@Override
+	public boolean equals(Object o) {
+		return o instanceof NBTTagString && ((NBTTagString) o).data.equals(this.data);
+	}
+	
+	@Override
+	public int hashCode() {
+		return this.data.hashCode();
+	}
+	
+	@Override
+	public String toString() {
+		return "\"" + this.data + "\"";
+	}
+}
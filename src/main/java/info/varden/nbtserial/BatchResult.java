@@ -0,0 +1,76 @@
+package info.varden.nbtserial;
+
+/**
+ * <p>The outcome of serializing or deserializing a single item in a batch, as returned by
+ * {@link NBTSerializer#serializeAll(java.util.Collection)} and
+ * {@link NBTSerializer#deserializeAll(Class, java.util.List)}. Each item in a batch is
+ * processed on its own, so an item that fails does not prevent the others from being
+ * processed; the result of a failed item holds the exception that it failed with instead of a
+ * value.</p>
+ * 
+ * @author Marius
+ * @param <T> The type of the value produced for each item.
+ */
+public final class BatchResult<T> {
+	/**
+	 * The position of the item in the batch.
+	 */
+	private final int index;
+	/**
+	 * The value produced for the item, or {@code null} if processing it failed.
+	 */
+	private final T value;
+	/**
+	 * The exception that processing the item failed with, or {@code null} if it succeeded.
+	 */
+	private final Exception error;
+	
+	private BatchResult(int index, T value, Exception error) {
+		this.index = index;
+		this.value = value;
+		this.error = error;
+	}
+	
+	static <T> BatchResult<T> success(int index, T value) {
+		return new BatchResult<T>(index, value, null);
+	}
+	
+	static <T> BatchResult<T> failure(int index, Exception error) {
+		return new BatchResult<T>(index, null, error);
+	}
+	
+	/**
+	 * Gets the position of the item in the batch that this is the result of. This is also the
+	 * position of this result in the list of results for the batch.
+	 * @return The index of the item
+	 */
+	public int getIndex() {
+		return this.index;
+	}
+	
+	/**
+	 * Gets whether the item was processed successfully.
+	 * @return {@code true} if there is a value, {@code false} if there is an error
+	 */
+	public boolean isSuccess() {
+		return this.error == null;
+	}
+	
+	/**
+	 * Gets the value that was produced for the item.
+	 * @return The value, or {@code null} if processing the item failed
+	 */
+	public T getValue() {
+		return this.value;
+	}
+	
+	/**
+	 * Gets the exception that processing the item failed with. This is usually one of the
+	 * checked exceptions thrown by the single-item methods of {@link NBTSerializer}, such as
+	 * {@link UnserializableClassException}, but may also be a {@link RuntimeException}.
+	 * @return The exception, or {@code null} if the item was processed successfully
+	 */
+	public Exception getError() {
+		return this.error;
+	}
+}
@@ -0,0 +1,169 @@
+package info.varden.nbtserial;
+
+import java.io.DataInput;
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.IntBuffer;
+
+/**
+ * <p>A {@link DataInput} that reads from a {@link ByteBuffer}, such as a memory-mapped file,
+ * starting at a given offset. The buffer itself is only read with absolute gets, so its
+ * position is never changed, and any number of inputs may read from the same buffer at once.
+ * This lets {@link NBTReader} read straight from an {@link NBTMappedCompound}.</p>
+ * <p>Byte and int arrays can be taken from the buffer as {@link #slice(int) views} instead
+ * of being copied. Inputs over buffers that are reused once reading is done, like the
+ * per-thread buffers of {@link NBTPipeline}, copy them instead.</p>
+ * 
+ * @author Marius
+ */
+final class BufferInput implements DataInput {
+	private final ByteBuffer buffer;
+	private final boolean views;
+	private int position;
+	
+	/**
+	 * <p>Creates an input that starts reading at the given offset, and that takes arrays as
+	 * views of the buffer.</p>
+	 * 
+	 * @param buffer The buffer to read from. Multi-byte values are always read in big-endian
+	 * byte order, as NBT is written, regardless of the order of the buffer.
+	 * @param position The offset in the buffer of the first byte to read.
+	 */
+	BufferInput(ByteBuffer buffer, int position) {
+		this(buffer, position, true);
+	}
+	
+	/**
+	 * <p>Creates an input that starts reading at the given offset.</p>
+	 * 
+	 * @param buffer The buffer to read from. Multi-byte values are always read in big-endian
+	 * byte order, as NBT is written, regardless of the order of the buffer.
+	 * @param position The offset in the buffer of the first byte to read.
+	 * @param views Whether {@link #slice(int)} and {@link #sliceInts(int)} may return views of
+	 * the buffer. If not, they return copies, which stay valid after the buffer is reused.
+	 */
+	BufferInput(ByteBuffer buffer, int position, boolean views) {
+		this.buffer = buffer.order() == ByteOrder.BIG_ENDIAN ? buffer : buffer.duplicate().order(ByteOrder.BIG_ENDIAN);
+		this.views = views;
+		this.position = position;
+	}
+	
+	/**
+	 * <p>Creates an input that reads from the same buffer, starting at the given offset.</p>
+	 * 
+	 * @param position The offset in the buffer of the first byte to read.
+	 * @return The input.
+	 */
+	BufferInput at(int position) {
+		return new BufferInput(this.buffer, position, this.views);
+	}
+	
+	/**
+	 * <p>Gets the offset in the buffer of the next byte to read.</p>
+	 * 
+	 * @return The offset.
+	 */
+	int position() {
+		return this.position;
+	}
+	
+	/**
+	 * <p>Takes the given number of bytes from the buffer as a read-only view, or a copy if
+	 * this input does not take views, and skips over them.</p>
+	 * 
+	 * @param length The number of bytes.
+	 * @return A view of the bytes, in big-endian byte order.
+	 * @throws EOFException if the buffer holds fewer bytes.
+	 */
+	ByteBuffer slice(int length) throws EOFException {
+		int start = advance(length);
+		if (!this.views) {
+			byte[] copy = new byte[length];
+			ByteBuffer view = this.buffer.duplicate();
+			view.position(start);
+			view.get(copy);
+			return ByteBuffer.wrap(copy).asReadOnlyBuffer();
+		}
+		ByteBuffer view = this.buffer.duplicate();
+		view.limit(start + length);
+		view.position(start);
+		return view.slice().asReadOnlyBuffer();
+	}
+	
+	/**
+	 * <p>Takes the given number of ints from the buffer as a read-only view, or a copy if
+	 * this input does not take views, and skips over them.</p>
+	 * 
+	 * @param count The number of ints.
+	 * @return A view of the ints, in big-endian byte order.
+	 * @throws EOFException if the buffer holds fewer ints.
+	 */
+	IntBuffer sliceInts(int count) throws EOFException {
+		if (count < 0 || count > Integer.MAX_VALUE / 4) throw new EOFException();
+		return slice(count * 4).asIntBuffer();
+	}
+	
+	/**
+	 * <p>Advances past the given number of bytes.</p>
+	 * 
+	 * @param n The number of bytes.
+	 * @return The offset of the first of the bytes.
+	 * @throws EOFException if the buffer holds fewer bytes, or if the number is negative.
+	 */
+	private int advance(int n) throws EOFException {
+		int start = this.position;
+		if (n < 0 || n > this.buffer.limit() - start) throw new EOFException();
+		this.position = start + n;
+		return start;
+	}
+	
+	@Override
+	public void readFully(byte[] b) throws IOException {
+		readFully(b, 0, b.length);
+	}
+	
+	@Override
+	public void readFully(byte[] b, int off, int len) throws IOException {
+		int start = advance(len);
+		ByteBuffer view = this.buffer.duplicate();
+		view.position(start);
+		view.get(b, off, len);
+	}
+	
+	@Override
+	public int skipBytes(int n) {
+		int skipped = Math.max(0, Math.min(n, this.buffer.limit() - this.position));
+		this.position += skipped;
+		return skipped;
+	}
+	
+	/*
+	 * Primitive reads. Each of these checks the bounds first, so that reading past the end
+	 * throws an EOFException, like it does for streams.
+	 */
+	@Override public boolean readBoolean() throws IOException       { return this.buffer.get(advance(1)) != 0; }
+	@Override public byte readByte() throws IOException             { return this.buffer.get(advance(1)); }
+	@Override public int readUnsignedByte() throws IOException      { return this.buffer.get(advance(1)) & 0xFF; }
+	@Override public short readShort() throws IOException           { return this.buffer.getShort(advance(2)); }
+	@Override public int readUnsignedShort() throws IOException     { return this.buffer.getShort(advance(2)) & 0xFFFF; }
+	@Override public char readChar() throws IOException             { return this.buffer.getChar(advance(2)); }
+	@Override public int readInt() throws IOException               { return this.buffer.getInt(advance(4)); }
+	@Override public long readLong() throws IOException             { return this.buffer.getLong(advance(8)); }
+	@Override public float readFloat() throws IOException           { return this.buffer.getFloat(advance(4)); }
+	@Override public double readDouble() throws IOException         { return this.buffer.getDouble(advance(8)); }
+	
+	@Override
+	public String readUTF() throws IOException {
+		return ModifiedUtf8.read(this);
+	}
+	
+	/**
+	 * <p>NBT holds no lines of text, so this is not supported.</p>
+	 */
+	@Override
+	public String readLine() {
+		throw new UnsupportedOperationException();
+	}
+}
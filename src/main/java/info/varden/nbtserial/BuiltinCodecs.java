@@ -0,0 +1,645 @@
+package info.varden.nbtserial;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.IntBuffer;
+import java.util.Collection;
+import java.util.Map;
+import java.util.Map.Entry;
+
+import net.minecraft.nbt.NBTBase;
+import net.minecraft.nbt.NBTTagByte;
+import net.minecraft.nbt.NBTTagByteArray;
+import net.minecraft.nbt.NBTTagCompound;
+import net.minecraft.nbt.NBTTagDouble;
+import net.minecraft.nbt.NBTTagFloat;
+import net.minecraft.nbt.NBTTagInt;
+import net.minecraft.nbt.NBTTagIntArray;
+import net.minecraft.nbt.NBTTagList;
+import net.minecraft.nbt.NBTTagLong;
+import net.minecraft.nbt.NBTTagShort;
+import net.minecraft.nbt.NBTTagString;
+
+import org.apache.commons.lang3.ArrayUtils;
+
+/**
+ * <p>The {@link NBTCodec}s for all types that {@link NBTSerializer} supports natively. These
+ * are registered in {@link NBTCodecs} by default.</p>
+ * 
+ * @author Marius
+ */
+final class BuiltinCodecs {
+	private BuiltinCodecs() {}
+	
+	/*
+	 * Number classes, arrays and strings. Each of these maps to exactly one NBT tag type.
+	 */
+	static final StreamingCodec<Byte> BYTE = new StreamingCodec<Byte>() {
+		@Override public int getTagId()                                         { return NBTSerializer.NBT_TAG_BYTE; }
+		@Override public NBTBase toTag(Byte value)                              { return new NBTTagByte(value); }
+		@Override public Byte fromTag(NBTBase tag, Class<? extends Byte> type)  { return Byte.valueOf(((NBTTagByte) tag).getByte()); }
+		@Override void writePayload(Byte value, DataOutput out) throws IOException { out.writeByte(value); }
+		@Override Object readPayload(DataInput in, ResolvedType type) throws IOException { return Byte.valueOf(in.readByte()); }
+	};
+	
+	static final StreamingCodec<Boolean> BOOLEAN = new StreamingCodec<Boolean>() {
+		@Override public int getTagId()                                             { return NBTSerializer.NBT_TAG_BYTE; }
+		@Override public NBTBase toTag(Boolean value)                               { return new NBTTagByte(value ? (byte) 1 : (byte) 0); }
+		@Override public Boolean fromTag(NBTBase tag, Class<? extends Boolean> type) { return Boolean.valueOf(((NBTTagByte) tag).getByte() != 0); }
+		@Override void writePayload(Boolean value, DataOutput out) throws IOException { out.writeByte(value ? 1 : 0); }
+		@Override Object readPayload(DataInput in, ResolvedType type) throws IOException { return Boolean.valueOf(in.readByte() != 0); }
+	};
+	
+	static final StreamingCodec<Short> SHORT = new StreamingCodec<Short>() {
+		@Override public int getTagId()                                         { return NBTSerializer.NBT_TAG_SHORT; }
+		@Override public NBTBase toTag(Short value)                             { return new NBTTagShort(value); }
+		@Override public Short fromTag(NBTBase tag, Class<? extends Short> type) { return Short.valueOf(((NBTTagShort) tag).getShort()); }
+		@Override void writePayload(Short value, DataOutput out) throws IOException { out.writeShort(value); }
+		@Override Object readPayload(DataInput in, ResolvedType type) throws IOException { return Short.valueOf(in.readShort()); }
+	};
+	
+	static final StreamingCodec<Integer> INT = new StreamingCodec<Integer>() {
+		@Override public int getTagId()                                             { return NBTSerializer.NBT_TAG_INT; }
+		@Override public NBTBase toTag(Integer value)                               { return new NBTTagInt(value); }
+		@Override public Integer fromTag(NBTBase tag, Class<? extends Integer> type) { return Integer.valueOf(((NBTTagInt) tag).getInt()); }
+		@Override void writePayload(Integer value, DataOutput out) throws IOException { out.writeInt(value); }
+		@Override Object readPayload(DataInput in, ResolvedType type) throws IOException { return Integer.valueOf(in.readInt()); }
+	};
+	
+	static final StreamingCodec<Long> LONG = new StreamingCodec<Long>() {
+		@Override public int getTagId()                                         { return NBTSerializer.NBT_TAG_LONG; }
+		@Override public NBTBase toTag(Long value)                              { return new NBTTagLong(value); }
+		@Override public Long fromTag(NBTBase tag, Class<? extends Long> type)  { return Long.valueOf(((NBTTagLong) tag).getLong()); }
+		@Override void writePayload(Long value, DataOutput out) throws IOException { out.writeLong(value); }
+		@Override Object readPayload(DataInput in, ResolvedType type) throws IOException { return Long.valueOf(in.readLong()); }
+	};
+	
+	static final StreamingCodec<Float> FLOAT = new StreamingCodec<Float>() {
+		@Override public int getTagId()                                         { return NBTSerializer.NBT_TAG_FLOAT; }
+		@Override public NBTBase toTag(Float value)                             { return new NBTTagFloat(value); }
+		@Override public Float fromTag(NBTBase tag, Class<? extends Float> type) { return Float.valueOf(((NBTTagFloat) tag).getFloat()); }
+		@Override void writePayload(Float value, DataOutput out) throws IOException { out.writeFloat(value); }
+		@Override Object readPayload(DataInput in, ResolvedType type) throws IOException { return Float.valueOf(in.readFloat()); }
+	};
+	
+	static final StreamingCodec<Double> DOUBLE = new StreamingCodec<Double>() {
+		@Override public int getTagId()                                             { return NBTSerializer.NBT_TAG_DOUBLE; }
+		@Override public NBTBase toTag(Double value)                                { return new NBTTagDouble(value); }
+		@Override public Double fromTag(NBTBase tag, Class<? extends Double> type)  { return Double.valueOf(((NBTTagDouble) tag).getDouble()); }
+		@Override void writePayload(Double value, DataOutput out) throws IOException { out.writeDouble(value); }
+		@Override Object readPayload(DataInput in, ResolvedType type) throws IOException { return Double.valueOf(in.readDouble()); }
+	};
+	
+	static final StreamingCodec<byte[]> BYTE_ARRAY = new StreamingCodec<byte[]>() {
+		@Override public int getTagId()                                             { return NBTSerializer.NBT_TAG_BYTE_ARRAY; }
+		@Override public NBTBase toTag(byte[] value)                                { return new NBTTagByteArray(value); }
+		@Override public byte[] fromTag(NBTBase tag, Class<? extends byte[]> type)  { return ((NBTTagByteArray) tag).getByteArray(); }
+		@Override void writePayload(byte[] value, DataOutput out) throws IOException { out.writeInt(value.length); out.write(value); }
+		@Override Object readPayload(DataInput in, ResolvedType type) throws IOException { return readByteArray(in); }
+	};
+	
+	static final StreamingCodec<Byte[]> BOXED_BYTE_ARRAY = new StreamingCodec<Byte[]>() {
+		@Override public int getTagId()                                             { return NBTSerializer.NBT_TAG_BYTE_ARRAY; }
+		@Override public NBTBase toTag(Byte[] value)                                { return new NBTTagByteArray(ArrayUtils.toPrimitive(value)); }
+		@Override public Byte[] fromTag(NBTBase tag, Class<? extends Byte[]> type)  { return ArrayUtils.toObject(((NBTTagByteArray) tag).getByteArray()); }
+		
+		@Override
+		void writePayload(Byte[] value, DataOutput out) throws IOException {
+			out.writeInt(value.length);
+			for (Byte b : value) out.writeByte(b);
+		}
+		
+		@Override
+		Object readPayload(DataInput in, ResolvedType type) throws IOException {
+			return ArrayUtils.toObject(readByteArray(in));
+		}
+	};
+	
+	static final StreamingCodec<String> STRING = new StreamingCodec<String>() {
+		@Override public int getTagId()                                             { return NBTSerializer.NBT_TAG_STRING; }
+		@Override public NBTBase toTag(String value)                                { return new NBTTagString(value); }
+		@Override public String fromTag(NBTBase tag, Class<? extends String> type)  { return ((NBTTagString) tag).getString(); }
+		@Override void writePayload(String value, DataOutput out) throws IOException { ModifiedUtf8.write(value, out); }
+		@Override Object readPayload(DataInput in, ResolvedType type) throws IOException { return ModifiedUtf8.read(in); }
+	};
+	
+	static final StreamingCodec<int[]> INT_ARRAY = new StreamingCodec<int[]>() {
+		@Override public int getTagId()                                             { return NBTSerializer.NBT_TAG_INT_ARRAY; }
+		@Override public NBTBase toTag(int[] value)                                 { return new NBTTagIntArray(value); }
+		@Override public int[] fromTag(NBTBase tag, Class<? extends int[]> type)    { return ((NBTTagIntArray) tag).getIntArray(); }
+		
+		@Override
+		void writePayload(int[] value, DataOutput out) throws IOException {
+			out.writeInt(value.length);
+			for (int i : value) out.writeInt(i);
+		}
+		
+		@Override
+		Object readPayload(DataInput in, ResolvedType type) throws IOException {
+			return readIntArray(in);
+		}
+	};
+	
+	static final StreamingCodec<Integer[]> BOXED_INT_ARRAY = new StreamingCodec<Integer[]>() {
+		@Override public int getTagId()                                                 { return NBTSerializer.NBT_TAG_INT_ARRAY; }
+		@Override public NBTBase toTag(Integer[] value)                                 { return new NBTTagIntArray(ArrayUtils.toPrimitive(value)); }
+		@Override public Integer[] fromTag(NBTBase tag, Class<? extends Integer[]> type) { return ArrayUtils.toObject(((NBTTagIntArray) tag).getIntArray()); }
+		
+		@Override
+		void writePayload(Integer[] value, DataOutput out) throws IOException {
+			out.writeInt(value.length);
+			for (Integer i : value) out.writeInt(i);
+		}
+		
+		@Override
+		Object readPayload(DataInput in, ResolvedType type) throws IOException {
+			return ArrayUtils.toObject(readIntArray(in));
+		}
+	};
+	
+	/*
+	 * Buffers are stored in byte and int array tags, like arrays are. Their remaining contents
+	 * are written, without moving their position. When they are read from a mapped compound,
+	 * they are views of the mapped buffer instead of copies.
+	 */
+	static final StreamingCodec<ByteBuffer> BYTE_BUFFER = new StreamingCodec<ByteBuffer>() {
+		@Override public int getTagId()                                                 { return NBTSerializer.NBT_TAG_BYTE_ARRAY; }
+		@Override public NBTBase toTag(ByteBuffer value)                                { return new NBTTagByteArray(toArray(value)); }
+		@Override public ByteBuffer fromTag(NBTBase tag, Class<? extends ByteBuffer> type) { return ByteBuffer.wrap(((NBTTagByteArray) tag).getByteArray()); }
+		
+		@Override
+		void writePayload(ByteBuffer value, DataOutput out) throws IOException {
+			out.writeInt(value.remaining());
+			out.write(toArray(value));
+		}
+		
+		@Override
+		Object readPayload(DataInput in, ResolvedType type) throws IOException {
+			if (in instanceof BufferInput) return ((BufferInput) in).slice(in.readInt());
+			return ByteBuffer.wrap(readByteArray(in));
+		}
+	};
+	
+	static final StreamingCodec<IntBuffer> INT_BUFFER = new StreamingCodec<IntBuffer>() {
+		@Override public int getTagId()                                                 { return NBTSerializer.NBT_TAG_INT_ARRAY; }
+		@Override public NBTBase toTag(IntBuffer value)                                 { return new NBTTagIntArray(toArray(value)); }
+		@Override public IntBuffer fromTag(NBTBase tag, Class<? extends IntBuffer> type) { return IntBuffer.wrap(((NBTTagIntArray) tag).getIntArray()); }
+		
+		@Override
+		void writePayload(IntBuffer value, DataOutput out) throws IOException {
+			out.writeInt(value.remaining());
+			for (int i = value.position(); i < value.limit(); i++) out.writeInt(value.get(i));
+		}
+		
+		@Override
+		Object readPayload(DataInput in, ResolvedType type) throws IOException {
+			if (in instanceof BufferInput) return ((BufferInput) in).sliceInts(in.readInt());
+			return IntBuffer.wrap(readIntArray(in));
+		}
+	};
+	
+	/*
+	 * Lists and other INBTSerializable objects must be serialized themselves, recursively. The
+	 * codecs for these are registered for whole class hierarchies.
+	 */
+	static final StreamingCodec<INBTSerializable> SERIALIZABLE = new StreamingCodec<INBTSerializable>() {
+		@Override
+		public int getTagId() {
+			return NBTSerializer.NBT_TAG_COMPOUND;
+		}
+		
+		@Override
+		public NBTBase toTag(INBTSerializable value) throws IllegalAccessException, UnserializableClassException {
+			return NBTGraph.encode(value, -1);
+		}
+		
+		@Override
+		void writePayload(INBTSerializable value, DataOutput out) throws IOException, IllegalAccessException, UnserializableClassException {
+			NBTGraph.write(value, -1, out);
+		}
+		
+		@Override
+		public INBTSerializable fromTag(NBTBase tag, Class<? extends INBTSerializable> type) throws IllegalAccessException, InstantiationException, UnserializableClassException {
+			/*
+			 * INBTSerializable instances are easy to deserialize, as they can just
+			 * recursively be passed back into the main deserialization function, unless they
+			 * are part of a graph that is being read.
+			 */
+			return (INBTSerializable) NBTGraph.decode((NBTTagCompound) tag, type, null);
+		}
+		
+		@Override
+		Object readPayload(DataInput in, ResolvedType type) throws IOException, IllegalAccessException, InstantiationException, UnserializableClassException {
+			if (NBTGraph.current() != null) return NBTReader.readObject(in, type, null);
+			INBTSerializable instance = (INBTSerializable) NBTInstances.newInstance(type.raw);
+			NBTReader.readCompound(instance, in, true);
+			return instance;
+		}
+	};
+	
+	static final StreamingCodec<Collection<?>> COLLECTION = new StreamingCodec<Collection<?>>() {
+		@Override
+		public int getTagId() {
+			return NBTSerializer.NBT_TAG_LIST;
+		}
+		
+		@Override
+		public NBTBase toTag(Collection<?> value) throws IllegalAccessException, UnserializableClassException {
+			return NBTSerializer.serializeCollection(value);
+		}
+		
+		@Override
+		void writePayload(Collection<?> value, DataOutput out) throws IOException, IllegalAccessException, UnserializableClassException {
+			NBTWriter.writeList(value, out);
+		}
+		
+		@Override
+		public Collection<?> fromTag(NBTBase tag, Class<? extends Collection<?>> type) throws IllegalAccessException, InstantiationException, UnserializableClassException {
+			return (Collection<?>) decode(tag, ResolvedType.of(type));
+		}
+		
+		@Override
+		Object decode(NBTBase tag, ResolvedType type) throws IllegalAccessException, InstantiationException, UnserializableClassException {
+			/*
+			 * The type that the list contains was resolved when the plan was built, so we can
+			 * cast the tag that contains the collection and deserialize it right away.
+			 */
+			if (!(tag instanceof NBTTagList)) {
+				/*
+				 * Collections of numbers may have been written as a packed array, if the
+				 * field was marked as packed.
+				 */
+				PackedArrays.Element e = PackedArrays.Element.of(type.argument(0).raw);
+				if (e != null) return packedCollection(e).decode(tag, type);
+			}
+			NBTTagList list = (NBTTagList) tag;
+			@SuppressWarnings("unchecked")
+			Collection<Object> c = (Collection<Object>) NBTInstances.newInstance(type.raw, list.tagCount());
+			return NBTSerializer.deserializeCollection(list, c, type.argument(0));
+		}
+		
+		@Override
+		Object readPayload(DataInput in, ResolvedType type) throws IOException, IllegalAccessException, InstantiationException, UnserializableClassException {
+			return NBTReader.readCollection(in, type);
+		}
+	};
+	
+	/*
+	 * Primitive arrays other than byte and int arrays, and arrays of their wrappers, are
+	 * packed into byte arrays. See PackedArrays.
+	 */
+	static final PackedArrayCodec BOOLEAN_ARRAY = new PackedArrayCodec(PackedArrays.Element.BOOLEAN, false);
+	static final PackedArrayCodec SHORT_ARRAY = new PackedArrayCodec(PackedArrays.Element.SHORT, false);
+	static final PackedArrayCodec LONG_ARRAY = new PackedArrayCodec(PackedArrays.Element.LONG, false);
+	static final PackedArrayCodec FLOAT_ARRAY = new PackedArrayCodec(PackedArrays.Element.FLOAT, false);
+	static final PackedArrayCodec DOUBLE_ARRAY = new PackedArrayCodec(PackedArrays.Element.DOUBLE, false);
+	static final PackedArrayCodec BOXED_BOOLEAN_ARRAY = new PackedArrayCodec(PackedArrays.Element.BOOLEAN, true);
+	static final PackedArrayCodec BOXED_SHORT_ARRAY = new PackedArrayCodec(PackedArrays.Element.SHORT, true);
+	static final PackedArrayCodec BOXED_LONG_ARRAY = new PackedArrayCodec(PackedArrays.Element.LONG, true);
+	static final PackedArrayCodec BOXED_FLOAT_ARRAY = new PackedArrayCodec(PackedArrays.Element.FLOAT, true);
+	static final PackedArrayCodec BOXED_DOUBLE_ARRAY = new PackedArrayCodec(PackedArrays.Element.DOUBLE, true);
+	
+	/**
+	 * The codecs for packed collections, by element type.
+	 */
+	private static final PackedCollectionCodec[] PACKED_COLLECTIONS;
+	
+	static {
+		PackedArrays.Element[] elements = PackedArrays.Element.values();
+		PACKED_COLLECTIONS = new PackedCollectionCodec[elements.length];
+		for (PackedArrays.Element e : elements) PACKED_COLLECTIONS[e.ordinal()] = new PackedCollectionCodec(e);
+	}
+	
+	/**
+	 * <p>Gets the codec for collections of the given element type that are marked as
+	 * packed.</p>
+	 * 
+	 * @param e The element type of the collection.
+	 * @return A packed collection codec.
+	 */
+	static PackedCollectionCodec packedCollection(PackedArrays.Element e) {
+		return PACKED_COLLECTIONS[e.ordinal()];
+	}
+	
+	/**
+	 * <p>The codec for an array of primitives or of their wrappers that is packed into an
+	 * array tag.</p>
+	 */
+	static final class PackedArrayCodec extends StreamingCodec<Object> {
+		private final PackedArrays.Element element;
+		private final boolean boxed;
+		
+		PackedArrayCodec(PackedArrays.Element element, boolean boxed) {
+			this.element = element;
+			this.boxed = boxed;
+		}
+		
+		@Override
+		public int getTagId() {
+			return this.element.tagId;
+		}
+		
+		@Override
+		public NBTBase toTag(Object value) {
+			return PackedArrays.toTag(primitive(value), this.element);
+		}
+		
+		@Override
+		public Object fromTag(NBTBase tag, Class<? extends Object> type) {
+			return result(PackedArrays.fromTag(tag, this.element));
+		}
+		
+		@Override
+		void writePayload(Object value, DataOutput out) throws IOException {
+			PackedArrays.write(primitive(value), this.element, out);
+		}
+		
+		@Override
+		Object readPayload(DataInput in, ResolvedType type) throws IOException {
+			return result(PackedArrays.read(in, this.element));
+		}
+		
+		private Object primitive(Object value) {
+			return this.boxed ? PackedArrays.unbox((Object[]) value, this.element) : value;
+		}
+		
+		private Object result(Object array) {
+			return this.boxed ? PackedArrays.box(array, this.element) : array;
+		}
+	}
+	
+	/**
+	 * <p>The codec for a collection of numbers or booleans that is marked as packed. The
+	 * elements are written as a packed array instead of a list tag. Null elements are
+	 * skipped, like they are in list tags.</p>
+	 */
+	static final class PackedCollectionCodec extends StreamingCodec<Collection<?>> {
+		private final PackedArrays.Element element;
+		
+		PackedCollectionCodec(PackedArrays.Element element) {
+			this.element = element;
+		}
+		
+		@Override
+		public int getTagId() {
+			return this.element.tagId;
+		}
+		
+		@Override
+		public NBTBase toTag(Collection<?> value) {
+			return PackedArrays.toTag(toArray(value), this.element);
+		}
+		
+		@Override
+		void writePayload(Collection<?> value, DataOutput out) throws IOException {
+			PackedArrays.write(toArray(value), this.element, out);
+		}
+		
+		@Override
+		public Collection<?> fromTag(NBTBase tag, Class<? extends Collection<?>> type) throws IllegalAccessException, InstantiationException {
+			return toCollection(PackedArrays.fromTag(tag, this.element), type);
+		}
+		
+		@Override
+		Object readPayload(DataInput in, ResolvedType type) throws IOException, IllegalAccessException, InstantiationException {
+			return toCollection(PackedArrays.read(in, this.element), type.raw);
+		}
+		
+		private Object toArray(Collection<?> value) {
+			int count = 0;
+			for (Object element : value) {
+				if (element != null) count++;
+			}
+			Object array = PackedArrays.newArray(this.element, count);
+			int i = 0;
+			for (Object element : value) {
+				if (element == null) continue;
+				if (element instanceof Boolean) PackedArrays.set(array, this.element, i++, (Boolean) element ? 1 : 0, 0);
+				else PackedArrays.set(array, this.element, i++, ((Number) element).longValue(), ((Number) element).doubleValue());
+			}
+			return array;
+		}
+		
+		private Collection<?> toCollection(Object array, Class<?> type) throws IllegalAccessException, InstantiationException {
+			Object[] elements = PackedArrays.box(array, this.element);
+			@SuppressWarnings("unchecked")
+			Collection<Object> c = (Collection<Object>) NBTInstances.newInstance(type, elements.length);
+			for (Object element : elements) c.add(element);
+			return c;
+		}
+	}
+	
+	/*
+	 * We will also handle types of objects that are not traditionally supported by NBT, such
+	 * as maps.
+	 */
+	static final StreamingCodec<Entry<?, ?>> ENTRY = new StreamingCodec<Entry<?, ?>>() {
+		@Override
+		public int getTagId() {
+			return NBTSerializer.NBT_TAG_COMPOUND;
+		}
+		
+		@Override
+		public NBTBase toTag(Entry<?, ?> value) throws IllegalAccessException, UnserializableClassException {
+			return NBTSerializer.serializeEntry(value);
+		}
+		
+		@Override
+		void writePayload(Entry<?, ?> value, DataOutput out) throws IOException, IllegalAccessException, UnserializableClassException {
+			NBTWriter.writeEntry(value, out);
+		}
+		
+		@Override
+		public Entry<?, ?> fromTag(NBTBase tag, Class<? extends Entry<?, ?>> type) throws UnserializableClassException {
+			/*
+			 * Loose entries are only ever serialized as part of a map, and are deserialized
+			 * by the map codec below.
+			 */
+			throw new UnserializableClassException(type);
+		}
+		
+		@Override
+		Object readPayload(DataInput in, ResolvedType type) throws UnserializableClassException {
+			throw new UnserializableClassException(type.raw);
+		}
+	};
+	
+	/*
+	 * Maps can be laid out in several ways, depending on the field they are in. All of the
+	 * map codecs can read every layout, so that data stays readable when the layout of a
+	 * field is changed.
+	 */
+	static final MapCodec MAP = new MapCodec() {
+		@Override
+		public int getTagId() {
+			return NBTSerializer.NBT_TAG_LIST;
+		}
+		
+		@Override
+		public NBTBase toTag(Map<?, ?> value) throws IllegalAccessException, UnserializableClassException {
+			return NBTSerializer.serializeCollection(value.entrySet());
+		}
+		
+		@Override
+		void writePayload(Map<?, ?> value, DataOutput out) throws IOException, IllegalAccessException, UnserializableClassException {
+			NBTWriter.writeMap(value, out);
+		}
+		
+		@Override
+		Object readPayload(DataInput in, ResolvedType type) throws IOException, IllegalAccessException, InstantiationException, UnserializableClassException {
+			return NBTReader.readMap(in, type);
+		}
+	};
+	
+	static final MapCodec MAP_COMPOUND = new MapCodec() {
+		@Override
+		public int getTagId() {
+			return NBTSerializer.NBT_TAG_COMPOUND;
+		}
+		
+		@Override
+		public NBTBase toTag(Map<?, ?> value) throws IllegalAccessException, UnserializableClassException {
+			return NBTSerializer.serializeMapCompound(value);
+		}
+		
+		@Override
+		void writePayload(Map<?, ?> value, DataOutput out) throws IOException, IllegalAccessException, UnserializableClassException {
+			NBTWriter.writeMapCompound(value, out);
+		}
+		
+		@Override
+		Object readPayload(DataInput in, ResolvedType type) throws IOException, IllegalAccessException, InstantiationException, UnserializableClassException {
+			return NBTReader.readMapCompound(in, type);
+		}
+	};
+	
+	static final MapCodec MAP_LISTS = new MapCodec() {
+		@Override
+		public int getTagId() {
+			return NBTSerializer.NBT_TAG_LIST;
+		}
+		
+		@Override
+		public NBTBase toTag(Map<?, ?> value) throws IllegalAccessException, UnserializableClassException {
+			return NBTSerializer.serializeMapLists(value);
+		}
+		
+		@Override
+		void writePayload(Map<?, ?> value, DataOutput out) throws IOException, IllegalAccessException, UnserializableClassException {
+			NBTWriter.writeMapLists(value, out);
+		}
+		
+		@Override
+		Object readPayload(DataInput in, ResolvedType type) throws IOException, IllegalAccessException, InstantiationException, UnserializableClassException {
+			/*
+			 * This is a list tag just like the entry layout, and the reader tells them apart
+			 * by the type of the list elements.
+			 */
+			return NBTReader.readMap(in, type);
+		}
+	};
+	
+	/**
+	 * <p>Gets the map codec that writes the given layout.</p>
+	 * 
+	 * @param layout The layout of the map.
+	 * @param keyType The declared type of the keys of the map.
+	 * @return A map codec.
+	 */
+	static MapCodec mapCodec(MapLayout layout, Class<?> keyType) {
+		switch (layout) {
+		case COMPOUND:  return keyType == String.class ? MAP_COMPOUND : MAP_LISTS;
+		case LISTS:     return MAP_LISTS;
+		default:        return MAP;
+		}
+	}
+	
+	/**
+	 * <p>The base class of the map codecs, which differ only in how they write maps.</p>
+	 */
+	abstract static class MapCodec extends StreamingCodec<Map<?, ?>> {
+		@Override
+		public Map<?, ?> fromTag(NBTBase tag, Class<? extends Map<?, ?>> type) throws IllegalAccessException, InstantiationException, UnserializableClassException {
+			return (Map<?, ?>) decode(tag, ResolvedType.of(type));
+		}
+		
+		@Override
+		Object decode(NBTBase tag, ResolvedType type) throws IllegalAccessException, InstantiationException, UnserializableClassException {
+			/*
+			 * The types of both the key and the value of the map entries were resolved when
+			 * the plan was built. The layout is detected from the tag: a compound tag holds
+			 * the entries by name, and a list tag holds either two lists of keys and values,
+			 * or a compound tag for each entry.
+			 */
+			@SuppressWarnings("unchecked")
+			Map<Object, Object> m = (Map<Object, Object>) NBTInstances.newInstance(type.raw, sizeOf(tag));
+			return fill(m, tag, type);
+		}
+		
+		/**
+		 * <p>Gets the number of entries in a map tag in any layout.</p>
+		 * 
+		 * @param tag The NBT tag holding the map.
+		 * @return The number of entries.
+		 */
+		static int sizeOf(NBTBase tag) {
+			if (tag instanceof NBTTagCompound) return ((NBTTagCompound) tag).getKeySet().size();
+			NBTTagList list = (NBTTagList) tag;
+			if (list.tagCount() > 0 && list.get(0) instanceof NBTTagList) {
+				/*
+				 * Only entries that have both a key and a value are read.
+				 */
+				return list.tagCount() < 2 ? 0 : Math.min(((NBTTagList) list.get(0)).tagCount(), ((NBTTagList) list.get(1)).tagCount());
+			}
+			return list.tagCount();
+		}
+		
+		/**
+		 * <p>Deserializes the entries of a map tag in any layout into the given map.</p>
+		 * 
+		 * @param map The map to put the entries into.
+		 * @param tag The NBT tag holding the map.
+		 * @param type The resolved type of the map.
+		 * @return The given map.
+		 */
+		Map<Object, Object> fill(Map<Object, Object> map, NBTBase tag, ResolvedType type) throws IllegalAccessException, InstantiationException, UnserializableClassException {
+			if (tag instanceof NBTTagCompound) {
+				return NBTSerializer.deserializeMapCompound((NBTTagCompound) tag, map, type.argument(1));
+			}
+			NBTTagList list = (NBTTagList) tag;
+			if (list.tagCount() > 0 && list.get(0) instanceof NBTTagList) {
+				return NBTSerializer.deserializeMapLists(list, map, type.argument(0), type.argument(1));
+			}
+			return NBTSerializer.deserializeMap(list, map, type.argument(0), type.argument(1));
+		}
+	}
+	
+	/*
+	 * Helpers for reading array payloads from a stream.
+	 */
+	private static byte[] toArray(ByteBuffer buffer) {
+		byte[] data = new byte[buffer.remaining()];
+		buffer.duplicate().get(data);
+		return data;
+	}
+	
+	private static int[] toArray(IntBuffer buffer) {
+		int[] data = new int[buffer.remaining()];
+		buffer.duplicate().get(data);
+		return data;
+	}
+	
+	private static byte[] readByteArray(DataInput in) throws IOException {
+		byte[] data = new byte[in.readInt()];
+		in.readFully(data);
+		return data;
+	}
+	
+	private static int[] readIntArray(DataInput in) throws IOException {
+		int[] data = new int[in.readInt()];
+		for (int i = 0; i < data.length; i++) data[i] = in.readInt();
+		return data;
+	}
+}
@@ -0,0 +1,354 @@
+package info.varden.nbtserial;
+
+import java.lang.reflect.Field;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * <p>The serialization plan of an {@link INBTSerializable} class: the resolved metadata of
+ * all of its {@link NBTSerialize} annotated fields, including those declared by its
+ * superclasses. Plans are built the first time a class is serialized or deserialized and
+ * cached for the lifetime of the class, so that subsequent calls do not need to look up
+ * fields or annotations again, no matter how deep the class hierarchy is.</p>
+ * 
+ * @author Marius
+ */
+final class ClassPlan {
+	/**
+	 * The plan cache. A {@link ClassValue} is used rather than a map so that caching a plan
+	 * does not prevent the class (or its class loader) from being unloaded. It is replaced
+	 * when a codec is registered, as plans hold the codecs of their fields.
+	 */
+	private static volatile ClassValue<ClassPlan> plans = newCache();
+	
+	/**
+	 * The class that this plan describes.
+	 */
+	final Class<?> type;
+	/**
+	 * The annotated fields of the class and its superclasses. The fields of a superclass come
+	 * before those of its subclasses, and the fields of each class are in declaration order.
+	 */
+	final FieldPlan[] fields;
+	/**
+	 * The annotated fields of the class in the order that an NBT compound tag holding them
+	 * would write them in, one order for each table size the compound may have, or
+	 * {@code null} if the order depends on which fields are present. See
+	 * {@link CompoundOrder}.
+	 */
+	private final FieldPlan[][] writeOrders;
+	/**
+	 * The annotated fields of the class, by the names of the NBT tags they are serialized to.
+	 */
+	private final Map<String, FieldPlan> byTagName;
+	/**
+	 * The annotated fields of the class in an open-addressed hash table, keyed by the encoded
+	 * names of the NBT tags they are serialized to, so that tag names read from a stream can
+	 * be matched without decoding them.
+	 */
+	private final FieldPlan[] byEncodedName;
+	/**
+	 * The schema fingerprint of the class, once {@link #fingerprinted} is set.
+	 */
+	private long fingerprint;
+	/**
+	 * Whether the schema fingerprint of the class has been computed yet.
+	 */
+	private volatile boolean fingerprinted;
+	
+	private ClassPlan(Class<?> type) {
+		this.type = type;
+		
+		/*
+		 * Inherited fields come first. The plan of the superclass already holds the fields
+		 * of the whole hierarchy above this class, resolved and flattened, and is cached in
+		 * its own right, so each class in a hierarchy is only ever inspected once. Its fields
+		 * are copied rather than shared, as their positions in this class differ.
+		 */
+		List<FieldPlan> fields = new ArrayList<FieldPlan>();
+		Class<?> superclass = type.getSuperclass();
+		if (superclass != null && superclass != Object.class) {
+			for (FieldPlan fp : of(superclass).fields) fields.add(new FieldPlan(fp, fields.size()));
+		}
+		
+		/*
+		 * Then get a list of declared fields in the class and resolve any that are annotated
+		 * with @NBTSerialize.
+		 */
+		for (Field f : type.getDeclaredFields()) {
+			NBTSerialize annotation = f.getAnnotation(NBTSerialize.class);
+			if (annotation != null) fields.add(new FieldPlan(f, annotation, fields.size()));
+		}
+		this.fields = fields.toArray(new FieldPlan[fields.size()]);
+		
+		/*
+		 * Two fields that are serialized to the same tag would overwrite each other, which
+		 * most often happens when a subclass declares a field with the same name as one in a
+		 * superclass. This is a mistake in the class, so we refuse to serialize it at all.
+		 */
+		this.byTagName = new HashMap<String, FieldPlan>();
+		for (FieldPlan fp : this.fields) {
+			if (fp.tagName.equals(NBTSerializer.SCHEMA_TAG)) {
+				throw new IllegalStateException("Field " + describe(fp) + " of " + type.getName() + " is serialized to tag " + fp.tagName + ", which is reserved for schema fingerprints");
+			}
+			if (fp.tagName.equals(NBTSerializer.SUBTYPE_TAG)) {
+				throw new IllegalStateException("Field " + describe(fp) + " of " + type.getName() + " is serialized to tag " + fp.tagName + ", which is reserved for subtype IDs");
+			}
+			if (fp.tagName.equals(NBTSerializer.ID_TAG) || fp.tagName.equals(NBTSerializer.REFERENCE_TAG)) {
+				throw new IllegalStateException("Field " + describe(fp) + " of " + type.getName() + " is serialized to tag " + fp.tagName + ", which is reserved for object graphs");
+			}
+			FieldPlan other = this.byTagName.put(fp.tagName, fp);
+			if (other != null) {
+				throw new IllegalStateException("Fields " + describe(other) + " and " + describe(fp) + " of " + type.getName() + " are both serialized to tag " + fp.tagName);
+			}
+		}
+		
+		/*
+		 * The table is kept at most half full, so that lookups of names that are not in it
+		 * end quickly.
+		 */
+		this.byEncodedName = new FieldPlan[Integer.highestOneBit(Math.max(this.fields.length, 1)) << 2];
+		for (FieldPlan fp : this.fields) {
+			if (fp.encodedName == null) continue;
+			int mask = this.byEncodedName.length - 1;
+			int i = ModifiedUtf8.hash(fp.encodedName, 2, fp.encodedName.length - 2) & mask;
+			while (this.byEncodedName[i] != null) i = (i + 1) & mask;
+			this.byEncodedName[i] = fp;
+		}
+		
+		/*
+		 * The table of the compound grows with the number of non-null fields, so we compute
+		 * the write order for every table size between the smallest one and the one needed
+		 * when all fields are present. If too many names share a bucket, the order also
+		 * depends on which fields are present, and is worked out for each instance.
+		 */
+		String[] names = new String[this.fields.length];
+		for (int i = 0; i < names.length; i++) names[i] = this.fields[i].tagName;
+		if (CompoundOrder.predictable(names)) {
+			int sizes = Integer.numberOfTrailingZeros(CompoundOrder.capacityFor(names.length) / CompoundOrder.DEFAULT_CAPACITY) + 1;
+			this.writeOrders = new FieldPlan[sizes][];
+			for (int i = 0; i < sizes; i++) {
+				int[] order = CompoundOrder.order(names, CompoundOrder.DEFAULT_CAPACITY << i);
+				this.writeOrders[i] = new FieldPlan[order.length];
+				for (int j = 0; j < order.length; j++) this.writeOrders[i][j] = this.fields[order[j]];
+			}
+		} else {
+			this.writeOrders = null;
+		}
+	}
+	
+	/**
+	 * <p>Gets the field that is serialized to the NBT tag with the given name.</p>
+	 * 
+	 * @param tagName The name of the NBT tag.
+	 * @return The field, or {@code null} if no field is serialized to the tag.
+	 */
+	FieldPlan field(String tagName) {
+		return this.byTagName.get(tagName);
+	}
+	
+	/**
+	 * <p>Gets the field that is serialized to the NBT tag with the given encoded name.</p>
+	 * 
+	 * @param name The buffer that holds the modified UTF-8 bytes of the name, as read from a
+	 * stream, excluding its length.
+	 * @param length The number of bytes.
+	 * @return The field, or {@code null} if no field is serialized to the tag.
+	 */
+	FieldPlan field(byte[] name, int length) {
+		FieldPlan[] table = this.byEncodedName;
+		int mask = table.length - 1;
+		int i = ModifiedUtf8.hash(name, 0, length) & mask;
+		FieldPlan fp;
+		while ((fp = table[i]) != null) {
+			if (ModifiedUtf8.matches(name, length, fp.encodedName)) return fp;
+			i = (i + 1) & mask;
+		}
+		return null;
+	}
+	
+	/**
+	 * <p>Checks whether the write order of the fields depends on how many of them are
+	 * present. If it does not, {@link #writeOrder(int)} may be called with any size.</p>
+	 * 
+	 * @return Whether the number of present fields must be counted before writing.
+	 */
+	boolean writeOrderVaries() {
+		return this.writeOrders == null || this.writeOrders.length > 1;
+	}
+	
+	/**
+	 * <p>Gets the order in which an NBT compound tag would write the fields of this class.
+	 * Fields that are not present (i.e. are {@code null}) must be skipped.</p>
+	 * 
+	 * @param present The number of fields that are present.
+	 * @return All fields of the class, in write order, or {@code null} if so many of their
+	 * tag names share a bucket of the table that the order depends on which of them are
+	 * present. See {@link #writeOrder(INBTSerializable)}.
+	 */
+	FieldPlan[] writeOrder(int present) {
+		if (this.writeOrders == null) return null;
+		int cap = CompoundOrder.capacityFor(present);
+		return this.writeOrders[Integer.numberOfTrailingZeros(cap / CompoundOrder.DEFAULT_CAPACITY)];
+	}
+	
+	/**
+	 * <p>Gets the order in which an NBT compound tag would write the fields of the given
+	 * instance that are present. This works for any class, but it is only needed when
+	 * {@link #writeOrder(int)} cannot tell.</p>
+	 * 
+	 * @param object An instance of the class.
+	 * @return The fields of the instance that are present, in write order.
+	 * @throws IllegalAccessException if a Field object in a serializable class is enforcing
+	 * Java language access control and the underlying field is inaccessible.
+	 */
+	FieldPlan[] writeOrder(INBTSerializable object) throws IllegalAccessException {
+		List<FieldPlan> present = new ArrayList<FieldPlan>(this.fields.length);
+		for (FieldPlan fp : this.fields) {
+			if (fp.kind != FieldPlan.Kind.OBJECT || fp.accessor.get(object) != null) present.add(fp);
+		}
+		String[] names = new String[present.size()];
+		for (int i = 0; i < names.length; i++) names[i] = present.get(i).tagName;
+		int[] order = CompoundOrder.order(names);
+		FieldPlan[] fields = new FieldPlan[order.length];
+		for (int i = 0; i < order.length; i++) fields[i] = present.get(order[i]);
+		return fields;
+	}
+	
+	/**
+	 * <p>Gets the schema fingerprint of this class: a hash of the names of the tags of its
+	 * fields, the IDs of those tags and, recursively, the tag IDs of the elements of generic
+	 * collections and maps, as well as the fingerprints of nested serializable classes. Data
+	 * written for a class with the same fingerprint holds the same tags, of the same types,
+	 * wherever it holds them at all.</p>
+	 * <p>The fingerprint is computed the first time it is needed. It only depends on the
+	 * declarations of the classes involved, so it is the same in every JVM that loads the
+	 * same classes.</p>
+	 * 
+	 * @return The fingerprint.
+	 */
+	long fingerprint() {
+		/*
+		 * Threads that get here at the same time compute the same value, so there is no
+		 * need to lock.
+		 */
+		if (!this.fingerprinted) {
+			this.fingerprint = fingerprint(this, new ArrayList<Class<?>>());
+			this.fingerprinted = true;
+		}
+		return this.fingerprint;
+	}
+	
+	/**
+	 * <p>Computes the schema fingerprint of the class of the given plan.</p>
+	 * 
+	 * @param plan The plan of the class.
+	 * @param enclosing The serializable classes whose fingerprints are being computed, from
+	 * the outermost one in.
+	 * @return The fingerprint.
+	 */
+	private static long fingerprint(ClassPlan plan, List<Class<?>> enclosing) {
+		enclosing.add(plan.type);
+		long h = mix(FNV_OFFSET_BASIS, plan.fields.length);
+		for (FieldPlan fp : plan.fields) {
+			h = mix(h, fp.tagName);
+			h = mix(h, FieldPlan.tagIdOf(fp.kind, fp.codec));
+			if (fp.kind == FieldPlan.Kind.OBJECT) h = mix(h, fp.readType, enclosing);
+		}
+		enclosing.remove(enclosing.size() - 1);
+		return h;
+	}
+	
+	/**
+	 * <p>Mixes what the given type holds into a fingerprint: the fingerprint of the class
+	 * if it is serializable, and the tag IDs of its elements or type arguments.</p>
+	 * 
+	 * @param h The fingerprint so far.
+	 * @param type The type to mix in.
+	 * @param enclosing See {@link #fingerprint(ClassPlan, List)}.
+	 * @return The new fingerprint.
+	 */
+	private static long mix(long h, ResolvedType type, List<Class<?>> enclosing) {
+		if (INBTSerializable.class.isAssignableFrom(type.raw) && !type.raw.isInterface()) {
+			/*
+			 * A class that holds instances of itself, such as the node of a tree, would
+			 * never be done. A class that is already being fingerprinted is mixed in as how
+			 * far out it is instead.
+			 */
+			int i = enclosing.lastIndexOf(type.raw);
+			if (i >= 0) h = mix(h, enclosing.size() - i);
+			else h = mix(h, fingerprint(of(type.raw), enclosing));
+		}
+		if (type.raw.isArray()) {
+			Class<?> component = type.raw.getComponentType();
+			h = mix(h, NBTSerializer.getIDFromClass(component));
+			h = mix(h, ResolvedType.of(component), enclosing);
+		}
+		h = mix(h, type.arguments.length);
+		for (ResolvedType argument : type.arguments) {
+			h = mix(h, NBTSerializer.getIDFromClass(argument.raw));
+			h = mix(h, argument, enclosing);
+		}
+		return h;
+	}
+	
+	/*
+	 * Fingerprints are 64-bit FNV-1a hashes.
+	 */
+	private static final long FNV_OFFSET_BASIS = 0xCBF29CE484222325L;
+	private static final long FNV_PRIME = 0x100000001B3L;
+	
+	private static long mix(long h, int value) {
+		for (int shift = 24; shift >= 0; shift -= 8) h = (h ^ (value >>> shift & 0xFF)) * FNV_PRIME;
+		return h;
+	}
+	
+	private static long mix(long h, long value) {
+		for (int shift = 56; shift >= 0; shift -= 8) h = (h ^ (value >>> shift & 0xFF)) * FNV_PRIME;
+		return h;
+	}
+	
+	private static long mix(long h, String value) {
+		h = mix(h, value.length());
+		for (int i = 0; i < value.length(); i++) h = mix(h, value.charAt(i));
+		return h;
+	}
+	
+	/**
+	 * <p>Describes a field by the name of its declaring class and its own name, for error
+	 * messages.</p>
+	 */
+	private static String describe(FieldPlan fp) {
+		return fp.field.getDeclaringClass().getName() + "." + fp.field.getName();
+	}
+	
+	/**
+	 * <p>Gets the serialization plan of the given class, creating it if it does not already
+	 * exist.</p>
+	 * 
+	 * @param clazz The class to get the plan of.
+	 * @return The serialization plan of the class.
+	 */
+	static ClassPlan of(Class<?> clazz) {
+		return plans.get(clazz);
+	}
+	
+	/**
+	 * <p>Drops all cached plans, so that they are built again from the codecs that are
+	 * registered now. See {@link NBTCodecs}.</p>
+	 */
+	static void invalidate() {
+		plans = newCache();
+	}
+	
+	private static ClassValue<ClassPlan> newCache() {
+		return new ClassValue<ClassPlan>() {
+			@Override
+			protected ClassPlan computeValue(Class<?> type) {
+				return new ClassPlan(type);
+			}
+		};
+	}
+}
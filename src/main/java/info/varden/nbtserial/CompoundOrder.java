@@ -0,0 +1,130 @@
+package info.varden.nbtserial;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * <p>Predicts the order in which an {@link net.minecraft.nbt.NBTTagCompound} writes its child
+ * tags. Compound tags keep their children in a {@link java.util.HashMap} and write them in its
+ * iteration order, so a streaming writer has to emit tags in that same order to produce
+ * byte-identical output.</p>
+ * <p>The iteration order of a HashMap that was created with the default capacity is determined
+ * by how many entries it holds (which decides the size of its table), the bucket each key falls
+ * into, and the order in which keys that share a bucket were inserted. The predictions here
+ * follow the HashMap implementation of Java 8 and later.</p>
+ * <p>That implementation turns a bucket that holds more than eight keys into a tree, or grows
+ * its table early to avoid doing so, which changes the order in ways that are not modelled
+ * here. {@link #order(String[])} puts keys that may end up like that into an actual HashMap
+ * to find out their order instead.</p>
+ * 
+ * @author Marius
+ */
+final class CompoundOrder {
+	/**
+	 * The initial table size of a HashMap created with its default constructor.
+	 */
+	static final int DEFAULT_CAPACITY = 16;
+	/**
+	 * The number of keys in a bucket beyond which a HashMap treeifies the bucket.
+	 */
+	static final int TREEIFY_THRESHOLD = 8;
+	
+	private CompoundOrder() {}
+	
+	/**
+	 * <p>Gets the size of the table of a default HashMap after the given number of entries
+	 * have been put into it.</p>
+	 * 
+	 * @param size The number of entries in the map.
+	 * @return The table size, which is always a power of two.
+	 */
+	static int capacityFor(int size) {
+		int cap = DEFAULT_CAPACITY;
+		/*
+		 * HashMap resizes whenever its size exceeds three quarters of its table size.
+		 */
+		while (size > cap - (cap >>> 2)) cap <<= 1;
+		return cap;
+	}
+	
+	/**
+	 * <p>Gets the bucket that the given key falls into in a HashMap table of the given
+	 * size.</p>
+	 * 
+	 * @param key The key of the entry.
+	 * @param capacity The size of the table.
+	 * @return The index of the bucket.
+	 */
+	static int bucket(String key, int capacity) {
+		int h = key.hashCode();
+		return (h ^ (h >>> 16)) & (capacity - 1);
+	}
+	
+	/**
+	 * <p>Sorts the given keys into the order a HashMap with a table of the given size would
+	 * iterate them in, assuming they were inserted in the order given.</p>
+	 * 
+	 * @param keys The keys, in insertion order.
+	 * @param capacity The size of the table.
+	 * @return The indices of the keys, in iteration order.
+	 */
+	static int[] order(String[] keys, int capacity) {
+		int[] order = new int[keys.length];
+		int[] buckets = new int[keys.length];
+		for (int i = 0; i < keys.length; i++) {
+			order[i] = i;
+			buckets[i] = bucket(keys[i], capacity);
+		}
+		/*
+		 * Keys that share a bucket keep their insertion order, even across resizes, so a
+		 * stable sort by bucket is all that is needed. Insertion sort is stable and more than
+		 * fast enough for the number of fields a class has.
+		 */
+		for (int i = 1; i < order.length; i++) {
+			int o = order[i];
+			int j = i - 1;
+			while (j >= 0 && buckets[order[j]] > buckets[o]) {
+				order[j + 1] = order[j];
+				j--;
+			}
+			order[j + 1] = o;
+		}
+		return order;
+	}
+	
+	/**
+	 * <p>Checks whether {@link #order(String[], int)} predicts the order of the given keys,
+	 * i.e. whether no bucket can ever hold more than {@link #TREEIFY_THRESHOLD} of them.
+	 * Buckets only split as the table grows, so it is enough to check the smallest
+	 * table.</p>
+	 * 
+	 * @param keys The keys.
+	 * @return Whether the order of the keys can be predicted.
+	 */
+	static boolean predictable(String[] keys) {
+		int[] counts = new int[DEFAULT_CAPACITY];
+		for (String key : keys) {
+			if (++counts[bucket(key, DEFAULT_CAPACITY)] > TREEIFY_THRESHOLD) return false;
+		}
+		return true;
+	}
+	
+	/**
+	 * <p>Sorts the given keys into the order a default HashMap would iterate them in after
+	 * they were inserted in the order given. Unlike {@link #order(String[], int)}, this
+	 * works for any keys, but it has to fill a HashMap with the keys that are not
+	 * {@link #predictable(String[]) predictable}.</p>
+	 * 
+	 * @param keys The keys, in insertion order. No two keys may be equal.
+	 * @return The indices of the keys, in iteration order.
+	 */
+	static int[] order(String[] keys) {
+		if (predictable(keys)) return order(keys, capacityFor(keys.length));
+		Map<String, Integer> map = new HashMap<String, Integer>();
+		for (int i = 0; i < keys.length; i++) map.put(keys[i], i);
+		int[] order = new int[keys.length];
+		int j = 0;
+		for (Integer i : map.values()) order[j++] = i;
+		return order;
+	}
+}
@@ -0,0 +1,424 @@
+package info.varden.nbtserial;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+
+import net.minecraft.nbt.NBTBase;
+import net.minecraft.nbt.NBTTagByte;
+import net.minecraft.nbt.NBTTagCompound;
+import net.minecraft.nbt.NBTTagInt;
+import net.minecraft.nbt.NBTTagList;
+
+/**
+ * <p>Element-level edits of collection and map fields, as used in deltas created by
+ * {@link NBTTracker#delta()} and applied by
+ * {@link NBTSerializer#patch(INBTSerializable, NBTTagCompound)}. Instead of the whole
+ * collection or map, a delta holds a list of operations that turn the previous contents into
+ * the current ones, so that a small change to a large collection stays small, and the
+ * receiving side can apply it without rebuilding the collection.</p>
+ * <p>Each operation is a compound tag with the following child tags:</p>
+ * <ul>
+ * <li>{@code "o"}: the operation, as a byte tag; one of the constants in this class.</li>
+ * <li>{@code "i"}: the index in a list to operate at.</li>
+ * <li>{@code "n"}: the number of elements to remove from a list.</li>
+ * <li>{@code "k"}: the key of a map entry. Missing for a {@code null} key.</li>
+ * <li>{@code "v"}: the value. For {@link #SET} and {@link #PUT}, this is a single element
+ * or map value, and missing for a {@code null} map value; for {@link #INSERT}, and for
+ * {@link #REMOVE} on collections that are not lists, it is a list tag of elements.</li>
+ * </ul>
+ * 
+ * @author Marius
+ */
+final class ContainerEdits {
+	private ContainerEdits() {}
+	
+	/*
+	 * The operations. SET replaces element "i" of a list. INSERT inserts the elements "v" into
+	 * a list at index "i", or adds them to any other collection. REMOVE removes "n" elements
+	 * starting at index "i" from a list, the elements "v" from any other collection, or the
+	 * entry with the key "k" from a map. PUT puts the entry "k" = "v" into a map.
+	 */
+	static final byte SET = 0;
+	static final byte INSERT = 1;
+	static final byte REMOVE = 2;
+	static final byte PUT = 3;
+	
+	/**
+	 * Whether instances of each class can be found in a collection, or as a key in a map, by
+	 * an equal instance that was deserialized on the receiving side.
+	 */
+	private static final ClassValue<Boolean> BY_VALUE = new ClassValue<Boolean>() {
+		@Override
+		protected Boolean computeValue(Class<?> type) {
+			/*
+			 * Enum constants are the same instance wherever they are deserialized. Compound
+			 * types are compared by identity unless they say otherwise, and even if they do,
+			 * what they compare need not be what is serialized.
+			 */
+			if (type.isEnum()) return true;
+			if (INBTSerializable.class.isAssignableFrom(type)) return false;
+			try {
+				return type.getMethod("equals", Object.class).getDeclaringClass() != Object.class
+						&& type.getMethod("hashCode").getDeclaringClass() != Object.class;
+			} catch (NoSuchMethodException e) {
+				return false;
+			}
+		}
+	};
+	
+	/**
+	 * <p>The state of a collection or map at some point in time, as far as needed to tell
+	 * what has changed in it since: a hash of each element, or of each entry value by key.
+	 * </p>
+	 */
+	static final class Snapshot {
+		/**
+		 * The hash of the whole collection or map.
+		 */
+		final long hash;
+		/**
+		 * The number of elements or entries.
+		 */
+		final int size;
+		/**
+		 * The hash of each element of a collection, in iteration order. This is
+		 * {@code null} for maps.
+		 */
+		final long[] hashes;
+		/**
+		 * The elements of a collection that is not a {@link List}, in iteration order.
+		 * Elements of lists are addressed by index, so they are not needed.
+		 */
+		final Object[] elements;
+		/**
+		 * The hash of each value of a map, by key. This is {@code null} for collections.
+		 */
+		final Map<Object, Long> entries;
+		/**
+		 * Whether a list has {@code null} elements. These are not serialized, so the indices
+		 * in the serialized list would not match the indices in the collection.
+		 */
+		final boolean nulls;
+		
+		/**
+		 * <p>Takes a snapshot of the given collection or map.</p>
+		 * 
+		 * @param container A {@link Collection} or {@link Map} instance.
+		 * @param keepNulls Whether map entries with {@code null} keys or values are
+		 * serialized. If not, they are left out of the snapshot as well.
+		 * @throws IllegalAccessException if a Field object in a serializable class is
+		 * enforcing Java language access control and the underlying field is inaccessible.
+		 */
+		Snapshot(Object container, boolean keepNulls) throws IllegalAccessException {
+			long h = 1;
+			boolean nulls = false;
+			if (container instanceof Map) {
+				Map<?, ?> map = (Map<?, ?>) container;
+				this.entries = new HashMap<Object, Long>(map.size() * 4 / 3 + 1);
+				for (Entry<?, ?> e : map.entrySet()) {
+					Object key = e.getKey();
+					Object value = e.getValue();
+					if (!keepNulls && (key == null || value == null)) continue;
+					long vh = NBTTracker.hash(value);
+					h = NBTTracker.mix(NBTTracker.mix(h, NBTTracker.hash(key)), vh);
+					this.entries.put(key, vh);
+				}
+				this.size = this.entries.size();
+				this.hashes = null;
+				this.elements = null;
+			} else {
+				Collection<?> col = (Collection<?>) container;
+				this.hashes = new long[col.size()];
+				this.elements = container instanceof List ? null : col.toArray();
+				int i = 0;
+				for (Object o : col) {
+					if (o == null) nulls = true;
+					long eh = NBTTracker.hash(o);
+					h = NBTTracker.mix(h, eh);
+					this.hashes[i++] = eh;
+				}
+				this.size = i;
+				this.entries = null;
+			}
+			this.hash = h;
+			this.nulls = nulls;
+		}
+		
+		/**
+		 * <p>Checks whether the contents of the collection or map were the same when both
+		 * snapshots were taken.</p>
+		 * 
+		 * @param other The other snapshot.
+		 * @return Whether the snapshots match.
+		 */
+		boolean matches(Snapshot other) {
+			return this.hash == other.hash && this.size == other.size;
+		}
+	}
+	
+	/**
+	 * <p>Computes the operations that turn the contents of a collection or map at the time of
+	 * one snapshot into its contents at the time of a later one.</p>
+	 * 
+	 * @param container The collection or map, in its current state.
+	 * @param prev The snapshot of the previous state.
+	 * @param next The snapshot of the current state.
+	 * @return The operations, or {@code null} if the whole collection or map should be sent
+	 * instead, because the operations would not be any smaller, or could not be applied.
+	 * @throws IllegalAccessException if a Field object in a serializable class is enforcing
+	 * Java language access control and the underlying field is inaccessible.
+	 * @throws UnserializableClassException if an attempt is made to serialize a class that is
+	 * not natively supported by the serializer and does not implement INBTSerializable.
+	 */
+	static NBTTagList diff(Object container, Snapshot prev, Snapshot next) throws IllegalAccessException, UnserializableClassException {
+		NBTTagList ops = new NBTTagList();
+		/*
+		 * Each changed element costs about as much as the element itself, so once half of
+		 * the elements have changed, sending the whole thing is the better deal.
+		 */
+		int budget = Math.max(1, next.size / 2);
+		int used;
+		if (container instanceof Map) {
+			used = diffMap((Map<?, ?>) container, prev, next, ops, budget);
+		} else if (container instanceof List) {
+			if (prev.nulls || next.nulls) return null;
+			used = diffList((List<?>) container, prev, next, ops, budget);
+		} else {
+			used = diffCollection((Collection<?>) container, prev, next, ops, budget);
+		}
+		return used > budget ? null : ops;
+	}
+	
+	/**
+	 * <p>Computes the operations for a list. The elements at the start and end that are the
+	 * same in both states are skipped; of the elements in between, the ones at the same index
+	 * in both states are replaced, and the rest are removed from or inserted into the list as
+	 * a single range. This produces a single operation for the most common changes, such as
+	 * appending, removing or replacing an element.</p>
+	 * 
+	 * @return The number of elements that the operations hold or remove.
+	 */
+	private static int diffList(List<?> list, Snapshot prev, Snapshot next, NBTTagList ops, int budget) throws IllegalAccessException, UnserializableClassException {
+		long[] a = prev.hashes;
+		long[] b = next.hashes;
+		int start = 0;
+		while (start < a.length && start < b.length && a[start] == b[start]) start++;
+		int endA = a.length;
+		int endB = b.length;
+		while (endA > start && endB > start && a[endA - 1] == b[endB - 1]) {
+			endA--;
+			endB--;
+		}
+		
+		/*
+		 * Elements are encoded with the codec for the class of the first element, just like
+		 * when the whole list is serialized.
+		 */
+		NBTCodec<?> codec = list.isEmpty() ? null : NBTSerializer.codecFor(list.get(0).getClass());
+		int common = Math.min(endA, endB) - start;
+		int used = 0;
+		for (int k = start; k < start + common; k++) {
+			if (a[k] == b[k]) continue;
+			if (++used > budget) return used;
+			NBTTagCompound op = op(SET);
+			op.setTag("i", new NBTTagInt(k));
+			op.setTag("v", codec.encode(list.get(k)));
+			ops.appendTag(op);
+		}
+		int at = start + common;
+		if (endA > at) {
+			used += endA - at;
+			NBTTagCompound op = op(REMOVE);
+			op.setTag("i", new NBTTagInt(at));
+			op.setTag("n", new NBTTagInt(endA - at));
+			ops.appendTag(op);
+		}
+		if (endB > at) {
+			used += endB - at;
+			if (used > budget) return used;
+			NBTTagList values = new NBTTagList();
+			for (int k = at; k < endB; k++) values.appendTag(codec.encode(list.get(k)));
+			NBTTagCompound op = op(INSERT);
+			op.setTag("i", new NBTTagInt(at));
+			op.setTag("v", values);
+			ops.appendTag(op);
+		}
+		return used;
+	}
+	
+	/**
+	 * <p>Computes the operations for a collection that is not a list, such as a set. Elements
+	 * are matched by their hashes, regardless of their position; elements that are only in
+	 * the previous state are removed, and elements that are only in the current state are
+	 * added. Removing elements that are not {@link #byValue(Object) compared by value} is not
+	 * possible, so the whole collection is sent instead.</p>
+	 * 
+	 * @return The number of elements that the operations hold.
+	 */
+	private static int diffCollection(Collection<?> col, Snapshot prev, Snapshot next, NBTTagList ops, int budget) throws IllegalAccessException, UnserializableClassException {
+		Map<Long, Integer> counts = new HashMap<Long, Integer>();
+		for (long h : prev.hashes) {
+			Integer c = counts.get(h);
+			counts.put(h, c == null ? 1 : c + 1);
+		}
+		List<Object> added = new ArrayList<Object>();
+		int i = 0;
+		for (Object o : col) {
+			long h = next.hashes[i++];
+			Integer c = counts.get(h);
+			if (c == null) {
+				if (o != null) added.add(o);
+			} else if (c == 1) {
+				counts.remove(h);
+			} else {
+				counts.put(h, c - 1);
+			}
+		}
+		List<Object> removed = new ArrayList<Object>();
+		for (i = 0; i < prev.hashes.length; i++) {
+			Integer c = counts.get(prev.hashes[i]);
+			if (c == null) continue;
+			if (prev.elements[i] != null) {
+				/*
+				 * Removed elements are found by equality when the operations are applied, so
+				 * the whole collection has to be sent if that does not work for them.
+				 */
+				if (!byValue(prev.elements[i])) return Integer.MAX_VALUE;
+				removed.add(prev.elements[i]);
+			}
+			if (c == 1) counts.remove(prev.hashes[i]); else counts.put(prev.hashes[i], c - 1);
+		}
+		
+		int used = added.size() + removed.size();
+		if (used > budget) return used;
+		if (!removed.isEmpty()) {
+			NBTTagCompound op = op(REMOVE);
+			op.setTag("v", NBTSerializer.serializeCollection(removed));
+			ops.appendTag(op);
+		}
+		if (!added.isEmpty()) {
+			NBTTagCompound op = op(INSERT);
+			op.setTag("v", NBTSerializer.serializeCollection(added));
+			ops.appendTag(op);
+		}
+		return used;
+	}
+	
+	/**
+	 * <p>Computes the operations for a map: a put for each entry whose key is new or whose
+	 * value has changed, and a remove for each key that is gone. The whole map is sent
+	 * instead if any of the keys that are replaced or removed is not
+	 * {@link #byValue(Object) compared by value}.</p>
+	 * 
+	 * @return The number of entries that the operations hold.
+	 */
+	private static int diffMap(Map<?, ?> map, Snapshot prev, Snapshot next, NBTTagList ops, int budget) throws IllegalAccessException, UnserializableClassException {
+		int used = 0;
+		for (Entry<Object, Long> e : next.entries.entrySet()) {
+			Object key = e.getKey();
+			Long old = prev.entries.get(key);
+			if (old != null && old.longValue() == e.getValue().longValue()) continue;
+			if (old != null && !byValue(key)) return Integer.MAX_VALUE;
+			if (++used > budget) return used;
+			NBTTagCompound op = op(PUT);
+			Object value = map.get(key);
+			if (key != null) op.setTag("k", NBTSerializer.codecFor(key.getClass()).encode(key));
+			if (value != null) op.setTag("v", NBTSerializer.codecFor(value.getClass()).encode(value));
+			ops.appendTag(op);
+		}
+		for (Object key : prev.entries.keySet()) {
+			if (next.entries.containsKey(key)) continue;
+			if (!byValue(key)) return Integer.MAX_VALUE;
+			if (++used > budget) return used;
+			NBTTagCompound op = op(REMOVE);
+			if (key != null) op.setTag("k", NBTSerializer.codecFor(key.getClass()).encode(key));
+			ops.appendTag(op);
+		}
+		return used;
+	}
+	
+	/**
+	 * <p>Checks whether an element or key that is deserialized from an operation is found in
+	 * the collection or map that the operation is applied to, i.e. whether it is equal to
+	 * the one it was serialized from. Entries of maps with keys that are not found like this
+	 * can only be added, and elements of other collections likewise.</p>
+	 * 
+	 * @param o The element or key, which is not {@code null}.
+	 * @return Whether the element or key is compared by value.
+	 */
+	static boolean byValue(Object o) {
+		return BY_VALUE.get(o.getClass());
+	}
+	
+	private static NBTTagCompound op(byte operation) {
+		NBTTagCompound op = new NBTTagCompound();
+		op.setTag("o", new NBTTagByte(operation));
+		return op;
+	}
+	
+	/**
+	 * <p>Applies operations, as computed by {@link #diff}, to a collection or map in place.
+	 * </p>
+	 * 
+	 * @param container The collection or map to apply the operations to.
+	 * @param ops The operations.
+	 * @param type The resolved type of the collection or map, used to deserialize its
+	 * elements, keys and values.
+	 * @throws IllegalAccessException if a Field object in a serializable class is enforcing
+	 * Java language access control and the underlying field is inaccessible, or if the
+	 * constructor for a serializable class is inaccessible.
+	 * @throws InstantiationException if a serializable class represents an abstract class,
+	 * an interface, an array class, a primitive type, or void; or if the class has no nullary
+	 * constructor; or if the instantiation fails for some other reason.
+	 * @throws UnserializableClassException if an attempt is made to deserialize a class that
+	 * is not natively supported by the serializer and does not implement INBTSerializable.
+	 */
+	@SuppressWarnings("unchecked")
+	static void apply(Object container, NBTTagList ops, ResolvedType type) throws IllegalAccessException, InstantiationException, UnserializableClassException {
+		for (int j = 0; j < ops.tagCount(); j++) {
+			NBTTagCompound op = ops.getCompoundTagAt(j);
+			byte o = op.getByte("o");
+			if (container instanceof Map) {
+				Map<Object, Object> map = (Map<Object, Object>) container;
+				Object key = op.hasKey("k") ? NBTSerializer.tagToObject(op.getTag("k"), type.argument(0)) : null;
+				if (o == PUT) {
+					map.put(key, op.hasKey("v") ? NBTSerializer.tagToObject(op.getTag("v"), type.argument(1)) : null);
+				} else {
+					map.remove(key);
+				}
+			} else if (container instanceof List) {
+				List<Object> list = (List<Object>) container;
+				int i = op.getInteger("i");
+				switch (o) {
+				case SET:       list.set(i, NBTSerializer.tagToObject(op.getTag("v"), type.argument(0)));   break;
+				case INSERT:    list.addAll(i, elements(op, type));                                         break;
+				default:        list.subList(i, i + op.getInteger("n")).clear();
+				}
+			} else {
+				Collection<Object> col = (Collection<Object>) container;
+				/*
+				 * Elements of other collections are removed by equality, one at a time, so
+				 * that removing one of two equal elements leaves the other one.
+				 */
+				if (o == INSERT) col.addAll(elements(op, type));
+				else for (Object e : elements(op, type)) col.remove(e);
+			}
+		}
+	}
+	
+	/**
+	 * <p>Deserializes the list of elements in the {@code "v"} tag of an operation.</p>
+	 */
+	private static List<Object> elements(NBTTagCompound op, ResolvedType type) throws IllegalAccessException, InstantiationException, UnserializableClassException {
+		NBTTagList values = (NBTTagList) op.getTag("v");
+		List<Object> elements = new ArrayList<Object>(values.tagCount());
+		for (int i = 0; i < values.tagCount(); i++) {
+			elements.add(NBTSerializer.tagToObject(values.get(i), type.argument(0)));
+		}
+		return elements;
+	}
+}
@@ -0,0 +1,310 @@
+package info.varden.nbtserial;
+
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.lang.reflect.Field;
+
+/**
+ * <p>Reads and writes the value of a single {@link NBTSerialize} annotated field. Primitive
+ * fields have dedicated accessors so that their values can be copied to and from NBT data
+ * structures without boxing.</p>
+ * <p>Accessors are created once per field by {@link FieldPlan}. By default, they are backed by
+ * {@link MethodHandle}s whose types have been adapted to the exact type of the field. If
+ * method handles cannot be created for a field (e.g. because a security manager does not allow
+ * it), or if the {@code info.varden.nbtserial.accessors} system property is set to
+ * {@code reflective}, a fallback that uses the primitive accessors of {@link Field} is used
+ * instead.</p>
+ * 
+ * @author Marius
+ */
+abstract class FieldAccessor {
+	/**
+	 * Whether method handle accessors should be skipped in favor of reflective ones.
+	 */
+	private static final boolean FORCE_REFLECTIVE = "reflective".equals(System.getProperty("info.varden.nbtserial.accessors"));
+	
+	abstract Object get(Object instance) throws IllegalAccessException;
+	abstract byte getByte(Object instance) throws IllegalAccessException;
+	abstract boolean getBoolean(Object instance) throws IllegalAccessException;
+	abstract short getShort(Object instance) throws IllegalAccessException;
+	abstract int getInt(Object instance) throws IllegalAccessException;
+	abstract long getLong(Object instance) throws IllegalAccessException;
+	abstract float getFloat(Object instance) throws IllegalAccessException;
+	abstract double getDouble(Object instance) throws IllegalAccessException;
+	
+	abstract void set(Object instance, Object value) throws IllegalAccessException;
+	abstract void setByte(Object instance, byte value) throws IllegalAccessException;
+	abstract void setBoolean(Object instance, boolean value) throws IllegalAccessException;
+	abstract void setShort(Object instance, short value) throws IllegalAccessException;
+	abstract void setInt(Object instance, int value) throws IllegalAccessException;
+	abstract void setLong(Object instance, long value) throws IllegalAccessException;
+	abstract void setFloat(Object instance, float value) throws IllegalAccessException;
+	abstract void setDouble(Object instance, double value) throws IllegalAccessException;
+	
+	/**
+	 * <p>Creates the best available accessor for the given field.</p>
+	 * 
+	 * @param field The field to access. It must already have been made accessible.
+	 * @return An accessor for the field.
+	 */
+	static FieldAccessor of(Field field) {
+		if (!FORCE_REFLECTIVE) {
+			try {
+				return methodHandle(field);
+			} catch (IllegalAccessException e) {
+				/*
+				 * Method handles could not be created for this field, so we fall through to
+				 * the reflective accessor below.
+				 */
+			} catch (SecurityException e) {
+				/*
+				 * Same as above.
+				 */
+			}
+		}
+		return reflective(field);
+	}
+	
+	/**
+	 * <p>Creates an accessor for the given field that is backed by {@link MethodHandle}s.</p>
+	 * 
+	 * @param field The field to access. It must already have been made accessible.
+	 * @return An accessor for the field.
+	 * @throws IllegalAccessException if method handles cannot be created for the field.
+	 */
+	static FieldAccessor methodHandle(Field field) throws IllegalAccessException {
+		return new MethodHandleAccessor(field);
+	}
+	
+	/**
+	 * <p>Creates an accessor for the given field that is backed by {@link Field} itself.</p>
+	 * 
+	 * @param field The field to access. It must already have been made accessible.
+	 * @return An accessor for the field.
+	 */
+	static FieldAccessor reflective(Field field) {
+		return new ReflectiveAccessor(field);
+	}
+	
+	/**
+	 * <p>An accessor that invokes method handles for the getter and setter of a field. The
+	 * handles are adapted to take the instance as an {@link Object} and to return or accept
+	 * the declared type of the field if it is primitive, or {@link Object} otherwise. This
+	 * lets {@link MethodHandle#invokeExact(Object...)} be used for all accesses, which never
+	 * boxes primitive values.</p>
+	 */
+	private static final class MethodHandleAccessor extends FieldAccessor {
+		private final MethodHandle getter;
+		private final MethodHandle setter;
+		private final boolean primitive;
+		
+		MethodHandleAccessor(Field field) throws IllegalAccessException {
+			Class<?> type = field.getType();
+			Class<?> exact = type.isPrimitive() ? type : Object.class;
+			MethodHandles.Lookup lookup = MethodHandles.lookup();
+			this.getter = lookup.unreflectGetter(field).asType(MethodType.methodType(exact, Object.class));
+			this.setter = lookup.unreflectSetter(field).asType(MethodType.methodType(void.class, Object.class, exact));
+			this.primitive = type.isPrimitive();
+		}
+		
+		@Override
+		Object get(Object instance) {
+			/*
+			 * Primitive fields are only read through get() when their value is needed as an
+			 * object anyway, so boxing is unavoidable here.
+			 */
+			try {
+				if (this.primitive) return this.getter.invoke(instance);
+				return (Object) this.getter.invokeExact(instance);
+			} catch (Throwable t) {
+				throw rethrow(t);
+			}
+		}
+		
+		@Override
+		byte getByte(Object instance) {
+			try {
+				return (byte) this.getter.invokeExact(instance);
+			} catch (Throwable t) {
+				throw rethrow(t);
+			}
+		}
+		
+		@Override
+		boolean getBoolean(Object instance) {
+			try {
+				return (boolean) this.getter.invokeExact(instance);
+			} catch (Throwable t) {
+				throw rethrow(t);
+			}
+		}
+		
+		@Override
+		short getShort(Object instance) {
+			try {
+				return (short) this.getter.invokeExact(instance);
+			} catch (Throwable t) {
+				throw rethrow(t);
+			}
+		}
+		
+		@Override
+		int getInt(Object instance) {
+			try {
+				return (int) this.getter.invokeExact(instance);
+			} catch (Throwable t) {
+				throw rethrow(t);
+			}
+		}
+		
+		@Override
+		long getLong(Object instance) {
+			try {
+				return (long) this.getter.invokeExact(instance);
+			} catch (Throwable t) {
+				throw rethrow(t);
+			}
+		}
+		
+		@Override
+		float getFloat(Object instance) {
+			try {
+				return (float) this.getter.invokeExact(instance);
+			} catch (Throwable t) {
+				throw rethrow(t);
+			}
+		}
+		
+		@Override
+		double getDouble(Object instance) {
+			try {
+				return (double) this.getter.invokeExact(instance);
+			} catch (Throwable t) {
+				throw rethrow(t);
+			}
+		}
+		
+		@Override
+		void set(Object instance, Object value) {
+			/*
+			 * Mirror Field.set(), which refuses to assign null to a primitive field, instead
+			 * of letting the method handle fail with a NullPointerException when unboxing.
+			 */
+			if (this.primitive && value == null) throw new IllegalArgumentException("Cannot set primitive field to null");
+			try {
+				if (this.primitive) this.setter.invoke(instance, value);
+				else this.setter.invokeExact(instance, value);
+			} catch (Throwable t) {
+				throw rethrow(t);
+			}
+		}
+		
+		@Override
+		void setByte(Object instance, byte value) {
+			try {
+				this.setter.invokeExact(instance, value);
+			} catch (Throwable t) {
+				throw rethrow(t);
+			}
+		}
+		
+		@Override
+		void setBoolean(Object instance, boolean value) {
+			try {
+				this.setter.invokeExact(instance, value);
+			} catch (Throwable t) {
+				throw rethrow(t);
+			}
+		}
+		
+		@Override
+		void setShort(Object instance, short value) {
+			try {
+				this.setter.invokeExact(instance, value);
+			} catch (Throwable t) {
+				throw rethrow(t);
+			}
+		}
+		
+		@Override
+		void setInt(Object instance, int value) {
+			try {
+				this.setter.invokeExact(instance, value);
+			} catch (Throwable t) {
+				throw rethrow(t);
+			}
+		}
+		
+		@Override
+		void setLong(Object instance, long value) {
+			try {
+				this.setter.invokeExact(instance, value);
+			} catch (Throwable t) {
+				throw rethrow(t);
+			}
+		}
+		
+		@Override
+		void setFloat(Object instance, float value) {
+			try {
+				this.setter.invokeExact(instance, value);
+			} catch (Throwable t) {
+				throw rethrow(t);
+			}
+		}
+		
+		@Override
+		void setDouble(Object instance, double value) {
+			try {
+				this.setter.invokeExact(instance, value);
+			} catch (Throwable t) {
+				throw rethrow(t);
+			}
+		}
+		
+		/**
+		 * <p>Rethrows an exception thrown by a method handle. Field getters and setters can
+		 * only throw unchecked exceptions (such as a {@link ClassCastException} when the
+		 * instance is of the wrong class), so anything else is wrapped.</p>
+		 * 
+		 * @param t The exception thrown by the method handle.
+		 * @return Never returns; declared so that callers can {@code throw} the result.
+		 */
+		private static RuntimeException rethrow(Throwable t) {
+			if (t instanceof RuntimeException) throw (RuntimeException) t;
+			if (t instanceof Error) throw (Error) t;
+			throw new IllegalStateException(t);
+		}
+	}
+	
+	/**
+	 * <p>An accessor that uses the typed getters and setters of {@link Field}. These do not
+	 * box primitive values either, but they perform access checks on every call.</p>
+	 */
+	private static final class ReflectiveAccessor extends FieldAccessor {
+		private final Field field;
+		
+		ReflectiveAccessor(Field field) {
+			this.field = field;
+		}
+		
+		@Override Object get(Object instance) throws IllegalAccessException           { return this.field.get(instance); }
+		@Override byte getByte(Object instance) throws IllegalAccessException         { return this.field.getByte(instance); }
+		@Override boolean getBoolean(Object instance) throws IllegalAccessException   { return this.field.getBoolean(instance); }
+		@Override short getShort(Object instance) throws IllegalAccessException       { return this.field.getShort(instance); }
+		@Override int getInt(Object instance) throws IllegalAccessException           { return this.field.getInt(instance); }
+		@Override long getLong(Object instance) throws IllegalAccessException         { return this.field.getLong(instance); }
+		@Override float getFloat(Object instance) throws IllegalAccessException       { return this.field.getFloat(instance); }
+		@Override double getDouble(Object instance) throws IllegalAccessException     { return this.field.getDouble(instance); }
+		
+		@Override void set(Object instance, Object value) throws IllegalAccessException          { this.field.set(instance, value); }
+		@Override void setByte(Object instance, byte value) throws IllegalAccessException        { this.field.setByte(instance, value); }
+		@Override void setBoolean(Object instance, boolean value) throws IllegalAccessException  { this.field.setBoolean(instance, value); }
+		@Override void setShort(Object instance, short value) throws IllegalAccessException      { this.field.setShort(instance, value); }
+		@Override void setInt(Object instance, int value) throws IllegalAccessException          { this.field.setInt(instance, value); }
+		@Override void setLong(Object instance, long value) throws IllegalAccessException        { this.field.setLong(instance, value); }
+		@Override void setFloat(Object instance, float value) throws IllegalAccessException      { this.field.setFloat(instance, value); }
+		@Override void setDouble(Object instance, double value) throws IllegalAccessException    { this.field.setDouble(instance, value); }
+	}
+}
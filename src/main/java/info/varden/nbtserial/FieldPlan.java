@@ -0,0 +1,212 @@
+package info.varden.nbtserial;
+
+import java.lang.reflect.Field;
+
+/**
+ * <p>The resolved serialization metadata of a single {@link NBTSerialize} annotated field.
+ * Instances are created once per field by {@link ClassPlan} and then reused for every
+ * serialization and deserialization of the declaring class. Subclasses get copies that share
+ * everything but the position of the field.</p>
+ * 
+ * @author Marius
+ */
+final class FieldPlan {
+	/**
+	 * <p>The ways a field value can be transferred to and from an NBT data structure.
+	 * Primitive fields are read and written through their dedicated accessors; everything
+	 * else is passed to the generic object conversion functions.</p>
+	 */
+	enum Kind {
+		BYTE, BOOLEAN, SHORT, INT, LONG, FLOAT, DOUBLE, OBJECT
+	}
+	
+	/**
+	 * The position of the field among the annotated fields of the class whose plan it is
+	 * part of, including inherited fields.
+	 */
+	final int index;
+	/**
+	 * The field itself. It has already been made accessible.
+	 */
+	final Field field;
+	/**
+	 * The accessor used to read and write the value of the field.
+	 */
+	final FieldAccessor accessor;
+	/**
+	 * The name of the NBT tag that the field is serialized to.
+	 */
+	final String tagName;
+	/**
+	 * The name of the NBT tag as the binary NBT format writes it, i.e. its length followed by
+	 * its modified UTF-8 bytes, or {@code null} if the name is too long to be written.
+	 */
+	final byte[] encodedName;
+	/**
+	 * The declared class of the field, used when serializing.
+	 */
+	final Class<?> type;
+	/**
+	 * The resolved type to instantiate when deserializing. This is the declared type of the
+	 * field unless {@link NBTSerialize#typeOverride()} says otherwise.
+	 */
+	final ResolvedType readType;
+	/**
+	 * How the value of the field is transferred.
+	 */
+	final Kind kind;
+	/**
+	 * The codec for the declared class of the field, used when serializing. This is
+	 * {@code null} if the class cannot be serialized.
+	 */
+	final NBTCodec<?> codec;
+	/**
+	 * The codec for the class to instantiate, used when deserializing. This is {@code null}
+	 * if the class cannot be deserialized.
+	 */
+	final NBTCodec<?> readCodec;
+	/**
+	 * The ID of the NBT tag that the field is read from when the data was written with the
+	 * same schema, i.e. the tag type of a primitive field or the one that its read codec
+	 * produces. This is {@code -1} if the field cannot be deserialized.
+	 */
+	final int readTagId;
+	
+	/**
+	 * <p>Resolves the metadata of the given annotated field.</p>
+	 * 
+	 * @param field The field to resolve.
+	 * @param annotation The {@link NBTSerialize} annotation on the field.
+	 * @param index The position of the field among the annotated fields of its class.
+	 */
+	FieldPlan(Field field, NBTSerialize annotation, int index) {
+		this.index = index;
+		/*
+		 * Any fields that are annotated with @NBTSerialize will need to be read and written,
+		 * so we set them as accessible in case they are declared as private or protected.
+		 * This only needs to happen once, as the plan is cached.
+		 */
+		field.setAccessible(true);
+		this.field = field;
+		this.accessor = FieldAccessor.of(field);
+		
+		/*
+		 * Get the name of the tag in the NBT structure that corresponds to the given field. If
+		 * blank, use the name of the field itself.
+		 */
+		String tn = annotation.name();
+		if (tn.equals("")) tn = field.getName();
+		this.tagName = tn;
+		this.encodedName = ModifiedUtf8.encode(tn);
+		
+		/*
+		 * The declared class of the field is used for serialization, while override values
+		 * from NBTSerialize decide what is instantiated on deserialization.
+		 */
+		this.type = field.getType();
+		Class<?> forceInstantiateAs = annotation.typeOverride();
+		Class<?> fc = forceInstantiateAs.isAssignableFrom(Object.class) ? this.type : forceInstantiateAs;
+		this.readType = this.type == NBTLazy.class ? ResolvedType.of(field.getGenericType()) : ResolvedType.of(fc, field.getGenericType());
+		
+		this.kind = kindOf(this.type);
+		
+		/*
+		 * Pick the codecs for non-primitive fields now, so that no dispatch is needed when
+		 * the field is serialized or deserialized.
+		 */
+		if (this.type == NBTLazy.class) {
+			/*
+			 * Lazy fields are written and read through the codec of the value they hold, with
+			 * the map layout, packing and type override of the field applied to the value.
+			 * The same codec is used both ways, as there is only one type to instantiate.
+			 */
+			ResolvedType value = this.readType.argument(0);
+			if (fc != this.type) value = ResolvedType.of(fc, value.type);
+			NBTCodec<?> vc = forField(NBTCodecs.get(value.raw), value, annotation);
+			this.codec = vc == null ? null : new NBTLazy.LazyCodec(vc, value);
+			this.readCodec = this.codec;
+		} else {
+			this.codec = forField(NBTCodecs.get(this.type), this.readType, annotation);
+			this.readCodec = forField(NBTCodecs.get(this.readType.raw), this.readType, annotation);
+		}
+		this.readTagId = tagIdOf(this.kind, this.readCodec);
+	}
+	
+	/**
+	 * <p>Copies the metadata of an inherited field into the plan of a subclass.</p>
+	 * 
+	 * @param inherited The field, as resolved for the superclass that declares it.
+	 * @param index The position of the field among the annotated fields of the subclass.
+	 */
+	FieldPlan(FieldPlan inherited, int index) {
+		this.index = index;
+		this.field = inherited.field;
+		this.accessor = inherited.accessor;
+		this.tagName = inherited.tagName;
+		this.encodedName = inherited.encodedName;
+		this.type = inherited.type;
+		this.readType = inherited.readType;
+		this.kind = inherited.kind;
+		this.codec = inherited.codec;
+		this.readCodec = inherited.readCodec;
+		this.readTagId = inherited.readTagId;
+	}
+	
+	/**
+	 * <p>Replaces the built-in map and collection codecs with the ones for the map layout or
+	 * packing that the annotation asks for. Any other codec, including codecs registered by
+	 * users, is returned as-is.</p>
+	 * 
+	 * @param codec The codec for the field.
+	 * @param type The resolved type that is read from the field.
+	 * @param annotation The {@link NBTSerialize} annotation on the field.
+	 * @return The codec to use for the field.
+	 */
+	private static NBTCodec<?> forField(NBTCodec<?> codec, ResolvedType type, NBTSerialize annotation) {
+		if (codec == BuiltinCodecs.MAP) {
+			return BuiltinCodecs.mapCodec(annotation.mapLayout(), type.argument(0).raw);
+		}
+		if (codec == BuiltinCodecs.COLLECTION && annotation.packed()) {
+			PackedArrays.Element e = PackedArrays.Element.of(type.argument(0).raw);
+			if (e != null) return BuiltinCodecs.packedCollection(e);
+		}
+		return codec;
+	}
+	
+	/**
+	 * <p>Gets the ID of the NBT tag that a field of the given kind is serialized to.</p>
+	 * 
+	 * @param kind The kind of the field.
+	 * @param codec The codec for the field, used if it is not primitive.
+	 * @return An NBT tag ID, or {@code -1} if there is no codec for the field.
+	 */
+	static int tagIdOf(Kind kind, NBTCodec<?> codec) {
+		switch (kind) {
+		case BYTE:      return NBTSerializer.NBT_TAG_BYTE;
+		case BOOLEAN:   return NBTSerializer.NBT_TAG_BYTE;
+		case SHORT:     return NBTSerializer.NBT_TAG_SHORT;
+		case INT:       return NBTSerializer.NBT_TAG_INT;
+		case LONG:      return NBTSerializer.NBT_TAG_LONG;
+		case FLOAT:     return NBTSerializer.NBT_TAG_FLOAT;
+		case DOUBLE:    return NBTSerializer.NBT_TAG_DOUBLE;
+		default:        return codec == null ? -1 : codec.getTagId();
+		}
+	}
+	
+	/**
+	 * <p>Gets the {@link Kind} that corresponds to the given field class.</p>
+	 * 
+	 * @param fc The declared class of a field.
+	 * @return The kind of transfer to use for the field.
+	 */
+	private static Kind kindOf(Class<?> fc) {
+		if      (fc == byte.class)      return Kind.BYTE;
+		else if (fc == boolean.class)   return Kind.BOOLEAN;
+		else if (fc == short.class)     return Kind.SHORT;
+		else if (fc == int.class)       return Kind.INT;
+		else if (fc == long.class)      return Kind.LONG;
+		else if (fc == float.class)     return Kind.FLOAT;
+		else if (fc == double.class)    return Kind.DOUBLE;
+		else                            return Kind.OBJECT;
+	}
+}
@@ -0,0 +1,278 @@
+package info.varden.nbtserial;
+
+import net.minecraft.nbt.NBTBase;
+import net.minecraft.nbt.NBTTagCompound;
+
+/**
+ * <p>The base class of the serializers that the {@code NBTSerializeProcessor} annotation
+ * processor generates at compile time. For a class {@code com.example.Person}, the processor
+ * generates {@code com.example.Person$NBTCodec}, which copies the annotated fields to and
+ * from NBT data structures with plain field accesses and calls such as
+ * {@code setInteger()} and {@code getString()}, instead of going through reflection.</p>
+ * <p>{@link NBTSerializer#serialize} and
+ * {@link NBTSerializer#deserialize(INBTSerializable, NBTTagCompound, boolean)} look for a
+ * generated serializer the first time they see a class, and use it if it exists. The
+ * generated serializer produces exactly the same NBT data structures as the reflective one.
+ * Fields that the generated code cannot access directly, such as private fields, and fields
+ * of types other than primitives, their wrappers, strings and byte and int arrays, are handled
+ * through {@link Slot}s, which use the same accessors and codecs as the reflective
+ * serializer.</p>
+ * <p>A generated serializer is not used if any of the fields that it handles directly has a
+ * codec registered in {@link NBTCodecs} that replaces the built-in one, as its output would
+ * then differ. Setting the {@code info.varden.nbtserial.generated} system property to
+ * {@code false} disables generated serializers altogether.</p>
+ * 
+ * @author Marius
+ * @param <T> The class that this serializer handles.
+ */
+public abstract class GeneratedCodec<T extends INBTSerializable> extends NBTCodec<T> {
+	/**
+	 * Whether generated serializers should be ignored.
+	 */
+	private static final boolean DISABLED = "false".equals(System.getProperty("info.varden.nbtserial.generated"));
+	
+	/**
+	 * The generated serializer of each class, or {@code null} if there is none. Like
+	 * {@link ClassPlan}s, they are looked up once per class, and looked up again once a codec
+	 * is registered, which may rule out the generated serializer of a class.
+	 */
+	private static volatile ClassValue<GeneratedCodec<?>> generated = newCache();
+	
+	/**
+	 * The class that this serializer handles.
+	 */
+	private final Class<T> type;
+	/**
+	 * The serialization plan of the class, used to resolve {@link Slot}s.
+	 */
+	private final ClassPlan plan;
+	
+	/**
+	 * <p>Creates the serializer for the given class.</p>
+	 * 
+	 * @param type The class that the serializer handles.
+	 */
+	protected GeneratedCodec(Class<T> type) {
+		this.type = type;
+		this.plan = ClassPlan.of(type);
+	}
+	
+	/**
+	 * <p>Serializes the given instance to an NBT data structure. See
+	 * {@link NBTSerializer#serialize}.</p>
+	 * 
+	 * @param object The instance to serialize.
+	 * @return The instance represented as a serialized NBT data structure.
+	 * @throws IllegalAccessException see {@link NBTSerializer#serialize}.
+	 * @throws UnserializableClassException see {@link NBTSerializer#serialize}.
+	 */
+	public abstract NBTTagCompound serialize(T object) throws IllegalAccessException, UnserializableClassException;
+	
+	/**
+	 * <p>Deserializes an NBT data structure into an existing instance. See
+	 * {@link NBTSerializer#deserialize(INBTSerializable, NBTTagCompound, boolean)}.</p>
+	 * 
+	 * @param instance The instance to deserialize into.
+	 * @param data The NBT data structure to deserialize.
+	 * @param interpretMissingFieldValuesAsNull Whether fields for which there is no tag
+	 * should be set to {@code null} or left as-is.
+	 * @throws IllegalAccessException see
+	 * {@link NBTSerializer#deserialize(INBTSerializable, NBTTagCompound, boolean)}.
+	 * @throws InstantiationException see
+	 * {@link NBTSerializer#deserialize(INBTSerializable, NBTTagCompound, boolean)}.
+	 * @throws UnserializableClassException see
+	 * {@link NBTSerializer#deserialize(INBTSerializable, NBTTagCompound, boolean)}.
+	 */
+	public abstract void deserialize(T instance, NBTTagCompound data, boolean interpretMissingFieldValuesAsNull) throws IllegalAccessException, InstantiationException, UnserializableClassException;
+	
+	@Override
+	public int getTagId() {
+		return NBTSerializer.NBT_TAG_COMPOUND;
+	}
+	
+	@Override
+	public NBTBase toTag(T value) throws IllegalAccessException, UnserializableClassException {
+		return serialize(value);
+	}
+	
+	@Override
+	public T fromTag(NBTBase tag, Class<? extends T> type) throws IllegalAccessException, InstantiationException, UnserializableClassException {
+		T instance = NBTInstances.newInstance(type);
+		deserialize(instance, (NBTTagCompound) tag, true);
+		return instance;
+	}
+	
+	/**
+	 * <p>Gets the {@link Slot} for the field that is serialized to the NBT tag with the given
+	 * name. Generated serializers call this once for each field that they cannot handle
+	 * directly, when they are created.</p>
+	 * 
+	 * @param tagName The name of the NBT tag.
+	 * @return The slot for the field.
+	 * @throws IllegalStateException if no field is serialized to the tag, which means that
+	 * the generated serializer is out of date.
+	 */
+	protected final Slot slot(String tagName) {
+		FieldPlan fp = this.plan.field(tagName);
+		if (fp == null) throw new IllegalStateException("No field of " + this.type.getName() + " is serialized to tag " + tagName + "; regenerate its serializer");
+		return new Slot(fp);
+	}
+	
+	/**
+	 * <p>Gets the generated serializer of the given class.</p>
+	 * 
+	 * @param type The class.
+	 * @return The generated serializer, or {@code null} if there is none, or if it must not be
+	 * used.
+	 */
+	static GeneratedCodec<?> of(Class<?> type) {
+		return generated.get(type);
+	}
+	
+	/**
+	 * <p>Drops all generated serializers that have been looked up. See
+	 * {@link NBTCodecs}.</p>
+	 */
+	static void invalidate() {
+		generated = newCache();
+	}
+	
+	private static ClassValue<GeneratedCodec<?>> newCache() {
+		return new ClassValue<GeneratedCodec<?>>() {
+			@Override
+			protected GeneratedCodec<?> computeValue(Class<?> type) {
+				return DISABLED ? null : find(type);
+			}
+		};
+	}
+	
+	/**
+	 * <p>Serializes an instance whose class has already been matched against this
+	 * serializer.</p>
+	 */
+	@SuppressWarnings("unchecked")
+	final NBTTagCompound serializeObject(Object object) throws IllegalAccessException, UnserializableClassException {
+		return serialize((T) object);
+	}
+	
+	/**
+	 * <p>Deserializes into an instance whose class has already been matched against this
+	 * serializer.</p>
+	 */
+	@SuppressWarnings("unchecked")
+	final void deserializeObject(Object instance, NBTTagCompound data, boolean interpretMissingFieldValuesAsNull) throws IllegalAccessException, InstantiationException, UnserializableClassException {
+		deserialize((T) instance, data, interpretMissingFieldValuesAsNull);
+	}
+	
+	/**
+	 * <p>Loads and creates the generated serializer of the given class, if there is one, and
+	 * checks that it can be used.</p>
+	 * 
+	 * @param type The class.
+	 * @return The generated serializer, or {@code null}.
+	 */
+	private static GeneratedCodec<?> find(Class<?> type) {
+		if (!INBTSerializable.class.isAssignableFrom(type)) return null;
+		Class<?> generated;
+		try {
+			generated = Class.forName(type.getName() + "$NBTCodec", true, type.getClassLoader());
+		} catch (ClassNotFoundException e) {
+			return null;
+		}
+		if (!GeneratedCodec.class.isAssignableFrom(generated)) return null;
+		
+		/*
+		 * Fields of types that the generated code handles directly must still use the
+		 * built-in codecs, which are the only streaming codecs. Otherwise, a codec registered
+		 * by the user would be bypassed, and we fall back to the reflective serializer.
+		 */
+		for (FieldPlan fp : ClassPlan.of(type).fields) {
+			if (fp.kind != FieldPlan.Kind.OBJECT || !isDirect(fp.type)) continue;
+			if (!(fp.codec instanceof StreamingCodec) || fp.readCodec != fp.codec) return null;
+		}
+		try {
+			return (GeneratedCodec<?>) NBTInstances.construct(generated);
+		} catch (InstantiationException e) {
+			return null;
+		} catch (IllegalAccessException e) {
+			return null;
+		}
+	}
+	
+	/**
+	 * <p>Checks whether generated serializers handle fields of the given class directly,
+	 * rather than through a {@link Slot}.</p>
+	 * 
+	 * @param type The declared class of a field.
+	 * @return Whether the class is handled directly.
+	 */
+	private static boolean isDirect(Class<?> type) {
+		return type == String.class || type == byte[].class || type == int[].class
+				|| type == Byte.class || type == Boolean.class || type == Short.class || type == Integer.class
+				|| type == Long.class || type == Float.class || type == Double.class;
+	}
+	
+	/**
+	 * <p>Gives generated serializers access to a field that they cannot handle directly. A
+	 * slot reads and writes the field through the same accessor, and converts its value
+	 * through the same codecs, as the reflective serializer.</p>
+	 */
+	public static final class Slot {
+		private final FieldPlan field;
+		private final FieldAccessor accessor;
+		
+		private Slot(FieldPlan field) {
+			this.field = field;
+			this.accessor = field.accessor;
+		}
+		
+		/**
+		 * <p>Converts a value of the field to an NBT tag.</p>
+		 * 
+		 * @param value The value to convert. This must not be {@code null}.
+		 * @return The NBT tag.
+		 * @throws IllegalAccessException see {@link NBTSerializer#serialize}.
+		 * @throws UnserializableClassException if the declared class of the field cannot be
+		 * serialized.
+		 */
+		public NBTBase encode(Object value) throws IllegalAccessException, UnserializableClassException {
+			if (this.field.codec == null) throw new UnserializableClassException(this.field.type);
+			return this.field.codec.encode(value);
+		}
+		
+		/**
+		 * <p>Converts an NBT tag to a value of the field.</p>
+		 * 
+		 * @param tag The NBT tag to convert.
+		 * @return The value.
+		 * @throws IllegalAccessException see {@link NBTSerializer#deserialize(Class, NBTTagCompound)}.
+		 * @throws InstantiationException see {@link NBTSerializer#deserialize(Class, NBTTagCompound)}.
+		 * @throws UnserializableClassException if the class to instantiate for the field
+		 * cannot be deserialized.
+		 */
+		public Object decode(NBTBase tag) throws IllegalAccessException, InstantiationException, UnserializableClassException {
+			if (this.field.readCodec == null) throw new UnserializableClassException(this.field.readType.raw);
+			return this.field.readCodec.decode(tag, this.field.readType);
+		}
+		
+		/*
+		 * Accessors for the value of the field.
+		 */
+		public Object get(Object instance) throws IllegalAccessException                       { return this.accessor.get(instance); }
+		public byte getByte(Object instance) throws IllegalAccessException                     { return this.accessor.getByte(instance); }
+		public boolean getBoolean(Object instance) throws IllegalAccessException               { return this.accessor.getBoolean(instance); }
+		public short getShort(Object instance) throws IllegalAccessException                   { return this.accessor.getShort(instance); }
+		public int getInt(Object instance) throws IllegalAccessException                       { return this.accessor.getInt(instance); }
+		public long getLong(Object instance) throws IllegalAccessException                     { return this.accessor.getLong(instance); }
+		public float getFloat(Object instance) throws IllegalAccessException                   { return this.accessor.getFloat(instance); }
+		public double getDouble(Object instance) throws IllegalAccessException                 { return this.accessor.getDouble(instance); }
+		public void set(Object instance, Object value) throws IllegalAccessException           { this.accessor.set(instance, value); }
+		public void setByte(Object instance, byte value) throws IllegalAccessException         { this.accessor.setByte(instance, value); }
+		public void setBoolean(Object instance, boolean value) throws IllegalAccessException   { this.accessor.setBoolean(instance, value); }
+		public void setShort(Object instance, short value) throws IllegalAccessException       { this.accessor.setShort(instance, value); }
+		public void setInt(Object instance, int value) throws IllegalAccessException           { this.accessor.setInt(instance, value); }
+		public void setLong(Object instance, long value) throws IllegalAccessException         { this.accessor.setLong(instance, value); }
+		public void setFloat(Object instance, float value) throws IllegalAccessException       { this.accessor.setFloat(instance, value); }
+		public void setDouble(Object instance, double value) throws IllegalAccessException     { this.accessor.setDouble(instance, value); }
+	}
+}
@@ -0,0 +1,245 @@
+package info.varden.nbtserial;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.zip.ZipException;
+
+/**
+ * <p>Compresses and decompresses single blocks in the LZ4 block format, for
+ * {@link NBTCompression#LZ4}. This is a plain greedy implementation of the format: a hash
+ * table of recently seen four-byte sequences finds earlier occurrences of the input, which
+ * are replaced by their offset and length. It compresses far less than DEFLATE does, but is
+ * many times faster in both directions.</p>
+ * <p>A block is a series of sequences. Each sequence starts with a token, whose high four
+ * bits are the number of literal bytes that follow and whose low four bits are the length of
+ * the match after them, minus four. A count of 15 in either is continued in extra bytes, each
+ * of which adds up to 255. The literals follow the token, and the match is given by its
+ * offset back from the current position, as a little-endian short. The last sequence has
+ * literals only.</p>
+ * 
+ * @author Marius
+ */
+final class LZ4Block {
+	/**
+	 * The shortest match that is encoded.
+	 */
+	private static final int MIN_MATCH = 4;
+	/**
+	 * The number of bytes at the end of a block that are always literals.
+	 */
+	private static final int LAST_LITERALS = 5;
+	/**
+	 * The number of bytes from the end of a block within which no match may start.
+	 */
+	private static final int MF_LIMIT = 12;
+	/**
+	 * The largest offset that a match can be found at.
+	 */
+	private static final int MAX_DISTANCE = 65535;
+	/**
+	 * The number of bits of the hash of a four-byte sequence.
+	 */
+	private static final int HASH_LOG = 12;
+	/**
+	 * The number of failed attempts to find a match after which the compressor starts to
+	 * skip ahead, so that data that does not compress passes through quickly.
+	 */
+	private static final int SKIP_TRIGGER = 6;
+	
+	private LZ4Block() {}
+	
+	/**
+	 * <p>Creates a table for {@link #compress(byte[], int, int, byte[], int, int[])} to use.
+	 * A table can be reused for any number of blocks, but not by two threads at once.</p>
+	 * 
+	 * @return The table.
+	 */
+	static int[] newTable() {
+		return new int[1 << HASH_LOG];
+	}
+	
+	/**
+	 * <p>Gets the largest number of bytes that a block can be compressed to.</p>
+	 * 
+	 * @param length The number of bytes to compress.
+	 * @return The largest size of the compressed block.
+	 */
+	static int maxCompressedLength(int length) {
+		return length + length / 255 + 16;
+	}
+	
+	/**
+	 * <p>Compresses the given bytes into a block.</p>
+	 * 
+	 * @param src The array that holds the bytes to compress.
+	 * @param srcOffset The offset of the bytes.
+	 * @param length The number of bytes to compress.
+	 * @param dst The array to write the block to. It must have room for at least
+	 * {@link #maxCompressedLength(int)} bytes.
+	 * @param dstOffset The offset to write the block at.
+	 * @param table The hash table, from {@link #newTable()}.
+	 * @return The size of the block.
+	 */
+	static int compress(byte[] src, int srcOffset, int length, byte[] dst, int dstOffset, int[] table) {
+		int end = srcOffset + length;
+		int anchor = srcOffset;
+		int op = dstOffset;
+		/*
+		 * Blocks that are too short to hold a match are written as literals.
+		 */
+		if (length > MF_LIMIT) {
+			Arrays.fill(table, -1);
+			int mfLimit = end - MF_LIMIT;
+			int matchLimit = end - LAST_LITERALS;
+			int ip = srcOffset;
+			int misses = 1 << SKIP_TRIGGER;
+			while (ip < mfLimit) {
+				int sequence = readInt(src, ip);
+				int h = hash(sequence);
+				int ref = table[h];
+				table[h] = ip;
+				if (ref < 0 || ip - ref > MAX_DISTANCE || readInt(src, ref) != sequence) {
+					ip += misses++ >>> SKIP_TRIGGER;
+					continue;
+				}
+				misses = 1 << SKIP_TRIGGER;
+				
+				/*
+				 * Matches are extended backwards over literals that also match, and then
+				 * forwards as far as they go.
+				 */
+				while (ip > anchor && ref > srcOffset && src[ip - 1] == src[ref - 1]) {
+					ip--;
+					ref--;
+				}
+				int matchLength = MIN_MATCH;
+				while (ip + matchLength < matchLimit && src[ip + matchLength] == src[ref + matchLength]) matchLength++;
+				
+				op = writeLiterals(dst, op, src, anchor, ip - anchor, matchLength - MIN_MATCH);
+				dst[op++] = (byte) (ip - ref);
+				dst[op++] = (byte) (ip - ref >>> 8);
+				op = writeCount(dst, op, matchLength - MIN_MATCH);
+				ip += matchLength;
+				anchor = ip;
+				if (ip < mfLimit) table[hash(readInt(src, ip - 2))] = ip - 2;
+			}
+		}
+		return writeLiterals(dst, op, src, anchor, end - anchor, 0) - dstOffset;
+	}
+	
+	/**
+	 * <p>Decompresses a block.</p>
+	 * 
+	 * @param src The array that holds the block.
+	 * @param offset The offset of the block.
+	 * @param length The size of the block.
+	 * @param dst The array to write the bytes to.
+	 * @param dstOffset The offset to write the bytes at.
+	 * @param decompressedLength The number of bytes that the block decompresses to.
+	 * @throws IOException if the block is malformed, or does not decompress to exactly the
+	 * given number of bytes.
+	 */
+	static void decompress(byte[] src, int offset, int length, byte[] dst, int dstOffset, int decompressedLength) throws IOException {
+		int ip = offset;
+		int end = offset + length;
+		int op = dstOffset;
+		int opEnd = dstOffset + decompressedLength;
+		while (true) {
+			if (ip >= end) throw malformed();
+			int token = src[ip++] & 0xFF;
+			
+			int literals = token >>> 4;
+			if (literals == 15) {
+				int b;
+				do {
+					if (ip >= end) throw malformed();
+					b = src[ip++] & 0xFF;
+					literals += b;
+				} while (b == 255 && literals <= decompressedLength);
+			}
+			if (literals > end - ip || literals > opEnd - op) throw malformed();
+			System.arraycopy(src, ip, dst, op, literals);
+			ip += literals;
+			op += literals;
+			if (ip == end) break;
+			
+			if (end - ip < 2) throw malformed();
+			int distance = src[ip] & 0xFF | (src[ip + 1] & 0xFF) << 8;
+			ip += 2;
+			if (distance == 0 || distance > op - dstOffset) throw malformed();
+			int matchLength = token & 0x0F;
+			if (matchLength == 15) {
+				int b;
+				do {
+					if (ip >= end) throw malformed();
+					b = src[ip++] & 0xFF;
+					matchLength += b;
+				} while (b == 255 && matchLength <= decompressedLength);
+			}
+			matchLength += MIN_MATCH;
+			if (matchLength > opEnd - op) throw malformed();
+			
+			/*
+			 * A match may overlap the bytes it produces, which repeats them, so it is only
+			 * copied in one go if it does not.
+			 */
+			int ref = op - distance;
+			if (distance >= matchLength) {
+				System.arraycopy(dst, ref, dst, op, matchLength);
+			} else {
+				for (int i = 0; i < matchLength; i++) dst[op + i] = dst[ref + i];
+			}
+			op += matchLength;
+		}
+		if (op != opEnd) throw malformed();
+	}
+	
+	/**
+	 * <p>Writes the token of a sequence, followed by its literals.</p>
+	 * 
+	 * @param dst The array to write to.
+	 * @param op The offset to write at.
+	 * @param src The array that holds the literals.
+	 * @param start The offset of the literals.
+	 * @param count The number of literals.
+	 * @param matchCount The length of the match of the sequence, minus four.
+	 * @return The offset after the literals.
+	 */
+	private static int writeLiterals(byte[] dst, int op, byte[] src, int start, int count, int matchCount) {
+		dst[op++] = (byte) (Math.min(count, 15) << 4 | Math.min(matchCount, 15));
+		op = writeCount(dst, op, count);
+		System.arraycopy(src, start, dst, op, count);
+		return op + count;
+	}
+	
+	/**
+	 * <p>Writes the extra bytes of a count that does not fit into its half of the token.</p>
+	 * 
+	 * @param dst The array to write to.
+	 * @param op The offset to write at.
+	 * @param count The count.
+	 * @return The offset after the extra bytes.
+	 */
+	private static int writeCount(byte[] dst, int op, int count) {
+		if (count < 15) return op;
+		count -= 15;
+		while (count >= 255) {
+			dst[op++] = (byte) 255;
+			count -= 255;
+		}
+		dst[op++] = (byte) count;
+		return op;
+	}
+	
+	private static int readInt(byte[] b, int i) {
+		return b[i] & 0xFF | (b[i + 1] & 0xFF) << 8 | (b[i + 2] & 0xFF) << 16 | b[i + 3] << 24;
+	}
+	
+	private static int hash(int sequence) {
+		return sequence * -1640531535 >>> 32 - HASH_LOG;
+	}
+	
+	private static ZipException malformed() {
+		return new ZipException("Malformed LZ4 block");
+	}
+}
@@ -0,0 +1,37 @@
+package info.varden.nbtserial;
+
+import java.util.Map;
+
+/**
+ * <p>The ways a {@link Map} field can be laid out in an NBT data structure. The layout is
+ * chosen per field through {@link NBTSerialize#mapLayout()}. When deserializing, the layout
+ * is detected from the data itself, so a field can be read no matter which layout it was
+ * written with, and changing the layout of a field does not break existing data.</p>
+ * <p><b>Note:</b> The layout only applies to the map in the annotated field itself. Maps that
+ * are nested within other maps or collections always use {@link #ENTRIES}.</p>
+ * 
+ * @author Marius
+ */
+public enum MapLayout {
+	/**
+	 * <p>A list tag of compound tags, one for each entry, holding the key and value of the
+	 * entry in child tags named "k" and "v". This is the default, and the only layout that
+	 * preserves entries with {@code null} keys or values.</p>
+	 */
+	ENTRIES,
+	
+	/**
+	 * <p>A single compound tag, with one child tag for each entry, named after the key of the
+	 * entry. This is by far the most compact layout, but it can only be used for maps whose
+	 * declared key type is {@link String}; other maps use {@link #LISTS} instead. Entries with
+	 * {@code null} keys or values are not serialized.</p>
+	 */
+	COMPOUND,
+	
+	/**
+	 * <p>A list tag holding two list tags of the same length: one with all keys, and one with
+	 * all values, in the same order. Entries with {@code null} keys or values are not
+	 * serialized.</p>
+	 */
+	LISTS
+}
@@ -0,0 +1,221 @@
+package info.varden.nbtserial;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.io.UTFDataFormatException;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * <p>Encodes and decodes strings in the modified UTF-8 form that NBT uses for tag names and
+ * string tags, i.e. the form of {@link DataOutput#writeUTF(String)}: the length in bytes as
+ * an unsigned short, followed by the encoded characters.</p>
+ * <p>Almost all tag names and most string values are plain ASCII, which encodes to one byte
+ * per character. Strings like these are copied straight to and from a reusable per-thread
+ * buffer, without the intermediate arrays that {@code writeUTF()} and {@code readUTF()}
+ * allocate for streams other than {@link java.io.DataOutputStream} and
+ * {@link java.io.DataInputStream}. Tag names that are known up front are
+ * {@link #encode(String) encoded} once, and incoming names can be read into the
+ * {@link #scratch(int) buffer} and matched against them without creating a string at
+ * all.</p>
+ * 
+ * @author Marius
+ */
+final class ModifiedUtf8 {
+	/**
+	 * The largest number of bytes that an encoded string may have, excluding its length.
+	 */
+	static final int MAX_LENGTH = 65535;
+	
+	/**
+	 * The buffer of each thread that strings are encoded into and decoded from.
+	 */
+	private static final ThreadLocal<byte[]> SCRATCH = new ThreadLocal<byte[]>() {
+		@Override
+		protected byte[] initialValue() {
+			return new byte[256];
+		}
+	};
+	
+	private ModifiedUtf8() {}
+	
+	/**
+	 * <p>Gets the buffer of the current thread, making sure that it holds at least the given
+	 * number of bytes. The buffer is shared by all strings read and written on the thread,
+	 * so its contents are only valid until the next call.</p>
+	 * 
+	 * @param length The number of bytes needed.
+	 * @return The buffer.
+	 */
+	static byte[] scratch(int length) {
+		byte[] b = SCRATCH.get();
+		if (b.length < length) {
+			b = new byte[Math.max(length, b.length * 2)];
+			SCRATCH.set(b);
+		}
+		return b;
+	}
+	
+	/**
+	 * <p>Encodes the given string once, for writing it over and over.</p>
+	 * 
+	 * @param s The string to encode.
+	 * @return The bytes that {@link DataOutput#writeUTF(String)} would write for the string,
+	 * including the length, or {@code null} if the string is too long to be written.
+	 */
+	static byte[] encode(String s) {
+		long length = 0;
+		for (int i = 0; i < s.length(); i++) {
+			char c = s.charAt(i);
+			length += c >= 0x0001 && c <= 0x007F ? 1 : c <= 0x07FF ? 2 : 3;
+		}
+		if (length > MAX_LENGTH) return null;
+		
+		byte[] b = new byte[(int) length + 2];
+		b[0] = (byte) (length >>> 8);
+		b[1] = (byte) length;
+		int n = 2;
+		for (int i = 0; i < s.length(); i++) {
+			char c = s.charAt(i);
+			if (c >= 0x0001 && c <= 0x007F) {
+				b[n++] = (byte) c;
+			} else if (c <= 0x07FF) {
+				b[n++] = (byte) (0xC0 | c >> 6 & 0x1F);
+				b[n++] = (byte) (0x80 | c & 0x3F);
+			} else {
+				b[n++] = (byte) (0xE0 | c >> 12 & 0x0F);
+				b[n++] = (byte) (0x80 | c >> 6 & 0x3F);
+				b[n++] = (byte) (0x80 | c & 0x3F);
+			}
+		}
+		return b;
+	}
+	
+	/**
+	 * <p>Writes the given string, exactly like {@link DataOutput#writeUTF(String)} does.</p>
+	 * 
+	 * @param s The string to write.
+	 * @param out The stream to write to.
+	 * @throws IOException if writing to the stream fails, or if the string is too long.
+	 */
+	static void write(String s, DataOutput out) throws IOException {
+		int length = s.length();
+		if (length <= MAX_LENGTH) {
+			byte[] b = scratch(length + 2);
+			int i = 0;
+			while (i < length) {
+				char c = s.charAt(i);
+				if (c == 0 || c > 0x007F) break;
+				b[2 + i++] = (byte) c;
+			}
+			if (i == length) {
+				b[0] = (byte) (length >>> 8);
+				b[1] = (byte) length;
+				out.write(b, 0, length + 2);
+				return;
+			}
+		}
+		/*
+		 * Strings with characters outside of ASCII are rare in NBT data, so they are left to
+		 * the stream.
+		 */
+		out.writeUTF(s);
+	}
+	
+	/**
+	 * <p>Reads a string, exactly like {@link DataInput#readUTF()} does.</p>
+	 * 
+	 * @param in The stream to read from.
+	 * @return The string.
+	 * @throws IOException if reading from the stream fails, or if the bytes read are not
+	 * valid modified UTF-8.
+	 */
+	static String read(DataInput in) throws IOException {
+		int length = in.readUnsignedShort();
+		byte[] b = scratch(length);
+		in.readFully(b, 0, length);
+		return decode(b, length);
+	}
+	
+	/**
+	 * <p>Decodes a string from the given bytes.</p>
+	 * 
+	 * @param b The buffer that holds the bytes, excluding the length.
+	 * @param length The number of bytes.
+	 * @return The string.
+	 * @throws UTFDataFormatException if the bytes are not valid modified UTF-8.
+	 */
+	static String decode(byte[] b, int length) throws UTFDataFormatException {
+		/*
+		 * ASCII bytes are the characters themselves, which is exactly what ISO-8859-1
+		 * decoding copies.
+		 */
+		int i = 0;
+		while (i < length && b[i] >= 0) i++;
+		if (i == length) return new String(b, 0, length, StandardCharsets.ISO_8859_1);
+		
+		char[] chars = new char[length];
+		for (int j = 0; j < i; j++) chars[j] = (char) b[j];
+		int n = i;
+		while (i < length) {
+			int c = b[i] & 0xFF;
+			switch (c >> 4) {
+			case 0: case 1: case 2: case 3: case 4: case 5: case 6: case 7:
+				chars[n++] = (char) c;
+				i++;
+				break;
+			case 12: case 13: {
+				if (i + 2 > length) throw new UTFDataFormatException("malformed input: partial character at end");
+				int c2 = b[i + 1];
+				if ((c2 & 0xC0) != 0x80) throw new UTFDataFormatException("malformed input around byte " + (i + 1));
+				chars[n++] = (char) ((c & 0x1F) << 6 | c2 & 0x3F);
+				i += 2;
+				break;
+			}
+			case 14: {
+				if (i + 3 > length) throw new UTFDataFormatException("malformed input: partial character at end");
+				int c2 = b[i + 1];
+				int c3 = b[i + 2];
+				if ((c2 & 0xC0) != 0x80 || (c3 & 0xC0) != 0x80) throw new UTFDataFormatException("malformed input around byte " + (i + 2));
+				chars[n++] = (char) ((c & 0x0F) << 12 | (c2 & 0x3F) << 6 | c3 & 0x3F);
+				i += 3;
+				break;
+			}
+			default:
+				throw new UTFDataFormatException("malformed input around byte " + i);
+			}
+		}
+		return new String(chars, 0, n);
+	}
+	
+	/**
+	 * <p>Checks whether the given bytes are the encoding of a string that was
+	 * {@link #encode(String) encoded} before.</p>
+	 * 
+	 * @param b The buffer that holds the bytes, excluding the length.
+	 * @param length The number of bytes.
+	 * @param encoded The encoded string, including the length.
+	 * @return Whether they are the same.
+	 */
+	static boolean matches(byte[] b, int length, byte[] encoded) {
+		if (encoded.length != length + 2) return false;
+		for (int i = 0; i < length; i++) {
+			if (b[i] != encoded[i + 2]) return false;
+		}
+		return true;
+	}
+	
+	/**
+	 * <p>Computes a hash of the given bytes, to look up encoded strings by.</p>
+	 * 
+	 * @param b The buffer that holds the bytes.
+	 * @param offset The offset of the first byte.
+	 * @param length The number of bytes.
+	 * @return The hash.
+	 */
+	static int hash(byte[] b, int offset, int length) {
+		int h = 0;
+		for (int i = offset; i < offset + length; i++) h = 31 * h + b[i];
+		return h ^ h >>> 16;
+	}
+}
@@ -0,0 +1,181 @@
+package info.varden.nbtserial;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * <p>Runs a job over every item in a batch in parallel, for the batch methods of
+ * {@link NBTSerializer}. The batch is cut into chunks of consecutive items, which are claimed
+ * one by one by tasks running on an {@link Executor} and by the calling thread itself. The
+ * result of each item is stored at the position of the item, so the results are in the same
+ * order as the items no matter which thread processed them.</p>
+ * <p>Because the calling thread takes part in the work, a batch always completes, even if
+ * the executor is saturated, is the pool the caller itself is running on, or never runs the
+ * submitted tasks at all. Tasks that start after all chunks have been claimed simply return.
+ * </p>
+ * 
+ * @author Marius
+ */
+final class NBTBatch {
+	/**
+	 * The number of chunks to cut a batch into for each thread that may work on it. More
+	 * chunks than threads lets threads that finish early steal work from slower ones.
+	 */
+	private static final int CHUNKS_PER_THREAD = 4;
+	
+	private NBTBatch() {
+	}
+	
+	/**
+	 * <p>The work to perform on each item in a batch.</p>
+	 * 
+	 * @param <S> The type of the items.
+	 * @param <R> The type of the value produced for each item.
+	 */
+	abstract static class Job<S, R> {
+		/**
+		 * <p>Processes a single item.</p>
+		 * 
+		 * @param item The item.
+		 * @return The value produced for the item.
+		 * @throws Exception if processing the item fails. The exception is recorded in the
+		 * result of the item.
+		 */
+		abstract R process(S item) throws Exception;
+	}
+	
+	/**
+	 * <p>Processes every item in a batch and waits for all of them to finish.</p>
+	 * 
+	 * @param batch The items to process. They are copied before processing starts.
+	 * @param job The work to perform on each item.
+	 * @param executor The executor to run tasks on in addition to the calling thread.
+	 * @return The results of all items, in the same order as the items.
+	 */
+	static <S, R> List<BatchResult<R>> run(Collection<? extends S> batch, Job<S, R> job, Executor executor) {
+		if (executor == null) throw new NullPointerException("executor");
+		/*
+		 * Items are looked up by index from many threads, so they are copied into a list
+		 * that is random access and cannot change while the batch is running.
+		 */
+		List<S> items = new ArrayList<S>(batch);
+		int size = items.size();
+		@SuppressWarnings("unchecked")
+		BatchResult<R>[] results = (BatchResult<R>[]) new BatchResult<?>[size];
+		if (size == 0) return new ArrayList<BatchResult<R>>(0);
+		
+		/*
+		 * Cut the batch into chunks. The number of threads that may work on the batch is
+		 * only known for fork/join pools; for other executors, such as one that starts a
+		 * virtual thread per task, the number of processors is used instead, since that is
+		 * how many tasks can run at the same time anyway.
+		 */
+		int threads = executor instanceof ForkJoinPool ? ((ForkJoinPool) executor).getParallelism() : Runtime.getRuntime().availableProcessors();
+		int chunks = Math.min(size, Math.max(1, threads * CHUNKS_PER_THREAD));
+		Chunks<S, R> work = new Chunks<S, R>(items, job, results, chunks);
+		
+		/*
+		 * Submit one task less than there are threads, since the calling thread makes up for
+		 * the last one. A batch of a single chunk is processed by the calling thread alone.
+		 */
+		int tasks = Math.min(chunks, threads) - 1;
+		for (int i = 0; i < tasks; i++) {
+			executor.execute(work);
+		}
+		work.run();
+		work.await();
+		return Arrays.asList(results);
+	}
+	
+	/**
+	 * <p>The chunks of a batch, and the state shared between all threads working on them.</p>
+	 */
+	private static final class Chunks<S, R> implements Runnable {
+		private final List<S> items;
+		private final Job<S, R> job;
+		private final BatchResult<R>[] results;
+		private final int count;
+		/**
+		 * The index of the next chunk to be claimed.
+		 */
+		private final AtomicInteger next = new AtomicInteger();
+		/**
+		 * Counts down once for every chunk that has been processed.
+		 */
+		private final CountDownLatch done;
+		/**
+		 * The first error that escaped processing a chunk, such as an
+		 * {@link OutOfMemoryError}, to be rethrown on the calling thread.
+		 */
+		private final AtomicReference<Throwable> fatal = new AtomicReference<Throwable>();
+		
+		Chunks(List<S> items, Job<S, R> job, BatchResult<R>[] results, int count) {
+			this.items = items;
+			this.job = job;
+			this.results = results;
+			this.count = count;
+			this.done = new CountDownLatch(count);
+		}
+		
+		@Override
+		public void run() {
+			int chunk;
+			while ((chunk = this.next.getAndIncrement()) < this.count) {
+				/*
+				 * Chunks are as even as possible; their sizes differ by at most one item.
+				 */
+				int size = this.items.size();
+				int from = (int) ((long) size * chunk / this.count);
+				int to = (int) ((long) size * (chunk + 1) / this.count);
+				try {
+					for (int i = from; i < to; i++) {
+						try {
+							this.results[i] = BatchResult.success(i, this.job.process(this.items.get(i)));
+						} catch (Exception e) {
+							this.results[i] = BatchResult.failure(i, e);
+						}
+					}
+				} catch (Throwable t) {
+					this.fatal.compareAndSet(null, t);
+				} finally {
+					this.done.countDown();
+				}
+			}
+		}
+		
+		/**
+		 * <p>Waits for all chunks claimed by other threads to be processed. Interrupting the
+		 * calling thread does not abandon the batch, since other threads may still be
+		 * writing to its results; the interrupt status is restored once the batch is done.
+		 * </p>
+		 */
+		void await() {
+			boolean interrupted = false;
+			while (true) {
+				try {
+					this.done.await();
+					break;
+				} catch (InterruptedException e) {
+					interrupted = true;
+				}
+			}
+			if (interrupted) Thread.currentThread().interrupt();
+			
+			/*
+			 * The latch makes the results written by other threads visible to the calling
+			 * thread. Errors are rethrown as they are, rather than being recorded as the result
+			 * of an item, since they are not caused by the item itself.
+			 */
+			Throwable t = this.fatal.get();
+			if (t instanceof Error) throw (Error) t;
+			if (t != null) throw new RuntimeException(t);
+		}
+	}
+}
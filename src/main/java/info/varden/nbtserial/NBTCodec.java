@@ -0,0 +1,82 @@
+package info.varden.nbtserial;
+
+import net.minecraft.nbt.NBTBase;
+
+/**
+ * <p>Converts values of a given type to and from NBT tags. {@link NBTSerializer} picks a codec
+ * for each field and collection element from the {@link NBTCodecs} registry, which lets you add
+ * support for types that are not natively supported, such as {@link java.util.UUID} or enums,
+ * without touching the serializer itself.</p>
+ * 
+ * @author Marius
+ * @param <T> The type of values handled by this codec.
+ */
+public abstract class NBTCodec<T> {
+	/**
+	 * <p>Gets the ID of the NBT tag type that this codec produces, i.e. one of the
+	 * {@code NBT_TAG_*} constants in {@link NBTSerializer}.</p>
+	 * 
+	 * @return An NBT tag ID.
+	 */
+	public abstract int getTagId();
+	
+	/**
+	 * <p>Serializes the given value into an NBT tag.</p>
+	 * 
+	 * @param value The value to serialize. This is never {@code null}.
+	 * @return The given value represented as an NBT tag of the type given by
+	 * {@link #getTagId()}.
+	 * @throws IllegalAccessException if a Field object in a serializable class is enforcing
+	 * Java language access control and the underlying field is inaccessible.
+	 * @throws UnserializableClassException if the value, or any value nested within it, cannot
+	 * be serialized.
+	 */
+	public abstract NBTBase toTag(T value) throws IllegalAccessException, UnserializableClassException;
+	
+	/**
+	 * <p>Deserializes the given NBT tag into a value.</p>
+	 * 
+	 * @param tag The NBT tag to deserialize.
+	 * @param type The class that should be instantiated. This is the class the codec was
+	 * registered for, or a subclass of it if the codec was registered with
+	 * {@link NBTCodecs#registerHierarchy(Class, NBTCodec)}.
+	 * @return The given NBT tag represented as a value of the given class.
+	 * @throws IllegalAccessException if a Field object in a serializable class is enforcing
+	 * Java language access control and the underlying field is inaccessible, or if the
+	 * constructor for a serializable class is inaccessible.
+	 * @throws InstantiationException if the value, or any value nested within it, cannot be
+	 * instantiated.
+	 * @throws UnserializableClassException if the value, or any value nested within it, cannot
+	 * be deserialized.
+	 */
+	public abstract T fromTag(NBTBase tag, Class<? extends T> type) throws IllegalAccessException, InstantiationException, UnserializableClassException;
+	
+	/**
+	 * <p>Serializes a value whose class has already been matched against this codec.</p>
+	 * 
+	 * @param value The value to serialize.
+	 * @return The given value represented as an NBT tag.
+	 * @throws IllegalAccessException see {@link #toTag(Object)}.
+	 * @throws UnserializableClassException see {@link #toTag(Object)}.
+	 */
+	@SuppressWarnings("unchecked")
+	NBTBase encode(Object value) throws IllegalAccessException, UnserializableClassException {
+		return toTag((T) value);
+	}
+	
+	/**
+	 * <p>Deserializes an NBT tag into a value of the given resolved type. Codecs for generic
+	 * containers override this to make use of the resolved types of their elements.</p>
+	 * 
+	 * @param tag The NBT tag to deserialize.
+	 * @param type The resolved type of the value.
+	 * @return The given NBT tag represented as a value of the given type.
+	 * @throws IllegalAccessException see {@link #fromTag(NBTBase, Class)}.
+	 * @throws InstantiationException see {@link #fromTag(NBTBase, Class)}.
+	 * @throws UnserializableClassException see {@link #fromTag(NBTBase, Class)}.
+	 */
+	@SuppressWarnings("unchecked")
+	Object decode(NBTBase tag, ResolvedType type) throws IllegalAccessException, InstantiationException, UnserializableClassException {
+		return fromTag(tag, (Class<? extends T>) type.raw);
+	}
+}
@@ -0,0 +1,179 @@
+package info.varden.nbtserial;
+
+import java.nio.ByteBuffer;
+import java.nio.IntBuffer;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+/**
+ * <p>The registry of {@link NBTCodec}s used by {@link NBTSerializer}. All natively supported
+ * types are registered here by default, and additional codecs can be registered for your own
+ * types.</p>
+ * <p>Codecs are looked up by exact class first. If there is no codec for the exact class, the
+ * codecs that were registered for a whole class hierarchy are tried, most recently registered
+ * first. The result of this lookup is cached per class, so dispatching a value costs a single
+ * lookup.</p>
+ * <p>Registering a codec drops the cached lookups, as well as the cached serialization plans
+ * and generated serializers of all classes, so that it is used from then on. Since
+ * rebuilding these is not free, and since values serialized before the codec was
+ * registered may not be readable by it, codecs should still be registered during startup,
+ * before any class that uses the registered types is serialized or deserialized.</p>
+ * 
+ * @author Marius
+ */
+public final class NBTCodecs {
+	/**
+	 * Codecs registered for exact classes.
+	 */
+	private static final Map<Class<?>, NBTCodec<?>> EXACT = new ConcurrentHashMap<Class<?>, NBTCodec<?>>();
+	/**
+	 * Codecs registered for class hierarchies, in lookup order.
+	 */
+	private static final List<Hierarchy> HIERARCHIES = new CopyOnWriteArrayList<Hierarchy>();
+	/**
+	 * The resolved codec for each class that has been looked up, or {@code null} if there is
+	 * none. Replaced whenever a codec is registered, as the codecs resolved so far may no
+	 * longer be the ones that a lookup would choose.
+	 */
+	private static volatile ClassValue<NBTCodec<?>> resolved = new Resolved();
+	
+	static {
+		/*
+		 * Primitives and their wrappers share their codecs. The primitive classes are only
+		 * registered so that tag IDs can be looked up for them; primitive fields themselves
+		 * are transferred through their own accessors.
+		 */
+		registerBuiltin(BuiltinCodecs.BYTE,             byte.class,     Byte.class);
+		registerBuiltin(BuiltinCodecs.BOOLEAN,          boolean.class,  Boolean.class);
+		registerBuiltin(BuiltinCodecs.SHORT,            short.class,    Short.class);
+		registerBuiltin(BuiltinCodecs.INT,              int.class,      Integer.class);
+		registerBuiltin(BuiltinCodecs.LONG,             long.class,     Long.class);
+		registerBuiltin(BuiltinCodecs.FLOAT,            float.class,    Float.class);
+		registerBuiltin(BuiltinCodecs.DOUBLE,           double.class,   Double.class);
+		registerBuiltin(BuiltinCodecs.BYTE_ARRAY,       byte[].class);
+		registerBuiltin(BuiltinCodecs.BOXED_BYTE_ARRAY, Byte[].class);
+		registerBuiltin(BuiltinCodecs.STRING,           String.class);
+		registerBuiltin(BuiltinCodecs.INT_ARRAY,        int[].class);
+		registerBuiltin(BuiltinCodecs.BOXED_INT_ARRAY,  Integer[].class);
+		
+		/*
+		 * NBT has no array tags for the remaining primitives, so arrays of those are packed
+		 * into byte arrays.
+		 */
+		registerBuiltin(BuiltinCodecs.BOOLEAN_ARRAY,        boolean[].class);
+		registerBuiltin(BuiltinCodecs.SHORT_ARRAY,          short[].class);
+		registerBuiltin(BuiltinCodecs.LONG_ARRAY,           long[].class);
+		registerBuiltin(BuiltinCodecs.FLOAT_ARRAY,          float[].class);
+		registerBuiltin(BuiltinCodecs.DOUBLE_ARRAY,         double[].class);
+		registerBuiltin(BuiltinCodecs.BOXED_BOOLEAN_ARRAY,  Boolean[].class);
+		registerBuiltin(BuiltinCodecs.BOXED_SHORT_ARRAY,    Short[].class);
+		registerBuiltin(BuiltinCodecs.BOXED_LONG_ARRAY,     Long[].class);
+		registerBuiltin(BuiltinCodecs.BOXED_FLOAT_ARRAY,    Float[].class);
+		registerBuiltin(BuiltinCodecs.BOXED_DOUBLE_ARRAY,   Double[].class);
+		
+		/*
+		 * Lists, maps and other serializable classes can be subclassed, and buffers are only
+		 * ever instances of subclasses, so they are registered as hierarchies. The order
+		 * matters if a class implements more than one of these interfaces.
+		 */
+		HIERARCHIES.add(new Hierarchy(INBTSerializable.class,   BuiltinCodecs.SERIALIZABLE));
+		HIERARCHIES.add(new Hierarchy(Collection.class,         BuiltinCodecs.COLLECTION));
+		HIERARCHIES.add(new Hierarchy(Map.Entry.class,          BuiltinCodecs.ENTRY));
+		HIERARCHIES.add(new Hierarchy(Map.class,                BuiltinCodecs.MAP));
+		HIERARCHIES.add(new Hierarchy(ByteBuffer.class,         BuiltinCodecs.BYTE_BUFFER));
+		HIERARCHIES.add(new Hierarchy(IntBuffer.class,          BuiltinCodecs.INT_BUFFER));
+	}
+	
+	private NBTCodecs() {}
+	
+	/**
+	 * <p>Registers a codec for values of exactly the given class. This replaces any codec that
+	 * was previously registered for the class, including built-in ones.</p>
+	 * 
+	 * @param type The class of values handled by the codec.
+	 * @param codec The codec to register.
+	 */
+	public static synchronized <T> void register(Class<T> type, NBTCodec<T> codec) {
+		if (type == null || codec == null) throw new IllegalArgumentException("Type and codec must not be null");
+		EXACT.put(type, codec);
+		invalidate();
+	}
+	
+	/**
+	 * <p>Registers a codec for values of the given class and all of its subclasses, e.g.
+	 * {@code Enum.class} for all enums. Codecs for exact classes take precedence over this, and
+	 * more recently registered hierarchies take precedence over older ones, including the
+	 * built-in ones.</p>
+	 * 
+	 * @param type The superclass or interface of values handled by the codec.
+	 * @param codec The codec to register. Its {@link NBTCodec#fromTag} method
+	 * is passed the subclass that should be instantiated.
+	 */
+	public static synchronized <T> void registerHierarchy(Class<T> type, NBTCodec<T> codec) {
+		if (type == null || codec == null) throw new IllegalArgumentException("Type and codec must not be null");
+		HIERARCHIES.add(0, new Hierarchy(type, codec));
+		invalidate();
+	}
+	
+	/**
+	 * <p>Gets the codec that handles values of the given class.</p>
+	 * 
+	 * @param type The class to look up.
+	 * @return The codec for the class, or {@code null} if the class cannot be serialized.
+	 */
+	public static NBTCodec<?> get(Class<?> type) {
+		return resolved.get(type);
+	}
+	
+	/**
+	 * <p>Drops the codecs resolved so far, and the plans and generated serializers of classes
+	 * that depend on them. Those that are in use by a call that is already running are still
+	 * used until it returns.</p>
+	 */
+	private static void invalidate() {
+		resolved = new Resolved();
+		ClassPlan.invalidate();
+		GeneratedCodec.invalidate();
+	}
+	
+	/**
+	 * <p>Registers a built-in codec for the given classes.</p>
+	 * 
+	 * @param codec The codec to register.
+	 * @param types The classes of values handled by the codec.
+	 */
+	private static void registerBuiltin(NBTCodec<?> codec, Class<?>... types) {
+		for (Class<?> type : types) EXACT.put(type, codec);
+	}
+	
+	/**
+	 * <p>Resolves the codec of a class from the registered codecs.</p>
+	 */
+	private static final class Resolved extends ClassValue<NBTCodec<?>> {
+		@Override
+		protected NBTCodec<?> computeValue(Class<?> type) {
+			NBTCodec<?> codec = EXACT.get(type);
+			if (codec != null) return codec;
+			for (Hierarchy h : HIERARCHIES) {
+				if (h.type.isAssignableFrom(type)) return h.codec;
+			}
+			return null;
+		}
+	}
+	
+	/**
+	 * <p>A codec that is registered for a class and all of its subclasses.</p>
+	 */
+	private static final class Hierarchy {
+		final Class<?> type;
+		final NBTCodec<?> codec;
+		
+		Hierarchy(Class<?> type, NBTCodec<?> codec) {
+			this.type = type;
+			this.codec = codec;
+		}
+	}
+}
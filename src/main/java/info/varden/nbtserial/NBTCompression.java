@@ -0,0 +1,40 @@
+package info.varden.nbtserial;
+
+/**
+ * <p>The compression formats that an {@link NBTPipeline} can write NBT data in. Data has to
+ * be read back with a pipeline of the same format.</p>
+ * 
+ * @author Marius
+ */
+public enum NBTCompression {
+	/**
+	 * <p>No compression; the binary NBT format as it is. This is the same format as that of
+	 * {@link NBTSerializer#writeTo} and
+	 * {@link net.minecraft.nbt.CompressedStreamTools#write}.</p>
+	 */
+	NONE,
+	
+	/**
+	 * <p>The GZIP format, which Minecraft uses for its NBT files. This is the same format as
+	 * that of {@link net.minecraft.nbt.CompressedStreamTools#writeCompressed}, and data can be
+	 * exchanged with it either way.</p>
+	 */
+	GZIP,
+	
+	/**
+	 * <p>The zlib format, i.e. DEFLATE compressed data with a two-byte header and an Adler-32
+	 * checksum. It compresses exactly as well as {@link #GZIP}, with a smaller header and a
+	 * cheaper checksum.</p>
+	 */
+	DEFLATE,
+	
+	/**
+	 * <p>The LZ4 block format, preceded by the uncompressed size as a big-endian int. LZ4
+	 * compresses less than DEFLATE does, but is many times faster both ways, which makes it
+	 * the better choice for data that is sent over a fast network or kept in memory. It is
+	 * implemented in pure Java, so no native library is needed. Unlike the other formats, it
+	 * has no checksum, so corruption is only detected if it breaks the structure of the
+	 * data.</p>
+	 */
+	LZ4
+}
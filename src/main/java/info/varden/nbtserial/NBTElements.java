@@ -0,0 +1,448 @@
+package info.varden.nbtserial;
+
+import java.io.BufferedInputStream;
+import java.io.DataInput;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UncheckedIOException;
+import java.util.Collection;
+import java.util.Spliterator;
+import java.util.Spliterators;
+import java.util.function.Consumer;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
+
+import net.minecraft.nbt.NBTBase;
+import net.minecraft.nbt.NBTTagCompound;
+import net.minecraft.nbt.NBTTagList;
+
+/**
+ * <p>Reads the elements of a serialized {@link Collection} field lazily, one at a time, as a
+ * {@link Stream}. Deserializing a class decodes every element of every collection up front;
+ * for a list of a million entries that is only scanned once, streaming it instead keeps only
+ * the element at hand in memory:</p>
+ * <pre>
+ * Stream&lt;LogEntry&gt; entries = NBTElements.stream(Log.class, "entries", LogEntry.class, NBTMappedCompound.open(file));
+ * long warnings = entries.filter(e -&gt; e.level &gt;= WARN).count();
+ * </pre>
+ * <p>Elements are decoded exactly as {@link NBTSerializer#deserialize(Class, NBTTagCompound)}
+ * would decode them into the field, including subtypes. Decoding stops as soon as the
+ * stream is done with, so operations such as {@code findFirst()} and {@code limit()} do not
+ * decode the rest of the list. An iterator over the elements is available through
+ * {@link Stream#iterator()}.</p>
+ * <p>How far a stream can be split for parallel processing depends on where the list is
+ * read from:</p>
+ * <ul>
+ * <li>Lists in an {@link NBTTagCompound} split evenly by index, as the tags are already in
+ * memory.</li>
+ * <li>Lists in an {@link NBTMappedCompound} split evenly, too. Splitting a list skips over
+ * half of the remaining elements to find where the other half starts, without decoding
+ * them; lists of numbers are split without reading them at all.</li>
+ * <li>Lists read from a stream are read in order, and are split only by reading batches of
+ * elements ahead, so peak memory depends on the size of the batches rather than that of an
+ * element. They are best consumed by a sequential stream.</li>
+ * </ul>
+ * <p>Exceptions thrown while decoding an element are rethrown as an
+ * {@link UncheckedIOException} if they are {@link IOException}s, or as an
+ * {@link IllegalStateException} holding the exception otherwise. Fields that refer to
+ * other objects in an {@link NBTGraph object graph} cannot be streamed, as the objects they
+ * refer to may not have been read.</p>
+ * 
+ * @author Marius
+ */
+public final class NBTElements {
+	/**
+	 * Lists with fewer elements than this are not split any further.
+	 */
+	private static final int MIN_SPLIT = 64;
+	
+	private NBTElements() {
+	}
+	
+	/**
+	 * <p>Streams the elements of a collection field from a compound tag.</p>
+	 * 
+	 * @param definition The {@link INBTSerializable} class that declares the field.
+	 * @param field The name of the field.
+	 * @param elementType The class of the elements of the field.
+	 * @param data The compound tag that the class was serialized into.
+	 * @return The elements, in the order they were serialized in. The stream is empty if the
+	 * compound has no tag for the field.
+	 * @throws IllegalArgumentException if the class has no serialized collection field with
+	 * the given name, or if its elements are not of the given class.
+	 */
+	public static <T> Stream<T> stream(Class<? extends INBTSerializable> definition, String field, Class<T> elementType, NBTTagCompound data) {
+		FieldPlan fp = plan(definition, field, elementType);
+		NBTBase tag = data.getTag(fp.tagName);
+		if (tag == null) return Stream.empty();
+		if (!(tag instanceof NBTTagList)) return decodeWhole(fp, tag);
+		NBTTagList list = (NBTTagList) tag;
+		ResolvedType subtype = fp.readType.argument(0);
+		return StreamSupport.stream(new TagSpliterator<T>(list, 0, list.tagCount(), codec(subtype), subtype), false);
+	}
+	
+	/**
+	 * <p>Streams the elements of a collection field from a mapped compound tag. The elements
+	 * are read from the buffer of the compound as the stream advances.</p>
+	 * 
+	 * @param definition The {@link INBTSerializable} class that declares the field.
+	 * @param field The name of the field.
+	 * @param elementType The class of the elements of the field.
+	 * @param data The mapped compound tag that the class was serialized into.
+	 * @return The elements, in the order they were serialized in. The stream is empty if the
+	 * compound has no tag for the field.
+	 * @throws IOException if the compound is malformed.
+	 * @throws IllegalArgumentException if the class has no serialized collection field with
+	 * the given name, or if its elements are not of the given class.
+	 */
+	public static <T> Stream<T> stream(Class<? extends INBTSerializable> definition, String field, Class<T> elementType, NBTMappedCompound data) throws IOException {
+		FieldPlan fp = plan(definition, field, elementType);
+		NBTMappedCompound.Tag tag = data.find(fp.tagName);
+		if (tag == null) return Stream.empty();
+		BufferInput in = data.input(tag);
+		if (tag.id != NBTSerializer.NBT_TAG_LIST) return decodeWhole(fp, tag.id, in);
+		int elementId = in.readByte();
+		int count = Math.max(in.readInt(), 0);
+		ResolvedType subtype = fp.readType.argument(0);
+		return StreamSupport.stream(new BufferSpliterator<T>(in, elementId, count, codec(subtype), subtype), false);
+	}
+	
+	/**
+	 * <p>Streams the elements of a collection field straight from a stream in the binary NBT
+	 * format, as written by {@link NBTSerializer#writeTo(INBTSerializable, java.io.DataOutput)}.
+	 * The tags of the other fields are skipped over up to the one of the field, and its
+	 * elements are read from the stream as the returned stream advances.</p>
+	 * <p>The input must not be read from by anything else until the returned stream is done
+	 * with. If the stream is not consumed to the end, the input is left in the middle of the
+	 * list. The input is not closed.</p>
+	 * 
+	 * @param definition The {@link INBTSerializable} class that declares the field.
+	 * @param field The name of the field.
+	 * @param elementType The class of the elements of the field.
+	 * @param in The input to read the serialized class from.
+	 * @return The elements, in the order they were serialized in. The stream is empty if the
+	 * compound has no tag for the field.
+	 * @throws IOException if reading from the input fails, or if it does not hold a valid
+	 * compound tag.
+	 * @throws IllegalArgumentException if the class has no serialized collection field with
+	 * the given name, or if its elements are not of the given class.
+	 */
+	public static <T> Stream<T> stream(Class<? extends INBTSerializable> definition, String field, Class<T> elementType, DataInput in) throws IOException {
+		FieldPlan fp = plan(definition, field, elementType);
+		int id = in.readByte();
+		if (id == NBTSerializer.NBT_TAG_END) return Stream.empty();
+		if (id != NBTSerializer.NBT_TAG_COMPOUND) throw new IOException("Root tag must be a compound tag, got tag of type " + id);
+		NBTReader.skipString(in);
+		
+		/*
+		 * The tags before the one of the field are skipped without decoding them. If the
+		 * field has no tag, this reads the whole compound.
+		 */
+		while ((id = in.readByte()) != NBTSerializer.NBT_TAG_END) {
+			String name = ModifiedUtf8.read(in);
+			if (!name.equals(fp.tagName)) {
+				NBTReader.skipPayload(id, in);
+				continue;
+			}
+			if (id != NBTSerializer.NBT_TAG_LIST) return decodeWhole(fp, id, in);
+			int elementId = in.readByte();
+			int count = Math.max(in.readInt(), 0);
+			ResolvedType subtype = fp.readType.argument(0);
+			return StreamSupport.stream(new InputSpliterator<T>(in, elementId, count, codec(subtype), subtype), false);
+		}
+		return Stream.empty();
+	}
+	
+	/**
+	 * <p>Streams the elements of a collection field straight from a stream in the binary NBT
+	 * format. See {@link #stream(Class, String, Class, DataInput)}.</p>
+	 * <p>Reads are buffered, so more bytes than the serialized class takes up may be consumed
+	 * from the stream.</p>
+	 * 
+	 * @param definition The {@link INBTSerializable} class that declares the field.
+	 * @param field The name of the field.
+	 * @param elementType The class of the elements of the field.
+	 * @param in The stream to read the serialized class from.
+	 * @return The elements, in the order they were serialized in.
+	 * @throws IOException if reading from the stream fails, or if it does not hold a valid
+	 * compound tag.
+	 * @throws IllegalArgumentException if the class has no serialized collection field with
+	 * the given name, or if its elements are not of the given class.
+	 */
+	public static <T> Stream<T> stream(Class<? extends INBTSerializable> definition, String field, Class<T> elementType, InputStream in) throws IOException {
+		return stream(definition, field, elementType, (DataInput) new DataInputStream(new BufferedInputStream(in)));
+	}
+	
+	/**
+	 * <p>Streams the elements of a collection field straight from a stream in the binary NBT
+	 * format. See {@link #stream(Class, String, Class, DataInput)}.</p>
+	 * <p>A {@link DataInputStream} is both a {@link DataInput} and an {@link InputStream};
+	 * it is read from directly, like any other {@link DataInput}.</p>
+	 * 
+	 * @param definition The {@link INBTSerializable} class that declares the field.
+	 * @param field The name of the field.
+	 * @param elementType The class of the elements of the field.
+	 * @param in The stream to read the serialized class from.
+	 * @return The elements, in the order they were serialized in.
+	 * @throws IOException if reading from the stream fails, or if it does not hold a valid
+	 * compound tag.
+	 * @throws IllegalArgumentException if the class has no serialized collection field with
+	 * the given name, or if its elements are not of the given class.
+	 */
+	public static <T> Stream<T> stream(Class<? extends INBTSerializable> definition, String field, Class<T> elementType, DataInputStream in) throws IOException {
+		return stream(definition, field, elementType, (DataInput) in);
+	}
+	
+	/**
+	 * <p>Looks up the plan of a collection field and checks the class of its elements.</p>
+	 * 
+	 * @param definition The class that declares the field.
+	 * @param field The name of the field.
+	 * @param elementType The class that the elements are expected to be of.
+	 * @return The plan of the field.
+	 * @throws IllegalArgumentException if there is no such field, or if its elements are not
+	 * of the expected class.
+	 */
+	private static FieldPlan plan(Class<? extends INBTSerializable> definition, String field, Class<?> elementType) {
+		for (FieldPlan fp : ClassPlan.of(definition).fields) {
+			if (!fp.field.getName().equals(field)) continue;
+			if (fp.readCodec != BuiltinCodecs.COLLECTION && !(fp.readCodec instanceof BuiltinCodecs.PackedCollectionCodec)) throw new IllegalArgumentException("Field " + field + " of " + definition.getName() + " is not a collection");
+			Class<?> declared = fp.readType.argument(0).raw;
+			if (!elementType.isAssignableFrom(declared)) throw new IllegalArgumentException("Elements of field " + field + " of " + definition.getName() + " are of " + declared.getName() + ", not " + elementType.getName());
+			return fp;
+		}
+		throw new IllegalArgumentException(definition.getName() + " has no serialized field " + field);
+	}
+	
+	/**
+	 * <p>Looks up the codec of the elements of a list, rethrowing the exception for an
+	 * unserializable class unchecked like the exceptions of the stream.</p>
+	 */
+	private static NBTCodec<?> codec(ResolvedType subtype) {
+		try {
+			return NBTSerializer.codecFor(subtype.raw);
+		} catch (UnserializableClassException e) {
+			throw new IllegalStateException(e);
+		}
+	}
+	
+	/**
+	 * <p>Decodes a field that was not written as a list, such as a packed collection of
+	 * numbers, as a whole, and streams the elements of the collection.</p>
+	 */
+	private static <T> Stream<T> decodeWhole(FieldPlan fp, NBTBase tag) {
+		try {
+			@SuppressWarnings("unchecked")
+			Collection<T> c = (Collection<T>) fp.readCodec.decode(tag, fp.readType);
+			return c.stream();
+		} catch (Exception e) {
+			throw unchecked(e);
+		}
+	}
+	
+	/**
+	 * <p>Reads a field that was not written as a list as a whole, and streams the elements of
+	 * the collection.</p>
+	 */
+	private static <T> Stream<T> decodeWhole(FieldPlan fp, int id, DataInput in) throws IOException {
+		try {
+			@SuppressWarnings("unchecked")
+			Collection<T> c = (Collection<T>) NBTReader.readValue(fp.readCodec, id, in, fp.readType);
+			return c.stream();
+		} catch (IOException e) {
+			throw e;
+		} catch (Exception e) {
+			throw unchecked(e);
+		}
+	}
+	
+	/**
+	 * <p>Wraps an exception thrown while decoding an element into an unchecked exception.</p>
+	 */
+	private static RuntimeException unchecked(Exception e) {
+		if (e instanceof RuntimeException) return (RuntimeException) e;
+		if (e instanceof IOException) return new UncheckedIOException((IOException) e);
+		return new IllegalStateException(e);
+	}
+	
+	/**
+	 * <p>Gets the size of the payload of every tag of the given type, if all of them have the
+	 * same size.</p>
+	 * 
+	 * @param id The NBT tag ID.
+	 * @return The size in bytes, or -1 if it varies.
+	 */
+	private static int fixedSize(int id) {
+		switch (id) {
+		case NBTSerializer.NBT_TAG_BYTE:    return 1;
+		case NBTSerializer.NBT_TAG_SHORT:   return 2;
+		case NBTSerializer.NBT_TAG_INT:     return 4;
+		case NBTSerializer.NBT_TAG_LONG:    return 8;
+		case NBTSerializer.NBT_TAG_FLOAT:   return 4;
+		case NBTSerializer.NBT_TAG_DOUBLE:  return 8;
+		default:                            return -1;
+		}
+	}
+	
+	/**
+	 * <p>Splits the elements of a list tag by index.</p>
+	 */
+	private static final class TagSpliterator<T> implements Spliterator<T> {
+		private final NBTTagList list;
+		private final NBTCodec<?> codec;
+		private final ResolvedType subtype;
+		private int index;
+		private final int end;
+		
+		TagSpliterator(NBTTagList list, int index, int end, NBTCodec<?> codec, ResolvedType subtype) {
+			this.list = list;
+			this.index = index;
+			this.end = end;
+			this.codec = codec;
+			this.subtype = subtype;
+		}
+		
+		@Override
+		@SuppressWarnings("unchecked")
+		public boolean tryAdvance(Consumer<? super T> action) {
+			if (this.index >= this.end) return false;
+			T element;
+			try {
+				element = (T) this.codec.decode(this.list.get(this.index++), this.subtype);
+			} catch (Exception e) {
+				throw unchecked(e);
+			}
+			action.accept(element);
+			return true;
+		}
+		
+		@Override
+		public Spliterator<T> trySplit() {
+			int half = (this.end - this.index) / 2;
+			if (half < MIN_SPLIT / 2) return null;
+			int start = this.index;
+			this.index += half;
+			return new TagSpliterator<T>(this.list, start, this.index, this.codec, this.subtype);
+		}
+		
+		@Override
+		public long estimateSize() {
+			return this.end - this.index;
+		}
+		
+		@Override
+		public int characteristics() {
+			return ORDERED | SIZED | SUBSIZED;
+		}
+	}
+	
+	/**
+	 * <p>Reads the elements of a list tag from the buffer of a mapped compound, and splits
+	 * them by skipping over the first half.</p>
+	 */
+	private static final class BufferSpliterator<T> implements Spliterator<T> {
+		private BufferInput in;
+		private final int elementId;
+		private final NBTCodec<?> codec;
+		private final ResolvedType subtype;
+		private int remaining;
+		
+		BufferSpliterator(BufferInput in, int elementId, int remaining, NBTCodec<?> codec, ResolvedType subtype) {
+			this.in = in;
+			this.elementId = elementId;
+			this.remaining = remaining;
+			this.codec = codec;
+			this.subtype = subtype;
+		}
+		
+		@Override
+		@SuppressWarnings("unchecked")
+		public boolean tryAdvance(Consumer<? super T> action) {
+			if (this.remaining <= 0) return false;
+			this.remaining--;
+			T element;
+			try {
+				element = (T) NBTReader.readValue(this.codec, this.elementId, this.in, this.subtype);
+			} catch (Exception e) {
+				throw unchecked(e);
+			}
+			action.accept(element);
+			return true;
+		}
+		
+		@Override
+		public Spliterator<T> trySplit() {
+			int half = this.remaining / 2;
+			if (half < MIN_SPLIT / 2) return null;
+			BufferInput prefix = this.in.at(this.in.position());
+			/*
+			 * Elements of variable size have to be skipped one by one to find where the
+			 * second half starts. Skipping reads no more than the headers of the elements,
+			 * and is still much cheaper than decoding them.
+			 */
+			int size = fixedSize(this.elementId);
+			if (size >= 0) {
+				this.in = this.in.at(this.in.position() + half * size);
+			} else {
+				try {
+					for (int i = 0; i < half; i++) NBTReader.skipPayload(this.elementId, this.in);
+				} catch (IOException e) {
+					throw new UncheckedIOException(e);
+				}
+			}
+			this.remaining -= half;
+			return new BufferSpliterator<T>(prefix, this.elementId, half, this.codec, this.subtype);
+		}
+		
+		@Override
+		public long estimateSize() {
+			return this.remaining;
+		}
+		
+		@Override
+		public int characteristics() {
+			return ORDERED | SIZED | SUBSIZED;
+		}
+	}
+	
+	/**
+	 * <p>Reads the elements of a list tag from a stream, in order.</p>
+	 */
+	private static final class InputSpliterator<T> extends Spliterators.AbstractSpliterator<T> {
+		private final DataInput in;
+		private final int elementId;
+		private final NBTCodec<?> codec;
+		private final ResolvedType subtype;
+		private int remaining;
+		
+		InputSpliterator(DataInput in, int elementId, int remaining, NBTCodec<?> codec, ResolvedType subtype) {
+			super(remaining, ORDERED | SIZED);
+			this.in = in;
+			this.elementId = elementId;
+			this.remaining = remaining;
+			this.codec = codec;
+			this.subtype = subtype;
+		}
+		
+		@Override
+		@SuppressWarnings("unchecked")
+		public boolean tryAdvance(Consumer<? super T> action) {
+			if (this.remaining <= 0) return false;
+			this.remaining--;
+			T element;
+			try {
+				element = (T) NBTReader.readValue(this.codec, this.elementId, this.in, this.subtype);
+			} catch (Exception e) {
+				throw unchecked(e);
+			}
+			action.accept(element);
+			return true;
+		}
+		
+		@Override
+		public long estimateSize() {
+			return this.remaining;
+		}
+	}
+}
@@ -0,0 +1,620 @@
+package info.varden.nbtserial;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInput;
+import java.io.DataInputStream;
+import java.io.DataOutput;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import net.minecraft.nbt.NBTBase;
+import net.minecraft.nbt.NBTTagCompound;
+import net.minecraft.nbt.NBTTagList;
+
+/**
+ * <p>Serializes graphs of {@link INBTSerializable} objects that share instances or refer back
+ * to each other. {@link NBTSerializer} writes an object once for every field, list element or
+ * map value that holds it, so a shared object is duplicated and no longer shared when it is
+ * read back, and a cycle, such as a child that holds its parent, recurses until the stack
+ * overflows. The methods of this class track the identity of every serializable object
+ * instead:</p>
+ * <pre>
+ * NBTTagCompound data = NBTGraph.serialize(world);
+ * World copy = NBTGraph.deserialize(World.class, data);
+ * </pre>
+ * <p>The first time an object is written, its compound tag gets an int tag named
+ * {@link NBTSerializer#ID_TAG} that numbers the object, counting from 0 in the order in which
+ * the objects are reached. Every later occurrence of the object is written as a compound tag
+ * that holds nothing but an int tag named {@link NBTSerializer#REFERENCE_TAG} with its
+ * number. When the graph is read back, each object is registered under its number before its
+ * fields are read, so every reference resolves to the same instance, even one to an object
+ * whose fields are still being read.</p>
+ * <p>Only {@link INBTSerializable} objects are tracked. Strings, boxed numbers, arrays,
+ * collections and maps are written by value as usual, but the serializable objects that they
+ * hold are tracked. {@link NBTSubtypes Subtypes} are supported, including at the root.</p>
+ * <p>The tables that map objects to their numbers and back belong to the thread and are
+ * reused from graph to graph, so tracking allocates next to nothing once they have grown to
+ * the size of a typical graph. Tables that have grown beyond 65,536 entries for an unusually
+ * large graph are not kept.</p>
+ * <p>{@link #writeTo(INBTSerializable, DataOutput)} writes the identity tags first in each
+ * compound, so that {@link #readFrom(Class, DataInput)} can register each object as soon as it
+ * reaches it. Such a stream can also be read into an NBT data structure and passed to
+ * {@link #deserialize(Class, NBTTagCompound)}. The tags of an NBT data structure are written
+ * in the order of its hash map, though, so data from {@link #serialize(INBTSerializable)}
+ * should be read back with {@link #deserialize(Class, NBTTagCompound)}, which resolves
+ * references in any order.</p>
+ * <p><b>Note:</b> Data written by this class must be read back by it. {@link NBTSerializer}
+ * ignores the identity tags, so it would read every reference as an empty object.</p>
+ * 
+ * @author Marius
+ */
+public final class NBTGraph {
+	/**
+	 * The largest number of objects that the tables of a thread keep room for between
+	 * graphs.
+	 */
+	private static final int RETAINED_ENTRIES = 1 << 16;
+	
+	/**
+	 * The session of each thread, whose tables are reused from graph to graph.
+	 */
+	private static final ThreadLocal<Session> SESSIONS = new ThreadLocal<Session>() {
+		@Override
+		protected Session initialValue() {
+			return new Session();
+		}
+	};
+	/**
+	 * The number of sessions that are open on all threads. While it is zero, which it is
+	 * whenever no graph is being written or read, the serializer does not look up the
+	 * session of the current thread at all.
+	 */
+	private static final AtomicInteger OPEN = new AtomicInteger();
+	
+	private NBTGraph() {}
+	
+	/**
+	 * <p>Serializes the given {@link INBTSerializable} instance and all objects that it
+	 * refers to, directly or indirectly, to an NBT data structure, writing each object only
+	 * once. See {@link NBTSerializer#serialize(INBTSerializable)}.</p>
+	 * 
+	 * @param object An {@link INBTSerializable} instance.
+	 * @return The given instance represented as a serialized NBT data structure.
+	 * @throws IllegalAccessException if a Field object in a serializable class is enforcing
+	 * Java language access control and the underlying field is inaccessible.
+	 * @throws UnserializableClassException if an attempt is made to serialize a class that is
+	 * not natively supported by the serializer and does not implement INBTSerializable.
+	 */
+	public static <T extends INBTSerializable> NBTTagCompound serialize(T object) throws IllegalAccessException, UnserializableClassException {
+		Session graph = open();
+		try {
+			return encode(object, NBTSubtypes.getId(object.getClass()));
+		} finally {
+			close(graph);
+		}
+	}
+	
+	/**
+	 * <p>Deserializes an NBT data structure that was written by
+	 * {@link #serialize(INBTSerializable)} or {@link #writeTo(INBTSerializable, DataOutput)},
+	 * restoring every object that was shared or referred back to as a single instance. See
+	 * {@link NBTSerializer#deserialize(Class, NBTTagCompound)}.</p>
+	 * 
+	 * @param definition The {@link INBTSerializable} class structure to use for
+	 * deserialization.
+	 * @param data The NBT data structure to deserialize.
+	 * @return A deserialized instance of the given class definition.
+	 * @throws IllegalAccessException see {@link NBTSerializer#deserialize(Class, NBTTagCompound)}.
+	 * @throws InstantiationException see {@link NBTSerializer#deserialize(Class, NBTTagCompound)}.
+	 * @throws UnserializableClassException see
+	 * {@link NBTSerializer#deserialize(Class, NBTTagCompound)}.
+	 * @throws IllegalArgumentException if the data refers to an object that it does not hold,
+	 * or to one that is not of the type it is read as.
+	 */
+	public static <T extends INBTSerializable> T deserialize(Class<T> definition, NBTTagCompound data) throws IllegalAccessException, InstantiationException, UnserializableClassException {
+		Session graph = open();
+		try {
+			graph.unindexed.add(data);
+			return definition.cast(decode(data, definition, NBTSubtypes.familyOf(definition)));
+		} finally {
+			close(graph);
+		}
+	}
+	
+	/**
+	 * <p>Serializes the given {@link INBTSerializable} instance and all objects that it
+	 * refers to straight to a stream in the binary NBT format, as an unnamed root compound
+	 * tag, writing each object only once. See
+	 * {@link NBTSerializer#writeTo(INBTSerializable, DataOutput)}.</p>
+	 * 
+	 * @param object An {@link INBTSerializable} instance.
+	 * @param out The stream to write the serialized instance to.
+	 * @throws IOException if writing to the stream fails.
+	 * @throws IllegalAccessException see {@link #serialize(INBTSerializable)}.
+	 * @throws UnserializableClassException see {@link #serialize(INBTSerializable)}.
+	 */
+	public static <T extends INBTSerializable> void writeTo(T object, DataOutput out) throws IOException, IllegalAccessException, UnserializableClassException {
+		Session graph = open();
+		try {
+			out.writeByte(NBTSerializer.NBT_TAG_COMPOUND);
+			out.writeUTF("");
+			write(object, NBTSubtypes.getId(object.getClass()), out);
+		} finally {
+			close(graph);
+		}
+	}
+	
+	/**
+	 * <p>Serializes the given {@link INBTSerializable} instance and all objects that it
+	 * refers to straight to a stream. See {@link #writeTo(INBTSerializable, DataOutput)}.</p>
+	 * <p>Writes are buffered, and the stream is flushed, but not closed, when serialization
+	 * is done.</p>
+	 * 
+	 * @param object An {@link INBTSerializable} instance.
+	 * @param out The stream to write the serialized instance to.
+	 * @throws IOException if writing to the stream fails.
+	 * @throws IllegalAccessException see {@link #serialize(INBTSerializable)}.
+	 * @throws UnserializableClassException see {@link #serialize(INBTSerializable)}.
+	 */
+	public static <T extends INBTSerializable> void writeTo(T object, OutputStream out) throws IOException, IllegalAccessException, UnserializableClassException {
+		DataOutputStream dos = new DataOutputStream(new BufferedOutputStream(out));
+		writeTo(object, (DataOutput) dos);
+		dos.flush();
+	}
+	
+	/**
+	 * <p>Serializes the given {@link INBTSerializable} instance and all objects that it
+	 * refers to straight to a stream. See {@link #writeTo(INBTSerializable, DataOutput)}.</p>
+	 * <p>A {@link DataOutputStream} is both a {@link DataOutput} and an
+	 * {@link OutputStream}; it is written to directly, like any other {@link DataOutput}.</p>
+	 * 
+	 * @param object An {@link INBTSerializable} instance.
+	 * @param out The stream to write the serialized instance to.
+	 * @throws IOException if writing to the stream fails.
+	 * @throws IllegalAccessException see {@link #serialize(INBTSerializable)}.
+	 * @throws UnserializableClassException see {@link #serialize(INBTSerializable)}.
+	 */
+	public static <T extends INBTSerializable> void writeTo(T object, DataOutputStream out) throws IOException, IllegalAccessException, UnserializableClassException {
+		writeTo(object, (DataOutput) out);
+	}
+	
+	/**
+	 * <p>Deserializes a graph of objects straight from a stream in the binary NBT format, as
+	 * written by {@link #writeTo(INBTSerializable, DataOutput)}. See
+	 * {@link NBTSerializer#readFrom(Class, DataInput)}.</p>
+	 * 
+	 * @param definition The {@link INBTSerializable} class structure to use for
+	 * deserialization.
+	 * @param in The stream to read the serialized instance from.
+	 * @return A deserialized instance of the given class definition.
+	 * @throws IOException if reading from the stream fails, if the stream does not hold a
+	 * valid compound tag, or if it refers to an object before the object itself, or to one
+	 * that is not of the type it is read as.
+	 * @throws IllegalAccessException see {@link NBTSerializer#readFrom(Class, DataInput)}.
+	 * @throws InstantiationException see {@link NBTSerializer#readFrom(Class, DataInput)}.
+	 * @throws UnserializableClassException see
+	 * {@link NBTSerializer#readFrom(Class, DataInput)}.
+	 */
+	public static <T extends INBTSerializable> T readFrom(Class<T> definition, DataInput in) throws IOException, IllegalAccessException, InstantiationException, UnserializableClassException {
+		Session graph = open();
+		try {
+			NBTSubtypes.Family<?> family = NBTSubtypes.familyOf(definition);
+			int id = in.readByte();
+			if (id == NBTSerializer.NBT_TAG_END) return definition.cast(decode(new NBTTagCompound(), definition, family));
+			if (id != NBTSerializer.NBT_TAG_COMPOUND) throw new IOException("Root tag must be a compound tag, got tag of type " + id);
+			NBTReader.skipString(in);
+			return definition.cast(NBTReader.readObject(in, ResolvedType.of(definition), family));
+		} finally {
+			close(graph);
+		}
+	}
+	
+	/**
+	 * <p>Deserializes a graph of objects straight from a stream. See
+	 * {@link #readFrom(Class, DataInput)}.</p>
+	 * <p>Reads are buffered, so more bytes than the serialized instance takes up may be
+	 * consumed from the stream. The stream is not closed.</p>
+	 * 
+	 * @param definition The {@link INBTSerializable} class structure to use for
+	 * deserialization.
+	 * @param in The stream to read the serialized instance from.
+	 * @return A deserialized instance of the given class definition.
+	 * @throws IOException see {@link #readFrom(Class, DataInput)}.
+	 * @throws IllegalAccessException see {@link #readFrom(Class, DataInput)}.
+	 * @throws InstantiationException see {@link #readFrom(Class, DataInput)}.
+	 * @throws UnserializableClassException see {@link #readFrom(Class, DataInput)}.
+	 */
+	public static <T extends INBTSerializable> T readFrom(Class<T> definition, InputStream in) throws IOException, IllegalAccessException, InstantiationException, UnserializableClassException {
+		return readFrom(definition, (DataInput) new DataInputStream(new BufferedInputStream(in)));
+	}
+	
+	/**
+	 * <p>Deserializes a graph of objects straight from a stream. See
+	 * {@link #readFrom(Class, DataInput)}.</p>
+	 * <p>A {@link DataInputStream} is both a {@link DataInput} and an {@link InputStream};
+	 * it is read from directly, like any other {@link DataInput}, so no more bytes than the
+	 * serialized instance takes up are consumed from it.</p>
+	 * 
+	 * @param definition The {@link INBTSerializable} class structure to use for
+	 * deserialization.
+	 * @param in The stream to read the serialized instance from.
+	 * @return A deserialized instance of the given class definition.
+	 * @throws IOException see {@link #readFrom(Class, DataInput)}.
+	 * @throws IllegalAccessException see {@link #readFrom(Class, DataInput)}.
+	 * @throws InstantiationException see {@link #readFrom(Class, DataInput)}.
+	 * @throws UnserializableClassException see {@link #readFrom(Class, DataInput)}.
+	 */
+	public static <T extends INBTSerializable> T readFrom(Class<T> definition, DataInputStream in) throws IOException, IllegalAccessException, InstantiationException, UnserializableClassException {
+		return readFrom(definition, (DataInput) in);
+	}
+	
+	/**
+	 * <p>Gets the session in which the current thread is writing or reading a graph.</p>
+	 * 
+	 * @return The session, or {@code null} if the thread is not writing or reading a graph.
+	 */
+	static Session current() {
+		if (OPEN.get() == 0) return null;
+		Session graph = SESSIONS.get();
+		return graph.open ? graph : null;
+	}
+	
+	/**
+	 * <p>Serializes a serializable object to a compound tag, or to a reference to it if it has
+	 * been written before in the current graph.</p>
+	 * 
+	 * @param value The object to serialize.
+	 * @param subtype The ID of the class of the object as a {@link NBTSubtypes subtype}, or -1
+	 * if it has none.
+	 * @return The compound tag.
+	 * @throws IllegalAccessException see {@link #serialize(INBTSerializable)}.
+	 * @throws UnserializableClassException see {@link #serialize(INBTSerializable)}.
+	 */
+	static NBTTagCompound encode(INBTSerializable value, int subtype) throws IllegalAccessException, UnserializableClassException {
+		Session graph = current();
+		int number = -1;
+		if (graph != null) {
+			int seen = graph.written.add(value);
+			if (seen >= 0) {
+				NBTTagCompound t = new NBTTagCompound();
+				t.setInteger(NBTSerializer.REFERENCE_TAG, seen);
+				return t;
+			}
+			number = graph.written.size() - 1;
+		}
+		NBTTagCompound t = NBTSerializer.serialize(value);
+		if (subtype >= 0) t.setByte(NBTSerializer.SUBTYPE_TAG, (byte) subtype);
+		if (number >= 0) t.setInteger(NBTSerializer.ID_TAG, number);
+		return t;
+	}
+	
+	/**
+	 * <p>Writes the payload of the compound tag that {@link #encode(INBTSerializable, int)}
+	 * would create. The subtype ID and the number of the object come first, in that order.</p>
+	 * 
+	 * @param value The object to write.
+	 * @param subtype The ID of the class of the object as a subtype, or -1 if it has none.
+	 * @param out The stream to write to.
+	 * @throws IOException if writing to the stream fails.
+	 * @throws IllegalAccessException see {@link #serialize(INBTSerializable)}.
+	 * @throws UnserializableClassException see {@link #serialize(INBTSerializable)}.
+	 */
+	static void write(INBTSerializable value, int subtype, DataOutput out) throws IOException, IllegalAccessException, UnserializableClassException {
+		Session graph = current();
+		int number = -1;
+		if (graph != null) {
+			int seen = graph.written.add(value);
+			if (seen >= 0) {
+				out.writeByte(NBTSerializer.NBT_TAG_INT);
+				out.write(NBTWriter.ENCODED_REFERENCE_TAG);
+				out.writeInt(seen);
+				out.writeByte(NBTSerializer.NBT_TAG_END);
+				return;
+			}
+			number = graph.written.size() - 1;
+		}
+		if (subtype >= 0) {
+			out.writeByte(NBTSerializer.NBT_TAG_BYTE);
+			out.write(NBTWriter.ENCODED_SUBTYPE_TAG);
+			out.writeByte(subtype);
+		}
+		if (number >= 0) {
+			out.writeByte(NBTSerializer.NBT_TAG_INT);
+			out.write(NBTWriter.ENCODED_ID_TAG);
+			out.writeInt(number);
+		}
+		NBTWriter.writeCompound(value, out);
+	}
+	
+	/**
+	 * <p>Deserializes a compound tag into a serializable object, resolving it to an object
+	 * that has already been read if it is a reference, and registering the new object under
+	 * its number otherwise.</p>
+	 * 
+	 * @param data The compound tag.
+	 * @param declared The type that the compound tag is read as.
+	 * @param family The subtypes of the type, or {@code null} if it has none.
+	 * @return The object.
+	 * @throws IllegalAccessException see {@link #deserialize(Class, NBTTagCompound)}.
+	 * @throws InstantiationException see {@link #deserialize(Class, NBTTagCompound)}.
+	 * @throws UnserializableClassException see {@link #deserialize(Class, NBTTagCompound)}.
+	 * @throws IllegalArgumentException see {@link #deserialize(Class, NBTTagCompound)}.
+	 */
+	@SuppressWarnings("unchecked")
+	static Object decode(NBTTagCompound data, Class<?> declared, NBTSubtypes.Family<?> family) throws IllegalAccessException, InstantiationException, UnserializableClassException {
+		Class<?> type = declared;
+		if (family != null) {
+			int subtype = data.getTagId(NBTSerializer.SUBTYPE_TAG) == NBTSerializer.NBT_TAG_BYTE ? data.getByte(NBTSerializer.SUBTYPE_TAG) & 0xFF : -1;
+			type = family.resolve(subtype, declared);
+		}
+		
+		Session graph = current();
+		if (graph != null) {
+			if (data.getTagId(NBTSerializer.REFERENCE_TAG) == NBTSerializer.NBT_TAG_INT) {
+				int number = data.getInteger(NBTSerializer.REFERENCE_TAG);
+				Object value = graph.resolve(number, declared);
+				if (value == null) throw new IllegalArgumentException("Reference to object " + number + ", which the data does not hold");
+				if (!declared.isInstance(value)) throw new IllegalArgumentException(mismatch(number, value, declared));
+				return value;
+			}
+			if (data.getTagId(NBTSerializer.ID_TAG) == NBTSerializer.NBT_TAG_INT) {
+				int number = data.getInteger(NBTSerializer.ID_TAG);
+				/*
+				 * If a reference to the object was found before the object itself, it has
+				 * already been read from here.
+				 */
+				Object value = graph.get(number);
+				if (value != null) return value;
+				INBTSerializable instance = (INBTSerializable) NBTInstances.newInstance(type);
+				graph.define(number, instance);
+				NBTSerializer.deserialize(instance, data, true);
+				return instance;
+			}
+		}
+		return NBTSerializer.deserialize((Class<? extends INBTSerializable>) type, data);
+	}
+	
+	/**
+	 * <p>Describes a reference to an object that is not of the type it is read as.</p>
+	 * 
+	 * @param number The number of the object.
+	 * @param value The object.
+	 * @param declared The type that the reference is read as.
+	 * @return The description.
+	 */
+	static String mismatch(int number, Object value, Class<?> declared) {
+		return "Reference to object " + number + " of " + value.getClass().getName() + ", which is not a " + declared.getName();
+	}
+	
+	/**
+	 * <p>Opens a session on the current thread. If one is already open, e.g. because a
+	 * codec writes a graph of its own, a new one is opened for the time being.</p>
+	 * 
+	 * @return The session.
+	 */
+	private static Session open() {
+		Session graph = SESSIONS.get();
+		if (graph.open) {
+			Session nested = new Session();
+			nested.outer = graph;
+			SESSIONS.set(nested);
+			graph = nested;
+		}
+		graph.open = true;
+		OPEN.incrementAndGet();
+		return graph;
+	}
+	
+	/**
+	 * <p>Closes a session, clearing its tables for the next graph.</p>
+	 * 
+	 * @param graph The session.
+	 */
+	private static void close(Session graph) {
+		OPEN.decrementAndGet();
+		graph.open = false;
+		graph.clear();
+		if (graph.outer != null) {
+			SESSIONS.set(graph.outer);
+			graph.outer = null;
+		}
+	}
+	
+	/**
+	 * <p>The objects of the graph that a thread is writing or reading.</p>
+	 */
+	static final class Session {
+		/**
+		 * The number of each object that has been written.
+		 */
+		final Identities written = new Identities();
+		/**
+		 * The objects that have been read, by their numbers. Streams number their objects in
+		 * the order they are read, so only those that were read out of order, from NBT data
+		 * structures, are put into {@link #sparse}.
+		 */
+		private ArrayList<Object> objects = new ArrayList<Object>();
+		private Map<Integer, Object> sparse;
+		/**
+		 * The NBT data structures that are being read and have not been searched for the
+		 * objects that they define yet, and the compound tags that they were found to define
+		 * once they have.
+		 */
+		final List<NBTTagCompound> unindexed = new ArrayList<NBTTagCompound>();
+		private Map<Integer, NBTTagCompound> definitions;
+		
+		boolean open;
+		Session outer;
+		
+		/**
+		 * <p>Gets an object that has been read.</p>
+		 * 
+		 * @param number The number of the object.
+		 * @return The object, or {@code null} if it has not been read yet.
+		 */
+		Object get(int number) {
+			if (number >= 0 && number < this.objects.size()) return this.objects.get(number);
+			return this.sparse == null ? null : this.sparse.get(number);
+		}
+		
+		/**
+		 * <p>Registers an object that is being read.</p>
+		 * 
+		 * @param number The number of the object.
+		 * @param value The object.
+		 */
+		void define(int number, Object value) {
+			if (number == this.objects.size()) this.objects.add(value);
+			else if (number >= 0 && number < this.objects.size()) this.objects.set(number, value);
+			else {
+				if (this.sparse == null) this.sparse = new HashMap<Integer, Object>();
+				this.sparse.put(number, value);
+			}
+		}
+		
+		/**
+		 * <p>Resolves a reference. If the object has not been read yet, it is looked up in
+		 * the NBT data structures that are being read, and read from there.</p>
+		 * 
+		 * @param number The number of the object.
+		 * @param declared The type that the reference is read as, which the object is read as
+		 * if it has not been read yet.
+		 * @return The object, or {@code null} if there is none with the given number.
+		 */
+		Object resolve(int number, Class<?> declared) throws IllegalAccessException, InstantiationException, UnserializableClassException {
+			Object value = get(number);
+			if (value != null) return value;
+			if (!this.unindexed.isEmpty()) {
+				if (this.definitions == null) this.definitions = new HashMap<Integer, NBTTagCompound>();
+				for (NBTTagCompound t : this.unindexed) index(t);
+				this.unindexed.clear();
+			}
+			NBTTagCompound definition = this.definitions == null ? null : this.definitions.get(number);
+			if (definition == null) return null;
+			return NBTSerializer.codecFor(declared).decode(definition, ResolvedType.of(declared));
+		}
+		
+		/**
+		 * <p>Finds the compound tags in the given tag that define an object, i.e. that hold an
+		 * ID tag.</p>
+		 * 
+		 * @param tag The tag to search.
+		 */
+		private void index(NBTBase tag) {
+			if (tag instanceof NBTTagCompound) {
+				NBTTagCompound t = (NBTTagCompound) tag;
+				if (t.getTagId(NBTSerializer.ID_TAG) == NBTSerializer.NBT_TAG_INT) this.definitions.put(t.getInteger(NBTSerializer.ID_TAG), t);
+				for (String key : t.getKeySet()) index(t.getTag(key));
+			} else if (tag instanceof NBTTagList) {
+				NBTTagList list = (NBTTagList) tag;
+				if (list.getTagType() != NBTSerializer.NBT_TAG_COMPOUND && list.getTagType() != NBTSerializer.NBT_TAG_LIST) return;
+				for (int i = 0; i < list.tagCount(); i++) index(list.get(i));
+			}
+		}
+		
+		/**
+		 * <p>Clears the tables for the next graph, keeping their room unless they have grown
+		 * too large.</p>
+		 */
+		void clear() {
+			this.written.clear();
+			if (this.objects.size() > RETAINED_ENTRIES) this.objects = new ArrayList<Object>();
+			else this.objects.clear();
+			this.sparse = null;
+			this.unindexed.clear();
+			this.definitions = null;
+		}
+	}
+	
+	/**
+	 * <p>A table that numbers objects by identity, in the order they are added. Unlike an
+	 * {@link java.util.IdentityHashMap}, it stores the numbers unboxed, in a parallel array,
+	 * so adding an object allocates nothing until the table has to grow.</p>
+	 */
+	static final class Identities {
+		private static final int INITIAL_CAPACITY = 64;
+		
+		private Object[] keys = new Object[INITIAL_CAPACITY];
+		private int[] numbers = new int[INITIAL_CAPACITY];
+		private int size;
+		
+		/**
+		 * <p>Numbers an object, unless it already has a number.</p>
+		 * 
+		 * @param key The object.
+		 * @return The number that the object already had, or -1 if it did not have one, in
+		 * which case it has been given the next number, {@link #size()} - 1.
+		 */
+		int add(Object key) {
+			int mask = this.keys.length - 1;
+			int i = hash(key) & mask;
+			Object k;
+			while ((k = this.keys[i]) != null) {
+				if (k == key) return this.numbers[i];
+				i = i + 1 & mask;
+			}
+			this.keys[i] = key;
+			this.numbers[i] = this.size++;
+			if (this.size * 2 > this.keys.length) grow();
+			return -1;
+		}
+		
+		/**
+		 * <p>Gets the number of objects in the table.</p>
+		 * 
+		 * @return The number of objects.
+		 */
+		int size() {
+			return this.size;
+		}
+		
+		/**
+		 * <p>Removes all objects from the table, keeping its room unless it has grown too
+		 * large.</p>
+		 */
+		void clear() {
+			if (this.size == 0) return;
+			if (this.keys.length > RETAINED_ENTRIES * 2) {
+				this.keys = new Object[INITIAL_CAPACITY];
+				this.numbers = new int[INITIAL_CAPACITY];
+			} else {
+				Arrays.fill(this.keys, null);
+			}
+			this.size = 0;
+		}
+		
+		/**
+		 * <p>Doubles the room of the table, keeping it at most half full so that probes stay
+		 * short.</p>
+		 */
+		private void grow() {
+			Object[] oldKeys = this.keys;
+			int[] oldNumbers = this.numbers;
+			this.keys = new Object[oldKeys.length * 2];
+			this.numbers = new int[oldKeys.length * 2];
+			int mask = this.keys.length - 1;
+			for (int j = 0; j < oldKeys.length; j++) {
+				Object k = oldKeys[j];
+				if (k == null) continue;
+				int i = hash(k) & mask;
+				while (this.keys[i] != null) i = i + 1 & mask;
+				this.keys[i] = k;
+				this.numbers[i] = oldNumbers[j];
+			}
+		}
+		
+		private static int hash(Object key) {
+			int h = System.identityHashCode(key) * -1640531535;
+			return h ^ h >>> 16;
+		}
+	}
+}
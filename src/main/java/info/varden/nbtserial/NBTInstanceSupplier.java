@@ -0,0 +1,46 @@
+package info.varden.nbtserial;
+
+/**
+ * <p>Supplies the instances of a class that {@link NBTSerializer} deserializes into, in place
+ * of calling the nullary constructor of the class. Suppliers are registered per class in
+ * {@link NBTInstances}, and are used for serializable classes as well as for the collections
+ * and maps that fields are deserialized into.</p>
+ * <p>A supplier may hand out instances that have been used before, such as those kept in an
+ * {@link NBTPool}. {@link NBTSerializer} then reuses the objects that the fields of a
+ * recycled instance still hold, wherever it can; see
+ * {@link NBTSerializer#refill(INBTSerializable, net.minecraft.nbt.NBTTagCompound)}.</p>
+ * 
+ * @author Marius
+ * @param <T> The class of instances supplied.
+ */
+public interface NBTInstanceSupplier<T> {
+	/**
+	 * <p>Gets an instance to deserialize into. The instance is owned by the caller until it is
+	 * handed back to the supplier, if the supplier supports that.</p>
+	 * 
+	 * @return An instance. This must not be {@code null}.
+	 * @throws IllegalAccessException if the constructor of the class is inaccessible.
+	 * @throws InstantiationException if the class cannot be instantiated.
+	 */
+	T get() throws IllegalAccessException, InstantiationException;
+	
+	/**
+	 * <p>A supplier of collections or maps that is told how many elements the instance is
+	 * about to receive, so that it can be created with the right capacity. Combined with
+	 * {@link NBTSerialize#typeOverride()}, this lets a field be deserialized into a container
+	 * of your own that is sized up front.</p>
+	 * 
+	 * @param <T> The class of instances supplied.
+	 */
+	public interface Sized<T> extends NBTInstanceSupplier<T> {
+		/**
+		 * <p>Gets an instance to deserialize the given number of elements into.</p>
+		 * 
+		 * @param size The number of elements or entries that will be added.
+		 * @return An instance. This must not be {@code null}.
+		 * @throws IllegalAccessException see {@link NBTInstanceSupplier#get()}.
+		 * @throws InstantiationException see {@link NBTInstanceSupplier#get()}.
+		 */
+		T get(int size) throws IllegalAccessException, InstantiationException;
+	}
+}
@@ -0,0 +1,294 @@
+package info.varden.nbtserial;
+
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.lang.reflect.Modifier;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Hashtable;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.Vector;
+import java.util.WeakHashMap;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * <p>Creates the instances that {@link NBTSerializer} deserializes into. By default, the
+ * nullary constructor of a class is called, through a {@link MethodHandle} that is looked up
+ * once per class. An {@link NBTInstanceSupplier}, such as an {@link NBTPool}, can be
+ * registered for a class to supply its instances instead.</p>
+ * <p>Collections and maps are created with room for the number of elements that are about
+ * to be added to them, so that they do not have to grow while they are filled. This is done
+ * for the common JDK containers that have a capacity constructor, and for containers
+ * supplied by an {@link NBTInstanceSupplier.Sized}.</p>
+ * <p>Suppliers are registered for exact classes; a supplier for {@code ArrayList} is not used
+ * for subclasses of {@code ArrayList}. Unlike codecs, suppliers may be registered and
+ * unregistered at any time.</p>
+ * 
+ * @author Marius
+ */
+public final class NBTInstances {
+	/**
+	 * The suppliers registered for each class.
+	 */
+	private static final Map<Class<?>, NBTInstanceSupplier<?>> SUPPLIERS = new ConcurrentHashMap<Class<?>, NBTInstanceSupplier<?>>();
+	
+	/**
+	 * The nullary constructor of each class that has been instantiated.
+	 */
+	private static final ClassValue<Constructor> CONSTRUCTORS = new ClassValue<Constructor>() {
+		@Override
+		protected Constructor computeValue(Class<?> type) {
+			return new Constructor(type);
+		}
+	};
+	
+	/**
+	 * The containers that are created through their capacity constructors, and how their
+	 * capacity is derived from the number of elements.
+	 */
+	private static final Map<Class<?>, Sizing> SIZINGS = new HashMap<Class<?>, Sizing>();
+	
+	static {
+		SIZINGS.put(ArrayList.class,            Sizing.ELEMENTS);
+		SIZINGS.put(Vector.class,               Sizing.ELEMENTS);
+		SIZINGS.put(ArrayDeque.class,           Sizing.ELEMENTS);
+		SIZINGS.put(PriorityQueue.class,        Sizing.AT_LEAST_ONE);
+		SIZINGS.put(IdentityHashMap.class,      Sizing.ELEMENTS);
+		SIZINGS.put(ConcurrentHashMap.class,    Sizing.ELEMENTS);
+		SIZINGS.put(HashMap.class,              Sizing.HASHED);
+		SIZINGS.put(LinkedHashMap.class,        Sizing.HASHED);
+		SIZINGS.put(HashSet.class,              Sizing.HASHED);
+		SIZINGS.put(LinkedHashSet.class,        Sizing.HASHED);
+		SIZINGS.put(Hashtable.class,            Sizing.HASHED);
+		SIZINGS.put(WeakHashMap.class,          Sizing.HASHED);
+	}
+	
+	private NBTInstances() {}
+	
+	/**
+	 * <p>Registers a supplier for instances of exactly the given class. This replaces any
+	 * supplier that was previously registered for the class.</p>
+	 * 
+	 * @param type The class of instances supplied.
+	 * @param supplier The supplier to register.
+	 */
+	public static <T> void register(Class<T> type, NBTInstanceSupplier<? extends T> supplier) {
+		if (type == null || supplier == null) throw new IllegalArgumentException("Type and supplier must not be null");
+		SUPPLIERS.put(type, supplier);
+	}
+	
+	/**
+	 * <p>Unregisters the supplier for the given class, so that its instances are created
+	 * through its nullary constructor again.</p>
+	 * 
+	 * @param type The class.
+	 */
+	public static void unregister(Class<?> type) {
+		SUPPLIERS.remove(type);
+	}
+	
+	/**
+	 * <p>Gets the supplier registered for the given class.</p>
+	 * 
+	 * @param type The class.
+	 * @return The supplier, or {@code null} if instances of the class are created through its
+	 * nullary constructor.
+	 */
+	@SuppressWarnings("unchecked")
+	public static <T> NBTInstanceSupplier<? extends T> get(Class<T> type) {
+		return (NBTInstanceSupplier<? extends T>) SUPPLIERS.get(type);
+	}
+	
+	/**
+	 * <p>Creates or supplies an instance of the given class to deserialize into.</p>
+	 * 
+	 * @param type The class to instantiate.
+	 * @return An instance from the supplier registered for the class, or a new instance if
+	 * there is none.
+	 * @throws IllegalAccessException if the nullary constructor of the class is inaccessible.
+	 * @throws InstantiationException if the class is abstract, an interface, an array class or
+	 * a primitive type, if it has no nullary constructor, or if the constructor fails.
+	 */
+	static <T> T newInstance(Class<T> type) throws IllegalAccessException, InstantiationException {
+		NBTInstanceSupplier<? extends T> supplier = get(type);
+		if (supplier != null) return supplier.get();
+		return construct(type);
+	}
+	
+	/**
+	 * <p>Creates or supplies a collection or map of the given class to deserialize the given
+	 * number of elements into. See {@link #newInstance(Class)}.</p>
+	 * 
+	 * @param type The class to instantiate.
+	 * @param size The number of elements or entries that will be added.
+	 * @return An instance from the supplier registered for the class, or a new instance with
+	 * room for the given number of elements if there is none.
+	 * @throws IllegalAccessException see {@link #newInstance(Class)}.
+	 * @throws InstantiationException see {@link #newInstance(Class)}.
+	 */
+	@SuppressWarnings("unchecked")
+	static <T> T newInstance(Class<T> type, int size) throws IllegalAccessException, InstantiationException {
+		NBTInstanceSupplier<? extends T> supplier = get(type);
+		if (supplier instanceof NBTInstanceSupplier.Sized) return ((NBTInstanceSupplier.Sized<? extends T>) supplier).get(size);
+		if (supplier != null) return supplier.get();
+		return (T) CONSTRUCTORS.get(type).newInstance(size);
+	}
+	
+	/**
+	 * <p>Creates a new instance of the given class through its nullary constructor, ignoring
+	 * any registered supplier. This behaves like {@link Class#newInstance()}, but the
+	 * constructor is only looked up and checked the first time.</p>
+	 * 
+	 * @param type The class to instantiate.
+	 * @return A new instance of the class.
+	 * @throws IllegalAccessException see {@link #newInstance(Class)}.
+	 * @throws InstantiationException see {@link #newInstance(Class)}.
+	 */
+	@SuppressWarnings("unchecked")
+	static <T> T construct(Class<T> type) throws IllegalAccessException, InstantiationException {
+		return (T) CONSTRUCTORS.get(type).newInstance();
+	}
+	
+	/**
+	 * <p>The nullary constructor of a class, or the reason why the class cannot be
+	 * instantiated. Each failed attempt throws a new exception with the reason as its cause,
+	 * so that it has its own stack trace.</p>
+	 */
+	private static final class Constructor {
+		private final Class<?> type;
+		/**
+		 * The constructor, adapted to return {@link Object}, or {@code null} if the class
+		 * cannot be instantiated.
+		 */
+		private final MethodHandle handle;
+		/**
+		 * Why the constructor cannot be called, if it cannot.
+		 */
+		private final Exception failure;
+		/**
+		 * The capacity constructor of the class, adapted to return {@link Object}, or
+		 * {@code null} if the class is not one of the known containers.
+		 */
+		private final MethodHandle sized;
+		private final Sizing sizing;
+		
+		Constructor(Class<?> type) {
+			this.type = type;
+			MethodHandle handle = null;
+			Exception failure = null;
+			if (type.isInterface() || type.isArray() || type.isPrimitive() || Modifier.isAbstract(type.getModifiers())) {
+				failure = new InstantiationException(type.getName());
+			} else {
+				/*
+				 * The lookup has the access of this package, which is the same access that
+				 * Class.newInstance() had when it was called from the serializer.
+				 */
+				try {
+					handle = MethodHandles.lookup().findConstructor(type, MethodType.methodType(void.class)).asType(MethodType.methodType(Object.class));
+				} catch (NoSuchMethodException e) {
+					failure = e;
+				} catch (IllegalAccessException e) {
+					failure = e;
+				}
+			}
+			this.handle = handle;
+			this.failure = failure;
+			
+			MethodHandle sized = null;
+			Sizing sizing = SIZINGS.get(type);
+			if (sizing != null) {
+				try {
+					sized = MethodHandles.lookup().findConstructor(type, MethodType.methodType(void.class, int.class)).asType(MethodType.methodType(Object.class, int.class));
+				} catch (NoSuchMethodException e) {
+					/*
+					 * The nullary constructor is used instead, as it is for any other class.
+					 */
+				} catch (IllegalAccessException e) {
+					/*
+					 * Same as above.
+					 */
+				}
+			}
+			this.sized = sized;
+			this.sizing = sizing;
+		}
+		
+		Object newInstance(int size) throws IllegalAccessException, InstantiationException {
+			if (this.sized == null) return newInstance();
+			try {
+				return this.sized.invokeExact(this.sizing.capacity(size));
+			} catch (RuntimeException e) {
+				throw e;
+			} catch (Error e) {
+				throw e;
+			} catch (Throwable t) {
+				InstantiationException e = new InstantiationException(this.type.getName());
+				e.initCause(t);
+				throw e;
+			}
+		}
+		
+		Object newInstance() throws IllegalAccessException, InstantiationException {
+			if (this.handle == null) {
+				if (this.failure instanceof IllegalAccessException) {
+					IllegalAccessException e = new IllegalAccessException(this.failure.getMessage());
+					e.initCause(this.failure);
+					throw e;
+				}
+				InstantiationException e = new InstantiationException(this.type.getName());
+				e.initCause(this.failure);
+				throw e;
+			}
+			try {
+				return this.handle.invokeExact();
+			} catch (RuntimeException e) {
+				throw e;
+			} catch (Error e) {
+				throw e;
+			} catch (Throwable t) {
+				/*
+				 * The constructor threw a checked exception.
+				 */
+				InstantiationException e = new InstantiationException(this.type.getName());
+				e.initCause(t);
+				throw e;
+			}
+		}
+	}
+	
+	/**
+	 * <p>The ways in which the argument of a capacity constructor relates to the number of
+	 * elements that the container is about to receive.</p>
+	 */
+	private enum Sizing {
+		/**
+		 * The argument is the number of elements.
+		 */
+		ELEMENTS,
+		/**
+		 * The argument is the number of elements, but must be at least one.
+		 */
+		AT_LEAST_ONE,
+		/**
+		 * The argument is the capacity of a hash table with the default load factor of 0.75,
+		 * which must be larger than the number of elements for the table not to grow.
+		 */
+		HASHED;
+		
+		int capacity(int size) {
+			size = Math.max(0, size);
+			switch (this) {
+			case AT_LEAST_ONE:  return Math.max(1, size);
+			case HASHED:        return (int) Math.min(Integer.MAX_VALUE, size * 4L / 3 + 1);
+			default:            return size;
+			}
+		}
+	}
+}
@@ -0,0 +1,255 @@
+package info.varden.nbtserial;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+
+import net.minecraft.nbt.NBTBase;
+
+/**
+ * <p>A holder for the value of a field that is only deserialized when it is first used.
+ * Fields that are rarely read after loading, such as long histories or large maps, can be
+ * declared as a holder of their type:</p>
+ * <pre>
+ * &#64;NBTSerialize public NBTLazy&lt;ArrayList&lt;Event&gt;&gt; history = new NBTLazy&lt;ArrayList&lt;Event&gt;&gt;(new ArrayList&lt;Event&gt;());
+ * </pre>
+ * <p>Deserializing the class then only keeps the data of the field: the tag, when it is
+ * deserialized from an NBT data structure, or a copy of the bytes of its payload, when it is
+ * read from a stream. The value is decoded the first time {@link #get()} is called, exactly
+ * as the field would have been decoded if it were declared as the type of the value. The
+ * map layout, packing and type override of the field apply to the value.</p>
+ * <p>A holder that has not been loaded is serialized by writing its data as it was read,
+ * without decoding and encoding it again, which makes loading and saving fields that are
+ * never touched almost free. Once it has been loaded, or its value has been
+ * {@link #set(Object) set}, the value is serialized instead, as it may have been
+ * changed.</p>
+ * <p>A holder may be shared between threads; it is loaded once, by whichever thread gets
+ * to it first. Values that refer to other objects of an {@link NBTGraph object graph} cannot
+ * be held lazily, as the objects they refer to are not known by the time they are
+ * loaded.</p>
+ * 
+ * @param <T> The type of the value.
+ * @author Marius
+ */
+public final class NBTLazy<T> {
+	/**
+	 * Whether {@link #value} holds the value. Written last, so that a thread that sees it
+	 * set also sees the value.
+	 */
+	private volatile boolean loaded;
+	private T value;
+	/**
+	 * The codec of the field that the data was read for, until the value is loaded.
+	 */
+	private LazyCodec source;
+	/**
+	 * The tag that the value was deserialized from, or {@code null} if it was read from a
+	 * stream.
+	 */
+	private NBTBase tag;
+	/**
+	 * The payload of the tag that the value was read from, if it was read from a stream.
+	 * The payload is of the type of the codec of the field.
+	 */
+	private byte[] payload;
+	
+	/**
+	 * <p>Creates a holder for the given value, e.g. as the initial value of a field.</p>
+	 * 
+	 * @param value The value.
+	 * @throws IllegalArgumentException if the value is {@code null}. Fields that have no
+	 * value should be set to {@code null} themselves.
+	 */
+	public NBTLazy(T value) {
+		set(value);
+	}
+	
+	private NBTLazy(LazyCodec source, NBTBase tag, byte[] payload) {
+		this.source = source;
+		this.tag = tag;
+		this.payload = payload;
+	}
+	
+	/**
+	 * <p>Gets the value, decoding it if this is the first time.</p>
+	 * 
+	 * @return The value.
+	 * @throws UncheckedIOException if the data of the value is malformed.
+	 * @throws IllegalStateException if decoding the value fails for any other reason, such as
+	 * an {@link InstantiationException} or an {@link UnserializableClassException}, which
+	 * the exception holds. The value is decoded again on the next call.
+	 */
+	public T get() {
+		if (!this.loaded) load();
+		return this.value;
+	}
+	
+	/**
+	 * <p>Replaces the value. The data that the holder was deserialized from, if any, is
+	 * dropped.</p>
+	 * 
+	 * @param value The new value.
+	 * @throws IllegalArgumentException if the value is {@code null}.
+	 */
+	public synchronized void set(T value) {
+		if (value == null) throw new IllegalArgumentException("Value must not be null");
+		this.value = value;
+		this.source = null;
+		this.tag = null;
+		this.payload = null;
+		this.loaded = true;
+	}
+	
+	/**
+	 * <p>Checks whether the value has been decoded or set. A holder that is not loaded is
+	 * serialized from the data it was deserialized from.</p>
+	 * 
+	 * @return Whether the value is loaded.
+	 */
+	public boolean isLoaded() {
+		return this.loaded;
+	}
+	
+	@SuppressWarnings("unchecked")
+	private synchronized void load() {
+		if (this.loaded) return;
+		try {
+			this.value = (T) this.source.decodeValue(this.tag, this.payload);
+		} catch (IOException e) {
+			throw new UncheckedIOException(e);
+		} catch (RuntimeException e) {
+			throw e;
+		} catch (Exception e) {
+			throw new IllegalStateException(e);
+		}
+		this.source = null;
+		this.tag = null;
+		this.payload = null;
+		this.loaded = true;
+	}
+	
+	/**
+	 * <p>Creates a copy of this holder for a {@link NBTSerializer#snapshot(INBTSerializable)
+	 * snapshot}. The data of a holder that is not loaded is never changed, so it is shared
+	 * with the copy.</p>
+	 * 
+	 * @param copier The copier of the snapshot, which copies the value if it is loaded.
+	 * @return The copy.
+	 */
+	synchronized NBTLazy<Object> copy(SnapshotCopier copier) throws IllegalAccessException, InstantiationException {
+		if (!this.loaded) return new NBTLazy<Object>(this.source, this.tag, this.payload);
+		return new NBTLazy<Object>(copier.copyValue(this.value, this.value.getClass()));
+	}
+	
+	@Override
+	public String toString() {
+		return this.loaded ? "NBTLazy[" + this.value + "]" : "NBTLazy[not loaded]";
+	}
+	
+	/**
+	 * <p>The codec of a field that is declared as a holder. It is created for each such field
+	 * when the plan of its class is built, from the codec and resolved type of the value, and
+	 * writes and reads tags of the type of the value.</p>
+	 */
+	static final class LazyCodec extends StreamingCodec<NBTLazy<?>> {
+		private final NBTCodec<?> codec;
+		private final ResolvedType type;
+		
+		LazyCodec(NBTCodec<?> codec, ResolvedType type) {
+			this.codec = codec;
+			this.type = type;
+		}
+		
+		@Override
+		public int getTagId() {
+			return this.codec.getTagId();
+		}
+		
+		@Override
+		public NBTBase toTag(NBTLazy<?> value) throws IllegalAccessException, UnserializableClassException {
+			synchronized (value) {
+				/*
+				 * The tag of a holder is copied rather than shared, since the compound it is
+				 * added to may be changed by whoever receives it.
+				 */
+				if (value.tag != null) return value.tag.copy();
+				if (value.payload != null) {
+					try {
+						return NBTReader.readTag(getTagId(), new BufferInput(ByteBuffer.wrap(value.payload), 0, false));
+					} catch (IOException e) {
+						throw new UncheckedIOException(e);
+					}
+				}
+			}
+			return this.codec.encode(value.get());
+		}
+		
+		@Override
+		void writePayload(NBTLazy<?> value, DataOutput out) throws IOException, IllegalAccessException, UnserializableClassException {
+			synchronized (value) {
+				if (value.payload != null) {
+					out.write(value.payload);
+					return;
+				}
+				if (value.tag != null && value.tag.getId() == getTagId()) {
+					NBTWriter.writePayload(value.tag, out);
+					return;
+				}
+			}
+			/*
+			 * A tag of another type, such as a map in another layout, has to be converted
+			 * through the value.
+			 */
+			Object v = value.get();
+			if (this.codec instanceof StreamingCodec) ((StreamingCodec<?>) this.codec).stream(v, out);
+			else NBTWriter.writePayload(this.codec.encode(v), out);
+		}
+		
+		@Override
+		public NBTLazy<?> fromTag(NBTBase tag, Class<? extends NBTLazy<?>> type) {
+			return new NBTLazy<Object>(this, tag, null);
+		}
+		
+		@Override
+		Object decode(NBTBase tag, ResolvedType type) {
+			return new NBTLazy<Object>(this, tag, null);
+		}
+		
+		@Override
+		Object readPayload(DataInput in, ResolvedType type) throws IOException {
+			byte[] payload;
+			if (in instanceof BufferInput) {
+				/*
+				 * Buffers are skipped over to find the end of the payload, which is then
+				 * copied in one go.
+				 */
+				BufferInput bi = (BufferInput) in;
+				int start = bi.position();
+				NBTReader.skipPayload(getTagId(), bi);
+				payload = new byte[bi.position() - start];
+				bi.at(start).readFully(payload);
+			} else {
+				ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+				NBTReader.copyPayload(getTagId(), in, new DataOutputStream(bytes));
+				payload = bytes.toByteArray();
+			}
+			return new NBTLazy<Object>(this, null, payload);
+		}
+		
+		/**
+		 * <p>Decodes the value of a holder from the data it was deserialized from.</p>
+		 * 
+		 * @param tag The tag, if the holder was deserialized from one.
+		 * @param payload The payload, if the holder was read from a stream.
+		 * @return The value.
+		 */
+		Object decodeValue(NBTBase tag, byte[] payload) throws IOException, IllegalAccessException, InstantiationException, UnserializableClassException {
+			if (tag != null) return this.codec.decode(tag, this.type);
+			return NBTReader.readValue(this.codec, getTagId(), new BufferInput(ByteBuffer.wrap(payload), 0, false), this.type);
+		}
+	}
+}
@@ -0,0 +1,340 @@
+package info.varden.nbtserial;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.IntBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.Map;
+import java.util.Set;
+
+import net.minecraft.nbt.NBTBase;
+import net.minecraft.nbt.NBTTagCompound;
+
+/**
+ * <p>A read-only compound tag that is read lazily from a buffer in the binary NBT format,
+ * typically a memory-mapped file. Opening a file maps it without reading it, and nothing is
+ * decoded until a tag is asked for:</p>
+ * <pre>
+ * NBTMappedCompound world = NBTMappedCompound.open(new File("world.nbt"));
+ * Player player = NBTSerializer.deserialize(Player.class, world.getCompoundTag("player"));
+ * ByteBuffer blocks = world.getCompoundTag("chunk").getByteArray("blocks");
+ * </pre>
+ * <p>The child tags of a compound are indexed by name the first time one of them is looked
+ * up. Indexing stops at the tag that was asked for, and skips over the payloads of the tags
+ * before it without decoding them, so that touching a single tag does not read the rest of
+ * the file. Compounds nested in it are only indexed once they are looked up themselves.
+ * {@link NBTSerializer#deserialize(Class, NBTMappedCompound)} looks up and decodes the tags
+ * of the annotated fields only.</p>
+ * <p>Byte and int arrays are returned as read-only views of the buffer instead of copies.
+ * Fields of type {@link ByteBuffer} and {@link IntBuffer} are deserialized into such views as
+ * well.</p>
+ * <p>The buffer must hold uncompressed NBT, as written by {@code CompressedStreamTools.write()}
+ * or {@link NBTSerializer#writeTo(INBTSerializable, java.io.DataOutput)}; compressed data
+ * cannot be mapped. A mapped compound may be shared between threads.</p>
+ * 
+ * @author Marius
+ */
+public final class NBTMappedCompound {
+	/**
+	 * A compound without any tags, returned for compounds that are missing.
+	 */
+	private static final NBTMappedCompound EMPTY = new NBTMappedCompound(ByteBuffer.wrap(new byte[] {NBTSerializer.NBT_TAG_END}), 0);
+	
+	/**
+	 * The buffer that holds this compound, shared by all compounds in the same file.
+	 */
+	private final ByteBuffer buffer;
+	/**
+	 * The child tags that have been indexed so far, in the order in which they appear.
+	 */
+	private final Map<String, Tag> index = new LinkedHashMap<String, Tag>();
+	/**
+	 * The offset of the first child tag that has not been indexed yet, or {@code -1} if all
+	 * of them have been.
+	 */
+	private int scanned;
+	
+	private NBTMappedCompound(ByteBuffer buffer, int start) {
+		this.buffer = buffer;
+		this.scanned = start;
+	}
+	
+	/**
+	 * <p>Maps the given file into memory and returns its root compound tag. The file is
+	 * closed right away; the mapping stays valid until it is garbage collected.</p>
+	 * 
+	 * @param file The file to open. It must hold an unnamed root compound tag, as written by
+	 * {@code CompressedStreamTools.write()}, and must not be larger than 2 GiB.
+	 * @return The root compound tag of the file.
+	 * @throws IOException if the file cannot be mapped, or if it does not start with a
+	 * compound tag.
+	 */
+	public static NBTMappedCompound open(File file) throws IOException {
+		RandomAccessFile raf = new RandomAccessFile(file, "r");
+		try {
+			FileChannel channel = raf.getChannel();
+			return open(channel, 0, channel.size());
+		} finally {
+			raf.close();
+		}
+	}
+	
+	/**
+	 * <p>Maps a region of the given file into memory and returns the root compound tag that
+	 * it holds. This can be used for files that hold several NBT structures side by side.</p>
+	 * 
+	 * @param channel The channel of the file. It must be open for reading, and may be closed
+	 * once this returns.
+	 * @param position The offset in the file at which the root tag starts.
+	 * @param size The size of the region, which must not be larger than 2 GiB.
+	 * @return The root compound tag of the region.
+	 * @throws IOException if the region cannot be mapped, or if it does not start with a
+	 * compound tag.
+	 */
+	public static NBTMappedCompound open(FileChannel channel, long position, long size) throws IOException {
+		return wrap(channel.map(FileChannel.MapMode.READ_ONLY, position, size));
+	}
+	
+	/**
+	 * <p>Returns the root compound tag that the given buffer holds, from its position to its
+	 * limit. The buffer must not be modified afterwards; its position, limit and byte order
+	 * are not used again.</p>
+	 * 
+	 * @param buffer The buffer to read from.
+	 * @return The root compound tag of the buffer.
+	 * @throws IOException if the buffer does not start with a compound tag.
+	 */
+	public static NBTMappedCompound wrap(ByteBuffer buffer) throws IOException {
+		/*
+		 * A slice starts at offset zero, in big-endian byte order.
+		 */
+		ByteBuffer data = buffer.slice();
+		BufferInput in = new BufferInput(data, 0);
+		int id = in.readByte();
+		/*
+		 * An end tag at the root is how an empty compound is written, and it reads as one.
+		 */
+		if (id == NBTSerializer.NBT_TAG_END) return new NBTMappedCompound(data, 0);
+		if (id != NBTSerializer.NBT_TAG_COMPOUND) throw new IOException("Root tag must be a compound tag, got tag of type " + id);
+		NBTReader.skipString(in);
+		return new NBTMappedCompound(data, in.position());
+	}
+	
+	/**
+	 * <p>Gets the names of all tags in this compound. This indexes the whole compound.</p>
+	 * 
+	 * @return The names of the tags, in the order in which they appear.
+	 * @throws IOException if the compound is malformed.
+	 */
+	public Set<String> getKeySet() throws IOException {
+		synchronized (this) {
+			find(null);
+			return Collections.unmodifiableSet(new LinkedHashSet<String>(this.index.keySet()));
+		}
+	}
+	
+	/**
+	 * <p>Checks whether this compound holds a tag with the given name.</p>
+	 * 
+	 * @param key The name of the tag.
+	 * @return Whether there is such a tag.
+	 * @throws IOException if the compound is malformed.
+	 */
+	public boolean hasKey(String key) throws IOException {
+		return find(key) != null;
+	}
+	
+	/**
+	 * <p>Gets the type of the tag with the given name.</p>
+	 * 
+	 * @param key The name of the tag.
+	 * @return The NBT tag ID of the tag, or {@link NBTSerializer#NBT_TAG_END} if there is no
+	 * such tag.
+	 * @throws IOException if the compound is malformed.
+	 */
+	public byte getTagId(String key) throws IOException {
+		Tag tag = find(key);
+		return tag == null ? NBTSerializer.NBT_TAG_END : (byte) tag.id;
+	}
+	
+	/*
+	 * Numeric getters. Like those of NBTTagCompound, they accept any numeric tag and return
+	 * zero if the tag is missing or not numeric.
+	 */
+	
+	public byte getByte(String key) throws IOException          { return (byte) getInteger(key); }
+	public short getShort(String key) throws IOException        { return (short) getInteger(key); }
+	public float getFloat(String key) throws IOException        { return (float) getDouble(key); }
+	public boolean getBoolean(String key) throws IOException    { return getByte(key) != 0; }
+	
+	public int getInteger(String key) throws IOException {
+		Tag tag = find(key);
+		return tag == null ? 0 : NBTReader.readInt(tag.id, input(tag));
+	}
+	
+	public long getLong(String key) throws IOException {
+		Tag tag = find(key);
+		return tag == null ? 0L : NBTReader.readLong(tag.id, input(tag));
+	}
+	
+	public double getDouble(String key) throws IOException {
+		Tag tag = find(key);
+		return tag == null ? 0.0D : NBTReader.readDouble(tag.id, input(tag));
+	}
+	
+	/**
+	 * <p>Gets the value of the string tag with the given name.</p>
+	 * 
+	 * @param key The name of the tag.
+	 * @return The string, or an empty string if there is no such string tag.
+	 * @throws IOException if the compound is malformed.
+	 */
+	public String getString(String key) throws IOException {
+		Tag tag = find(key);
+		return tag == null || tag.id != NBTSerializer.NBT_TAG_STRING ? "" : input(tag).readUTF();
+	}
+	
+	/**
+	 * <p>Gets a read-only view of the contents of the byte array tag with the given name.
+	 * The bytes are not copied.</p>
+	 * 
+	 * @param key The name of the tag.
+	 * @return The bytes, or an empty buffer if there is no such byte array tag.
+	 * @throws IOException if the compound is malformed.
+	 */
+	public ByteBuffer getByteArray(String key) throws IOException {
+		Tag tag = find(key);
+		if (tag == null || tag.id != NBTSerializer.NBT_TAG_BYTE_ARRAY) return ByteBuffer.allocate(0).asReadOnlyBuffer();
+		BufferInput in = input(tag);
+		return in.slice(in.readInt());
+	}
+	
+	/**
+	 * <p>Gets a read-only view of the contents of the int array tag with the given name. The
+	 * ints are not copied.</p>
+	 * 
+	 * @param key The name of the tag.
+	 * @return The ints, or an empty buffer if there is no such int array tag.
+	 * @throws IOException if the compound is malformed.
+	 */
+	public IntBuffer getIntArray(String key) throws IOException {
+		Tag tag = find(key);
+		if (tag == null || tag.id != NBTSerializer.NBT_TAG_INT_ARRAY) return IntBuffer.allocate(0).asReadOnlyBuffer();
+		BufferInput in = input(tag);
+		return in.sliceInts(in.readInt());
+	}
+	
+	/**
+	 * <p>Gets the compound tag with the given name, without reading it. It is indexed the
+	 * first time one of its own tags is looked up, and only once.</p>
+	 * 
+	 * @param key The name of the tag.
+	 * @return The compound, or an empty compound if there is no such compound tag.
+	 * @throws IOException if this compound is malformed.
+	 */
+	public NBTMappedCompound getCompoundTag(String key) throws IOException {
+		Tag tag = find(key);
+		if (tag == null || tag.id != NBTSerializer.NBT_TAG_COMPOUND) return EMPTY;
+		synchronized (this) {
+			if (tag.compound == null) tag.compound = new NBTMappedCompound(this.buffer, tag.payload);
+			return tag.compound;
+		}
+	}
+	
+	/**
+	 * <p>Reads the tag with the given name, along with everything it holds, into an NBT
+	 * data structure.</p>
+	 * 
+	 * @param key The name of the tag.
+	 * @return The tag, or {@code null} if there is no such tag.
+	 * @throws IOException if the compound or the tag is malformed.
+	 */
+	public NBTBase getTag(String key) throws IOException {
+		Tag tag = find(key);
+		return tag == null ? null : NBTReader.readTag(tag.id, input(tag));
+	}
+	
+	/**
+	 * <p>Reads this whole compound into an NBT data structure.</p>
+	 * 
+	 * @return The compound tag.
+	 * @throws IOException if the compound is malformed.
+	 */
+	public NBTTagCompound toTagCompound() throws IOException {
+		synchronized (this) {
+			find(null);
+			NBTTagCompound compound = new NBTTagCompound();
+			for (Map.Entry<String, Tag> e : this.index.entrySet()) {
+				compound.setTag(e.getKey(), NBTReader.readTag(e.getValue().id, input(e.getValue())));
+			}
+			return compound;
+		}
+	}
+	
+	/**
+	 * <p>Looks up the child tag with the given name, indexing as many of the child tags as
+	 * needed to find it.</p>
+	 * 
+	 * @param key The name of the tag, or {@code null} to index all child tags.
+	 * @return The tag, or {@code null} if there is no such tag.
+	 * @throws IOException if the compound is malformed.
+	 */
+	synchronized Tag find(String key) throws IOException {
+		Tag tag = key == null ? null : this.index.get(key);
+		if (tag != null || this.scanned < 0) return tag;
+		BufferInput in = new BufferInput(this.buffer, this.scanned);
+		int id;
+		while ((id = in.readByte()) != NBTSerializer.NBT_TAG_END) {
+			String name = in.readUTF();
+			Tag t = new Tag(id, in.position());
+			NBTReader.skipPayload(id, in);
+			this.index.put(name, t);
+			this.scanned = in.position();
+			/*
+			 * Compounds are written from maps, so a name cannot appear twice, and the rest of
+			 * the compound can be left for later.
+			 */
+			if (name.equals(key)) return t;
+		}
+		this.scanned = -1;
+		return null;
+	}
+	
+	/**
+	 * <p>Creates an input that reads the payload of the given child tag.</p>
+	 * 
+	 * @param tag The tag.
+	 * @return An input positioned at the start of the payload.
+	 */
+	BufferInput input(Tag tag) {
+		return new BufferInput(this.buffer, tag.payload);
+	}
+	
+	/**
+	 * <p>The position of an indexed child tag.</p>
+	 */
+	static final class Tag {
+		/**
+		 * The NBT tag ID of the tag.
+		 */
+		final int id;
+		/**
+		 * The offset of the payload of the tag in the buffer.
+		 */
+		final int payload;
+		/**
+		 * The view of the tag, if it is a compound tag that has been looked up.
+		 */
+		NBTMappedCompound compound;
+		
+		Tag(int id, int payload) {
+			this.id = id;
+			this.payload = payload;
+		}
+	}
+}
@@ -0,0 +1,437 @@
+package info.varden.nbtserial;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import javax.management.openmbean.CompositeData;
+
+/**
+ * <p>Collects metrics of serialization and deserialization per class, to find out which
+ * {@link INBTSerializable} classes take up the most time, or produce the most data. Metrics
+ * are off by default, in which case the serializer does nothing more than check whether they
+ * are on. Once they are {@link #enable() enabled}, every instance that {@link NBTSerializer}
+ * serializes or deserializes is counted for its class, whether it is the instance passed to
+ * the serializer or one nested in it:</p>
+ * <ul>
+ * <li>How often instances were serialized and deserialized, and how many nanoseconds this
+ * took. The time includes that taken by the instances nested in them.</li>
+ * <li>How many fields were written, that is, how many tags were written directly into the
+ * compounds of the instances. The tags nested in those, such as the elements of lists, are
+ * not counted, and nested instances count their own fields.</li>
+ * <li>How many bytes were written for the instances, including nested ones, when they were
+ * written with {@link NBTSerializer#writeTo} to an {@link java.io.OutputStream} or a
+ * {@link java.io.DataOutputStream}, and how many of the serializations these bytes are for.
+ * The size of NBT data structures is not known until they are written, so it cannot be
+ * counted for {@link NBTSerializer#serialize}.</li>
+ * <li>How often serializing or deserializing an instance failed, by the kind of exception:
+ * an {@link UnserializableClassException} for a class that cannot be serialized, a
+ * {@link ClassCastException} for a tag of the wrong type or an {@link java.io.IOException}
+ * for malformed data or a stream that failed, or any other exception. A failure of a nested
+ * instance is a failure of the instances around it, too.</li>
+ * </ul>
+ * <p>The counters are {@link LongAdder}s, so threads that serialize at the same time do not
+ * contend on them. They are read with {@link #snapshot()}, or over JMX once
+ * {@link #registerMBean()} has been called. Classes are counted by name, so that the
+ * counters do not keep classes from being unloaded, and a class that is loaded again keeps
+ * its counters.</p>
+ * <p>Setting the {@code info.varden.nbtserial.metrics} system property to {@code true}
+ * enables metrics from the start.</p>
+ * 
+ * @author Marius
+ */
+public final class NBTMetrics {
+	/**
+	 * The name that {@link #registerMBean()} registers the MXBean under.
+	 */
+	public static final String OBJECT_NAME = "info.varden.nbtserial:type=NBTMetrics";
+	
+	/**
+	 * Whether metrics are collected.
+	 */
+	private static volatile boolean enabled = "true".equals(System.getProperty("info.varden.nbtserial.metrics"));
+	
+	/**
+	 * The counters of each class that has been counted, by class name.
+	 */
+	private static final ConcurrentHashMap<String, Counters> BY_NAME = new ConcurrentHashMap<String, Counters>();
+	
+	/**
+	 * The counters of each class, looked up once per class.
+	 */
+	private static final ClassValue<Counters> COUNTERS = new ClassValue<Counters>() {
+		@Override
+		protected Counters computeValue(Class<?> type) {
+			Counters created = new Counters(type.getName());
+			Counters existing = BY_NAME.putIfAbsent(type.getName(), created);
+			return existing != null ? existing : created;
+		}
+	};
+	
+	private NBTMetrics() {}
+	
+	/**
+	 * <p>Starts collecting metrics.</p>
+	 */
+	public static void enable() {
+		enabled = true;
+	}
+	
+	/**
+	 * <p>Stops collecting metrics. The metrics collected so far are kept.</p>
+	 */
+	public static void disable() {
+		enabled = false;
+	}
+	
+	/**
+	 * <p>Checks whether metrics are being collected.</p>
+	 * 
+	 * @return Whether metrics are being collected.
+	 */
+	public static boolean isEnabled() {
+		return enabled;
+	}
+	
+	/**
+	 * <p>Sets all counters back to zero. Counts that are made while this runs may or may not
+	 * be kept.</p>
+	 */
+	public static void reset() {
+		for (Counters c : BY_NAME.values()) c.reset();
+	}
+	
+	/**
+	 * <p>Reads the counters of all classes that have been counted since metrics were last
+	 * {@link #reset()}. The counters of a class are read one after the other while other
+	 * threads may still count, so they may be off by the operations that are in
+	 * progress.</p>
+	 * 
+	 * @return The metrics of each class, by class name, sorted by name.
+	 */
+	public static Map<String, Snapshot> snapshot() {
+		Map<String, Snapshot> snapshot = new TreeMap<String, Snapshot>();
+		for (Counters c : BY_NAME.values()) {
+			Snapshot s = c.snapshot();
+			if (s.serializations > 0 || s.deserializations > 0 || s.getFailures() > 0) snapshot.put(s.className, s);
+		}
+		return Collections.unmodifiableMap(snapshot);
+	}
+	
+	/**
+	 * <p>Registers an {@link NBTMetricsMXBean} with the platform MBean server under
+	 * {@link #OBJECT_NAME}, unless one is registered already. It lets metrics be read, reset
+	 * and turned on and off from JMX clients such as JConsole.</p>
+	 * 
+	 * @return The name the MXBean is registered under.
+	 * @throws JMException if the MXBean cannot be registered.
+	 */
+	public static synchronized ObjectName registerMBean() throws JMException {
+		MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+		ObjectName name = new ObjectName(OBJECT_NAME);
+		if (!server.isRegistered(name)) server.registerMBean(new MXBean(), name);
+		return name;
+	}
+	
+	/**
+	 * <p>Unregisters the MXBean registered by {@link #registerMBean()}, if there is one.</p>
+	 * 
+	 * @throws JMException if the MXBean cannot be unregistered.
+	 */
+	public static synchronized void unregisterMBean() throws JMException {
+		MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+		ObjectName name = new ObjectName(OBJECT_NAME);
+		if (server.isRegistered(name)) server.unregisterMBean(name);
+	}
+	
+	/**
+	 * <p>Gets the counters of the given class, if metrics are being collected. The serializer
+	 * calls this once for every instance it serializes or deserializes, and skips measuring
+	 * altogether if it returns {@code null}.</p>
+	 * 
+	 * @param type The class of the instance.
+	 * @return The counters of the class, or {@code null} if metrics are not being collected.
+	 */
+	static Counters of(Class<?> type) {
+		return enabled ? COUNTERS.get(type) : null;
+	}
+	
+	/**
+	 * <p>The counters of a single class.</p>
+	 */
+	static final class Counters {
+		private final String className;
+		private final LongAdder serializations = new LongAdder();
+		private final LongAdder serializationNanos = new LongAdder();
+		private final LongAdder deserializations = new LongAdder();
+		private final LongAdder deserializationNanos = new LongAdder();
+		private final LongAdder fieldsWritten = new LongAdder();
+		private final LongAdder bytesWritten = new LongAdder();
+		private final LongAdder sizedSerializations = new LongAdder();
+		private final LongAdder unserializableFailures = new LongAdder();
+		private final LongAdder dataFailures = new LongAdder();
+		private final LongAdder otherFailures = new LongAdder();
+		
+		private Counters(String className) {
+			this.className = className;
+		}
+		
+		/**
+		 * <p>Counts a serialization of an instance.</p>
+		 * 
+		 * @param nanos The nanoseconds it took.
+		 * @param fields The number of tags written for the fields of the instance.
+		 * @param bytes The number of bytes written, or {@code -1} if not known.
+		 */
+		void serialized(long nanos, int fields, long bytes) {
+			this.serializations.increment();
+			this.serializationNanos.add(nanos);
+			this.fieldsWritten.add(fields);
+			if (bytes >= 0) {
+				this.bytesWritten.add(bytes);
+				this.sizedSerializations.increment();
+			}
+		}
+		
+		/**
+		 * <p>Counts a deserialization of an instance.</p>
+		 * 
+		 * @param nanos The nanoseconds it took.
+		 */
+		void deserialized(long nanos) {
+			this.deserializations.increment();
+			this.deserializationNanos.add(nanos);
+		}
+		
+		/**
+		 * <p>Counts a serialization or deserialization of an instance that failed.</p>
+		 * 
+		 * @param t The exception it failed with.
+		 */
+		void failed(Throwable t) {
+			if (t instanceof UnserializableClassException) this.unserializableFailures.increment();
+			else if (t instanceof ClassCastException || t instanceof IOException || t instanceof UncheckedIOException) this.dataFailures.increment();
+			else this.otherFailures.increment();
+		}
+		
+		private void reset() {
+			this.serializations.reset();
+			this.serializationNanos.reset();
+			this.deserializations.reset();
+			this.deserializationNanos.reset();
+			this.fieldsWritten.reset();
+			this.bytesWritten.reset();
+			this.sizedSerializations.reset();
+			this.unserializableFailures.reset();
+			this.dataFailures.reset();
+			this.otherFailures.reset();
+		}
+		
+		private Snapshot snapshot() {
+			return new Snapshot(this.className, this.serializations.sum(), this.serializationNanos.sum(), this.deserializations.sum(), this.deserializationNanos.sum(), this.fieldsWritten.sum(), this.bytesWritten.sum(), this.sizedSerializations.sum(), this.unserializableFailures.sum(), this.dataFailures.sum(), this.otherFailures.sum());
+		}
+	}
+	
+	/**
+	 * <p>The metrics of a single class, as read by {@link NBTMetrics#snapshot()}.</p>
+	 */
+	public static final class Snapshot {
+		private final String className;
+		private final long serializations;
+		private final long serializationNanos;
+		private final long deserializations;
+		private final long deserializationNanos;
+		private final long fieldsWritten;
+		private final long bytesWritten;
+		private final long sizedSerializations;
+		private final long unserializableFailures;
+		private final long dataFailures;
+		private final long otherFailures;
+		
+		private Snapshot(String className, long serializations, long serializationNanos, long deserializations, long deserializationNanos, long fieldsWritten, long bytesWritten, long sizedSerializations, long unserializableFailures, long dataFailures, long otherFailures) {
+			this.className = className;
+			this.serializations = serializations;
+			this.serializationNanos = serializationNanos;
+			this.deserializations = deserializations;
+			this.deserializationNanos = deserializationNanos;
+			this.fieldsWritten = fieldsWritten;
+			this.bytesWritten = bytesWritten;
+			this.sizedSerializations = sizedSerializations;
+			this.unserializableFailures = unserializableFailures;
+			this.dataFailures = dataFailures;
+			this.otherFailures = otherFailures;
+		}
+		
+		/**
+		 * <p>Gets the name of the class.</p>
+		 * 
+		 * @return The name of the class.
+		 */
+		public String getClassName() {
+			return this.className;
+		}
+		
+		/**
+		 * <p>Gets the number of serializations.</p>
+		 * 
+		 * @return How many instances of the class were serialized.
+		 */
+		public long getSerializations() {
+			return this.serializations;
+		}
+		
+		/**
+		 * <p>Gets the time spent serializing.</p>
+		 * 
+		 * @return How many nanoseconds serializing the instances took in total, including
+		 * nested instances.
+		 */
+		public long getSerializationNanos() {
+			return this.serializationNanos;
+		}
+		
+		/**
+		 * <p>Gets the number of deserializations.</p>
+		 * 
+		 * @return How many instances of the class were deserialized.
+		 */
+		public long getDeserializations() {
+			return this.deserializations;
+		}
+		
+		/**
+		 * <p>Gets the time spent deserializing.</p>
+		 * 
+		 * @return How many nanoseconds deserializing the instances took in total, including
+		 * nested instances.
+		 */
+		public long getDeserializationNanos() {
+			return this.deserializationNanos;
+		}
+		
+		/**
+		 * <p>Gets the number of fields written.</p>
+		 * 
+		 * @return How many tags were written for the fields of the instances, not counting
+		 * the tags nested in them.
+		 */
+		public long getFieldsWritten() {
+			return this.fieldsWritten;
+		}
+		
+		/**
+		 * <p>Gets the number of bytes written.</p>
+		 * 
+		 * @return How many bytes were written for the instances, including nested instances,
+		 * in the serializations counted by {@link #getSizedSerializations()}.
+		 */
+		public long getBytesWritten() {
+			return this.bytesWritten;
+		}
+		
+		/**
+		 * <p>Gets the number of serializations whose bytes were counted.</p>
+		 * 
+		 * @return How many of the serializations wrote to a stream that counts its bytes, so
+		 * that dividing {@link #getBytesWritten()} by this gives the average size of an
+		 * instance.
+		 */
+		public long getSizedSerializations() {
+			return this.sizedSerializations;
+		}
+		
+		/**
+		 * <p>Gets the number of failures.</p>
+		 * 
+		 * @return How often serializing or deserializing an instance failed, for any reason.
+		 */
+		public long getFailures() {
+			return this.unserializableFailures + this.dataFailures + this.otherFailures;
+		}
+		
+		/**
+		 * <p>Gets the number of failures because of a class that cannot be serialized.</p>
+		 * 
+		 * @return How often serializing or deserializing an instance failed with an
+		 * {@link UnserializableClassException}.
+		 */
+		public long getUnserializableFailures() {
+			return this.unserializableFailures;
+		}
+		
+		/**
+		 * <p>Gets the number of failures because of the data.</p>
+		 * 
+		 * @return How often serializing or deserializing an instance failed with a
+		 * {@link ClassCastException} for a tag of the wrong type, or with an
+		 * {@link IOException} for malformed data or a stream that failed.
+		 */
+		public long getDataFailures() {
+			return this.dataFailures;
+		}
+		
+		/**
+		 * <p>Gets the number of failures for any other reason.</p>
+		 * 
+		 * @return How often serializing or deserializing an instance failed with any other
+		 * exception, such as an {@link IllegalAccessException} or an
+		 * {@link InstantiationException}.
+		 */
+		public long getOtherFailures() {
+			return this.otherFailures;
+		}
+		
+		/**
+		 * <p>Recreates a snapshot from the form that JMX clients receive it in, so that
+		 * {@link javax.management.JMX#newMXBeanProxy(javax.management.MBeanServerConnection, ObjectName, Class)
+		 * proxies} of the {@link NBTMetricsMXBean} can return snapshots.</p>
+		 * 
+		 * @param data The snapshot, as read over JMX.
+		 * @return The snapshot.
+		 */
+		public static Snapshot from(CompositeData data) {
+			return new Snapshot((String) data.get("className"), (Long) data.get("serializations"), (Long) data.get("serializationNanos"), (Long) data.get("deserializations"), (Long) data.get("deserializationNanos"), (Long) data.get("fieldsWritten"), (Long) data.get("bytesWritten"), (Long) data.get("sizedSerializations"), (Long) data.get("unserializableFailures"), (Long) data.get("dataFailures"), (Long) data.get("otherFailures"));
+		}
+		
+		@Override
+		public String toString() {
+			return this.className + "[serializations=" + this.serializations + ", serializationNanos=" + this.serializationNanos + ", deserializations=" + this.deserializations + ", deserializationNanos=" + this.deserializationNanos + ", fieldsWritten=" + this.fieldsWritten + ", bytesWritten=" + this.bytesWritten + ", sizedSerializations=" + this.sizedSerializations + ", unserializableFailures=" + this.unserializableFailures + ", dataFailures=" + this.dataFailures + ", otherFailures=" + this.otherFailures + "]";
+		}
+	}
+	
+	/**
+	 * <p>The MXBean registered by {@link NBTMetrics#registerMBean()}.</p>
+	 */
+	private static final class MXBean implements NBTMetricsMXBean {
+		@Override
+		public boolean isEnabled() {
+			return NBTMetrics.isEnabled();
+		}
+		
+		@Override
+		public void setEnabled(boolean enabled) {
+			if (enabled) enable();
+			else disable();
+		}
+		
+		@Override
+		public List<Snapshot> getClasses() {
+			return new ArrayList<Snapshot>(snapshot().values());
+		}
+		
+		@Override
+		public void reset() {
+			NBTMetrics.reset();
+		}
+	}
+}
@@ -0,0 +1,40 @@
+package info.varden.nbtserial;
+
+import java.util.List;
+
+/**
+ * <p>The management interface of {@link NBTMetrics}, as registered with the platform MBean
+ * server by {@link NBTMetrics#registerMBean()}.</p>
+ * 
+ * @author Marius
+ */
+public interface NBTMetricsMXBean {
+	/**
+	 * <p>Checks whether metrics are being collected.</p>
+	 * 
+	 * @return Whether metrics are being collected.
+	 */
+	boolean isEnabled();
+	
+	/**
+	 * <p>Starts or stops collecting metrics.</p>
+	 * 
+	 * @param enabled Whether metrics should be collected.
+	 */
+	void setEnabled(boolean enabled);
+	
+	/**
+	 * <p>Reads the metrics of all classes that have been counted. See
+	 * {@link NBTMetrics#snapshot()}. JMX clients see each {@link NBTMetrics.Snapshot} as
+	 * composite data with an item for each of its getters, such as {@code fieldsWritten},
+	 * {@code sizedSerializations} and the failures by kind of exception.</p>
+	 * 
+	 * @return The metrics of each class, sorted by class name.
+	 */
+	List<NBTMetrics.Snapshot> getClasses();
+	
+	/**
+	 * <p>Sets all counters back to zero. See {@link NBTMetrics#reset()}.</p>
+	 */
+	void reset();
+}
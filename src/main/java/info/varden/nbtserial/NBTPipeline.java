@@ -0,0 +1,908 @@
+package info.varden.nbtserial;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.List;
+import java.util.zip.CRC32;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+import java.util.zip.ZipException;
+
+import net.minecraft.nbt.NBTTagCompound;
+
+/**
+ * <p>Serializes {@link INBTSerializable} instances and compound tags straight to compressed
+ * bytes, and back. A pipeline takes the place of the usual chain of
+ * {@link NBTSerializer#serialize}, {@link net.minecraft.nbt.CompressedStreamTools} and
+ * {@link java.util.zip.GZIPOutputStream}, which creates a new NBT data structure, new
+ * buffers and a new native compressor every time:</p>
+ * <pre>
+ * NBTPipeline pipeline = NBTPipeline.of(NBTCompression.LZ4);
+ * byte[] data = pipeline.encode(message);
+ * ...
+ * PacketMessage received = pipeline.decode(PacketMessage.class, data);
+ * </pre>
+ * <p>Each thread has its own buffers and {@link Deflater}s and {@link Inflater}s, which every
+ * pipeline on the thread reuses, so that encoding and decoding allocates little more than
+ * the result itself. Buffers that have grown beyond 1 MiB for an unusually large instance are
+ * not kept.</p>
+ * <p>Data can be written as it is, for files and other containers that know its length, or
+ * in {@link #writeFrame(INBTSerializable, OutputStream) frames} for streams that carry one
+ * instance after another, such as network connections. A frame is the compressed data
+ * preceded by its length, as a big-endian int.</p>
+ * <p>Pipelines are immutable and may be shared between threads.</p>
+ * 
+ * @author Marius
+ */
+public final class NBTPipeline {
+	/**
+	 * The largest frame that a pipeline reads or writes, unless
+	 * {@link #withMaxFrameLength(int) set} otherwise: 16 MiB.
+	 */
+	public static final int DEFAULT_MAX_FRAME_LENGTH = 16 << 20;
+	
+	/**
+	 * The header that {@link java.util.zip.GZIPOutputStream} writes: the magic number, the
+	 * DEFLATE method, no flags, no modification time, no extra flags and an unknown operating
+	 * system.
+	 */
+	private static final byte[] GZIP_HEADER = { 0x1F, (byte) 0x8B, Deflater.DEFLATED, 0, 0, 0, 0, 0, 0, (byte) 0xFF };
+	
+	/*
+	 * The flags of a GZIP header that announce optional fields.
+	 */
+	private static final int FHCRC = 2;
+	private static final int FEXTRA = 4;
+	private static final int FNAME = 8;
+	private static final int FCOMMENT = 16;
+	
+	/**
+	 * The buffers of each thread.
+	 */
+	private static final ThreadLocal<Buffers> BUFFERS = new ThreadLocal<Buffers>() {
+		@Override
+		protected Buffers initialValue() {
+			return new Buffers(true);
+		}
+	};
+	
+	private final NBTCompression compression;
+	private final int level;
+	private final int maxFrameLength;
+	
+	private NBTPipeline(NBTCompression compression, int level, int maxFrameLength) {
+		this.compression = compression;
+		this.level = level;
+		this.maxFrameLength = maxFrameLength;
+	}
+	
+	/**
+	 * <p>Gets a pipeline that writes data in the given format, at the default level of
+	 * compression.</p>
+	 * 
+	 * @param compression The compression format.
+	 * @return The pipeline.
+	 */
+	public static NBTPipeline of(NBTCompression compression) {
+		return of(compression, Deflater.DEFAULT_COMPRESSION);
+	}
+	
+	/**
+	 * <p>Gets a pipeline that writes data in the given format, at the given level of
+	 * compression.</p>
+	 * 
+	 * @param compression The compression format.
+	 * @param level The level of compression of {@link NBTCompression#GZIP} and
+	 * {@link NBTCompression#DEFLATE}, from {@link Deflater#BEST_SPEED} (1) to
+	 * {@link Deflater#BEST_COMPRESSION} (9), or {@link Deflater#DEFAULT_COMPRESSION} (-1). The
+	 * other formats have no levels, and ignore it.
+	 * @return The pipeline.
+	 */
+	public static NBTPipeline of(NBTCompression compression, int level) {
+		if (compression == null) throw new IllegalArgumentException("Compression must not be null");
+		if (level < Deflater.DEFAULT_COMPRESSION || level > Deflater.BEST_COMPRESSION) throw new IllegalArgumentException("Invalid compression level " + level);
+		return new NBTPipeline(compression, level, DEFAULT_MAX_FRAME_LENGTH);
+	}
+	
+	/**
+	 * <p>Gets a pipeline like this one that reads and writes frames of up to the given
+	 * length. Frames that claim to be longer are rejected before they are read, so that a
+	 * corrupt or hostile stream cannot make the pipeline allocate huge buffers.</p>
+	 * 
+	 * @param maxFrameLength The largest length of a frame, in bytes, excluding the length
+	 * itself.
+	 * @return The pipeline.
+	 */
+	public NBTPipeline withMaxFrameLength(int maxFrameLength) {
+		if (maxFrameLength < 1) throw new IllegalArgumentException("Maximum frame length must be positive");
+		return new NBTPipeline(this.compression, this.level, maxFrameLength);
+	}
+	
+	/**
+	 * <p>Gets the compression format that this pipeline writes.</p>
+	 * 
+	 * @return The compression format.
+	 */
+	public NBTCompression getCompression() {
+		return this.compression;
+	}
+	
+	/**
+	 * <p>Gets the level of compression of this pipeline.</p>
+	 * 
+	 * @return The level, or {@link Deflater#DEFAULT_COMPRESSION}.
+	 */
+	public int getLevel() {
+		return this.level;
+	}
+	
+	/**
+	 * <p>Gets the largest length of the frames that this pipeline reads and writes.</p>
+	 * 
+	 * @return The length, in bytes.
+	 */
+	public int getMaxFrameLength() {
+		return this.maxFrameLength;
+	}
+	
+	/**
+	 * <p>Serializes the given {@link INBTSerializable} instance as an unnamed root compound
+	 * tag, and compresses it. See
+	 * {@link NBTSerializer#writeTo(INBTSerializable, DataOutput)}.</p>
+	 * 
+	 * @param object An {@link INBTSerializable} instance.
+	 * @return The compressed data.
+	 * @throws IOException if compressing the data fails.
+	 * @throws IllegalAccessException if a Field object in a serializable class is enforcing
+	 * Java language access control and the underlying field is inaccessible.
+	 * @throws UnserializableClassException if an attempt is made to serialize a class that is
+	 * not natively supported by the serializer and does not implement INBTSerializable.
+	 */
+	public byte[] encode(INBTSerializable object) throws IOException, IllegalAccessException, UnserializableClassException {
+		Buffers b = acquire();
+		try {
+			NBTWriter.writeRoot(object, b.plain.output(), false);
+			Bytes data = compress(b);
+			return Arrays.copyOfRange(data.array, Bytes.START, data.length);
+		} finally {
+			release(b);
+		}
+	}
+	
+	/**
+	 * <p>Writes the given compound tag as an unnamed root compound tag, and compresses it.</p>
+	 * 
+	 * @param tag The compound tag.
+	 * @return The compressed data.
+	 * @throws IOException if compressing the data fails.
+	 */
+	public byte[] encode(NBTTagCompound tag) throws IOException {
+		Buffers b = acquire();
+		try {
+			writeTag(tag, b.plain.output());
+			Bytes data = compress(b);
+			return Arrays.copyOfRange(data.array, Bytes.START, data.length);
+		} finally {
+			release(b);
+		}
+	}
+	
+	/**
+	 * <p>Serializes the given {@link INBTSerializable} instance, compresses it, and writes it
+	 * to a stream. See {@link #encode(INBTSerializable)}.</p>
+	 * <p>The data is written in one go, and the stream is neither flushed nor closed.</p>
+	 * 
+	 * @param object An {@link INBTSerializable} instance.
+	 * @param out The stream to write to.
+	 * @throws IOException if compressing the data or writing to the stream fails.
+	 * @throws IllegalAccessException see {@link #encode(INBTSerializable)}.
+	 * @throws UnserializableClassException see {@link #encode(INBTSerializable)}.
+	 */
+	public void write(INBTSerializable object, OutputStream out) throws IOException, IllegalAccessException, UnserializableClassException {
+		Buffers b = acquire();
+		try {
+			NBTWriter.writeRoot(object, b.plain.output(), false);
+			Bytes data = compress(b);
+			out.write(data.array, Bytes.START, data.length - Bytes.START);
+		} finally {
+			release(b);
+		}
+	}
+	
+	/**
+	 * <p>Writes the given compound tag, compressed, to a stream. See
+	 * {@link #encode(NBTTagCompound)}.</p>
+	 * <p>The data is written in one go, and the stream is neither flushed nor closed.</p>
+	 * 
+	 * @param tag The compound tag.
+	 * @param out The stream to write to.
+	 * @throws IOException if compressing the data or writing to the stream fails.
+	 */
+	public void write(NBTTagCompound tag, OutputStream out) throws IOException {
+		Buffers b = acquire();
+		try {
+			writeTag(tag, b.plain.output());
+			Bytes data = compress(b);
+			out.write(data.array, Bytes.START, data.length - Bytes.START);
+		} finally {
+			release(b);
+		}
+	}
+	
+	/**
+	 * <p>Serializes the given {@link INBTSerializable} instance, compresses it, and writes it
+	 * to a stream as a frame: the length of the compressed data, followed by the data. See
+	 * {@link #encode(INBTSerializable)}.</p>
+	 * <p>The frame is written in one go, and the stream is neither flushed nor closed.</p>
+	 * 
+	 * @param object An {@link INBTSerializable} instance.
+	 * @param out The stream to write to.
+	 * @throws IOException if compressing the data or writing to the stream fails, or if the
+	 * compressed data is longer than the {@link #getMaxFrameLength() maximum frame length}.
+	 * @throws IllegalAccessException see {@link #encode(INBTSerializable)}.
+	 * @throws UnserializableClassException see {@link #encode(INBTSerializable)}.
+	 */
+	public void writeFrame(INBTSerializable object, OutputStream out) throws IOException, IllegalAccessException, UnserializableClassException {
+		Buffers b = acquire();
+		try {
+			NBTWriter.writeRoot(object, b.plain.output(), false);
+			writeFrame(compress(b), out);
+		} finally {
+			release(b);
+		}
+	}
+	
+	/**
+	 * <p>Writes the given compound tag, compressed, to a stream as a frame. See
+	 * {@link #writeFrame(INBTSerializable, OutputStream)}.</p>
+	 * 
+	 * @param tag The compound tag.
+	 * @param out The stream to write to.
+	 * @throws IOException if compressing the data or writing to the stream fails, or if the
+	 * compressed data is longer than the {@link #getMaxFrameLength() maximum frame length}.
+	 */
+	public void writeFrame(NBTTagCompound tag, OutputStream out) throws IOException {
+		Buffers b = acquire();
+		try {
+			writeTag(tag, b.plain.output());
+			writeFrame(compress(b), out);
+		} finally {
+			release(b);
+		}
+	}
+	
+	/**
+	 * <p>Decompresses the given data, and deserializes an {@link INBTSerializable} instance
+	 * from it. See {@link NBTSerializer#readFrom(Class, DataInput)}.</p>
+	 * 
+	 * @param definition The {@link INBTSerializable} class structure to use for
+	 * deserialization.
+	 * @param data The compressed data.
+	 * @return A deserialized instance of the given class definition.
+	 * @throws IOException if the data cannot be decompressed, or does not hold a valid
+	 * compound tag.
+	 * @throws IllegalAccessException if a Field object in a serializable class is enforcing
+	 * Java language access control and the underlying field is inaccessible, or if the
+	 * constructor for a serializable class or {@link List} is inaccessible.
+	 * @throws InstantiationException if a serializable or {@link List} class represents
+	 * an abstract class, an interface, an array class, a primitive type, or void; or if the
+	 * class has no nullary constructor; or if the instantiation fails for some other reason.
+	 * @throws UnserializableClassException if an attempt is made to deserialize a class that
+	 * is not natively supported by the serializer and does not implement INBTSerializable.
+	 */
+	public <T extends INBTSerializable> T decode(Class<T> definition, byte[] data) throws IOException, IllegalAccessException, InstantiationException, UnserializableClassException {
+		return decode(definition, data, 0, data.length);
+	}
+	
+	/**
+	 * <p>Decompresses the given range of an array, and deserializes an
+	 * {@link INBTSerializable} instance from it. See {@link #decode(Class, byte[])}.</p>
+	 * 
+	 * @param definition The {@link INBTSerializable} class structure to use for
+	 * deserialization.
+	 * @param data The array that holds the compressed data.
+	 * @param offset The offset of the compressed data.
+	 * @param length The length of the compressed data.
+	 * @return A deserialized instance of the given class definition.
+	 * @throws IOException see {@link #decode(Class, byte[])}.
+	 * @throws IllegalAccessException see {@link #decode(Class, byte[])}.
+	 * @throws InstantiationException see {@link #decode(Class, byte[])}.
+	 * @throws UnserializableClassException see {@link #decode(Class, byte[])}.
+	 */
+	public <T extends INBTSerializable> T decode(Class<T> definition, byte[] data, int offset, int length) throws IOException, IllegalAccessException, InstantiationException, UnserializableClassException {
+		if (offset < 0 || length < 0 || length > data.length - offset) throw new IndexOutOfBoundsException();
+		Buffers b = acquire();
+		try {
+			return readObject(definition, decompress(b, data, offset, length));
+		} finally {
+			release(b);
+		}
+	}
+	
+	/**
+	 * <p>Decompresses the given data, and reads the root compound tag that it holds.</p>
+	 * 
+	 * @param data The compressed data.
+	 * @return The compound tag.
+	 * @throws IOException if the data cannot be decompressed, or does not hold a valid
+	 * compound tag.
+	 */
+	public NBTTagCompound decode(byte[] data) throws IOException {
+		Buffers b = acquire();
+		try {
+			return readTag(decompress(b, data, 0, data.length));
+		} finally {
+			release(b);
+		}
+	}
+	
+	/**
+	 * <p>Reads compressed data from a stream until it ends, and deserializes an
+	 * {@link INBTSerializable} instance from it. See {@link #decode(Class, byte[])}.</p>
+	 * <p>The stream is not closed.</p>
+	 * 
+	 * @param definition The {@link INBTSerializable} class structure to use for
+	 * deserialization.
+	 * @param in The stream to read from.
+	 * @return A deserialized instance of the given class definition.
+	 * @throws IOException if reading from the stream fails, or if the data cannot be
+	 * decompressed, or does not hold a valid compound tag.
+	 * @throws IllegalAccessException see {@link #decode(Class, byte[])}.
+	 * @throws InstantiationException see {@link #decode(Class, byte[])}.
+	 * @throws UnserializableClassException see {@link #decode(Class, byte[])}.
+	 */
+	public <T extends INBTSerializable> T read(Class<T> definition, InputStream in) throws IOException, IllegalAccessException, InstantiationException, UnserializableClassException {
+		Buffers b = acquire();
+		try {
+			b.packed.readFrom(in);
+			return readObject(definition, decompress(b, b.packed.array, Bytes.START, b.packed.length - Bytes.START));
+		} finally {
+			release(b);
+		}
+	}
+	
+	/**
+	 * <p>Reads compressed data from a stream until it ends, and reads the root compound tag
+	 * that it holds. See {@link #decode(byte[])}.</p>
+	 * <p>The stream is not closed.</p>
+	 * 
+	 * @param in The stream to read from.
+	 * @return The compound tag.
+	 * @throws IOException if reading from the stream fails, or if the data cannot be
+	 * decompressed, or does not hold a valid compound tag.
+	 */
+	public NBTTagCompound read(InputStream in) throws IOException {
+		Buffers b = acquire();
+		try {
+			b.packed.readFrom(in);
+			return readTag(decompress(b, b.packed.array, Bytes.START, b.packed.length - Bytes.START));
+		} finally {
+			release(b);
+		}
+	}
+	
+	/**
+	 * <p>Reads one frame from a stream, as written by
+	 * {@link #writeFrame(INBTSerializable, OutputStream)}, and deserializes an
+	 * {@link INBTSerializable} instance from it. No more bytes than the frame takes up are
+	 * read from the stream.</p>
+	 * 
+	 * @param definition The {@link INBTSerializable} class structure to use for
+	 * deserialization.
+	 * @param in The stream to read from.
+	 * @return A deserialized instance of the given class definition.
+	 * @throws EOFException if the stream ends before the end of the frame.
+	 * @throws IOException if reading from the stream fails, if the frame is longer than the
+	 * {@link #getMaxFrameLength() maximum frame length}, or if its data cannot be
+	 * decompressed, or does not hold a valid compound tag.
+	 * @throws IllegalAccessException see {@link #decode(Class, byte[])}.
+	 * @throws InstantiationException see {@link #decode(Class, byte[])}.
+	 * @throws UnserializableClassException see {@link #decode(Class, byte[])}.
+	 */
+	public <T extends INBTSerializable> T readFrame(Class<T> definition, InputStream in) throws IOException, IllegalAccessException, InstantiationException, UnserializableClassException {
+		Buffers b = acquire();
+		try {
+			readFrame(b.packed, in);
+			return readObject(definition, decompress(b, b.packed.array, Bytes.START, b.packed.length - Bytes.START));
+		} finally {
+			release(b);
+		}
+	}
+	
+	/**
+	 * <p>Reads one frame from a stream, and reads the root compound tag that it holds. See
+	 * {@link #readFrame(Class, InputStream)}.</p>
+	 * 
+	 * @param in The stream to read from.
+	 * @return The compound tag.
+	 * @throws EOFException if the stream ends before the end of the frame.
+	 * @throws IOException if reading from the stream fails, if the frame is longer than the
+	 * {@link #getMaxFrameLength() maximum frame length}, or if its data cannot be
+	 * decompressed, or does not hold a valid compound tag.
+	 */
+	public NBTTagCompound readFrame(InputStream in) throws IOException {
+		Buffers b = acquire();
+		try {
+			readFrame(b.packed, in);
+			return readTag(decompress(b, b.packed.array, Bytes.START, b.packed.length - Bytes.START));
+		} finally {
+			release(b);
+		}
+	}
+	
+	/**
+	 * <p>Writes a compound tag as an unnamed root compound tag, the way
+	 * {@link net.minecraft.nbt.CompressedStreamTools#write} does.</p>
+	 * 
+	 * @param tag The compound tag.
+	 * @param out The stream to write to.
+	 * @throws IOException if writing to the stream fails.
+	 */
+	private static void writeTag(NBTTagCompound tag, DataOutput out) throws IOException {
+		out.writeByte(NBTSerializer.NBT_TAG_COMPOUND);
+		out.writeUTF("");
+		NBTWriter.writePayload(tag, out);
+	}
+	
+	/**
+	 * <p>Reads an unnamed root compound tag.</p>
+	 * 
+	 * @param in The input to read from.
+	 * @return The compound tag.
+	 * @throws IOException if the input does not hold a valid compound tag.
+	 */
+	private static NBTTagCompound readTag(DataInput in) throws IOException {
+		int id = in.readByte();
+		/*
+		 * An end tag at the root is how an empty compound is written.
+		 */
+		if (id == NBTSerializer.NBT_TAG_END) return new NBTTagCompound();
+		if (id != NBTSerializer.NBT_TAG_COMPOUND) throw new IOException("Root tag must be a compound tag, got tag of type " + id);
+		NBTReader.skipString(in);
+		return (NBTTagCompound) NBTReader.readTag(id, in);
+	}
+	
+	private static <T extends INBTSerializable> T readObject(Class<T> definition, DataInput in) throws IOException, IllegalAccessException, InstantiationException, UnserializableClassException {
+		T instance = NBTInstances.newInstance(definition);
+		NBTReader.readRoot(instance, in, true);
+		return instance;
+	}
+	
+	/**
+	 * <p>Writes compressed data as a frame, in one go.</p>
+	 * 
+	 * @param data The compressed data, with room for the length before it.
+	 * @param out The stream to write to.
+	 * @throws IOException if writing to the stream fails, or if the data is too long.
+	 */
+	private void writeFrame(Bytes data, OutputStream out) throws IOException {
+		int length = data.length - Bytes.START;
+		if (length > this.maxFrameLength) throw new IOException("Frame of " + length + " bytes exceeds the maximum frame length of " + this.maxFrameLength + " bytes");
+		writeIntBE(data.array, 0, length);
+		out.write(data.array, 0, data.length);
+	}
+	
+	/**
+	 * <p>Reads a frame into the given buffer.</p>
+	 * 
+	 * @param data The buffer.
+	 * @param in The stream to read from.
+	 * @throws IOException if reading from the stream fails, or if the frame is too long.
+	 */
+	private void readFrame(Bytes data, InputStream in) throws IOException {
+		data.readFrom(in, 4);
+		int length = readIntBE(data.array, Bytes.START);
+		if (length < 0 || length > this.maxFrameLength) throw new IOException("Frame of " + (length & 0xFFFFFFFFL) + " bytes exceeds the maximum frame length of " + this.maxFrameLength + " bytes");
+		data.length = Bytes.START;
+		data.readFrom(in, length);
+	}
+	
+	/**
+	 * <p>Compresses the uncompressed data in the {@link Buffers#plain plain} buffer.</p>
+	 * 
+	 * @param b The buffers of the current thread.
+	 * @return The buffer that holds the compressed data, starting at {@link Bytes#START}.
+	 * @throws IOException if compression fails.
+	 */
+	private Bytes compress(Buffers b) throws IOException {
+		Bytes plain = b.plain;
+		Bytes packed = b.packed;
+		int length = plain.length - Bytes.START;
+		switch (this.compression) {
+		case GZIP:
+			packed.write(GZIP_HEADER);
+			deflate(b.deflater(this.level, true), plain, packed);
+			b.crc.reset();
+			b.crc.update(plain.array, Bytes.START, length);
+			packed.ensure(8);
+			writeIntLE(packed.array, packed.length, (int) b.crc.getValue());
+			writeIntLE(packed.array, packed.length + 4, length);
+			packed.length += 8;
+			return packed;
+		case DEFLATE:
+			deflate(b.deflater(this.level, false), plain, packed);
+			return packed;
+		case LZ4:
+			packed.ensure(4 + LZ4Block.maxCompressedLength(length));
+			writeIntBE(packed.array, packed.length, length);
+			packed.length += 4;
+			packed.length += LZ4Block.compress(plain.array, Bytes.START, length, packed.array, packed.length, b.lz4Table());
+			return packed;
+		default:
+			return plain;
+		}
+	}
+	
+	/**
+	 * <p>Decompresses the given data into the {@link Buffers#plain plain} buffer.</p>
+	 * 
+	 * @param b The buffers of the current thread.
+	 * @param data The array that holds the compressed data.
+	 * @param offset The offset of the compressed data.
+	 * @param length The length of the compressed data.
+	 * @return An input over the uncompressed data. It copies byte and int arrays, since the
+	 * buffer it reads from is reused.
+	 * @throws IOException if the data cannot be decompressed.
+	 */
+	private BufferInput decompress(Buffers b, byte[] data, int offset, int length) throws IOException {
+		Bytes plain = b.plain;
+		switch (this.compression) {
+		case GZIP:
+			inflateGzip(b, data, offset, length);
+			break;
+		case DEFLATE:
+			if (inflate(b.inflater(false), data, offset, length, plain) != offset + length) throw new ZipException("Trailing data after zlib stream");
+			break;
+		case LZ4: {
+			if (length < 4) throw new EOFException();
+			int size = readIntBE(data, offset);
+			/*
+			 * Every byte of an LZ4 block decompresses to at most 255 bytes, so a larger size
+			 * is corrupt, and must not be allocated.
+			 */
+			if (size < 0 || size > (length - 4) * 255L) throw new ZipException("Malformed LZ4 block");
+			plain.ensure(size);
+			LZ4Block.decompress(data, offset + 4, length - 4, plain.array, plain.length, size);
+			plain.length += size;
+			break;
+		}
+		default:
+			return new BufferInput(ByteBuffer.wrap(data, offset, length).slice(), 0, false);
+		}
+		return new BufferInput(ByteBuffer.wrap(plain.array, Bytes.START, plain.length - Bytes.START).slice(), 0, false);
+	}
+	
+	/**
+	 * <p>Compresses all data in one buffer with a {@link Deflater}, and appends it to
+	 * another.</p>
+	 * 
+	 * @param deflater The deflater.
+	 * @param src The buffer to compress.
+	 * @param dst The buffer to append to.
+	 */
+	private static void deflate(Deflater deflater, Bytes src, Bytes dst) {
+		deflater.reset();
+		deflater.setInput(src.array, Bytes.START, src.length - Bytes.START);
+		deflater.finish();
+		dst.ensure(src.length / 2 + 64);
+		while (!deflater.finished()) {
+			if (dst.length == dst.array.length) dst.ensure(dst.array.length);
+			dst.length += deflater.deflate(dst.array, dst.length, dst.array.length - dst.length);
+		}
+	}
+	
+	/**
+	 * <p>Decompresses data with an {@link Inflater}, and appends it to a buffer.</p>
+	 * 
+	 * @param inflater The inflater.
+	 * @param data The array that holds the compressed data.
+	 * @param offset The offset of the compressed data.
+	 * @param length The length of the compressed data, and possibly more bytes after it.
+	 * @param dst The buffer to append to.
+	 * @return The offset of the first byte after the compressed data.
+	 * @throws IOException if the data cannot be decompressed.
+	 */
+	private static int inflate(Inflater inflater, byte[] data, int offset, int length, Bytes dst) throws IOException {
+		inflater.reset();
+		inflater.setInput(data, offset, length);
+		dst.ensure(length * 2 < 0 ? length : length * 2);
+		try {
+			while (!inflater.finished()) {
+				if (dst.length == dst.array.length) dst.ensure(dst.array.length);
+				int n = inflater.inflate(dst.array, dst.length, dst.array.length - dst.length);
+				if (n == 0 && (inflater.needsInput() || inflater.needsDictionary())) throw new EOFException("Unexpected end of compressed data");
+				dst.length += n;
+			}
+		} catch (DataFormatException e) {
+			throw new ZipException(e.getMessage() != null ? e.getMessage() : "Invalid compressed data");
+		}
+		return offset + length - inflater.getRemaining();
+	}
+	
+	/**
+	 * <p>Decompresses GZIP data into the {@link Buffers#plain plain} buffer. Like
+	 * {@link java.util.zip.GZIPInputStream}, this accepts headers with optional fields, and
+	 * several GZIP members one after another, which are decompressed into one.</p>
+	 * 
+	 * @param b The buffers of the current thread.
+	 * @param data The array that holds the compressed data.
+	 * @param offset The offset of the compressed data.
+	 * @param length The length of the compressed data.
+	 * @throws IOException if the data cannot be decompressed.
+	 */
+	private static void inflateGzip(Buffers b, byte[] data, int offset, int length) throws IOException {
+		Bytes plain = b.plain;
+		int end = offset + length;
+		int pos = offset;
+		do {
+			pos = skipGzipHeader(data, pos, end);
+			int start = plain.length;
+			pos = inflate(b.inflater(true), data, pos, end - pos, plain);
+			if (end - pos < 8) throw new EOFException("Unexpected end of GZIP trailer");
+			b.crc.reset();
+			b.crc.update(plain.array, start, plain.length - start);
+			if (readIntLE(data, pos) != (int) b.crc.getValue() || readIntLE(data, pos + 4) != plain.length - start) throw new ZipException("Corrupt GZIP trailer");
+			pos += 8;
+		} while (end - pos >= 2 && data[pos] == GZIP_HEADER[0] && data[pos + 1] == GZIP_HEADER[1]);
+	}
+	
+	/**
+	 * <p>Checks a GZIP header, and skips over it.</p>
+	 * 
+	 * @param data The array that holds the header.
+	 * @param pos The offset of the header.
+	 * @param end The offset of the end of the data.
+	 * @return The offset of the first byte after the header.
+	 * @throws IOException if the header is not valid.
+	 */
+	private static int skipGzipHeader(byte[] data, int pos, int end) throws IOException {
+		if (end - pos < 10) throw new EOFException("Unexpected end of GZIP header");
+		if (data[pos] != GZIP_HEADER[0] || data[pos + 1] != GZIP_HEADER[1]) throw new ZipException("Not in GZIP format");
+		if (data[pos + 2] != Deflater.DEFLATED) throw new ZipException("Unsupported compression method");
+		int flags = data[pos + 3];
+		pos += 10;
+		if ((flags & FEXTRA) != 0) {
+			if (end - pos < 2) throw new EOFException("Unexpected end of GZIP header");
+			pos += 2 + (data[pos] & 0xFF | (data[pos + 1] & 0xFF) << 8);
+		}
+		if ((flags & FNAME) != 0) pos = skipZeroTerminated(data, pos, end);
+		if ((flags & FCOMMENT) != 0) pos = skipZeroTerminated(data, pos, end);
+		if ((flags & FHCRC) != 0) pos += 2;
+		if (pos > end) throw new EOFException("Unexpected end of GZIP header");
+		return pos;
+	}
+	
+	private static int skipZeroTerminated(byte[] data, int pos, int end) throws EOFException {
+		while (pos < end && data[pos] != 0) pos++;
+		if (pos >= end) throw new EOFException("Unexpected end of GZIP header");
+		return pos + 1;
+	}
+	
+	private static int readIntBE(byte[] b, int i) {
+		return b[i] << 24 | (b[i + 1] & 0xFF) << 16 | (b[i + 2] & 0xFF) << 8 | b[i + 3] & 0xFF;
+	}
+	
+	private static void writeIntBE(byte[] b, int i, int v) {
+		b[i] = (byte) (v >>> 24);
+		b[i + 1] = (byte) (v >>> 16);
+		b[i + 2] = (byte) (v >>> 8);
+		b[i + 3] = (byte) v;
+	}
+	
+	private static int readIntLE(byte[] b, int i) {
+		return b[i] & 0xFF | (b[i + 1] & 0xFF) << 8 | (b[i + 2] & 0xFF) << 16 | b[i + 3] << 24;
+	}
+	
+	private static void writeIntLE(byte[] b, int i, int v) {
+		b[i] = (byte) v;
+		b[i + 1] = (byte) (v >>> 8);
+		b[i + 2] = (byte) (v >>> 16);
+		b[i + 3] = (byte) (v >>> 24);
+	}
+	
+	/**
+	 * <p>Takes the buffers of the current thread. If they are already in use further up the
+	 * stack, e.g. by a codec that encodes a field with a pipeline of its own, a new set is
+	 * created for the call.</p>
+	 * 
+	 * @return The buffers, emptied.
+	 */
+	private static Buffers acquire() {
+		Buffers b = BUFFERS.get();
+		if (b.busy) return new Buffers(false);
+		b.busy = true;
+		return b;
+	}
+	
+	/**
+	 * <p>Gives back buffers taken with {@link #acquire()}.</p>
+	 * 
+	 * @param b The buffers.
+	 */
+	private static void release(Buffers b) {
+		if (b.retained) {
+			b.plain.clear();
+			b.packed.clear();
+			b.busy = false;
+		} else {
+			b.end();
+		}
+	}
+	
+	/**
+	 * <p>The reusable buffers and compressors of a thread.</p>
+	 */
+	private static final class Buffers {
+		/**
+		 * The uncompressed data.
+		 */
+		final Bytes plain = new Bytes();
+		/**
+		 * The compressed data.
+		 */
+		final Bytes packed = new Bytes();
+		final CRC32 crc = new CRC32();
+		/**
+		 * Whether these are the buffers of the thread, rather than ones created for a single
+		 * call.
+		 */
+		final boolean retained;
+		/**
+		 * Whether the buffers are in use.
+		 */
+		boolean busy;
+		
+		/*
+		 * Created as they are needed. There is a deflater for each level and format, so that
+		 * changing levels never leaves a deflater with a level that it has not been reset to.
+		 */
+		private final Deflater[] gzipDeflaters = new Deflater[11];
+		private final Deflater[] zlibDeflaters = new Deflater[11];
+		private Inflater gzipInflater;
+		private Inflater zlibInflater;
+		private int[] lz4Table;
+		
+		Buffers(boolean retained) {
+			this.retained = retained;
+		}
+		
+		Deflater deflater(int level, boolean nowrap) {
+			Deflater[] deflaters = nowrap ? this.gzipDeflaters : this.zlibDeflaters;
+			Deflater deflater = deflaters[level + 1];
+			if (deflater == null) deflater = deflaters[level + 1] = new Deflater(level, nowrap);
+			return deflater;
+		}
+		
+		Inflater inflater(boolean nowrap) {
+			if (nowrap) {
+				if (this.gzipInflater == null) this.gzipInflater = new Inflater(true);
+				return this.gzipInflater;
+			}
+			if (this.zlibInflater == null) this.zlibInflater = new Inflater(false);
+			return this.zlibInflater;
+		}
+		
+		int[] lz4Table() {
+			if (this.lz4Table == null) this.lz4Table = LZ4Block.newTable();
+			return this.lz4Table;
+		}
+		
+		/**
+		 * <p>Frees the native memory of the compressors right away, rather than once they
+		 * are garbage collected.</p>
+		 */
+		void end() {
+			for (Deflater d : this.gzipDeflaters) if (d != null) d.end();
+			for (Deflater d : this.zlibDeflaters) if (d != null) d.end();
+			if (this.gzipInflater != null) this.gzipInflater.end();
+			if (this.zlibInflater != null) this.zlibInflater.end();
+		}
+	}
+	
+	/**
+	 * <p>A growable byte array, which leaves room for the length of a frame before the data,
+	 * so that frames can be written in one go.</p>
+	 */
+	private static final class Bytes extends OutputStream {
+		/**
+		 * The offset at which the data starts.
+		 */
+		static final int START = 4;
+		/**
+		 * The largest array that is kept once the data has been used.
+		 */
+		private static final int RETAINED = 1 << 20;
+		private static final int INITIAL = 4096;
+		
+		byte[] array = new byte[INITIAL];
+		/**
+		 * The offset of the end of the data.
+		 */
+		int length = START;
+		
+		/**
+		 * <p>Creates a stream that writes to the end of the data. The stream counts the bytes
+		 * written to it, which {@link NBTMetrics} reads.</p>
+		 * 
+		 * @return The stream.
+		 */
+		DataOutputStream output() {
+			return new DataOutputStream(this);
+		}
+		
+		/**
+		 * <p>Makes sure that the array has room for the given number of bytes after the
+		 * data.</p>
+		 * 
+		 * @param n The number of bytes.
+		 */
+		void ensure(int n) {
+			if (n <= this.array.length - this.length) return;
+			long needed = (long) this.length + n;
+			if (needed > Integer.MAX_VALUE - 8) throw new OutOfMemoryError("Required array size too large");
+			this.array = Arrays.copyOf(this.array, (int) Math.min(Integer.MAX_VALUE - 8, Math.max(needed, this.array.length * 2L)));
+		}
+		
+		/**
+		 * <p>Discards the data, and the array if it has grown too large to keep.</p>
+		 */
+		void clear() {
+			this.length = START;
+			if (this.array.length > RETAINED) this.array = new byte[INITIAL];
+		}
+		
+		/**
+		 * <p>Appends all bytes from a stream, until it ends.</p>
+		 * 
+		 * @param in The stream.
+		 * @throws IOException if reading from the stream fails.
+		 */
+		void readFrom(InputStream in) throws IOException {
+			while (true) {
+				if (this.length == this.array.length) ensure(this.array.length);
+				int n = in.read(this.array, this.length, this.array.length - this.length);
+				if (n < 0) return;
+				this.length += n;
+			}
+		}
+		
+		/**
+		 * <p>Appends the given number of bytes from a stream.</p>
+		 * 
+		 * @param in The stream.
+		 * @param n The number of bytes.
+		 * @throws EOFException if the stream ends first.
+		 * @throws IOException if reading from the stream fails.
+		 */
+		void readFrom(InputStream in, int n) throws IOException {
+			ensure(n);
+			int end = this.length + n;
+			while (this.length < end) {
+				int read = in.read(this.array, this.length, end - this.length);
+				if (read < 0) throw new EOFException();
+				this.length += read;
+			}
+		}
+		
+		@Override
+		public void write(int b) {
+			if (this.length == this.array.length) ensure(1);
+			this.array[this.length++] = (byte) b;
+		}
+		
+		@Override
+		public void write(byte[] b, int off, int len) {
+			ensure(len);
+			System.arraycopy(b, off, this.array, this.length, len);
+			this.length += len;
+		}
+	}
+}
@@ -0,0 +1,85 @@
+package info.varden.nbtserial;
+
+import java.util.Collection;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+
+/**
+ * <p>A bounded pool of reusable instances of a class. Register a pool in
+ * {@link NBTInstances} to have {@link NBTSerializer} take the instances it deserializes into
+ * from the pool, and {@link #release(Object) release} them back into it once they are no
+ * longer used, e.g. when a received packet has been handled:</p>
+ * <pre>
+ * NBTPool&lt;PacketMessage&gt; pool = new NBTPool&lt;PacketMessage&gt;(PacketMessage.class, 64);
+ * NBTInstances.register(PacketMessage.class, pool);
+ * ...
+ * PacketMessage message = NBTSerializer.deserialize(PacketMessage.class, data);
+ * handle(message);
+ * pool.release(message);
+ * </pre>
+ * <p>Instances taken from a pool are refilled rather than deserialized from scratch: the
+ * serializable objects, collections and maps that their fields still hold are reused, so
+ * that decoding the same kind of message over and over allocates close to nothing. This is
+ * done through reflection, also for classes that have a generated serializer, which would
+ * create new objects for every field instead.</p>
+ * <p>A pool may be shared between threads. If the pool is empty, a new instance is created;
+ * if it is full, released instances are left to the garbage collector.</p>
+ * 
+ * @author Marius
+ * @param <T> The class of instances in the pool.
+ */
+public class NBTPool<T> implements NBTInstanceSupplier<T> {
+	private final Class<T> type;
+	private final ArrayBlockingQueue<T> free;
+	
+	/**
+	 * <p>Creates an empty pool.</p>
+	 * 
+	 * @param type The class of instances in the pool. It must have a nullary constructor.
+	 * @param capacity The largest number of released instances that the pool keeps.
+	 */
+	public NBTPool(Class<T> type, int capacity) {
+		if (type == null) throw new IllegalArgumentException("Type must not be null");
+		if (capacity < 1) throw new IllegalArgumentException("Capacity must be positive");
+		this.type = type;
+		this.free = new ArrayBlockingQueue<T>(capacity);
+	}
+	
+	/**
+	 * <p>Takes an instance from the pool, or creates a new one if the pool is empty.</p>
+	 */
+	@Override
+	public T get() throws IllegalAccessException, InstantiationException {
+		T instance = this.free.poll();
+		return instance != null ? instance : NBTInstances.construct(this.type);
+	}
+	
+	/**
+	 * <p>Returns an instance to the pool. Collections and maps are cleared first; other
+	 * instances are kept as they are, and are overwritten when they are next deserialized
+	 * into. The instance must not be used after it has been released.</p>
+	 * <p><b>Note:</b> Releasing an instance recycles everything that is reachable through
+	 * its serialized fields, not just the instance itself. The next deserialization into it
+	 * overwrites the nested serializable objects, lists, collections and maps that it still
+	 * holds in place, so any of them that is still referenced elsewhere, e.g. an element
+	 * that a handler kept, changes along with it. Copy such objects, or remove them from
+	 * the instance, before releasing it.</p>
+	 * 
+	 * @param instance The instance to return.
+	 */
+	public void release(T instance) {
+		if (instance == null || instance.getClass() != this.type) return;
+		if (instance instanceof Collection) ((Collection<?>) instance).clear();
+		else if (instance instanceof Map) ((Map<?, ?>) instance).clear();
+		this.free.offer(instance);
+	}
+	
+	/**
+	 * <p>Gets the number of released instances that are waiting in the pool.</p>
+	 * 
+	 * @return The number of instances.
+	 */
+	public int size() {
+		return this.free.size();
+	}
+}
@@ -0,0 +1,889 @@
+package info.varden.nbtserial;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Map;
+
+import net.minecraft.nbt.NBTBase;
+import net.minecraft.nbt.NBTTagByte;
+import net.minecraft.nbt.NBTTagByteArray;
+import net.minecraft.nbt.NBTTagCompound;
+import net.minecraft.nbt.NBTTagDouble;
+import net.minecraft.nbt.NBTTagFloat;
+import net.minecraft.nbt.NBTTagInt;
+import net.minecraft.nbt.NBTTagIntArray;
+import net.minecraft.nbt.NBTTagList;
+import net.minecraft.nbt.NBTTagLong;
+import net.minecraft.nbt.NBTTagShort;
+import net.minecraft.nbt.NBTTagString;
+
+/**
+ * <p>Reads {@link INBTSerializable} instances straight from a stream in the binary NBT format,
+ * without building an {@link NBTTagCompound} tree first. Tags are read in stream order and
+ * assigned to the matching field as they are encountered. Tags that do not match any field
+ * are skipped without being decoded.</p>
+ * <p>The values assigned to fields are the same as those
+ * {@link NBTSerializer#deserialize(INBTSerializable, NBTTagCompound, boolean)} would assign if
+ * the stream had been read into an NBT data structure first.</p>
+ * 
+ * @author Marius
+ */
+final class NBTReader {
+	/**
+	 * <p>The largest number of elements that a container is created with room for up front.
+	 * The count of a list tag comes from the data being read, which may be malformed or
+	 * hostile, so larger containers grow as their elements are actually read instead.</p>
+	 */
+	static final int MAX_SIZE_HINT = 1024;
+	
+	private NBTReader() {}
+	
+	/**
+	 * <p>Reads an unnamed root compound tag, like {@code CompressedStreamTools.read()} does,
+	 * into the given instance.</p>
+	 * 
+	 * @param instance The instance to read into.
+	 * @param in The stream to read from.
+	 * @param interpretMissingFieldValuesAsNull Whether fields for which there is no tag in the
+	 * stream should be set to {@code null} or left as-is.
+	 * @throws IOException if reading from the stream fails, or if the root tag is not a
+	 * compound tag.
+	 * @throws IllegalAccessException if a Field object in a serializable class is enforcing
+	 * Java language access control and the underlying field is inaccessible, or if the
+	 * constructor for a serializable class is inaccessible.
+	 * @throws InstantiationException if a serializable class cannot be instantiated.
+	 * @throws UnserializableClassException if an attempt is made to deserialize a class that
+	 * is not natively supported by the serializer and does not implement INBTSerializable.
+	 */
+	static void readRoot(INBTSerializable instance, DataInput in, boolean interpretMissingFieldValuesAsNull) throws IOException, IllegalAccessException, InstantiationException, UnserializableClassException {
+		int id = in.readByte();
+		/*
+		 * An end tag at the root is how an empty compound is written.
+		 */
+		if (id == NBTSerializer.NBT_TAG_END) {
+			if (interpretMissingFieldValuesAsNull) {
+				for (FieldPlan fp : ClassPlan.of(instance.getClass()).fields) fp.accessor.set(instance, null);
+			}
+			return;
+		}
+		if (id != NBTSerializer.NBT_TAG_COMPOUND) throw new IOException("Root tag must be a compound tag, got tag of type " + id);
+		skipString(in);
+		readCompound(instance, in, interpretMissingFieldValuesAsNull);
+	}
+	
+	/**
+	 * <p>Reads the payload of a compound tag into the given instance.</p>
+	 * 
+	 * @param instance The instance to read into.
+	 * @param in The stream to read from.
+	 * @param interpretMissingFieldValuesAsNull Whether fields for which there is no tag in the
+	 * compound should be set to {@code null} or left as-is.
+	 * @throws IOException if reading from the stream fails.
+	 * @throws IllegalAccessException see
+	 * {@link #readRoot(INBTSerializable, DataInput, boolean)}.
+	 * @throws InstantiationException see
+	 * {@link #readRoot(INBTSerializable, DataInput, boolean)}.
+	 * @throws UnserializableClassException see
+	 * {@link #readRoot(INBTSerializable, DataInput, boolean)}.
+	 */
+	static void readCompound(INBTSerializable instance, DataInput in, boolean interpretMissingFieldValuesAsNull) throws IOException, IllegalAccessException, InstantiationException, UnserializableClassException {
+		readCompound(instance, in, interpretMissingFieldValuesAsNull, false);
+	}
+	
+	/**
+	 * <p>Reads the payload of a compound tag into a new serializable object, picking its class
+	 * by its {@link NBTSubtypes subtype} ID and resolving it by its identity in the
+	 * {@link NBTGraph graph} that is being read, if there is one.</p>
+	 * <p>Both are written as the first tags of the compound, so the class is known, and the
+	 * object is registered, before any of its fields are read. A compound whose first tag is
+	 * neither, such as one that was written from an NBT data structure, in which these tags
+	 * may come anywhere, is read as a whole and then decoded.</p>
+	 * 
+	 * @param in The stream to read from.
+	 * @param type The resolved type of the object.
+	 * @param family The subtypes of the type, or {@code null} if it has none.
+	 * @return The object.
+	 * @throws IOException if reading from the stream fails, or if the compound refers to an
+	 * object that has not been read, or to one that is not of the given type.
+	 * @throws IllegalAccessException see
+	 * {@link #readRoot(INBTSerializable, DataInput, boolean)}.
+	 * @throws InstantiationException see
+	 * {@link #readRoot(INBTSerializable, DataInput, boolean)}.
+	 * @throws UnserializableClassException see
+	 * {@link #readRoot(INBTSerializable, DataInput, boolean)}.
+	 */
+	static Object readObject(DataInput in, ResolvedType type, NBTSubtypes.Family<?> family) throws IOException, IllegalAccessException, InstantiationException, UnserializableClassException {
+		int id = in.readByte();
+		if (id == NBTSerializer.NBT_TAG_END) return NBTGraph.decode(new NBTTagCompound(), type.raw, family);
+		int length = in.readUnsignedShort();
+		byte[] name = ModifiedUtf8.scratch(length);
+		in.readFully(name, 0, length);
+		
+		/*
+		 * The ID tag that numbers an object of a subtype follows the subtype ID, and is read
+		 * along with the fields.
+		 */
+		if (family != null && id == NBTSerializer.NBT_TAG_BYTE && ModifiedUtf8.matches(name, length, NBTWriter.ENCODED_SUBTYPE_TAG)) {
+			INBTSerializable instance = (INBTSerializable) NBTInstances.newInstance(family.resolve(in.readByte() & 0xFF, type.raw));
+			readCompound(instance, in, true);
+			return instance;
+		}
+		NBTGraph.Session graph = NBTGraph.current();
+		if (graph != null && id == NBTSerializer.NBT_TAG_INT) {
+			if (ModifiedUtf8.matches(name, length, NBTWriter.ENCODED_REFERENCE_TAG)) {
+				int number = in.readInt();
+				if (in.readByte() != NBTSerializer.NBT_TAG_END) throw new IOException("Reference to object " + number + " is not the only tag of its compound tag");
+				Object value = graph.get(number);
+				if (value == null) throw new IOException("Reference to object " + number + ", which has not been read");
+				if (!type.raw.isInstance(value)) throw new IOException(NBTGraph.mismatch(number, value, type.raw));
+				return value;
+			}
+			if (ModifiedUtf8.matches(name, length, NBTWriter.ENCODED_ID_TAG)) {
+				INBTSerializable instance = (INBTSerializable) NBTInstances.newInstance(type.raw);
+				graph.define(in.readInt(), instance);
+				readCompound(instance, in, true);
+				return instance;
+			}
+		}
+		
+		String first = ModifiedUtf8.decode(name, length);
+		NBTBase firstTag = readTag(id, in);
+		NBTTagCompound data = (NBTTagCompound) readTag(NBTSerializer.NBT_TAG_COMPOUND, in);
+		data.setTag(first, firstTag);
+		if (graph != null) graph.unindexed.add(data);
+		try {
+			return NBTGraph.decode(data, type.raw, family);
+		} catch (IllegalArgumentException e) {
+			throw new IOException(e.getMessage(), e);
+		}
+	}
+	
+	/**
+	 * <p>Reads the payload of a compound tag into the given instance, optionally expecting
+	 * the tags to have been written with the same schema as the class of the instance.</p>
+	 * <p>Tags written with the same schema come in the write order of the fields, and have
+	 * the types of the fields. The name of each tag is then compared to those of the next
+	 * fields in write order, and the payload is read straight into the field once its type
+	 * has been compared to the one expected, without looking up the name or converting the
+	 * payload. Any tag that is not what the schema says it should be, such as the tag of a
+	 * field that holds a subclass of its declared type, is looked up and read as usual, so
+	 * the result is always the same as without the schema.</p>
+	 * 
+	 * @param instance The instance to read into.
+	 * @param in The stream to read from.
+	 * @param interpretMissingFieldValuesAsNull Whether fields for which there is no tag in the
+	 * compound should be set to {@code null} or left as-is.
+	 * @param sameSchema Whether the compound is known to have been written with the same
+	 * schema. If not, it still is if it holds a schema tag with the fingerprint of the class.
+	 * @throws IOException if reading from the stream fails.
+	 * @throws IllegalAccessException see
+	 * {@link #readRoot(INBTSerializable, DataInput, boolean)}.
+	 * @throws InstantiationException see
+	 * {@link #readRoot(INBTSerializable, DataInput, boolean)}.
+	 * @throws UnserializableClassException see
+	 * {@link #readRoot(INBTSerializable, DataInput, boolean)}.
+	 */
+	private static void readCompound(INBTSerializable instance, DataInput in, boolean interpretMissingFieldValuesAsNull, boolean sameSchema) throws IOException, IllegalAccessException, InstantiationException, UnserializableClassException {
+		/*
+		 * Measure the deserialization if metrics are being collected.
+		 */
+		NBTMetrics.Counters metrics = NBTMetrics.of(instance.getClass());
+		if (metrics == null) {
+			readTags(instance, in, interpretMissingFieldValuesAsNull, sameSchema);
+			return;
+		}
+		long start = System.nanoTime();
+		try {
+			readTags(instance, in, interpretMissingFieldValuesAsNull, sameSchema);
+			metrics.deserialized(System.nanoTime() - start);
+		} catch (Throwable t) {
+			metrics.failed(t);
+			throw t;
+		}
+	}
+	
+	/**
+	 * <p>Reads the tags of a compound tag into the fields of the given instance. See
+	 * {@link #readCompound(INBTSerializable, DataInput, boolean, boolean)}.</p>
+	 */
+	private static void readTags(INBTSerializable instance, DataInput in, boolean interpretMissingFieldValuesAsNull, boolean sameSchema) throws IOException, IllegalAccessException, InstantiationException, UnserializableClassException {
+		ClassPlan plan = ClassPlan.of(instance.getClass());
+		/*
+		 * If missing fields should be set to null, we need to keep track of which fields were
+		 * present in the stream.
+		 */
+		boolean[] seen = interpretMissingFieldValuesAsNull ? new boolean[plan.fields.length] : null;
+		/*
+		 * The write order depends on how many fields are present, which we cannot know up
+		 * front, so we expect all of them to be. Fields that are null are simply not found
+		 * where they would have been.
+		 */
+		FieldPlan[] order = sameSchema ? plan.writeOrder(plan.fields.length) : null;
+		int next = 0;
+		
+		int id;
+		while ((id = in.readByte()) != NBTSerializer.NBT_TAG_END) {
+			/*
+			 * The name is matched against the encoded tag names of the fields as it is, so
+			 * that no string has to be created for it.
+			 */
+			int length = in.readUnsignedShort();
+			byte[] name = ModifiedUtf8.scratch(length);
+			in.readFully(name, 0, length);
+			FieldPlan fp = null;
+			if (order != null) {
+				for (int i = next; i < order.length; i++) {
+					if (ModifiedUtf8.matches(name, length, order[i].encodedName)) {
+						fp = order[i];
+						next = i + 1;
+						break;
+					}
+				}
+			}
+			if (fp == null) fp = plan.field(name, length);
+			if (fp == null) {
+				/*
+				 * There is no field for this tag. The schema tag is written first, if at all,
+				 * so the tags that follow it can be read with the schema if it matches.
+				 */
+				if (id == NBTSerializer.NBT_TAG_LONG && ModifiedUtf8.matches(name, length, NBTWriter.ENCODED_SCHEMA_TAG)) {
+					if (in.readLong() == plan.fingerprint() && order == null) order = plan.writeOrder(plan.fields.length);
+					continue;
+				}
+				/*
+				 * In a graph, the instance is registered under its number as soon as the
+				 * number is read, before the fields that may refer back to it.
+				 */
+				if (id == NBTSerializer.NBT_TAG_INT && ModifiedUtf8.matches(name, length, NBTWriter.ENCODED_ID_TAG)) {
+					int number = in.readInt();
+					NBTGraph.Session graph = NBTGraph.current();
+					if (graph != null) graph.define(number, instance);
+					continue;
+				}
+				/*
+				 * Otherwise, skip over it.
+				 */
+				skipPayload(id, in);
+				continue;
+			}
+			if (order != null && id == fp.readTagId) readSameSchema(instance, fp, in);
+			else readField(instance, fp, id, in);
+			if (seen != null) seen[fp.index] = true;
+		}
+		
+		if (seen != null) {
+			for (FieldPlan fp : plan.fields) {
+				if (!seen[fp.index]) fp.accessor.set(instance, null);
+			}
+		}
+	}
+	
+	/**
+	 * <p>Reads the tags of the fields of the given instance from a mapped compound. Only the
+	 * tags of the fields are looked up and decoded; other tags are never read.</p>
+	 * 
+	 * @param instance The instance to read into.
+	 * @param data The compound to read from.
+	 * @param interpretMissingFieldValuesAsNull Whether fields for which there is no tag in the
+	 * compound should be set to {@code null} or left as-is.
+	 * @throws IOException if the compound is malformed.
+	 * @throws IllegalAccessException see
+	 * {@link #readRoot(INBTSerializable, DataInput, boolean)}.
+	 * @throws InstantiationException see
+	 * {@link #readRoot(INBTSerializable, DataInput, boolean)}.
+	 * @throws UnserializableClassException see
+	 * {@link #readRoot(INBTSerializable, DataInput, boolean)}.
+	 */
+	static void readMapped(INBTSerializable instance, NBTMappedCompound data, boolean interpretMissingFieldValuesAsNull) throws IOException, IllegalAccessException, InstantiationException, UnserializableClassException {
+		NBTMetrics.Counters metrics = NBTMetrics.of(instance.getClass());
+		if (metrics == null) {
+			readMappedFields(instance, data, interpretMissingFieldValuesAsNull);
+			return;
+		}
+		long start = System.nanoTime();
+		try {
+			readMappedFields(instance, data, interpretMissingFieldValuesAsNull);
+			metrics.deserialized(System.nanoTime() - start);
+		} catch (Throwable t) {
+			metrics.failed(t);
+			throw t;
+		}
+	}
+	
+	/**
+	 * <p>Reads the tags of the fields of the given instance from a mapped compound. See
+	 * {@link #readMapped(INBTSerializable, NBTMappedCompound, boolean)}.</p>
+	 */
+	private static void readMappedFields(INBTSerializable instance, NBTMappedCompound data, boolean interpretMissingFieldValuesAsNull) throws IOException, IllegalAccessException, InstantiationException, UnserializableClassException {
+		for (FieldPlan fp : ClassPlan.of(instance.getClass()).fields) {
+			NBTMappedCompound.Tag tag = data.find(fp.tagName);
+			if (tag != null) readField(instance, fp, tag.id, data.input(tag));
+			else if (interpretMissingFieldValuesAsNull) fp.accessor.set(instance, null);
+		}
+	}
+	
+	/**
+	 * <p>Reads the payload of a tag into the given field of the given instance.</p>
+	 * 
+	 * @param instance The instance to read into.
+	 * @param fp The field to read into.
+	 * @param id The NBT tag ID of the tag.
+	 * @param in The stream to read from.
+	 * @throws IOException if reading from the stream fails.
+	 * @throws IllegalAccessException see
+	 * {@link #readRoot(INBTSerializable, DataInput, boolean)}.
+	 * @throws InstantiationException see
+	 * {@link #readRoot(INBTSerializable, DataInput, boolean)}.
+	 * @throws UnserializableClassException see
+	 * {@link #readRoot(INBTSerializable, DataInput, boolean)}.
+	 */
+	private static void readField(Object instance, FieldPlan fp, int id, DataInput in) throws IOException, IllegalAccessException, InstantiationException, UnserializableClassException {
+		FieldAccessor fa = fp.accessor;
+		/*
+		 * Primitive fields accept any numeric tag and convert it, just like the getters of
+		 * NBTTagCompound do.
+		 */
+		switch (fp.kind) {
+		case BYTE:      fa.setByte      (instance,  (byte) readInt(id, in));        break;
+		case BOOLEAN:   fa.setBoolean   (instance,  (byte) readInt(id, in) != 0);   break;
+		case SHORT:     fa.setShort     (instance,  (short) readInt(id, in));       break;
+		case INT:       fa.setInt       (instance,  readInt(id, in));               break;
+		case LONG:      fa.setLong      (instance,  readLong(id, in));              break;
+		case FLOAT:     fa.setFloat     (instance,  (float) readDouble(id, in));    break;
+		case DOUBLE:    fa.setDouble    (instance,  readDouble(id, in));            break;
+		
+		/*
+		 * Everything else is read through the codec of the field.
+		 */
+		default:
+			if (fp.readCodec == null) throw new UnserializableClassException(fp.readType.raw);
+			fa.set(instance, readValue(fp.readCodec, id, in, fp.readType));
+		}
+	}
+	
+	/**
+	 * <p>Reads the payload of a tag into the given field of the given instance, where the tag
+	 * is known to be of the type that the field is read from. The payloads of primitive
+	 * fields are read as they are, and serializable classes and collections that the field
+	 * holds are read with the same schema, too.</p>
+	 * 
+	 * @param instance The instance to read into.
+	 * @param fp The field to read into.
+	 * @param in The stream to read from.
+	 * @throws IOException if reading from the stream fails.
+	 * @throws IllegalAccessException see
+	 * {@link #readRoot(INBTSerializable, DataInput, boolean)}.
+	 * @throws InstantiationException see
+	 * {@link #readRoot(INBTSerializable, DataInput, boolean)}.
+	 * @throws UnserializableClassException see
+	 * {@link #readRoot(INBTSerializable, DataInput, boolean)}.
+	 */
+	private static void readSameSchema(Object instance, FieldPlan fp, DataInput in) throws IOException, IllegalAccessException, InstantiationException, UnserializableClassException {
+		FieldAccessor fa = fp.accessor;
+		switch (fp.kind) {
+		case BYTE:      fa.setByte      (instance,  in.readByte());         break;
+		case BOOLEAN:   fa.setBoolean   (instance,  in.readByte() != 0);    break;
+		case SHORT:     fa.setShort     (instance,  in.readShort());        break;
+		case INT:       fa.setInt       (instance,  in.readInt());          break;
+		case LONG:      fa.setLong      (instance,  in.readLong());         break;
+		case FLOAT:     fa.setFloat     (instance,  in.readFloat());        break;
+		case DOUBLE:    fa.setDouble    (instance,  in.readDouble());       break;
+		
+		default:
+			if (fp.readCodec == BuiltinCodecs.SERIALIZABLE) {
+				INBTSerializable value = (INBTSerializable) NBTInstances.newInstance(fp.readType.raw);
+				readCompound(value, in, true, true);
+				fa.set(instance, value);
+			} else if (fp.readCodec == BuiltinCodecs.COLLECTION) {
+				fa.set(instance, readCollection(in, fp.readType, true));
+			} else if (fp.readCodec instanceof StreamingCodec) {
+				fa.set(instance, ((StreamingCodec<?>) fp.readCodec).readPayload(in, fp.readType));
+			} else {
+				fa.set(instance, fp.readCodec.decode(readTag(fp.readTagId, in), fp.readType));
+			}
+		}
+	}
+	
+	/**
+	 * <p>Reads the payload of a tag and converts it into a value using the given codec.</p>
+	 * 
+	 * @param codec The codec for the value.
+	 * @param id The NBT tag ID of the tag.
+	 * @param in The stream to read from.
+	 * @param type The resolved type of the value.
+	 * @return The value.
+	 * @throws IOException if reading from the stream fails.
+	 * @throws IllegalAccessException see
+	 * {@link #readRoot(INBTSerializable, DataInput, boolean)}.
+	 * @throws InstantiationException see
+	 * {@link #readRoot(INBTSerializable, DataInput, boolean)}.
+	 * @throws UnserializableClassException see
+	 * {@link #readRoot(INBTSerializable, DataInput, boolean)}.
+	 */
+	static Object readValue(NBTCodec<?> codec, int id, DataInput in, ResolvedType type) throws IOException, IllegalAccessException, InstantiationException, UnserializableClassException {
+		if (codec instanceof StreamingCodec && id == codec.getTagId()) {
+			return ((StreamingCodec<?>) codec).readPayload(in, type);
+		}
+		/*
+		 * The codec cannot read from the stream, or the tag is not of the type the codec
+		 * expects. Either way, we read the tag and let the codec deal with it, exactly as if
+		 * it came from an NBT data structure.
+		 */
+		return codec.decode(readTag(id, in), type);
+	}
+	
+	/**
+	 * <p>Reads the payload of a list tag into a new {@link Collection} instance.</p>
+	 * 
+	 * @param in The stream to read from.
+	 * @param type The resolved type of the collection.
+	 * @return A deserialized {@link Collection} instance.
+	 * @throws IOException if reading from the stream fails, or if the list has a negative
+	 * length.
+	 * @throws IllegalAccessException see
+	 * {@link #readRoot(INBTSerializable, DataInput, boolean)}.
+	 * @throws InstantiationException see
+	 * {@link #readRoot(INBTSerializable, DataInput, boolean)}.
+	 * @throws UnserializableClassException see
+	 * {@link #readRoot(INBTSerializable, DataInput, boolean)}.
+	 */
+	static Collection<Object> readCollection(DataInput in, ResolvedType type) throws IOException, IllegalAccessException, InstantiationException, UnserializableClassException {
+		return readCollection(in, type, false);
+	}
+	
+	/**
+	 * <p>Reads the payload of a list tag into a new {@link Collection} instance, optionally
+	 * reading serializable elements with the same schema as their class. See
+	 * {@link #readCompound(INBTSerializable, DataInput, boolean, boolean)}.</p>
+	 * 
+	 * @param in The stream to read from.
+	 * @param type The resolved type of the collection.
+	 * @param sameSchema Whether the list is known to have been written with the same schema.
+	 * @return A deserialized {@link Collection} instance.
+	 * @throws IOException if reading from the stream fails, or if the list has a negative
+	 * length.
+	 * @throws IllegalAccessException see
+	 * {@link #readRoot(INBTSerializable, DataInput, boolean)}.
+	 * @throws InstantiationException see
+	 * {@link #readRoot(INBTSerializable, DataInput, boolean)}.
+	 * @throws UnserializableClassException see
+	 * {@link #readRoot(INBTSerializable, DataInput, boolean)}.
+	 */
+	private static Collection<Object> readCollection(DataInput in, ResolvedType type, boolean sameSchema) throws IOException, IllegalAccessException, InstantiationException, UnserializableClassException {
+		int elementId = in.readByte();
+		int count = readCount(in);
+		@SuppressWarnings("unchecked")
+		Collection<Object> c = (Collection<Object>) NBTInstances.newInstance(type.raw, Math.min(count, MAX_SIZE_HINT));
+		if (count == 0) return c;
+		ResolvedType subtype = type.argument(0);
+		NBTCodec<?> codec = NBTSerializer.codecFor(subtype.raw);
+		
+		/*
+		 * All elements of a list are of the same tag type, so whether the codec can read them
+		 * straight from the stream only needs to be checked once for the whole list.
+		 */
+		if (!(codec instanceof StreamingCodec) || elementId != codec.getTagId()) {
+			for (int i = 0; i < count; i++) c.add(codec.decode(readTag(elementId, in), subtype));
+		} else if (sameSchema && codec == BuiltinCodecs.SERIALIZABLE) {
+			for (int i = 0; i < count; i++) {
+				INBTSerializable element = (INBTSerializable) NBTInstances.newInstance(subtype.raw);
+				readCompound(element, in, true, true);
+				c.add(element);
+			}
+		} else {
+			StreamingCodec<?> sc = (StreamingCodec<?>) codec;
+			for (int i = 0; i < count; i++) c.add(sc.readPayload(in, subtype));
+		}
+		return c;
+	}
+	
+	/**
+	 * <p>Reads the payload of a list tag of map entries into a new {@link Map} instance.</p>
+	 * 
+	 * @param in The stream to read from.
+	 * @param type The resolved type of the map.
+	 * @return A deserialized {@link Map} instance.
+	 * @throws IOException if reading from the stream fails, or if the list is not a valid
+	 * map tag.
+	 * @throws IllegalAccessException see
+	 * {@link #readRoot(INBTSerializable, DataInput, boolean)}.
+	 * @throws InstantiationException see
+	 * {@link #readRoot(INBTSerializable, DataInput, boolean)}.
+	 * @throws UnserializableClassException see
+	 * {@link #readRoot(INBTSerializable, DataInput, boolean)}.
+	 */
+	static Map<Object, Object> readMap(DataInput in, ResolvedType type) throws IOException, IllegalAccessException, InstantiationException, UnserializableClassException {
+		int elementId = in.readByte();
+		int count = readCount(in);
+		if (count == 0) {
+			@SuppressWarnings("unchecked")
+			Map<Object, Object> e = (Map<Object, Object>) NBTInstances.newInstance(type.raw, 0);
+			return e;
+		}
+		ResolvedType keyType = type.argument(0);
+		ResolvedType valueType = type.argument(1);
+		
+		/*
+		 * A list of lists holds the keys and the values of the map, as written for
+		 * MapLayout.LISTS.
+		 */
+		if (elementId == NBTSerializer.NBT_TAG_LIST) {
+			if (count < 2) throw new IOException("Map must hold a list of keys and a list of values, but holds only one list");
+			Object[] keys = readListPayload(in, keyType);
+			Object[] values = readListPayload(in, valueType);
+			for (int i = 2; i < count; i++) skipPayload(NBTSerializer.NBT_TAG_LIST, in);
+			int entries = Math.min(keys.length, values.length);
+			@SuppressWarnings("unchecked")
+			Map<Object, Object> e = (Map<Object, Object>) NBTInstances.newInstance(type.raw, entries);
+			for (int i = 0; i < entries; i++) e.put(keys[i], values[i]);
+			return e;
+		}
+		
+		/*
+		 * Otherwise, every element of the list must be an entry compound, just like when
+		 * deserializing from an NBT data structure.
+		 */
+		if (elementId != NBTSerializer.NBT_TAG_COMPOUND) throw new IOException("Map entries must be compound tags, got tags of type " + elementId);
+		@SuppressWarnings("unchecked")
+		Map<Object, Object> e = (Map<Object, Object>) NBTInstances.newInstance(type.raw, Math.min(count, MAX_SIZE_HINT));
+		NBTCodec<?> keyCodec = NBTSerializer.codecFor(keyType.raw);
+		NBTCodec<?> valueCodec = NBTSerializer.codecFor(valueType.raw);
+		for (int i = 0; i < count; i++) {
+			Object key = null;
+			Object value = null;
+			int id;
+			while ((id = in.readByte()) != NBTSerializer.NBT_TAG_END) {
+				/*
+				 * The key and value tags are the only tags named by a single character, so
+				 * that character is all we need to look at.
+				 */
+				int length = in.readUnsignedShort();
+				int name = length == 1 ? in.readUnsignedByte() : 0;
+				if (length != 1) skipFully(in, length);
+				if (name == 'k') key = readValue(keyCodec, id, in, keyType);
+				else if (name == 'v') value = readValue(valueCodec, id, in, valueType);
+				else skipPayload(id, in);
+			}
+			e.put(key, value);
+		}
+		return e;
+	}
+	
+	/**
+	 * <p>Reads the payload of a compound tag, as written for {@link MapLayout#COMPOUND}, into
+	 * a new {@link Map} instance. The names of the child tags become the keys of the map.</p>
+	 * 
+	 * @param in The stream to read from.
+	 * @param type The resolved type of the map.
+	 * @return A deserialized {@link Map} instance.
+	 * @throws IOException if reading from the stream fails.
+	 * @throws IllegalAccessException see
+	 * {@link #readRoot(INBTSerializable, DataInput, boolean)}.
+	 * @throws InstantiationException see
+	 * {@link #readRoot(INBTSerializable, DataInput, boolean)}.
+	 * @throws UnserializableClassException see
+	 * {@link #readRoot(INBTSerializable, DataInput, boolean)}.
+	 */
+	static Map<Object, Object> readMapCompound(DataInput in, ResolvedType type) throws IOException, IllegalAccessException, InstantiationException, UnserializableClassException {
+		/*
+		 * Unlike lists, compound tags do not say up front how many tags they hold, so the map
+		 * is created without a size.
+		 */
+		@SuppressWarnings("unchecked")
+		Map<Object, Object> e = (Map<Object, Object>) NBTInstances.newInstance(type.raw);
+		ResolvedType valueType = type.argument(1);
+		NBTCodec<?> valueCodec = null;
+		int id;
+		while ((id = in.readByte()) != NBTSerializer.NBT_TAG_END) {
+			String name = ModifiedUtf8.read(in);
+			/*
+			 * The codec is looked up on the first entry, so that empty maps of values that
+			 * cannot be deserialized are still accepted, like they are elsewhere.
+			 */
+			if (valueCodec == null) valueCodec = NBTSerializer.codecFor(valueType.raw);
+			e.put(name, readValue(valueCodec, id, in, valueType));
+		}
+		return e;
+	}
+	
+	/**
+	 * <p>Reads the payload of a list tag into an array.</p>
+	 * 
+	 * @param in The stream to read from.
+	 * @param type The resolved type of the elements of the list.
+	 * @return The elements of the list.
+	 * @throws IOException if reading from the stream fails, or if the list has a negative
+	 * length.
+	 * @throws IllegalAccessException see
+	 * {@link #readRoot(INBTSerializable, DataInput, boolean)}.
+	 * @throws InstantiationException see
+	 * {@link #readRoot(INBTSerializable, DataInput, boolean)}.
+	 * @throws UnserializableClassException see
+	 * {@link #readRoot(INBTSerializable, DataInput, boolean)}.
+	 */
+	private static Object[] readListPayload(DataInput in, ResolvedType type) throws IOException, IllegalAccessException, InstantiationException, UnserializableClassException {
+		int elementId = in.readByte();
+		int count = readCount(in);
+		if (count == 0) return new Object[0];
+		ArrayList<Object> elements = new ArrayList<Object>(Math.min(count, MAX_SIZE_HINT));
+		NBTCodec<?> codec = NBTSerializer.codecFor(type.raw);
+		for (int i = 0; i < count; i++) elements.add(readValue(codec, elementId, in, type));
+		return elements.toArray();
+	}
+	
+	/**
+	 * <p>Reads the number of elements of a list tag.</p>
+	 * 
+	 * @param in The stream to read from.
+	 * @return The number of elements.
+	 * @throws IOException if reading from the stream fails, or if the number is negative.
+	 */
+	static int readCount(DataInput in) throws IOException {
+		int count = in.readInt();
+		if (count < 0) throw new IOException("List tag has a negative length " + count);
+		return count;
+	}
+	
+	/**
+	 * <p>Reads the payload of a tag of the given type into an NBT tag.</p>
+	 * 
+	 * @param id The NBT tag ID of the tag.
+	 * @param in The stream to read from.
+	 * @return The tag.
+	 * @throws IOException if reading from the stream fails, or if the tag is of an unknown
+	 * type.
+	 */
+	static NBTBase readTag(int id, DataInput in) throws IOException {
+		switch (id) {
+		case NBTSerializer.NBT_TAG_BYTE:    return new NBTTagByte(in.readByte());
+		case NBTSerializer.NBT_TAG_SHORT:   return new NBTTagShort(in.readShort());
+		case NBTSerializer.NBT_TAG_INT:     return new NBTTagInt(in.readInt());
+		case NBTSerializer.NBT_TAG_LONG:    return new NBTTagLong(in.readLong());
+		case NBTSerializer.NBT_TAG_FLOAT:   return new NBTTagFloat(in.readFloat());
+		case NBTSerializer.NBT_TAG_DOUBLE:  return new NBTTagDouble(in.readDouble());
+		case NBTSerializer.NBT_TAG_STRING:  return new NBTTagString(ModifiedUtf8.read(in));
+		case NBTSerializer.NBT_TAG_BYTE_ARRAY: {
+			byte[] data = new byte[in.readInt()];
+			in.readFully(data);
+			return new NBTTagByteArray(data);
+		}
+		case NBTSerializer.NBT_TAG_INT_ARRAY: {
+			int[] data = new int[in.readInt()];
+			for (int i = 0; i < data.length; i++) data[i] = in.readInt();
+			return new NBTTagIntArray(data);
+		}
+		case NBTSerializer.NBT_TAG_LIST: {
+			NBTTagList list = new NBTTagList();
+			int elementId = in.readByte();
+			int count = in.readInt();
+			for (int i = 0; i < count; i++) list.appendTag(readTag(elementId, in));
+			return list;
+		}
+		case NBTSerializer.NBT_TAG_COMPOUND: {
+			NBTTagCompound compound = new NBTTagCompound();
+			int childId;
+			while ((childId = in.readByte()) != NBTSerializer.NBT_TAG_END) {
+				String name = ModifiedUtf8.read(in);
+				compound.setTag(name, readTag(childId, in));
+			}
+			return compound;
+		}
+		default:
+			throw new IOException("Cannot read NBT tag of unknown type " + id);
+		}
+	}
+	
+	/**
+	 * <p>Skips over the payload of a tag of the given type without decoding it.</p>
+	 * 
+	 * @param id The NBT tag ID of the tag.
+	 * @param in The stream to read from.
+	 * @throws IOException if reading from the stream fails, or if the tag is of an unknown
+	 * type.
+	 */
+	static void skipPayload(int id, DataInput in) throws IOException {
+		switch (id) {
+		case NBTSerializer.NBT_TAG_BYTE:        skipFully(in, 1);                       break;
+		case NBTSerializer.NBT_TAG_SHORT:       skipFully(in, 2);                       break;
+		case NBTSerializer.NBT_TAG_INT:         skipFully(in, 4);                       break;
+		case NBTSerializer.NBT_TAG_LONG:        skipFully(in, 8);                       break;
+		case NBTSerializer.NBT_TAG_FLOAT:       skipFully(in, 4);                       break;
+		case NBTSerializer.NBT_TAG_DOUBLE:      skipFully(in, 8);                       break;
+		case NBTSerializer.NBT_TAG_BYTE_ARRAY:  skipFully(in, in.readInt());            break;
+		case NBTSerializer.NBT_TAG_STRING:      skipString(in);                         break;
+		case NBTSerializer.NBT_TAG_INT_ARRAY:   skipFully(in, in.readInt() * 4L);       break;
+		case NBTSerializer.NBT_TAG_LIST: {
+			int elementId = in.readByte();
+			int count = in.readInt();
+			for (int i = 0; i < count; i++) skipPayload(elementId, in);
+			break;
+		}
+		case NBTSerializer.NBT_TAG_COMPOUND: {
+			int childId;
+			while ((childId = in.readByte()) != NBTSerializer.NBT_TAG_END) {
+				skipString(in);
+				skipPayload(childId, in);
+			}
+			break;
+		}
+		default:
+			throw new IOException("Cannot skip NBT tag of unknown type " + id);
+		}
+	}
+	
+	/**
+	 * <p>Copies the payload of a tag of the given type from one stream to another without
+	 * decoding it, for {@link NBTLazy} holders that keep the bytes of their value.</p>
+	 * 
+	 * @param id The NBT tag ID of the tag.
+	 * @param in The stream to read from.
+	 * @param out The stream to write to.
+	 * @throws IOException if reading from or writing to a stream fails, or if the tag is of an
+	 * unknown type.
+	 */
+	static void copyPayload(int id, DataInput in, DataOutput out) throws IOException {
+		switch (id) {
+		case NBTSerializer.NBT_TAG_BYTE:        out.writeByte(in.readByte());                       break;
+		case NBTSerializer.NBT_TAG_SHORT:       out.writeShort(in.readShort());                     break;
+		case NBTSerializer.NBT_TAG_INT:         out.writeInt(in.readInt());                         break;
+		case NBTSerializer.NBT_TAG_LONG:        out.writeLong(in.readLong());                       break;
+		case NBTSerializer.NBT_TAG_FLOAT:       out.writeInt(in.readInt());                         break;
+		case NBTSerializer.NBT_TAG_DOUBLE:      out.writeLong(in.readLong());                       break;
+		case NBTSerializer.NBT_TAG_STRING:      copyString(in, out);                                break;
+		case NBTSerializer.NBT_TAG_BYTE_ARRAY: {
+			int length = in.readInt();
+			out.writeInt(length);
+			copyFully(in, out, length);
+			break;
+		}
+		case NBTSerializer.NBT_TAG_INT_ARRAY: {
+			int length = in.readInt();
+			out.writeInt(length);
+			copyFully(in, out, length * 4L);
+			break;
+		}
+		case NBTSerializer.NBT_TAG_LIST: {
+			int elementId = in.readByte();
+			int count = in.readInt();
+			out.writeByte(elementId);
+			out.writeInt(count);
+			for (int i = 0; i < count; i++) copyPayload(elementId, in, out);
+			break;
+		}
+		case NBTSerializer.NBT_TAG_COMPOUND: {
+			int childId;
+			while ((childId = in.readByte()) != NBTSerializer.NBT_TAG_END) {
+				out.writeByte(childId);
+				copyString(in, out);
+				copyPayload(childId, in, out);
+			}
+			out.writeByte(NBTSerializer.NBT_TAG_END);
+			break;
+		}
+		default:
+			throw new IOException("Cannot copy NBT tag of unknown type " + id);
+		}
+	}
+	
+	/**
+	 * <p>Copies a string written with {@link java.io.DataOutput#writeUTF(String)} without
+	 * decoding it.</p>
+	 */
+	private static void copyString(DataInput in, DataOutput out) throws IOException {
+		int length = in.readUnsignedShort();
+		out.writeShort(length);
+		copyFully(in, out, length);
+	}
+	
+	/**
+	 * <p>Copies exactly the given number of bytes from one stream to another.</p>
+	 */
+	private static void copyFully(DataInput in, DataOutput out, long n) throws IOException {
+		byte[] buffer = new byte[(int) Math.min(n, 8192)];
+		while (n > 0) {
+			int length = (int) Math.min(n, buffer.length);
+			in.readFully(buffer, 0, length);
+			out.write(buffer, 0, length);
+			n -= length;
+		}
+	}
+	
+	/**
+	 * <p>Skips over a string written with {@link java.io.DataOutput#writeUTF(String)}.</p>
+	 * 
+	 * @param in The stream to read from.
+	 * @throws IOException if reading from the stream fails.
+	 */
+	static void skipString(DataInput in) throws IOException {
+		skipFully(in, in.readUnsignedShort());
+	}
+	
+	/**
+	 * <p>Skips exactly the given number of bytes. {@link DataInput#skipBytes(int)} may skip
+	 * fewer bytes than requested, so this keeps skipping until done.</p>
+	 * 
+	 * @param in The stream to read from.
+	 * @param n The number of bytes to skip.
+	 * @throws IOException if reading from the stream fails, or if the end of the stream is
+	 * reached first.
+	 */
+	private static void skipFully(DataInput in, long n) throws IOException {
+		while (n > 0) {
+			int skipped = in.skipBytes((int) Math.min(n, Integer.MAX_VALUE));
+			if (skipped <= 0) {
+				/*
+				 * Nothing could be skipped, so read a byte instead. This throws an
+				 * EOFException if the stream has ended.
+				 */
+				in.readByte();
+				skipped = 1;
+			}
+			n -= skipped;
+		}
+	}
+	
+	/*
+	 * Numeric conversions. These mirror the getters of the numeric NBT tags, which truncate
+	 * integers and floor floating point numbers. Tags that are not numeric are read as zero,
+	 * like NBTTagCompound does for them.
+	 */
+	
+	static int readInt(int id, DataInput in) throws IOException {
+		switch (id) {
+		case NBTSerializer.NBT_TAG_BYTE:    return in.readByte();
+		case NBTSerializer.NBT_TAG_SHORT:   return in.readShort();
+		case NBTSerializer.NBT_TAG_INT:     return in.readInt();
+		case NBTSerializer.NBT_TAG_LONG:    return (int) in.readLong();
+		case NBTSerializer.NBT_TAG_FLOAT:   return (int) Math.floor(in.readFloat());
+		case NBTSerializer.NBT_TAG_DOUBLE:  return (int) Math.floor(in.readDouble());
+		default:                            skipPayload(id, in); return 0;
+		}
+	}
+	
+	static long readLong(int id, DataInput in) throws IOException {
+		switch (id) {
+		case NBTSerializer.NBT_TAG_BYTE:    return in.readByte();
+		case NBTSerializer.NBT_TAG_SHORT:   return in.readShort();
+		case NBTSerializer.NBT_TAG_INT:     return in.readInt();
+		case NBTSerializer.NBT_TAG_LONG:    return in.readLong();
+		case NBTSerializer.NBT_TAG_FLOAT:   return (long) in.readFloat();
+		case NBTSerializer.NBT_TAG_DOUBLE:  return (long) in.readDouble();
+		default:                            skipPayload(id, in); return 0;
+		}
+	}
+	
+	static double readDouble(int id, DataInput in) throws IOException {
+		switch (id) {
+		case NBTSerializer.NBT_TAG_BYTE:    return in.readByte();
+		case NBTSerializer.NBT_TAG_SHORT:   return in.readShort();
+		case NBTSerializer.NBT_TAG_INT:     return in.readInt();
+		case NBTSerializer.NBT_TAG_LONG:    return in.readLong();
+		case NBTSerializer.NBT_TAG_FLOAT:   return in.readFloat();
+		case NBTSerializer.NBT_TAG_DOUBLE:  return in.readDouble();
+		default:                            skipPayload(id, in); return 0;
+		}
+	}
+}
@@ -0,0 +1,466 @@
+package info.varden.nbtserial;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * <p>Saves {@link INBTSerializable} instances in the background, so that the thread that owns
+ * them, such as a server tick thread, only pays for a cheap copy. Each save happens in two
+ * phases:</p>
+ * <ol>
+ * <li>On the calling thread, a {@link NBTSerializer#snapshot(INBTSerializable) snapshot} of
+ * the instance is taken. No NBT tags are built, and nothing is encoded.</li>
+ * <li>On the executor, the snapshot is encoded and compressed by an {@link NBTPipeline}, and
+ * the data is handed to a {@link Sink} under the key that the instance was saved with, such
+ * as the file to save it to.</li>
+ * </ol>
+ * <p>Each save returns a {@link CompletableFuture} that completes once the data has been
+ * written, or completes exceptionally if encoding or writing it fails.</p>
+ * <p>Saves of the same key are written one after another, in the order they were made.
+ * A save of a key that already has a save waiting to be encoded replaces the snapshot of the
+ * waiting save instead of queueing another one, and returns the same future, so a key that is
+ * saved faster than it can be written is written as often as possible, always with the latest
+ * data. The number of saves waiting or in progress is bounded; once it is reached,
+ * {@link #save(Object, INBTSerializable)} blocks until a save is done, and
+ * {@link #trySave(Object, INBTSerializable)} gives up.</p>
+ * <p>The time spent in each phase is recorded, see {@link #getStats()}.</p>
+ * <pre>
+ * NBTSaver&lt;File&gt; saver = new NBTSaver&lt;File&gt;(NBTPipeline.of(NBTCompression.GZIP), NBTSaver.files(), executor, 64);
+ * saver.save(new File(dir, "level.dat"), level);
+ * </pre>
+ * 
+ * @param <K> The type of the keys that instances are saved under.
+ * @author Marius
+ */
+public final class NBTSaver<K> {
+	/**
+	 * <p>The destination of the encoded data.</p>
+	 * 
+	 * @param <K> The type of the keys that data is written under.
+	 */
+	public interface Sink<K> {
+		/**
+		 * <p>Writes the data of a save. This is called on the executor, but never for the same
+		 * key on two threads at once.</p>
+		 * 
+		 * @param key The key that the instance was saved under.
+		 * @param data The encoded data.
+		 * @throws IOException if writing the data fails. The future of the save completes with
+		 * the exception.
+		 */
+		void write(K key, byte[] data) throws IOException;
+	}
+	
+	/**
+	 * The sink that writes data to files.
+	 */
+	private static final Sink<File> FILES = new Sink<File>() {
+		@Override
+		public void write(File file, byte[] data) throws IOException {
+			/*
+			 * The data is written next to the file and then moved over it, so that a crash in
+			 * the middle of writing leaves the previous save intact instead of half a new one.
+			 * Saves of the same file never run at once, so the name of the temporary file
+			 * cannot clash.
+			 */
+			File temp = new File(file.getAbsoluteFile().getParentFile(), file.getName() + ".tmp");
+			FileOutputStream out = new FileOutputStream(temp);
+			try {
+				out.write(data);
+			} finally {
+				out.close();
+			}
+			try {
+				Files.move(temp.toPath(), file.toPath(), StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+			} catch (AtomicMoveNotSupportedException e) {
+				Files.move(temp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING);
+			}
+		}
+	};
+	
+	private final NBTPipeline pipeline;
+	private final Sink<? super K> sink;
+	private final Executor executor;
+	private final int capacity;
+	
+	/**
+	 * Guards the queues below, and is notified whenever a save is done.
+	 */
+	private final Object lock = new Object();
+	/**
+	 * The save of each key that is waiting to be encoded.
+	 */
+	private final Map<K, Job> queued = new HashMap<K, Job>();
+	/**
+	 * The save of each key that is being encoded or written.
+	 */
+	private final Map<K, Job> running = new HashMap<K, Job>();
+	/**
+	 * The number of saves that are waiting or in progress.
+	 */
+	private int pending;
+	
+	private final LongAdder saves = new LongAdder();
+	private final LongAdder coalesced = new LongAdder();
+	private final LongAdder snapshotNanos = new LongAdder();
+	private final LongAdder blockedNanos = new LongAdder();
+	private final LongAdder encodes = new LongAdder();
+	private final LongAdder encodeNanos = new LongAdder();
+	private final LongAdder writeNanos = new LongAdder();
+	private final LongAdder bytesWritten = new LongAdder();
+	private final LongAdder failures = new LongAdder();
+	
+	/**
+	 * <p>Creates a saver.</p>
+	 * 
+	 * @param pipeline The pipeline to encode snapshots with.
+	 * @param sink The destination of the encoded data.
+	 * @param executor The executor to encode and write on. Writing usually blocks on I/O, so
+	 * this should not be {@link java.util.concurrent.ForkJoinPool#commonPool()}.
+	 * @param capacity The largest number of saves that may be waiting or in progress at once.
+	 * @throws IllegalArgumentException if an argument is {@code null} or the capacity is not
+	 * positive.
+	 */
+	public NBTSaver(NBTPipeline pipeline, Sink<? super K> sink, Executor executor, int capacity) {
+		if (pipeline == null || sink == null || executor == null) throw new IllegalArgumentException("Pipeline, sink and executor must not be null");
+		if (capacity < 1) throw new IllegalArgumentException("Capacity must be positive: " + capacity);
+		this.pipeline = pipeline;
+		this.sink = sink;
+		this.executor = executor;
+		this.capacity = capacity;
+	}
+	
+	/**
+	 * <p>Gets a sink that writes data to files, replacing each file atomically where the file
+	 * system supports it, so that a file always holds either the previous save or the new one.
+	 * The directory of each file must exist.</p>
+	 * 
+	 * @return The sink.
+	 */
+	public static Sink<File> files() {
+		return FILES;
+	}
+	
+	/**
+	 * <p>Saves an instance in the background. A snapshot of it is taken right away, so it may
+	 * be changed as soon as this returns. If the capacity of this saver is reached, this
+	 * blocks until another save is done, unless the key already has a save waiting.</p>
+	 * 
+	 * @param key The key to save the instance under.
+	 * @param object The instance to save.
+	 * @return A future that completes once the data has been written.
+	 * @throws InterruptedException if the thread is interrupted while it waits for capacity.
+	 * The snapshot is not saved.
+	 * @throws IllegalAccessException see {@link NBTSerializer#snapshot(INBTSerializable)}.
+	 * @throws InstantiationException see {@link NBTSerializer#snapshot(INBTSerializable)}.
+	 */
+	public CompletableFuture<Void> save(K key, INBTSerializable object) throws InterruptedException, IllegalAccessException, InstantiationException {
+		return enqueue(key, snapshot(object), true);
+	}
+	
+	/**
+	 * <p>Saves an instance in the background, unless the capacity of this saver is reached and
+	 * the key has no save waiting. No snapshot is taken in that case.</p>
+	 * 
+	 * @param key The key to save the instance under.
+	 * @param object The instance to save.
+	 * @return A future that completes once the data has been written, or {@code null} if the
+	 * instance is not saved.
+	 * @throws IllegalAccessException see {@link NBTSerializer#snapshot(INBTSerializable)}.
+	 * @throws InstantiationException see {@link NBTSerializer#snapshot(INBTSerializable)}.
+	 */
+	public CompletableFuture<Void> trySave(K key, INBTSerializable object) throws IllegalAccessException, InstantiationException {
+		synchronized (this.lock) {
+			if (this.pending >= this.capacity && !this.queued.containsKey(key)) return null;
+		}
+		try {
+			return enqueue(key, snapshot(object), false);
+		} catch (InterruptedException e) {
+			throw new AssertionError(e);
+		}
+	}
+	
+	/**
+	 * <p>Gets a future that completes once every save that is waiting or in progress is done.
+	 * Saves made after this returns are not waited for.</p>
+	 * 
+	 * @return The future. It completes exceptionally if any of the saves fails.
+	 */
+	public CompletableFuture<Void> flush() {
+		List<CompletableFuture<Void>> futures = new ArrayList<CompletableFuture<Void>>();
+		synchronized (this.lock) {
+			for (Job job : this.queued.values()) futures.add(job.future);
+			for (Job job : this.running.values()) futures.add(job.future);
+		}
+		return CompletableFuture.allOf(futures.toArray(new CompletableFuture<?>[futures.size()]));
+	}
+	
+	/**
+	 * <p>Gets the statistics of this saver so far.</p>
+	 * 
+	 * @return The statistics.
+	 */
+	public Stats getStats() {
+		int pending;
+		synchronized (this.lock) {
+			pending = this.pending;
+		}
+		return new Stats(this.saves.sum(), this.coalesced.sum(), this.snapshotNanos.sum(), this.blockedNanos.sum(), this.encodes.sum(), this.encodeNanos.sum(), this.writeNanos.sum(), this.bytesWritten.sum(), this.failures.sum(), pending);
+	}
+	
+	/**
+	 * <p>Takes a snapshot of an instance, and records the time it took.</p>
+	 */
+	private INBTSerializable snapshot(INBTSerializable object) throws IllegalAccessException, InstantiationException {
+		if (object == null) throw new IllegalArgumentException("Instance must not be null");
+		long start = System.nanoTime();
+		INBTSerializable snapshot = NBTSerializer.snapshot(object);
+		this.snapshotNanos.add(System.nanoTime() - start);
+		this.saves.increment();
+		return snapshot;
+	}
+	
+	/**
+	 * <p>Queues a snapshot, or merges it into the save of its key that is waiting.</p>
+	 * 
+	 * @param block Whether to wait for capacity rather than give up.
+	 * @return The future of the save, or {@code null} if there is no capacity and blocking is
+	 * not allowed.
+	 */
+	private CompletableFuture<Void> enqueue(K key, INBTSerializable snapshot, boolean block) throws InterruptedException {
+		Job job;
+		synchronized (this.lock) {
+			long blockedSince = 0;
+			try {
+				while (true) {
+					job = this.queued.get(key);
+					if (job != null) {
+						job.snapshot = snapshot;
+						this.coalesced.increment();
+						return job.future;
+					}
+					if (this.pending < this.capacity) break;
+					if (!block) return null;
+					if (blockedSince == 0) blockedSince = System.nanoTime();
+					this.lock.wait();
+				}
+			} finally {
+				if (blockedSince != 0) this.blockedNanos.add(System.nanoTime() - blockedSince);
+			}
+			job = new Job(key, snapshot);
+			this.queued.put(key, job);
+			this.pending++;
+			/*
+			 * A save of a key that is still being written is submitted once that one is
+			 * done, so that the two cannot overtake each other.
+			 */
+			if (this.running.containsKey(key)) return job.future;
+		}
+		submit(job);
+		return job.future;
+	}
+	
+	/**
+	 * <p>Submits a queued save to the executor.</p>
+	 */
+	private void submit(final Job job) {
+		try {
+			this.executor.execute(new Runnable() {
+				@Override
+				public void run() {
+					NBTSaver.this.run(job);
+				}
+			});
+		} catch (RejectedExecutionException e) {
+			synchronized (this.lock) {
+				this.queued.remove(job.key);
+				this.pending--;
+				this.lock.notifyAll();
+			}
+			this.failures.increment();
+			job.future.completeExceptionally(e);
+		}
+	}
+	
+	/**
+	 * <p>Encodes and writes a save, then submits the next save of its key, if there is one.</p>
+	 */
+	private void run(Job job) {
+		INBTSerializable snapshot;
+		synchronized (this.lock) {
+			/*
+			 * From here on, new saves of the key are queued as a new job rather than merged
+			 * into this one, since its snapshot is already taken.
+			 */
+			this.queued.remove(job.key);
+			this.running.put(job.key, job);
+			snapshot = job.snapshot;
+			job.snapshot = null;
+		}
+		
+		Throwable error = null;
+		try {
+			long start = System.nanoTime();
+			byte[] data = this.pipeline.encode(snapshot);
+			long encoded = System.nanoTime();
+			this.encodes.increment();
+			this.encodeNanos.add(encoded - start);
+			this.sink.write(job.key, data);
+			this.writeNanos.add(System.nanoTime() - encoded);
+			this.bytesWritten.add(data.length);
+		} catch (Throwable t) {
+			this.failures.increment();
+			error = t;
+		}
+		
+		Job next;
+		synchronized (this.lock) {
+			this.running.remove(job.key);
+			this.pending--;
+			next = this.queued.get(job.key);
+			this.lock.notifyAll();
+		}
+		if (next != null) submit(next);
+		if (error == null) job.future.complete(null);
+		else job.future.completeExceptionally(error);
+	}
+	
+	/**
+	 * <p>A save that is waiting or in progress.</p>
+	 */
+	private final class Job {
+		final K key;
+		final CompletableFuture<Void> future = new CompletableFuture<Void>();
+		/**
+		 * The latest snapshot of the key, until the save starts. Guarded by the lock.
+		 */
+		INBTSerializable snapshot;
+		
+		Job(K key, INBTSerializable snapshot) {
+			this.key = key;
+			this.snapshot = snapshot;
+		}
+	}
+	
+	/**
+	 * <p>The statistics of a saver at one point in time. The time spent taking snapshots on
+	 * the calling threads can be compared with the time spent encoding and writing in the
+	 * background, to see how much work the saver moves off the calling threads.</p>
+	 */
+	public static final class Stats {
+		private final long saves;
+		private final long coalesced;
+		private final long snapshotNanos;
+		private final long blockedNanos;
+		private final long encodes;
+		private final long encodeNanos;
+		private final long writeNanos;
+		private final long bytesWritten;
+		private final long failures;
+		private final int pending;
+		
+		Stats(long saves, long coalesced, long snapshotNanos, long blockedNanos, long encodes, long encodeNanos, long writeNanos, long bytesWritten, long failures, int pending) {
+			this.saves = saves;
+			this.coalesced = coalesced;
+			this.snapshotNanos = snapshotNanos;
+			this.blockedNanos = blockedNanos;
+			this.encodes = encodes;
+			this.encodeNanos = encodeNanos;
+			this.writeNanos = writeNanos;
+			this.bytesWritten = bytesWritten;
+			this.failures = failures;
+			this.pending = pending;
+		}
+		
+		/**
+		 * <p>Gets the number of saves made, i.e. the number of snapshots taken.</p>
+		 */
+		public long getSaves() {
+			return this.saves;
+		}
+		
+		/**
+		 * <p>Gets the number of saves that were merged into a save of the same key that was
+		 * still waiting, and so were never encoded on their own.</p>
+		 */
+		public long getCoalesced() {
+			return this.coalesced;
+		}
+		
+		/**
+		 * <p>Gets the total time spent taking snapshots on the calling threads, in
+		 * nanoseconds.</p>
+		 */
+		public long getSnapshotNanos() {
+			return this.snapshotNanos;
+		}
+		
+		/**
+		 * <p>Gets the total time that calling threads spent waiting for capacity, in
+		 * nanoseconds.</p>
+		 */
+		public long getBlockedNanos() {
+			return this.blockedNanos;
+		}
+		
+		/**
+		 * <p>Gets the number of snapshots encoded.</p>
+		 */
+		public long getEncodes() {
+			return this.encodes;
+		}
+		
+		/**
+		 * <p>Gets the total time spent encoding and compressing snapshots in the background, in
+		 * nanoseconds.</p>
+		 */
+		public long getEncodeNanos() {
+			return this.encodeNanos;
+		}
+		
+		/**
+		 * <p>Gets the total time spent writing encoded data to the sink, in nanoseconds.</p>
+		 */
+		public long getWriteNanos() {
+			return this.writeNanos;
+		}
+		
+		/**
+		 * <p>Gets the total number of bytes written to the sink.</p>
+		 */
+		public long getBytesWritten() {
+			return this.bytesWritten;
+		}
+		
+		/**
+		 * <p>Gets the number of saves that failed.</p>
+		 */
+		public long getFailures() {
+			return this.failures;
+		}
+		
+		/**
+		 * <p>Gets the number of saves that were waiting or in progress.</p>
+		 */
+		public int getPending() {
+			return this.pending;
+		}
+		
+		@Override
+		public String toString() {
+			return "Stats[saves=" + this.saves + ", coalesced=" + this.coalesced + ", snapshotNanos=" + this.snapshotNanos + ", blockedNanos=" + this.blockedNanos + ", encodes=" + this.encodes + ", encodeNanos=" + this.encodeNanos + ", writeNanos=" + this.writeNanos + ", bytesWritten=" + this.bytesWritten + ", failures=" + this.failures + ", pending=" + this.pending + "]";
+		}
+	}
+}
@@ -45,4 +45,30 @@ public @interface NBTSerialize {
 	 * @return
 	 */
 	Class<?> typeOverride() default Object.class;
+	
+	/**
+	 * <p>The layout used when this field is a {@link Map}. The default, {@link MapLayout#ENTRIES},
+	 * writes every entry as a separate compound tag. {@link MapLayout#COMPOUND} and
+	 * {@link MapLayout#LISTS} are much smaller and faster to read for large maps. Data in any
+	 * layout can be deserialized regardless of this setting.</p>
+	 * <p><b>Note:</b> This value is ignored for fields that are not maps, and for maps that
+	 * are handled by a codec registered in {@link NBTCodecs}.</p>
+	 * 
+	 * @return
+	 */
+	MapLayout mapLayout() default MapLayout.ENTRIES;
+	
+	/**
+	 * <p>Packs the elements of this field into a single array tag instead of a list tag with
+	 * one tag per element. This applies to collections of numbers or booleans, e.g.
+	 * {@code List<Integer>} or {@code Set<Long>}: collections of integers are written as an
+	 * int array tag, and collections of other numbers are packed into a byte array tag.
+	 * Packed collections take up only a few bytes per element, both in memory and in the
+	 * written data. Null elements are not serialized.</p>
+	 * <p>Arrays of primitives and of their wrappers are always packed, so this is not needed
+	 * for them. Data in either form can be deserialized regardless of this setting.</p>
+	 * 
+	 * @return
+	 */
+	boolean packed() default false;
 }
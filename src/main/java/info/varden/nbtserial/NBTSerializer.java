@@ -1,29 +1,28 @@
 package info.varden.nbtserial;
 
-import java.io.Serializable;
-import java.lang.reflect.Field;
-import java.lang.reflect.ParameterizedType;
-import java.lang.reflect.Type;
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInput;
+import java.io.DataInputStream;
+import java.io.DataOutput;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
 import java.util.Collection;
 import java.util.List;
 import java.util.Map;
 import java.util.Map.Entry;
+import java.util.RandomAccess;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ForkJoinPool;
 
 import net.minecraft.nbt.NBTBase;
-import net.minecraft.nbt.NBTTagByte;
-import net.minecraft.nbt.NBTTagByteArray;
 import net.minecraft.nbt.NBTTagCompound;
-import net.minecraft.nbt.NBTTagDouble;
-import net.minecraft.nbt.NBTTagFloat;
-import net.minecraft.nbt.NBTTagInt;
-import net.minecraft.nbt.NBTTagIntArray;
 import net.minecraft.nbt.NBTTagList;
-import net.minecraft.nbt.NBTTagLong;
-import net.minecraft.nbt.NBTTagShort;
 import net.minecraft.nbt.NBTTagString;
 
-import org.apache.commons.lang3.ArrayUtils;
-
 /**
  * <p>A class for serializing classes to NBT format. Serializable classes must implement {@link INBTSerializable} in
  * order to be serialized to NBT format. This class will serialize all fields in the given object that are annotated
@@ -48,6 +47,35 @@ public class NBTSerializer {
 	public static final int NBT_TAG_COMPOUND = 10;
 	public static final int NBT_TAG_INT_ARRAY = 11;
 	
+	/**
+	 * <p>The name of the long tag that holds the {@link #fingerprint(Class) schema
+	 * fingerprint} of a serialized class, if it was written with
+	 * {@link #writeTo(INBTSerializable, DataOutput, boolean)}. No field can be serialized to a
+	 * tag with this name.</p>
+	 */
+	public static final String SCHEMA_TAG = "#schema";
+	
+	/**
+	 * <p>The name of the byte tag that holds the ID of a {@link NBTSubtypes registered
+	 * subtype}, as the first tag of the compound tag that an instance of the subtype is
+	 * serialized to. No field can be serialized to a tag with this name.</p>
+	 */
+	public static final String SUBTYPE_TAG = "#t";
+	
+	/**
+	 * <p>The name of the int tag that numbers an object in a {@link NBTGraph graph}, in the
+	 * compound tag that the object is first serialized to. No field can be serialized to a
+	 * tag with this name.</p>
+	 */
+	public static final String ID_TAG = "#id";
+	
+	/**
+	 * <p>The name of the int tag that refers back to an object in a {@link NBTGraph graph} by
+	 * its number, as the only tag of the compound tag that each later occurrence of the
+	 * object is serialized to. No field can be serialized to a tag with this name.</p>
+	 */
+	public static final String REFERENCE_TAG = "#ref";
+	
 	/**
 	 * <p>Serializes the given {@link INBTSerializable} instance to an NBT data structure.</p>
 	 * <p><b>Note:</b> null values will not be serialized.</p>
@@ -60,65 +88,81 @@ public class NBTSerializer {
 	 * not natively supported by the serializer and does not implement INBTSerializable.
 	 */
 	public static final <T extends INBTSerializable> NBTTagCompound serialize(T object) throws IllegalAccessException, UnserializableClassException {
+		/*
+		 * Measure the serialization if metrics are being collected.
+		 */
+		NBTMetrics.Counters metrics = NBTMetrics.of(object.getClass());
+		if (metrics == null) return serializeFields(object);
+		long start = System.nanoTime();
+		try {
+			NBTTagCompound data = serializeFields(object);
+			metrics.serialized(System.nanoTime() - start, data.getKeySet().size(), -1);
+			return data;
+		} catch (Throwable t) {
+			metrics.failed(t);
+			throw t;
+		}
+	}
+	
+	/**
+	 * <p>Serializes the annotated fields of the given instance to an NBT data structure.</p>
+	 * 
+	 * @param object An {@link INBTSerializable} instance.
+	 * @return The given instance represented as a serialized NBT data structure.
+	 * @throws IllegalAccessException see {@link #serialize(INBTSerializable)}.
+	 * @throws UnserializableClassException see {@link #serialize(INBTSerializable)}.
+	 */
+	private static NBTTagCompound serializeFields(INBTSerializable object) throws IllegalAccessException, UnserializableClassException {
+		/*
+		 * If a serializer was generated for the class at compile time, it does the same work
+		 * as the code below without reflection, so the instance is handed over to it.
+		 */
+		GeneratedCodec<?> generated = GeneratedCodec.of(object.getClass());
+		if (generated != null) return generated.serializeObject(object);
+		
 		/*
 		 * First thing we need to do is create the NBT compound tag that will represent the
 		 * class instance in its serialized form.
 		 */
 		NBTTagCompound t = new NBTTagCompound();
 		/*
-		 * Then, we need to get a list of declared fields in the instance's class. We loop
-		 * over each of the fields and serialize any that are annotated with @NBTSerialize.
+		 * Then, we need the serialization plan of the instance's class. It holds all fields
+		 * that are annotated with @NBTSerialize, along with their tag names and classes, so
+		 * that we do not have to look them up again on every call. We loop over each of the
+		 * planned fields and serialize them.
 		 */
-		Class<?> definition = object.getClass();
-		Field[] df = definition.getDeclaredFields();
-		for (Field f : df) {
-			if (f.isAnnotationPresent(NBTSerialize.class)) {
-				/*
-				 * Any fields that are annotated with @NBTSerialize will need to be read, so
-				 * we set them as accessible in case they are declared as private or
-				 * protected.
-				 */
-				f.setAccessible(true);
-				/*
-				 * Get the value of the field and check if it is null. If it is, there is no
-				 * need to serialize it, so we move on to the next field.
-				 */
-				Object fv = f.get(object);
+		ClassPlan plan = ClassPlan.of(object.getClass());
+		for (FieldPlan fp : plan.fields) {
+			FieldAccessor fa = fp.accessor;
+			String tn = fp.tagName;
+			
+			/*
+			 * Check the kind of the field against primitives. If any of these match, the
+			 * value is read through the matching primitive accessor, so that it is not boxed,
+			 * and an NBT tag of the type corresponding to the primitive will be created and
+			 * added to the NBT data structure with that value.
+			 */
+			switch (fp.kind) {
+			case BYTE:      t.setByte(tn, fa.getByte(object));          break;
+			case BOOLEAN:   t.setBoolean(tn, fa.getBoolean(object));    break;
+			case SHORT:     t.setShort(tn, fa.getShort(object));        break;
+			case INT:       t.setInteger(tn, fa.getInt(object));        break;
+			case LONG:      t.setLong(tn, fa.getLong(object));          break;
+			case FLOAT:     t.setFloat(tn, fa.getFloat(object));        break;
+			case DOUBLE:    t.setDouble(tn, fa.getDouble(object));      break;
+			
+			/*
+			 * Otherwise, the field is a number class, array, string or other object. Get the
+			 * value of the field and check if it is null. If it is, there is no need to
+			 * serialize it, so we move on to the next field. If not, the codec that was chosen
+			 * for the class of the field when the plan was built creates an NBT tag of the
+			 * corresponding type, which is added to the NBT data structure.
+			 */
+			default:
+				Object fv = fa.get(object);
 				if (fv == null) continue;
-				
-				/*
-				 * Not that we know that the value is not null, we get the name of the tag in
-				 * the NBT structure that corresponds to the given field. If blank, use the
-				 * name of the field itself.
-				 */
-				String tn = f.getAnnotation(NBTSerialize.class).name();
-				if (tn.equals("")) tn = f.getName();
-				/*
-				 * Then, we get the declared class of the field.
-				 */
-				Class fc = f.getType();
-				
-				/*
-				 * Check the assignability of the field against primitives. If any of these
-				 * match, an NBT tag of the type corresponding to the primitive will be
-				 * created and added to the NBT data structure with the value obtained from
-				 * the field.
-				 */
-				if      (fc.isAssignableFrom(byte.class))       t.setByte(tn, (Byte) fv);
-				else if (fc.isAssignableFrom(boolean.class))    t.setBoolean(tn, (Boolean) fv);
-				else if (fc.isAssignableFrom(short.class))      t.setShort(tn, (Short) fv);
-				else if (fc.isAssignableFrom(int.class))        t.setInteger(tn, (Integer) fv);
-				else if (fc.isAssignableFrom(long.class))       t.setLong(tn, (Long) fv);
-				else if (fc.isAssignableFrom(float.class))      t.setFloat(tn, (Float) fv);
-				else if (fc.isAssignableFrom(double.class))     t.setDouble(tn, (Double) fv);
-				
-				/*
-				 * Then, check the assignability of the field against number classes, arrays
-				 * and strings. If any of these match, an NBT tag of the type corresponding to
-				 * the class of the field will be created and added to the NBT data structure
-				 * with the value obtained from the field.
-				 */
-				else t.setTag(tn, objectToTag(fc, fv));
+				if (fp.codec == null) throw new UnserializableClassException(fp.type);
+				t.setTag(tn, fp.codec.encode(fv));
 			}
 		}
 		/*
@@ -127,6 +171,216 @@ public class NBTSerializer {
 		return t;
 	}
 	
+	/**
+	 * <p>Serializes the given {@link INBTSerializable} instance straight to a stream in the
+	 * binary NBT format, as an unnamed root compound tag. No NBT data structure is built in
+	 * memory; the annotated fields are written as they are read.</p>
+	 * <p>The output is byte-identical to passing the result of {@link #serialize} to
+	 * {@code CompressedStreamTools.write()}, including the order of the tags in each compound,
+	 * as long as the instance holds no instances of {@link NBTSubtypes registered subtypes}.
+	 * Their compounds are written with the {@link #SUBTYPE_TAG subtype ID} first, so that
+	 * {@link #readFrom(Class, DataInput)} knows which class to create before it reads any
+	 * fields, and only hold the same tags as the data structure. Types that are handled by
+	 * codecs registered in {@link NBTCodecs} are still converted to NBT tags first, and those
+	 * tags are then written.</p>
+	 * <p><b>Note:</b> null values will not be serialized.</p>
+	 * 
+	 * @param object An {@link INBTSerializable} instance.
+	 * @param out The stream to write the serialized instance to.
+	 * @throws IOException if writing to the stream fails.
+	 * @throws IllegalAccessException if a Field object in a serializable class is enforcing
+	 * Java language access control and the underlying field is inaccessible.
+	 * @throws UnserializableClassException if an attempt is made to serialize a class that is
+	 * not natively supported by the serializer and does not implement INBTSerializable.
+	 */
+	public static final <T extends INBTSerializable> void writeTo(T object, DataOutput out) throws IOException, IllegalAccessException, UnserializableClassException {
+		NBTWriter.writeRoot(object, out, false);
+	}
+	
+	/**
+	 * <p>Serializes the given {@link INBTSerializable} instance straight to a stream in the
+	 * binary NBT format, as an unnamed root compound tag. See
+	 * {@link #writeTo(INBTSerializable, DataOutput)}.</p>
+	 * <p>Writes are buffered, and the stream is flushed, but not closed, when serialization
+	 * is done.</p>
+	 * 
+	 * @param object An {@link INBTSerializable} instance.
+	 * @param out The stream to write the serialized instance to.
+	 * @throws IOException if writing to the stream fails.
+	 * @throws IllegalAccessException if a Field object in a serializable class is enforcing
+	 * Java language access control and the underlying field is inaccessible.
+	 * @throws UnserializableClassException if an attempt is made to serialize a class that is
+	 * not natively supported by the serializer and does not implement INBTSerializable.
+	 */
+	public static final <T extends INBTSerializable> void writeTo(T object, OutputStream out) throws IOException, IllegalAccessException, UnserializableClassException {
+		writeTo(object, out, false);
+	}
+	
+	/**
+	 * <p>Serializes the given {@link INBTSerializable} instance straight to a stream in the
+	 * binary NBT format, as an unnamed root compound tag. See
+	 * {@link #writeTo(INBTSerializable, DataOutput)}.</p>
+	 * <p>A {@link DataOutputStream} is both a {@link DataOutput} and an
+	 * {@link OutputStream}; it is written to directly, like any other {@link DataOutput}.</p>
+	 * 
+	 * @param object An {@link INBTSerializable} instance.
+	 * @param out The stream to write the serialized instance to.
+	 * @throws IOException if writing to the stream fails.
+	 * @throws IllegalAccessException if a Field object in a serializable class is enforcing
+	 * Java language access control and the underlying field is inaccessible.
+	 * @throws UnserializableClassException if an attempt is made to serialize a class that is
+	 * not natively supported by the serializer and does not implement INBTSerializable.
+	 */
+	public static final <T extends INBTSerializable> void writeTo(T object, DataOutputStream out) throws IOException, IllegalAccessException, UnserializableClassException {
+		NBTWriter.writeRoot(object, out, false);
+	}
+	
+	/**
+	 * <p>Serializes the given {@link INBTSerializable} instance straight to a stream in the
+	 * binary NBT format, as an unnamed root compound tag, optionally preceded by the
+	 * {@link #fingerprint(Class) schema fingerprint} of its class. See
+	 * {@link #writeTo(INBTSerializable, DataOutput)}.</p>
+	 * <p>The fingerprint is written as the first tag of the root compound, a long tag named
+	 * {@link #SCHEMA_TAG}, which readers that do not know about it ignore like any other tag
+	 * that does not belong to a field. When {@link #readFrom(Class, DataInput)} finds the
+	 * fingerprint of the class it reads into, it knows which tags to expect, in which order
+	 * and of which types, and only checks that each tag is the one it expects instead of
+	 * looking it up and converting it. Data written for a class that has changed since is
+	 * read as usual. The output is otherwise the same as without the fingerprint.</p>
+	 * 
+	 * @param object An {@link INBTSerializable} instance.
+	 * @param out The stream to write the serialized instance to.
+	 * @param writeSchema Whether to write the schema fingerprint.
+	 * @throws IOException if writing to the stream fails.
+	 * @throws IllegalAccessException if a Field object in a serializable class is enforcing
+	 * Java language access control and the underlying field is inaccessible.
+	 * @throws UnserializableClassException if an attempt is made to serialize a class that is
+	 * not natively supported by the serializer and does not implement INBTSerializable.
+	 */
+	public static final <T extends INBTSerializable> void writeTo(T object, DataOutput out, boolean writeSchema) throws IOException, IllegalAccessException, UnserializableClassException {
+		NBTWriter.writeRoot(object, out, writeSchema);
+	}
+	
+	/**
+	 * <p>Serializes the given {@link INBTSerializable} instance straight to a stream in the
+	 * binary NBT format, optionally preceded by the schema fingerprint of its class. See
+	 * {@link #writeTo(INBTSerializable, DataOutput, boolean)}.</p>
+	 * <p>Writes are buffered, and the stream is flushed, but not closed, when serialization
+	 * is done.</p>
+	 * 
+	 * @param object An {@link INBTSerializable} instance.
+	 * @param out The stream to write the serialized instance to.
+	 * @param writeSchema Whether to write the schema fingerprint.
+	 * @throws IOException if writing to the stream fails.
+	 * @throws IllegalAccessException if a Field object in a serializable class is enforcing
+	 * Java language access control and the underlying field is inaccessible.
+	 * @throws UnserializableClassException if an attempt is made to serialize a class that is
+	 * not natively supported by the serializer and does not implement INBTSerializable.
+	 */
+	public static final <T extends INBTSerializable> void writeTo(T object, OutputStream out, boolean writeSchema) throws IOException, IllegalAccessException, UnserializableClassException {
+		DataOutputStream dos = new DataOutputStream(new BufferedOutputStream(out));
+		NBTWriter.writeRoot(object, dos, writeSchema);
+		dos.flush();
+	}
+	
+	/**
+	 * <p>Serializes the given {@link INBTSerializable} instance straight to a stream in the
+	 * binary NBT format, optionally preceded by the schema fingerprint of its class. See
+	 * {@link #writeTo(INBTSerializable, DataOutput, boolean)}.</p>
+	 * <p>A {@link DataOutputStream} is both a {@link DataOutput} and an
+	 * {@link OutputStream}; it is written to directly, like any other {@link DataOutput}.</p>
+	 * 
+	 * @param object An {@link INBTSerializable} instance.
+	 * @param out The stream to write the serialized instance to.
+	 * @param writeSchema Whether to write the schema fingerprint.
+	 * @throws IOException if writing to the stream fails.
+	 * @throws IllegalAccessException if a Field object in a serializable class is enforcing
+	 * Java language access control and the underlying field is inaccessible.
+	 * @throws UnserializableClassException if an attempt is made to serialize a class that is
+	 * not natively supported by the serializer and does not implement INBTSerializable.
+	 */
+	public static final <T extends INBTSerializable> void writeTo(T object, DataOutputStream out, boolean writeSchema) throws IOException, IllegalAccessException, UnserializableClassException {
+		NBTWriter.writeRoot(object, out, writeSchema);
+	}
+	
+	/**
+	 * <p>Gets the schema fingerprint of the given class: a 64-bit hash of the names and types
+	 * of the tags that its annotated fields are serialized to, including the types of the
+	 * elements of collections and maps and, recursively, the fingerprints of the
+	 * serializable classes it holds. The fingerprint changes whenever a field is added,
+	 * removed, renamed or changes its type in a way that changes the data written for it,
+	 * and stays the same otherwise.</p>
+	 * 
+	 * @param definition The {@link INBTSerializable} class.
+	 * @return The fingerprint of the class.
+	 */
+	public static final long fingerprint(Class<? extends INBTSerializable> definition) {
+		return ClassPlan.of(definition).fingerprint();
+	}
+	
+	/**
+	 * <p>Serializes all of the given {@link INBTSerializable} instances to NBT data
+	 * structures, in parallel on the common {@link ForkJoinPool}. See
+	 * {@link #serializeAll(Collection, Executor)}.</p>
+	 * 
+	 * @param objects The {@link INBTSerializable} instances to serialize.
+	 * @return The result of serializing each instance, in iteration order of the given
+	 * collection.
+	 */
+	public static final List<BatchResult<NBTTagCompound>> serializeAll(Collection<? extends INBTSerializable> objects) {
+		return serializeAll(objects, ForkJoinPool.commonPool());
+	}
+	
+	/**
+	 * <p>Serializes all of the given {@link INBTSerializable} instances to NBT data
+	 * structures, in parallel on the given {@link Executor}. The calling thread takes part in
+	 * the work, and the method returns once every instance has been processed.</p>
+	 * <p>Each instance is serialized on its own, as with {@link #serialize}. An instance that
+	 * cannot be serialized does not abort the batch; instead, its {@link BatchResult} holds
+	 * the exception that serializing it failed with. Instances must not be modified while
+	 * the batch is running.</p>
+	 * 
+	 * @param objects The {@link INBTSerializable} instances to serialize.
+	 * @param executor The executor to serialize on, e.g. a {@link ForkJoinPool} or an
+	 * executor that starts a virtual thread for each task.
+	 * @return The result of serializing each instance, in iteration order of the given
+	 * collection.
+	 */
+	public static final List<BatchResult<NBTTagCompound>> serializeAll(Collection<? extends INBTSerializable> objects, Executor executor) {
+		return NBTBatch.run(objects, new NBTBatch.Job<INBTSerializable, NBTTagCompound>() {
+			@Override
+			NBTTagCompound process(INBTSerializable object) throws Exception {
+				return serialize(object);
+			}
+		}, executor);
+	}
+	
+	/**
+	 * <p>Takes a snapshot of the given {@link INBTSerializable} instance: a detached copy of
+	 * everything that serializing it would read, which can be serialized later, on another
+	 * thread, while the original keeps changing. Serializing the snapshot produces the same
+	 * data as serializing the original at the time of the snapshot would have.</p>
+	 * <p>No NBT tags are built, which makes a snapshot much cheaper than serializing. Primitive
+	 * fields are copied, nested serializable objects are copied recursively, once each, and
+	 * collections, maps, arrays and buffers are copied shallowly, apart from the serializable
+	 * objects and containers they hold. Strings, boxed numbers and values of classes with
+	 * codecs registered in {@link NBTCodecs} are taken to be immutable, and are shared. See
+	 * {@link NBTSaver} for a pipeline that takes snapshots and serializes them in the
+	 * background.</p>
+	 * 
+	 * @param object An {@link INBTSerializable} instance.
+	 * @return The snapshot, a new instance of the same class.
+	 * @throws IllegalAccessException if a Field object in a serializable class is enforcing
+	 * Java language access control and the underlying field is inaccessible, or if the
+	 * constructor for a serializable class is inaccessible.
+	 * @throws InstantiationException if a serializable class, or a collection or map class
+	 * that a field is declared as, has no nullary constructor, or if the instantiation fails
+	 * for some other reason.
+	 */
+	public static final <T extends INBTSerializable> T snapshot(T object) throws IllegalAccessException, InstantiationException {
+		return SnapshotCopier.copy(object);
+	}
+	
 	/**
 	 * <p>Serializes the given {@link Collection} instance to an NBT list structure.</p>
 	 * 
@@ -137,7 +391,7 @@ public class NBTSerializer {
 	 * @throws UnserializableClassException if an attempt is made to serialize a class that is
 	 * not natively supported by the serializer and does not implement INBTSerializable.
 	 */
-	private static final <T> NBTTagList serializeCollection(Collection<T> col) throws IllegalAccessException, UnserializableClassException {
+	static final <T> NBTTagList serializeCollection(Collection<T> col) throws IllegalAccessException, UnserializableClassException {
 		/*
 		 * First of all, create a blank NBT list tag to store our values. Unlike Java, NBT has
 		 * only one one type of list, namely NBTTagList. Java has different implementations of
@@ -156,13 +410,27 @@ public class NBTSerializer {
 		 * stream.)
 		 */
 		if (col.size() <= 0) return c;
-		Class<T> subclass = (Class<T>) col.iterator().next().getClass();
 		
+		/*
+		 * The codec is looked up for the class of each element, as elements may be instances
+		 * of different subclasses of the declared element type. Lists usually hold instances
+		 * of a single class, so the lookup is only repeated when the class changes.
+		 */
+		Class<?> last = null;
+		NBTCodec<?> codec = null;
+		int tagId = NBT_TAG_END;
 		for (T element : col) {
 			/*
-			 * Get a tag that represents this element in the list as an NBT tag.
+			 * Get a tag that represents this element in the list as an NBT tag. Null elements
+			 * are not represented at all.
 			 */
-			NBTBase tag = objectToTag(subclass, element);
+			if (element == null) continue;
+			if (element.getClass() != last) {
+				last = element.getClass();
+				codec = codecFor(last);
+				tagId = checkElementTag(tagId, codec, last);
+			}
+			NBTBase tag = codec.encode(element);
 			if (tag != null) {
 				/*
 				 * If a suitable tag type was found and a tag was created for the list
@@ -177,6 +445,91 @@ public class NBTSerializer {
 		return c;
 	}
 	
+	/**
+	 * <p>Checks that the elements of a list can all be written as tags of the same type.</p>
+	 * 
+	 * @param tagId The NBT tag ID of the elements so far, or {@link #NBT_TAG_END} if there
+	 * have been none.
+	 * @param codec The codec of the next element.
+	 * @param clazz The class of the next element.
+	 * @return The NBT tag ID of the elements.
+	 * @throws UnserializableClassException if the codec writes tags of another type.
+	 */
+	static int checkElementTag(int tagId, NBTCodec<?> codec, Class<?> clazz) throws UnserializableClassException {
+		int id = codec.getTagId();
+		if (tagId != NBT_TAG_END && id != tagId) throw new UnserializableClassException(clazz, "Element of " + clazz.getName() + " cannot be written to a list of tags of type " + tagId);
+		return id;
+	}
+	
+	/**
+	 * <p>Serializes the given {@link Map} instance to a single NBT compound structure, with
+	 * one child tag for each entry, named after its key. See {@link MapLayout#COMPOUND}.</p>
+	 * 
+	 * @param map A {@link Map} instance with {@link String} keys.
+	 * @return The given instance represented as a serialized NBT compound structure.
+	 * @throws IllegalAccessException if a Field object in a serializable class is enforcing
+	 * Java language access control and the underlying field is inaccessible.
+	 * @throws UnserializableClassException if an attempt is made to serialize a class that is
+	 * not natively supported by the serializer and does not implement INBTSerializable.
+	 */
+	static final NBTTagCompound serializeMapCompound(Map<?, ?> map) throws IllegalAccessException, UnserializableClassException {
+		NBTTagCompound t = new NBTTagCompound();
+		for (Entry<?, ?> entry : map.entrySet()) {
+			/*
+			 * A compound tag cannot hold a null name or a null tag, so such entries are
+			 * skipped entirely.
+			 */
+			Object key = entry.getKey();
+			Object value = entry.getValue();
+			if (key == null || value == null) continue;
+			t.setTag((String) key, codecFor(value.getClass()).encode(value));
+		}
+		return t;
+	}
+	
+	/**
+	 * <p>Serializes the given {@link Map} instance to an NBT list structure holding two lists:
+	 * one with the keys of the map, and one with its values. See {@link MapLayout#LISTS}.</p>
+	 * 
+	 * @param map A {@link Map} instance.
+	 * @return The given instance represented as a serialized NBT list structure.
+	 * @throws IllegalAccessException if a Field object in a serializable class is enforcing
+	 * Java language access control and the underlying field is inaccessible.
+	 * @throws UnserializableClassException if an attempt is made to serialize a class that is
+	 * not natively supported by the serializer and does not implement INBTSerializable.
+	 */
+	static final NBTTagList serializeMapLists(Map<?, ?> map) throws IllegalAccessException, UnserializableClassException {
+		/*
+		 * The keys and values are split into two collections, which are then serialized like
+		 * any other collection. Entries with a null key or value are skipped, as they would
+		 * otherwise be dropped from only one of the lists and shift the other one.
+		 */
+		List<Object> keys = new ArrayList<Object>(map.size());
+		List<Object> values = new ArrayList<Object>(map.size());
+		splitEntries(map, keys, values);
+		
+		NBTTagList t = new NBTTagList();
+		t.appendTag(serializeCollection(keys));
+		t.appendTag(serializeCollection(values));
+		return t;
+	}
+	
+	/**
+	 * <p>Splits the entries of the given map into a list of keys and a list of values, in
+	 * iteration order. Entries with a {@code null} key or value are skipped.</p>
+	 * 
+	 * @param map The map to split.
+	 * @param keys The list to add the keys to.
+	 * @param values The list to add the values to.
+	 */
+	static void splitEntries(Map<?, ?> map, List<Object> keys, List<Object> values) {
+		for (Entry<?, ?> entry : map.entrySet()) {
+			if (entry.getKey() == null || entry.getValue() == null) continue;
+			keys.add(entry.getKey());
+			values.add(entry.getValue());
+		}
+	}
+	
 	/**
 	 * <p>Serializes the given {@link Entry} instance to an NBT data structure.</p>
 	 * 
@@ -187,14 +540,16 @@ public class NBTSerializer {
 	 * @throws UnserializableClassException if an attempt is made to serialize a class that is
 	 * not natively supported by the serializer and does not implement INBTSerializable.
 	 */
-	private static final <K, V> NBTTagCompound serializeEntry(Entry<K, V> entry) throws UnserializableClassException, IllegalAccessException {
+	static final <K, V> NBTTagCompound serializeEntry(Entry<K, V> entry) throws UnserializableClassException, IllegalAccessException {
 		/*
 		 * We don't know what kind of elements the key/value pair contains, and instead of
 		 * using reflection sorcery (http://stackoverflow.com/a/14403515/1955334) to figure it
 		 * out, it's much easier and more more logical to just check the class of the key and
 		 * value of the entry.
 		 */
+		@SuppressWarnings("unchecked")
 		Class<K> keyClass = (Class<K>) entry.getKey().getClass();
+		@SuppressWarnings("unchecked")
 		Class<V> valueClass = (Class<V>) entry.getValue().getClass();
 		
 		/*
@@ -264,42 +619,10 @@ public class NBTSerializer {
 		if (obj == null) return null;
 		
 		/*
-		 * Check the assignability of the class against number classes, arrays and strings. If
-		 * any of these match, an NBT tag of the type corresponding to the class of the list
-		 * will be created and added to the NBT list structure with the value obtained from
-		 * the list.
-		 */
-		if      (clazz.isAssignableFrom(Byte.class))                return new NBTTagByte((Byte) obj);
-		else if (clazz.isAssignableFrom(Boolean.class))             return new NBTTagByte(((Boolean) obj) ? (byte) 1 : (byte) 0);
-		else if (clazz.isAssignableFrom(Short.class))               return new NBTTagShort((Short) obj);
-		else if (clazz.isAssignableFrom(Integer.class))             return new NBTTagInt((Integer) obj);
-		else if (clazz.isAssignableFrom(Long.class))                return new NBTTagLong((Long) obj);
-		else if (clazz.isAssignableFrom(Float.class))               return new NBTTagFloat((Float) obj);
-		else if (clazz.isAssignableFrom(Double.class))              return new NBTTagDouble((Double) obj);
-		else if (clazz.isAssignableFrom(byte[].class))              return new NBTTagByteArray((byte[]) obj);
-		else if (clazz.isAssignableFrom(Byte[].class))              return new NBTTagByteArray(ArrayUtils.toPrimitive((Byte[]) obj));
-		else if (clazz.isAssignableFrom(String.class))              return new NBTTagString((String) obj);
-		else if (clazz.isAssignableFrom(int[].class))               return new NBTTagIntArray((int[]) obj);
-		else if (clazz.isAssignableFrom(Integer[].class))           return new NBTTagIntArray(ArrayUtils.toPrimitive((Integer[]) obj));
-		
-		/*
-		 * Lists and other INBTSerializable objects in the class instance must be
-		 * serialized themselves before they are added to the NBT list structure.
-		 */
-		else if (INBTSerializable.class.isAssignableFrom(clazz))    return serialize((INBTSerializable) obj);
-		else if (Collection.class.isAssignableFrom(clazz))          return serializeCollection((Collection) obj);
-		
-		/*
-		 * We will also handle types of objects that are not traditionally supported
-		 * by NBT, such as maps, and non-byte/integer arrays.
+		 * Look up the codec that handles the class and let it create an NBT tag of the
+		 * corresponding type. If the class is not supported, this throws an exception.
 		 */
-		else if (Entry.class.isAssignableFrom(clazz))				return serializeEntry((Entry) obj);
-		else if (Map.class.isAssignableFrom(clazz))                 return serializeCollection(((Map) obj).entrySet());
-		
-		/*
-		 * The object cannot be represented as a tag, so return null.
-		 */
-		else throw new UnserializableClassException(clazz);
+		return codecFor(clazz).encode(obj);
 	}
 	
 	/**
@@ -309,6 +632,12 @@ public class NBTSerializer {
 	 * structure.</p>
 	 * <p><b>Note:</b> If an NBT tag is not found for a corresponding field of the given
 	 * serializable class, that field will be instantiated as {@code null}.</p>
+	 * <p>If an {@link NBTInstanceSupplier}, such as an {@link NBTPool}, is registered for the
+	 * class in {@link NBTInstances}, the instance is taken from it and
+	 * {@link #refill(INBTSerializable, NBTTagCompound) refilled}. Refilling always uses
+	 * reflection, even if a serializer was generated for the class, since generated
+	 * serializers create new objects for all fields and would throw away the objects that
+	 * refilling reuses.</p>
 	 * 
 	 * @param definition The {@link INBTSerializable} class structure to use for
 	 * deserialization.
@@ -325,15 +654,26 @@ public class NBTSerializer {
 	 */
 	public static final <T extends INBTSerializable> T deserialize(Class<T> definition, NBTTagCompound data) throws IllegalAccessException, InstantiationException, UnserializableClassException {
 		/*
-		 * The first thing we need to do is create an instance of the class that we want to
-		 * deserialize to. When using this method, the class MUST have a nullary constructor,
-		 * as we otherwise would have no idea what kind of arguments to pass to the
-		 * constructor.
+		 * The first thing we need to do is get an instance of the class that we want to
+		 * deserialize to. If a supplier is registered for the class, the instance may have
+		 * been used before, so it is refilled, reusing the objects its fields still hold.
+		 * Generated serializers are passed over here on purpose: they replace every field,
+		 * so the instance would be reused but nothing it holds would be.
 		 */
-		T instance = definition.newInstance();
+		NBTInstanceSupplier<? extends T> supplier = NBTInstances.get(definition);
+		if (supplier != null) {
+			T instance = supplier.get();
+			refill(instance, data);
+			return instance;
+		}
+		
 		/*
-		 * This instance will then be funneled into the main deserialization function.
+		 * Otherwise, we create a new instance. When using this method, the class MUST have a
+		 * nullary constructor, as we otherwise would have no idea what kind of arguments to
+		 * pass to the constructor. This instance will then be funneled into the main
+		 * deserialization function.
 		 */
+		T instance = NBTInstances.construct(definition);
 		deserialize(instance, data, true);
 		/*
 		 * Finally, return this instance.
@@ -371,96 +711,516 @@ public class NBTSerializer {
 	 */
 	public static final <T extends INBTSerializable> void deserialize(T instance, NBTTagCompound data, boolean interpretMissingFieldValuesAsNull) throws IllegalAccessException, InstantiationException, UnserializableClassException {
 		/*
-		 * First of all, we need to get a list of declared fields in the instance's class. We
-		 * then loop over each of the fields and process any that are annotated with
-		 * @NBTSerialize.
+		 * As with serialization, a serializer that was generated for the class at compile
+		 * time takes over if there is one.
 		 */
-		Field[] df = instance.getClass().getDeclaredFields();
-		for (Field f : df) {
-			if (f.isAnnotationPresent(NBTSerialize.class)) {
-				/*
-				 * Once an annotated field is found, get the name of the tag in the NBT
-				 * structure that corresponds to the given field. If blank, use the name of
-				 * the field itself.
-				 */
-				String tn = f.getAnnotation(NBTSerialize.class).name();
-				if (tn.equals("")) tn = f.getName();
-				/*
-				 * If the tag is not present in the NBT data structure, decide what to do with
-				 * it - either ignore it and move on, or set it to null, depending on what is
-				 * specified through the interpretMissingFieldValuesAsNull argument.
-				 */
-				if (!data.hasKey(tn)) {
-					if (interpretMissingFieldValuesAsNull) {
-						/*
-						 * The developer has specified that they want missing tags to default
-						 * to null in the class instance, so we set the field as accessible
-						 * (in case it is private or protected) before setting its value to
-						 * null.
-						 */
-						f.setAccessible(true);
-						f.set(instance, null);
-					}
+		GeneratedCodec<?> generated = GeneratedCodec.of(instance.getClass());
+		if (generated == null) {
+			readFields(instance, data, interpretMissingFieldValuesAsNull, false);
+			return;
+		}
+		
+		NBTMetrics.Counters metrics = NBTMetrics.of(instance.getClass());
+		if (metrics == null) {
+			generated.deserializeObject(instance, data, interpretMissingFieldValuesAsNull);
+			return;
+		}
+		long start = System.nanoTime();
+		try {
+			generated.deserializeObject(instance, data, interpretMissingFieldValuesAsNull);
+			metrics.deserialized(System.nanoTime() - start);
+		} catch (Throwable t) {
+			metrics.failed(t);
+			throw t;
+		}
+	}
+	
+	/**
+	 * <p>Deserializes an NBT data structure into an existing {@link INBTSerializable} class
+	 * instance, reusing the objects that its fields already hold wherever possible. This is
+	 * meant for instances that are recycled, such as those from an {@link NBTPool}, so that
+	 * deserializing into them allocates as little as possible.</p>
+	 * <p>The result is the same as that of
+	 * {@link #deserialize(INBTSerializable, NBTTagCompound, boolean)} with missing fields
+	 * set to {@code null}, except that a field that holds an object of exactly the class that
+	 * would otherwise be instantiated for it keeps that object:</p>
+	 * <ul>
+	 * <li>{@link INBTSerializable} objects are refilled recursively.</li>
+	 * <li>Lists are refilled element by element, so that the elements are reused too; other
+	 * collections and maps are cleared and filled again.</li>
+	 * </ul>
+	 * <p>Objects are overwritten in place, so everything that is reachable through the
+	 * fields of the instance must no longer be in use elsewhere; any reference to a nested
+	 * object, list or map that is kept outside of the instance sees it change.</p>
+	 * <p>Objects that cannot be reused are created as usual, taking them from registered
+	 * {@link NBTInstanceSupplier}s where there are any. Refilling is always done through
+	 * reflection; serializers generated by {@code nbt-processor} are not used, as they cannot
+	 * reuse the objects that fields hold.</p>
+	 * 
+	 * @param instance The {@link INBTSerializable} instance to deserialize into.
+	 * @param data The NBT data structure to deserialize.
+	 * @throws IllegalAccessException see
+	 * {@link #deserialize(INBTSerializable, NBTTagCompound, boolean)}.
+	 * @throws InstantiationException see
+	 * {@link #deserialize(INBTSerializable, NBTTagCompound, boolean)}.
+	 * @throws UnserializableClassException see
+	 * {@link #deserialize(INBTSerializable, NBTTagCompound, boolean)}.
+	 */
+	public static final <T extends INBTSerializable> void refill(T instance, NBTTagCompound data) throws IllegalAccessException, InstantiationException, UnserializableClassException {
+		readFields(instance, data, true, true);
+	}
+	
+	/**
+	 * <p>Deserializes an NBT data structure into the annotated fields of an instance, using
+	 * the serialization plan of its class.</p>
+	 * 
+	 * @param instance The instance to deserialize into.
+	 * @param data The NBT data structure to deserialize.
+	 * @param interpretMissingFieldValuesAsNull Whether fields for which there is no tag
+	 * should be set to {@code null} or left as-is.
+	 * @param reuse Whether the objects that the fields already hold should be refilled
+	 * rather than replaced where possible.
+	 */
+	private static void readFields(Object instance, NBTTagCompound data, boolean interpretMissingFieldValuesAsNull, boolean reuse) throws IllegalAccessException, InstantiationException, UnserializableClassException {
+		/*
+		 * Measure the deserialization if metrics are being collected.
+		 */
+		NBTMetrics.Counters metrics = NBTMetrics.of(instance.getClass());
+		if (metrics == null) {
+			readPlannedFields(instance, data, interpretMissingFieldValuesAsNull, reuse);
+			return;
+		}
+		long start = System.nanoTime();
+		try {
+			readPlannedFields(instance, data, interpretMissingFieldValuesAsNull, reuse);
+			metrics.deserialized(System.nanoTime() - start);
+		} catch (Throwable t) {
+			metrics.failed(t);
+			throw t;
+		}
+	}
+	
+	/**
+	 * <p>Deserializes an NBT data structure into the annotated fields of an instance. See
+	 * {@link #readFields(Object, NBTTagCompound, boolean, boolean)}.</p>
+	 */
+	private static void readPlannedFields(Object instance, NBTTagCompound data, boolean interpretMissingFieldValuesAsNull, boolean reuse) throws IllegalAccessException, InstantiationException, UnserializableClassException {
+		/*
+		 * First of all, we need the serialization plan of the instance's class. We then loop
+		 * over each of the fields in it, all of which are annotated with @NBTSerialize and
+		 * already accessible even if they are declared private or protected.
+		 */
+		ClassPlan plan = ClassPlan.of(instance.getClass());
+		for (FieldPlan fp : plan.fields) {
+			FieldAccessor fa = fp.accessor;
+			String tn = fp.tagName;
+			/*
+			 * If the tag is not present in the NBT data structure, decide what to do with it
+			 * - either ignore it and move on, or set it to null, depending on what is
+			 * specified through the interpretMissingFieldValuesAsNull argument.
+			 */
+			if (!data.hasKey(tn)) {
+				if (interpretMissingFieldValuesAsNull) {
 					/*
-					 * Finally, we continue to the next field.
+					 * The developer has specified that they want missing tags to default to
+					 * null in the class instance, so we set its value to null.
 					 */
-					continue;
+					fa.set(instance, null);
 				}
 				/*
-				 * If we reach this point, a tag that corresponds to the given field was found
-				 * in the NBT data structure. No matter what happens now, the value of that
-				 * field will end up overwritten, so we set it as accessible in case it is
-				 * declared private or protected.
-				 */
-				f.setAccessible(true);
-				/*
-				 * Then, we get the declared class of the field. Override values from
-				 * NBTSerialize will override this.
+				 * Finally, we continue to the next field.
 				 */
-				Class<?> fc;
-				Class<?> forceInstantiateAs = f.getAnnotation(NBTSerialize.class).typeOverride();
-				
-				if (forceInstantiateAs.isAssignableFrom(Object.class)) {
-					fc = f.getType();
-				} else {
-					fc = forceInstantiateAs;
-				}
-				
+				continue;
+			}
+			
+			/*
+			 * Check the kind of the field against primitives. If any of these match, the
+			 * value of the field will be set to a corresponding, valid instance of the
+			 * primitive that matches from the NBT data structure, without boxing it.
+			 */
+			switch (fp.kind) {
+			case BYTE:      fa.setByte      (instance,      data.getByte(tn));      break;
+			case BOOLEAN:   fa.setBoolean   (instance,      data.getBoolean(tn));   break;
+			case SHORT:     fa.setShort     (instance,      data.getShort(tn));     break;
+			case INT:       fa.setInt       (instance,      data.getInteger(tn));   break;
+			case LONG:      fa.setLong      (instance,      data.getLong(tn));      break;
+			case FLOAT:     fa.setFloat     (instance,      data.getFloat(tn));     break;
+			case DOUBLE:    fa.setDouble    (instance,      data.getDouble(tn));    break;
+			
+			/*
+			 * Otherwise, the field is a number class, array, string or other object. The
+			 * value of the field will be set to a corresponding, valid instance of the class
+			 * that matches from the NBT data structure. The class to instantiate (which
+			 * takes override values from NBTSerialize into account), the types of any
+			 * generics and the codec to use have already been resolved in the plan.
+			 */
+			default:
+				if (fp.readCodec == null) throw new UnserializableClassException(fp.readType.raw);
+				NBTBase tag = data.getTag(tn);
 				/*
-				 * Check the assignability of the field against primitives. If any of these
-				 * match, the value of the field will be set to a corresponding, valid
-				 * instance of the primitive that matches from the NBT data structure.
+				 * When refilling, the object that the field already holds is reused if it
+				 * can be, in which case there is nothing to assign.
 				 */
-				if      (fc.isAssignableFrom(byte.class))       f.setByte       (instance,      data.getByte(tn));
-				else if (fc.isAssignableFrom(boolean.class))    f.setBoolean    (instance,      data.getBoolean(tn));
-				else if (fc.isAssignableFrom(short.class))      f.setShort      (instance,      data.getShort(tn));
-				else if (fc.isAssignableFrom(int.class))        f.setInt        (instance,      data.getInteger(tn));
-				else if (fc.isAssignableFrom(long.class))       f.setLong       (instance,      data.getLong(tn));
-				else if (fc.isAssignableFrom(float.class))      f.setFloat      (instance,      data.getFloat(tn));
-				else if (fc.isAssignableFrom(double.class))     f.setDouble     (instance,      data.getDouble(tn));
-				
+				if (reuse && refillValue(fa.get(instance), tag, fp.readType, fp.readCodec)) break;
+				fa.set(instance, fp.readCodec.decode(tag, fp.readType));
+			}
+		}
+	}
+	
+	/**
+	 * <p>Deserializes an NBT tag into an existing object in place, if the object is of exactly
+	 * the class that would otherwise be instantiated for the tag and is handled by one of the
+	 * built-in codecs that support this.</p>
+	 * 
+	 * @param current The existing object, or {@code null}.
+	 * @param tag The NBT tag to deserialize.
+	 * @param type The resolved type that the tag is deserialized to.
+	 * @param codec The codec for the type.
+	 * @return Whether the object was refilled. If not, it was left untouched.
+	 */
+	@SuppressWarnings("unchecked")
+	static boolean refillValue(Object current, NBTBase tag, ResolvedType type, NBTCodec<?> codec) throws IllegalAccessException, InstantiationException, UnserializableClassException {
+		if (current == null || current.getClass() != type.raw) return false;
+		/*
+		 * Objects in a graph may be shared, so they are always read through their codec,
+		 * which resolves references to them, rather than refilled.
+		 */
+		if (codec == BuiltinCodecs.SERIALIZABLE && tag instanceof NBTTagCompound && NBTGraph.current() == null) {
+			readFields(current, (NBTTagCompound) tag, true, true);
+			return true;
+		}
+		if (codec == BuiltinCodecs.COLLECTION && tag instanceof NBTTagList) {
+			refillCollection((Collection<Object>) current, (NBTTagList) tag, type.argument(0));
+			return true;
+		}
+		if (codec instanceof BuiltinCodecs.MapCodec) {
+			Map<Object, Object> map = (Map<Object, Object>) current;
+			map.clear();
+			((BuiltinCodecs.MapCodec) codec).fill(map, tag, type);
+			return true;
+		}
+		return false;
+	}
+	
+	/**
+	 * <p>Deserializes an NBT list structure into an existing {@link Collection} in place. The
+	 * elements of random access lists are refilled one by one where they can be, and the list
+	 * is then shortened or extended as needed; other collections are cleared and filled
+	 * again.</p>
+	 * 
+	 * @param c The collection to refill.
+	 * @param list The NBT list structure to deserialize.
+	 * @param subtype The resolved type of the elements of the collection.
+	 */
+	private static void refillCollection(Collection<Object> c, NBTTagList list, ResolvedType subtype) throws IllegalAccessException, InstantiationException, UnserializableClassException {
+		if (!(c instanceof List) || !(c instanceof RandomAccess)) {
+			c.clear();
+			deserializeCollection(list, c, subtype);
+			return;
+		}
+		List<Object> l = (List<Object>) c;
+		int count = list.tagCount();
+		int kept = Math.min(count, l.size());
+		if (l.size() > count) l.subList(count, l.size()).clear();
+		if (count == 0) return;
+		
+		if (l instanceof ArrayList) ((ArrayList<Object>) l).ensureCapacity(count);
+		NBTCodec<?> codec = codecFor(subtype.raw);
+		for (int i = 0; i < kept; i++) {
+			NBTBase tag = list.get(i);
+			if (!refillValue(l.get(i), tag, subtype, codec)) l.set(i, codec.decode(tag, subtype));
+		}
+		for (int i = kept; i < count; i++) {
+			l.add(codec.decode(list.get(i), subtype));
+		}
+	}
+	
+	/**
+	 * <p>Applies a delta, as created by {@link NBTTracker#delta()}, to an existing
+	 * {@link INBTSerializable} instance in place. Fields whose tags are in the delta are
+	 * deserialized, fields that the delta lists as removed are set to {@code null}, and all
+	 * other fields are left as they are.</p>
+	 * <p>Unlike {@link #deserialize(INBTSerializable, NBTTagCompound, boolean)}, existing
+	 * objects are updated rather than replaced wherever the delta allows it. If a field
+	 * already holds an {@link INBTSerializable} instance, the compound tag for it is applied
+	 * to that instance as a delta of its own. Collections and maps that the delta holds
+	 * element-level edits for are edited in place, so that e.g. adding an element to a large
+	 * list does not rebuild the list. Only fields that are {@code null} get new instances.
+	 * See {@link NBTTracker#META_TAG} for the format of removals and edits.</p>
+	 * 
+	 * @param instance The {@link INBTSerializable} instance to apply the delta to.
+	 * @param delta The delta to apply.
+	 * @throws IllegalAccessException if a Field object in a serializable class is enforcing
+	 * Java language access control and the underlying field is inaccessible, or if the
+	 * constructor for a serializable class is inaccessible.
+	 * @throws InstantiationException if a serializable class represents an abstract class,
+	 * an interface, an array class, a primitive type, or void; or if the class has no nullary
+	 * constructor; or if the instantiation fails for some other reason.
+	 * @throws UnserializableClassException if an attempt is made to deserialize a class that
+	 * is not natively supported by the serializer and does not implement INBTSerializable.
+	 * @throws IllegalStateException if the delta holds edits for a collection or map field
+	 * that is {@code null} in the given instance, i.e. if the instance is not in the state
+	 * that the delta was created against.
+	 */
+	public static final <T extends INBTSerializable> void patch(T instance, NBTTagCompound delta) throws IllegalAccessException, InstantiationException, UnserializableClassException {
+		ClassPlan plan = ClassPlan.of(instance.getClass());
+		for (FieldPlan fp : plan.fields) {
+			FieldAccessor fa = fp.accessor;
+			String tn = fp.tagName;
+			if (!delta.hasKey(tn)) continue;
+			
+			switch (fp.kind) {
+			case BYTE:      fa.setByte      (instance,      delta.getByte(tn));     break;
+			case BOOLEAN:   fa.setBoolean   (instance,      delta.getBoolean(tn));  break;
+			case SHORT:     fa.setShort     (instance,      delta.getShort(tn));    break;
+			case INT:       fa.setInt       (instance,      delta.getInteger(tn));  break;
+			case LONG:      fa.setLong      (instance,      delta.getLong(tn));     break;
+			case FLOAT:     fa.setFloat     (instance,      delta.getFloat(tn));    break;
+			case DOUBLE:    fa.setDouble    (instance,      delta.getDouble(tn));   break;
+			
+			default:
+				if (fp.readCodec == null) throw new UnserializableClassException(fp.readType.raw);
+				NBTBase tag = delta.getTag(tn);
 				/*
-				 * Then, check the assignability of the field against number classes, arrays
-				 * and strings. If any of these match, the value of the field will be set to a
-				 * corresponding, valid instance of the class that matches from the NBT data
-				 * structure.
+				 * A nested INBTSerializable instance that is already there is patched
+				 * recursively rather than replaced, so that a delta only needs to hold the
+				 * fields of it that have changed.
 				 */
-				else f.set(instance, tagToObject(data.getTag(tn), fc, f.getGenericType()));
+				if (fp.readCodec == BuiltinCodecs.SERIALIZABLE && tag instanceof NBTTagCompound) {
+					Object current = fa.get(instance);
+					if (current != null) {
+						patch((INBTSerializable) current, (NBTTagCompound) tag);
+						break;
+					}
+				}
+				fa.set(instance, fp.readCodec.decode(tag, fp.readType));
 			}
 		}
+		
+		/*
+		 * Finally, the collections and maps that have changed are edited, and fields that
+		 * have become null are cleared. Primitive fields cannot be null, so they are never
+		 * listed.
+		 */
+		if (delta.getTagId(NBTTracker.META_TAG) != NBT_TAG_COMPOUND) return;
+		NBTTagCompound meta = delta.getCompoundTag(NBTTracker.META_TAG);
+		if (meta.hasKey("edits")) {
+			NBTTagCompound edits = meta.getCompoundTag("edits");
+			for (String tn : edits.getKeySet()) {
+				FieldPlan fp = plan.field(tn);
+				if (fp == null) continue;
+				Object current = fp.accessor.get(instance);
+				if (current == null) throw new IllegalStateException("Cannot edit field " + fp.field.getName() + " of " + instance.getClass().getName() + ", as it is null");
+				ContainerEdits.apply(current, (NBTTagList) edits.getTag(tn), fp.readType);
+			}
+		}
+		if (meta.hasKey("removed")) {
+			NBTTagList removed = (NBTTagList) meta.getTag("removed");
+			for (int i = 0; i < removed.tagCount(); i++) {
+				FieldPlan fp = plan.field(((NBTTagString) removed.get(i)).getString());
+				if (fp != null && fp.kind == FieldPlan.Kind.OBJECT) fp.accessor.set(instance, null);
+			}
+		}
+	}
+	
+	/**
+	 * <p>Deserializes an {@link INBTSerializable} instance straight from a stream in the
+	 * binary NBT format, i.e. an unnamed root compound tag as written by
+	 * {@link #writeTo(INBTSerializable, DataOutput)} or {@code CompressedStreamTools.write()}.
+	 * No NBT data structure is built in memory; tags are assigned to fields as they are read,
+	 * and tags that do not belong to any field are skipped.</p>
+	 * <p><b>Note:</b> If an NBT tag is not found for a corresponding field of the given
+	 * serializable class, that field will be instantiated as {@code null}.</p>
+	 * 
+	 * @param definition The {@link INBTSerializable} class structure to use for
+	 * deserialization.
+	 * @param in The stream to read the serialized instance from.
+	 * @return A deserialized instance of the given class definition.
+	 * @throws IOException if reading from the stream fails, or if the stream does not hold a
+	 * valid compound tag.
+	 * @throws IllegalAccessException if a Field object in a serializable class is enforcing
+	 * Java language access control and the underlying field is inaccessible, or if the
+	 * constructor for a serializable class or {@link List} is inaccessible.
+	 * @throws InstantiationException if a serializable or {@link List} class represents
+	 * an abstract class, an interface, an array class, a primitive type, or void; or if the
+	 * class has no nullary constructor; or if the instantiation fails for some other reason.
+	 * @throws UnserializableClassException if an attempt is made to deserialize a class that
+	 * is not natively supported by the serializer and does not implement INBTSerializable.
+	 */
+	public static final <T extends INBTSerializable> T readFrom(Class<T> definition, DataInput in) throws IOException, IllegalAccessException, InstantiationException, UnserializableClassException {
+		T instance = NBTInstances.newInstance(definition);
+		NBTReader.readRoot(instance, in, true);
+		return instance;
+	}
+	
+	/**
+	 * <p>Deserializes an {@link INBTSerializable} instance straight from a stream in the
+	 * binary NBT format. See {@link #readFrom(Class, DataInput)}.</p>
+	 * <p>Reads are buffered, so more bytes than the serialized instance takes up may be
+	 * consumed from the stream. The stream is not closed.</p>
+	 * 
+	 * @param definition The {@link INBTSerializable} class structure to use for
+	 * deserialization.
+	 * @param in The stream to read the serialized instance from.
+	 * @return A deserialized instance of the given class definition.
+	 * @throws IOException if reading from the stream fails, or if the stream does not hold a
+	 * valid compound tag.
+	 * @throws IllegalAccessException if a Field object in a serializable class is enforcing
+	 * Java language access control and the underlying field is inaccessible, or if the
+	 * constructor for a serializable class or {@link List} is inaccessible.
+	 * @throws InstantiationException if a serializable or {@link List} class represents
+	 * an abstract class, an interface, an array class, a primitive type, or void; or if the
+	 * class has no nullary constructor; or if the instantiation fails for some other reason.
+	 * @throws UnserializableClassException if an attempt is made to deserialize a class that
+	 * is not natively supported by the serializer and does not implement INBTSerializable.
+	 */
+	public static final <T extends INBTSerializable> T readFrom(Class<T> definition, InputStream in) throws IOException, IllegalAccessException, InstantiationException, UnserializableClassException {
+		return readFrom(definition, (DataInput) new DataInputStream(new BufferedInputStream(in)));
+	}
+	
+	/**
+	 * <p>Deserializes an {@link INBTSerializable} instance straight from a stream in the
+	 * binary NBT format. See {@link #readFrom(Class, DataInput)}.</p>
+	 * <p>A {@link DataInputStream} is both a {@link DataInput} and an {@link InputStream};
+	 * it is read from directly, like any other {@link DataInput}, so no more bytes than the
+	 * serialized instance takes up are consumed from it.</p>
+	 * 
+	 * @param definition The {@link INBTSerializable} class structure to use for
+	 * deserialization.
+	 * @param in The stream to read the serialized instance from.
+	 * @return A deserialized instance of the given class definition.
+	 * @throws IOException if reading from the stream fails, or if the stream does not hold a
+	 * valid compound tag.
+	 * @throws IllegalAccessException if a Field object in a serializable class is enforcing
+	 * Java language access control and the underlying field is inaccessible, or if the
+	 * constructor for a serializable class or {@link List} is inaccessible.
+	 * @throws InstantiationException if a serializable or {@link List} class represents
+	 * an abstract class, an interface, an array class, a primitive type, or void; or if the
+	 * class has no nullary constructor; or if the instantiation fails for some other reason.
+	 * @throws UnserializableClassException if an attempt is made to deserialize a class that
+	 * is not natively supported by the serializer and does not implement INBTSerializable.
+	 */
+	public static final <T extends INBTSerializable> T readFrom(Class<T> definition, DataInputStream in) throws IOException, IllegalAccessException, InstantiationException, UnserializableClassException {
+		return readFrom(definition, (DataInput) in);
+	}
+	
+	/**
+	 * <p>Deserializes an {@link INBTSerializable} instance straight from a stream in the
+	 * binary NBT format into an existing instance. See {@link #readFrom(Class, DataInput)}
+	 * and {@link #deserialize(INBTSerializable, NBTTagCompound, boolean)}.</p>
+	 * 
+	 * @param instance The {@link INBTSerializable} instance to deserialize into.
+	 * @param in The stream to read the serialized instance from.
+	 * @param interpretMissingFieldValuesAsNull Whether or not fields for which there is no
+	 * tag in the stream should be set to {@code null} or left as-is.
+	 * @throws IOException if reading from the stream fails, or if the stream does not hold a
+	 * valid compound tag.
+	 * @throws IllegalAccessException if a Field object in a serializable class is enforcing
+	 * Java language access control and the underlying field is inaccessible, or if the
+	 * constructor for a serializable class or {@link List} is inaccessible.
+	 * @throws InstantiationException if a serializable or {@link List} class represents
+	 * an abstract class, an interface, an array class, a primitive type, or void; or if the
+	 * class has no nullary constructor; or if the instantiation fails for some other reason.
+	 * @throws UnserializableClassException if an attempt is made to deserialize a class that
+	 * is not natively supported by the serializer and does not implement INBTSerializable.
+	 */
+	public static final <T extends INBTSerializable> void readFrom(T instance, DataInput in, boolean interpretMissingFieldValuesAsNull) throws IOException, IllegalAccessException, InstantiationException, UnserializableClassException {
+		NBTReader.readRoot(instance, in, interpretMissingFieldValuesAsNull);
+	}
+	
+	/**
+	 * <p>Deserializes an {@link INBTSerializable} instance from a compound tag that is read
+	 * lazily from a memory-mapped file or another buffer. Only the tags of the annotated
+	 * fields are looked up and decoded; the rest of the compound is skipped over once while
+	 * it is indexed, without being decoded. Fields of type {@link java.nio.ByteBuffer} and
+	 * {@link java.nio.IntBuffer} are set to views of the buffer rather than copies.</p>
+	 * <p><b>Note:</b> If an NBT tag is not found for a corresponding field of the given
+	 * serializable class, that field will be instantiated as {@code null}.</p>
+	 * 
+	 * @param definition The {@link INBTSerializable} class structure to use for
+	 * deserialization.
+	 * @param data The compound tag to deserialize.
+	 * @return A deserialized instance of the given class definition.
+	 * @throws IOException if the compound is malformed.
+	 * @throws IllegalAccessException see {@link #readFrom(Class, DataInput)}.
+	 * @throws InstantiationException see {@link #readFrom(Class, DataInput)}.
+	 * @throws UnserializableClassException see {@link #readFrom(Class, DataInput)}.
+	 */
+	public static final <T extends INBTSerializable> T deserialize(Class<T> definition, NBTMappedCompound data) throws IOException, IllegalAccessException, InstantiationException, UnserializableClassException {
+		T instance = NBTInstances.newInstance(definition);
+		NBTReader.readMapped(instance, data, true);
+		return instance;
+	}
+	
+	/**
+	 * <p>Deserializes a compound tag that is read lazily from a memory-mapped file or another
+	 * buffer into an existing instance. See {@link #deserialize(Class, NBTMappedCompound)}
+	 * and {@link #deserialize(INBTSerializable, NBTTagCompound, boolean)}.</p>
+	 * 
+	 * @param instance The {@link INBTSerializable} instance to deserialize into.
+	 * @param data The compound tag to deserialize.
+	 * @param interpretMissingFieldValuesAsNull Whether or not fields for which there is no
+	 * tag in the compound should be set to {@code null} or left as-is.
+	 * @throws IOException if the compound is malformed.
+	 * @throws IllegalAccessException see {@link #readFrom(Class, DataInput)}.
+	 * @throws InstantiationException see {@link #readFrom(Class, DataInput)}.
+	 * @throws UnserializableClassException see {@link #readFrom(Class, DataInput)}.
+	 */
+	public static final <T extends INBTSerializable> void deserialize(T instance, NBTMappedCompound data, boolean interpretMissingFieldValuesAsNull) throws IOException, IllegalAccessException, InstantiationException, UnserializableClassException {
+		NBTReader.readMapped(instance, data, interpretMissingFieldValuesAsNull);
+	}
+	
+	/**
+	 * <p>Deserializes all of the given NBT data structures into new instances of the given
+	 * class definition, in parallel on the common {@link ForkJoinPool}. See
+	 * {@link #deserializeAll(Class, List, Executor)}.</p>
+	 * 
+	 * @param definition The {@link INBTSerializable} class structure to use for
+	 * deserialization.
+	 * @param data The NBT data structures to deserialize.
+	 * @return The result of deserializing each data structure, in the same order as the
+	 * given list.
+	 */
+	public static final <T extends INBTSerializable> List<BatchResult<T>> deserializeAll(Class<T> definition, List<NBTTagCompound> data) {
+		return deserializeAll(definition, data, ForkJoinPool.commonPool());
+	}
+	
+	/**
+	 * <p>Deserializes all of the given NBT data structures into new instances of the given
+	 * class definition, in parallel on the given {@link Executor}. The calling thread takes
+	 * part in the work, and the method returns once every data structure has been
+	 * processed.</p>
+	 * <p>Each data structure is deserialized on its own, as with
+	 * {@link #deserialize(Class, NBTTagCompound)}. A data structure that cannot be
+	 * deserialized does not abort the batch; instead, its {@link BatchResult} holds the
+	 * exception that deserializing it failed with.</p>
+	 * 
+	 * @param definition The {@link INBTSerializable} class structure to use for
+	 * deserialization.
+	 * @param data The NBT data structures to deserialize.
+	 * @param executor The executor to deserialize on, e.g. a {@link ForkJoinPool} or an
+	 * executor that starts a virtual thread for each task.
+	 * @return The result of deserializing each data structure, in the same order as the
+	 * given list.
+	 */
+	public static final <T extends INBTSerializable> List<BatchResult<T>> deserializeAll(final Class<T> definition, List<NBTTagCompound> data, Executor executor) {
+		return NBTBatch.run(data, new NBTBatch.Job<NBTTagCompound, T>() {
+			@Override
+			T process(NBTTagCompound tag) throws Exception {
+				return deserialize(definition, tag);
+			}
+		}, executor);
 	}
 	
 	/**
 	 * <p>Deserializes an NBT list structure into a {@link Collection} instance.</p>
 	 * 
 	 * @param list The NBT list structure to deserialize.
-	 * @param colClass A {@link Class} instance representing the subclass of
-	 * {@link Collection} that the NBT list structure should be deserialized to.
-	 * @param subclass A {@link Class} instance representing the class of the elements in
-	 * the {@link Collection} definition.
-	 * @param subtype A {@link Type} instance representing the type of the elements in the
-	 * {@link Collection} definition.
-	 * @return A deserialized {@link Collection} instance of the given subclass.
+	 * @param c The {@link Collection} to add the deserialized elements to. This is usually
+	 * empty.
+	 * @param subtype A {@link ResolvedType} instance representing the type of the elements
+	 * in the {@link Collection} definition.
+	 * @return The given {@link Collection}.
 	 * @throws IllegalAccessException if a Field object in a serializable class is enforcing
 	 * Java language access control and the underlying field is inaccessible, or if the
 	 * constructor for a serializable class is inaccessible.
@@ -470,30 +1230,21 @@ public class NBTSerializer {
 	 * @throws UnserializableClassException if an attempt is made to deserialize a class that
 	 * is not natively supported by the serializer and does not implement INBTSerializable.
 	 */
-	private static <T> Collection<T> deserializeCollection(NBTTagList list, Class<? extends Collection> colClass, Class<T> subclass, Type subtype) throws InstantiationException, IllegalAccessException, UnserializableClassException {
-		/*
-		 * The reason we need both a Class and a List instance when deserializing here is that
-		 * we need to be able to cast objects directly into an instance of the subclass
-		 * specified. A Class instance may be parameterized, but a Type may not be, so passing
-		 * only the Type will not allow us to determine the generic class T. Furthermore, we
-		 * cannot cast using Class.cast because that method returns an Object instance, not an
-		 * instance of T. T allows us to cast to the subclass explicitly.
-		 */
+	static <T> Collection<T> deserializeCollection(NBTTagList list, Collection<T> c, ResolvedType subtype) throws InstantiationException, IllegalAccessException, UnserializableClassException {
 		/*
-		 * The first thing we need to do is create an instance of the List class that the
-		 * field in the serializable class mandates. This will be passed on and eventually
-		 * assigned to the field (or, in the case of a nested object, added to the parent
-		 * object).
+		 * For each of the elements in the collection, deserialize the element into an object,
+		 * using the codec for the element type that is looked up once for the whole list. We
+		 * do not need to separately handle primitives here because primitives cannot be used
+		 * as generics.
 		 */
-		Collection<T> c = colClass.newInstance();
-		
-		/*
-		 * For each of the elements in the collection, deserialize the element into an object.
-		 * We do not need to separately handle primitives here because primitives cannot be
-		 * used as generics.
-		 */
-		for (int i = 0; i < list.tagCount(); i++) {
-			c.add(tagToObject(list.get(i), subclass, subtype));
+		int count = list.tagCount();
+		if (count > 0) {
+			NBTCodec<?> codec = codecFor(subtype.raw);
+			for (int i = 0; i < count; i++) {
+				@SuppressWarnings("unchecked")
+				T element = (T) codec.decode(list.get(i), subtype);
+				c.add(element);
+			}
 		}
 		
 		/*
@@ -506,17 +1257,12 @@ public class NBTSerializer {
 	 * <p>Deserializes an NBT entry set structure into a {@link Map} instance.</p>
 	 * 
 	 * @param map The NBT entry set structure to deserialize.
-	 * @param mapClass A {@link Class} instance representing the subclass of
-	 * {@link Map} that the NBT entry set structure should be deserialized to.
-	 * @param keyClass A {@link Class} instance representing the class of the keys in the
-	 * {@link Map} definition.
-	 * @param keyType A {@link Type} instance representing the type of the keys in the
-	 * {@link Map} definition.
-	 * @param valueClass A {@link Class} instance representing the class of the values in the
-	 * {@link Map} definition.
-	 * @param valueType A {@link Type} instance representing the type of the values in the
-	 * {@link Map} definition.
-	 * @return A deserialized {@link Map} instance of the given subclass.
+	 * @param e The {@link Map} to put the deserialized entries into. This is usually empty.
+	 * @param keyType A {@link ResolvedType} instance representing the type of the keys in
+	 * the {@link Map} definition.
+	 * @param valueType A {@link ResolvedType} instance representing the type of the values
+	 * in the {@link Map} definition.
+	 * @return The given {@link Map}.
 	 * @throws IllegalAccessException if a Field object in a serializable class is enforcing
 	 * Java language access control and the underlying field is inaccessible, or if the
 	 * constructor for a serializable class is inaccessible.
@@ -526,42 +1272,26 @@ public class NBTSerializer {
 	 * @throws UnserializableClassException if an attempt is made to deserialize a class that
 	 * is not natively supported by the serializer and does not implement INBTSerializable.
 	 */
-	private static <K, V> Map<K, V> deserializeMap(NBTTagList map, Class<? extends Map> mapClass, Class<K> keyClass, Type keyType, Class<V> valueClass, Type valueType) throws InstantiationException, IllegalAccessException, UnserializableClassException {
+	static <K, V> Map<K, V> deserializeMap(NBTTagList map, Map<K, V> e, ResolvedType keyType, ResolvedType valueType) throws InstantiationException, IllegalAccessException, UnserializableClassException {
 		/*
-		 * The reason we need both a Class and a List instance when deserializing here is that
-		 * we need to be able to cast objects directly into an instance of the subclass
-		 * specified. A Class instance may be parameterized, but a Type may not be, so passing
-		 * only the Type will not allow us to determine the generic class T. Furthermore, we
-		 * cannot cast using Class.cast because that method returns an Object instance, not an
-		 * instance of T. T allows us to cast to the subclass explicitly.
+		 * The codecs for the key and value types are looked up once for the whole map.
 		 */
-		/*
-		 * The first thing we need to do is create an instance of the Map class that the field
-		 * in the serializable class mandates. This will be passed on and eventually assigned
-		 * to the field (or, in the case of a nested object, added to the parent object).
-		 */
-		Map<K, V> e = mapClass.newInstance();
+		int count = map.tagCount();
+		if (count <= 0) return e;
+		NBTCodec<?> keyCodec = codecFor(keyType.raw);
+		NBTCodec<?> valueCodec = codecFor(valueType.raw);
 		
-		for (int i = 0; i < map.tagCount(); i++) {
+		for (int i = 0; i < count; i++) {
 			/*
 			 * Deserialize the key and the value into objects. We do not need to separately handle
 			 * primitives here because primitives cannot be used as generics. We need to check if
 			 * the key and/or value is actually present; if not, assign null to the element.
 			 */
-			K key;
-			V value;
 			NBTTagCompound kvp = (NBTTagCompound) map.get(i);
-			
-			if (kvp.hasKey("k")) {
-				key = tagToObject(kvp.getTag("k"), keyClass, keyType);
-			} else {
-				key = null;
-			}
-			if (kvp.hasKey("v")) {
-				value = tagToObject(kvp.getTag("v"), valueClass, valueType);
-			} else {
-				value = null;
-			}
+			@SuppressWarnings("unchecked")
+			K key = kvp.hasKey("k") ? (K) keyCodec.decode(kvp.getTag("k"), keyType) : null;
+			@SuppressWarnings("unchecked")
+			V value = kvp.hasKey("v") ? (V) valueCodec.decode(kvp.getTag("v"), valueType) : null;
 			
 			/*
 			 * Put the data into the map instance.
@@ -576,11 +1306,78 @@ public class NBTSerializer {
 	}
 	
 	/**
-	 * <p>Deserializes an NBT tag into an object instance of the specified class.</p>
+	 * <p>Deserializes an NBT compound structure, as written for {@link MapLayout#COMPOUND},
+	 * into a {@link Map} instance. The names of the child tags become the keys of the
+	 * map, so it may be any map that accepts {@link String} keys.</p>
+	 * 
+	 * @param map The NBT compound structure to deserialize.
+	 * @param e The {@link Map} to put the deserialized entries into. This is usually empty.
+	 * @param valueType A {@link ResolvedType} instance representing the type of the values
+	 * in the {@link Map} definition.
+	 * @return The given {@link Map}.
+	 * @throws IllegalAccessException see
+	 * {@link #deserializeMap(NBTTagList, Map, ResolvedType, ResolvedType)}.
+	 * @throws InstantiationException see
+	 * {@link #deserializeMap(NBTTagList, Map, ResolvedType, ResolvedType)}.
+	 * @throws UnserializableClassException see
+	 * {@link #deserializeMap(NBTTagList, Map, ResolvedType, ResolvedType)}.
+	 */
+	static <M extends Map<? super String, V>, V> M deserializeMapCompound(NBTTagCompound map, M e, ResolvedType valueType) throws InstantiationException, IllegalAccessException, UnserializableClassException {
+		if (map.hasNoTags()) return e;
+		NBTCodec<?> valueCodec = codecFor(valueType.raw);
+		for (String key : map.getKeySet()) {
+			@SuppressWarnings("unchecked")
+			V value = (V) valueCodec.decode(map.getTag(key), valueType);
+			e.put(key, value);
+		}
+		return e;
+	}
+	
+	/**
+	 * <p>Deserializes an NBT list structure holding a list of keys and a list of values, as
+	 * written for {@link MapLayout#LISTS}, into a {@link Map} instance.</p>
+	 * 
+	 * @param map The NBT list structure to deserialize.
+	 * @param e The {@link Map} to put the deserialized entries into. This is usually empty.
+	 * @param keyType A {@link ResolvedType} instance representing the type of the keys in
+	 * the {@link Map} definition.
+	 * @param valueType A {@link ResolvedType} instance representing the type of the values
+	 * in the {@link Map} definition.
+	 * @return The given {@link Map}.
+	 * @throws IllegalAccessException see
+	 * {@link #deserializeMap(NBTTagList, Map, ResolvedType, ResolvedType)}.
+	 * @throws InstantiationException see
+	 * {@link #deserializeMap(NBTTagList, Map, ResolvedType, ResolvedType)}.
+	 * @throws UnserializableClassException see
+	 * {@link #deserializeMap(NBTTagList, Map, ResolvedType, ResolvedType)}.
+	 */
+	static <K, V> Map<K, V> deserializeMapLists(NBTTagList map, Map<K, V> e, ResolvedType keyType, ResolvedType valueType) throws InstantiationException, IllegalAccessException, UnserializableClassException {
+		NBTTagList keys = (NBTTagList) map.get(0);
+		NBTTagList values = (NBTTagList) map.get(1);
+		/*
+		 * Both lists should be equally long. If they are not, the data is damaged, and we
+		 * only read the entries that have both a key and a value.
+		 */
+		int count = Math.min(keys.tagCount(), values.tagCount());
+		if (count <= 0) return e;
+		NBTCodec<?> keyCodec = codecFor(keyType.raw);
+		NBTCodec<?> valueCodec = codecFor(valueType.raw);
+		for (int i = 0; i < count; i++) {
+			@SuppressWarnings("unchecked")
+			K key = (K) keyCodec.decode(keys.get(i), keyType);
+			@SuppressWarnings("unchecked")
+			V value = (V) valueCodec.decode(values.get(i), valueType);
+			e.put(key, value);
+		}
+		return e;
+	}
+	
+	/**
+	 * <p>Deserializes an NBT tag into an object instance of the specified type.</p>
 	 * 
 	 * @param tag The NBT tag to deserialize.
-	 * @param clazz A {@link Class} instance representing the class of the deserialized object.
-	 * @param subtype A {@link Type} instance representing the type of the deserialized object.
+	 * @param type A {@link ResolvedType} instance representing the type of the deserialized
+	 * object, including the types of its generics, if any.
 	 * @return The given NBT tag represented as an object of the given type.
 	 * @throws IllegalAccessException if a Field object in a serializable class is enforcing
 	 * Java language access control and the underlying field is inaccessible, or if the
@@ -591,138 +1388,30 @@ public class NBTSerializer {
 	 * @throws UnserializableClassException if an attempt is made to deserialize a class that
 	 * is not natively supported by the serializer and does not implement INBTSerializable.
 	 */
-	private static <T> T tagToObject(NBTBase tag, Class<T> clazz, Type subtype) throws IllegalAccessException, InstantiationException, UnserializableClassException {
-		/*
-		 * Handle special cases: These classes will cause class cast exceptions in most
-		 * circumstances (because they are a superclass or interface of any of the below
-		 * classes). They can't be serialized anyway, so discard them.
-		 */
-		if (   clazz.isAssignableFrom(Object.class)         || clazz.isAssignableFrom(Number.class)
-		 ||    clazz.isAssignableFrom(CharSequence.class)   || clazz.isAssignableFrom(Serializable.class)
-		 ||    clazz.isAssignableFrom(Comparable.class))
-			
-			throw new UnserializableClassException(clazz);
-		/*
-		 * Check the assignability of the subclass against number classes, arrays and
-		 * strings. If any of these match, a valid instance of that class will be created
-		 * from an NBT tag of the corresponding type from the NBT list structure.
-		 */
-		if      (clazz.isAssignableFrom(Byte.class))        return (T) Byte.valueOf(            ((NBTTagByte) tag)      .getByte());
-		else if (clazz.isAssignableFrom(Boolean.class))     return (T) Boolean.valueOf(         ((NBTTagByte) tag)      .getByte() != 0);
-		else if (clazz.isAssignableFrom(Short.class))       return (T) Short.valueOf(           ((NBTTagShort) tag)     .getShort());
-		else if (clazz.isAssignableFrom(Integer.class))     return (T) Integer.valueOf(         ((NBTTagInt) tag)       .getInt());
-		else if (clazz.isAssignableFrom(Long.class))        return (T) Long.valueOf(            ((NBTTagLong) tag)      .getLong());
-		else if (clazz.isAssignableFrom(Float.class))       return (T) Float.valueOf(           ((NBTTagFloat) tag)     .getFloat());
-		else if (clazz.isAssignableFrom(Double.class))      return (T) Double.valueOf(          ((NBTTagDouble) tag)    .getDouble());
-		else if (clazz.isAssignableFrom(byte[].class))      return (T)                          ((NBTTagByteArray) tag) .getByteArray();
-		else if (clazz.isAssignableFrom(Byte[].class))      return (T) ArrayUtils.toObject(     ((NBTTagByteArray) tag) .getByteArray());
-		else if (clazz.isAssignableFrom(String.class))      return (T)                          ((NBTTagString) tag)    .getString();
-		else if (clazz.isAssignableFrom(int[].class))       return (T)                          ((NBTTagIntArray) tag)  .getIntArray();
-		else if (clazz.isAssignableFrom(Integer[].class))   return (T) ArrayUtils.toObject(     ((NBTTagIntArray) tag)  .getIntArray());
-		/*
-		 * Lists and other serializable classes require special treatment on
-		 * deserialization. Many classes can subclass java.util.List, including user-
-		 * defined ones, so we need to check if a List can be assigned from the field
-		 * type instead of checking if the field can be assigned from List (which it
-		 * in most cases cannot, e.g. if the field is of type ArrayList, you can't
-		 * assign a List instance to it). The same goes for INBTSerializable
-		 * instances. An INBTSerializable instance cannot be assigned to an
-		 * INBTSerializable subclass field.
-		 */
-		else if (INBTSerializable.class.isAssignableFrom(clazz)) {
-			/*
-			 * INBTSerializable instances are easy to deserialize, as they can
-			 * just recursively be passed back into the main deserialization function.
-			 */
-			NBTTagCompound ntc = (NBTTagCompound) tag;
-			return (T) deserialize((Class<? extends INBTSerializable>) clazz, ntc);
-		} else if (Collection.class.isAssignableFrom(clazz)) {
-			/*
-			 * We need to figure out what type the list contains. This is important,
-			 * so that we get the right type object added to the list and so that the
-			 * correct type of value is extracted from the NBT list structure.
-			 */
-			Type listType = ((ParameterizedType) subtype).getActualTypeArguments()[0];
-			/*
-			 * We also need to get a Class instance that corresponds to this Type.
-			 * This is primarily done to be able to directly and explicitly cast
-			 * values obtained from the NBT structure into the type that the List
-			 * holds, but also to be able to look up the correct NBT tag type for
-			 * the given class.
-			 */
-			Class<?> lct;
-			/*
-			 * It may be that the types of the list elements themselves are
-			 * parameterized. This case must be handled differently from non-
-			 * parameterized types because they cannot be explicitly casted to Class
-			 * instances. We need to get the raw type from the parameterized type,
-			 * which in turn can be casted to a Class.
-			 */
-			if (listType instanceof ParameterizedType) {
-				lct = (Class<?>) ((ParameterizedType) listType).getRawType();
-			} else {
-				lct = (Class<?>) listType;
-			}
-			/*
-			 * Then, cast the list element that contains the collection.
-			 */
-			NBTTagList ntl = (NBTTagList) tag;
-			/*
-			 * Finally, the list may be deserialized.
-			 */
-			Collection c2 = deserializeCollection(ntl, (Class<? extends Collection>) clazz, lct, listType);
-			return (T) c2;
-		} else if (Map.class.isAssignableFrom(clazz)) {
-			/*
-			 * We need to figure out the type of both the key and the value of the entry.
-			 * This is important, so that we get the right type of objects as the key and
-			 * value of the key/value pair and so that the correct type of value is extracted
-			 * from the NBT entry structure.
-			 */
-			Type[] types = ((ParameterizedType) subtype).getActualTypeArguments();
-			Type keyType = types[0];
-			Type valueType = types[1];
-			/*
-			 * We also need to get a Class instance that corresponds to these Types.
-			 * This is primarily done to be able to directly and explicitly cast
-			 * values obtained from the NBT structure into the types that the Map
-			 * holds, but also to be able to look up the correct NBT tag types for
-			 * the given classes.
-			 */
-			Class<?> keyClass;
-			Class<?> valueClass;
-			/*
-			 * It may be that the keys and values of the map elements themselves are
-			 * parameterized. This case must be handled differently from non-
-			 * parameterized types because they cannot be explicitly casted to Class
-			 * instances. We need to get the raw types from the parameterized types,
-			 * which in turn can be casted to Class instances.
-			 */
-			if (keyType instanceof ParameterizedType) {
-				keyClass = (Class<?>) ((ParameterizedType) keyType).getRawType();
-			} else {
-				keyClass = (Class<?>) keyType;
-			}
-			if (valueType instanceof ParameterizedType) {
-				valueClass = (Class<?>) ((ParameterizedType) valueType).getRawType();
-			} else {
-				valueClass = (Class<?>) valueType;
-			}
-			
-			/*
-			 * Then, cast the list element that contains the map.
-			 */
-			NBTTagList ntl = (NBTTagList) tag;
-			/*
-			 * Finally, the map may be deserialized.
-			 */
-			Map c2 = deserializeMap(ntl, (Class<? extends Map>) clazz, keyClass, keyType, valueClass, valueType);
-			return (T) c2;
-		}
+	static Object tagToObject(NBTBase tag, ResolvedType type) throws IllegalAccessException, InstantiationException, UnserializableClassException {
 		/*
-		 * The object cannot be represented as a tag, so return null.
+		 * Look up the codec that handles the class and let it create an object from the tag.
+		 * Classes such as Object, Number or CharSequence have no codec, as they are a
+		 * superclass or interface of several supported classes and would cause class cast
+		 * exceptions. They can't be deserialized anyway, so the lookup throws an exception for
+		 * them.
 		 */
-		else throw new UnserializableClassException(clazz);
+		return codecFor(type.raw).decode(tag, type);
+	}
+	
+	/**
+	 * <p>Gets the {@link NBTCodec} that handles objects of the given class.</p>
+	 * 
+	 * @param clazz The {@link Class} to look up.
+	 * @return The codec for the class.
+	 * @throws UnserializableClassException if the class is not natively supported by the
+	 * serializer, does not implement INBTSerializable and has no codec registered in
+	 * {@link NBTCodecs}.
+	 */
+	static NBTCodec<?> codecFor(Class<?> clazz) throws UnserializableClassException {
+		NBTCodec<?> codec = NBTCodecs.get(clazz);
+		if (codec == null) throw new UnserializableClassException(clazz);
+		return codec;
 	}
 	
 	/**
@@ -731,24 +1420,13 @@ public class NBTSerializer {
 	 * @param clazz The {@link Class} to match against an NBT tag ID.
 	 * @return An NBT tag ID.
 	 */
-	private static int getIDFromClass(Class<?> clazz) {
-		/*
-		 * Here, we just check assignability of the class against the various supported NBT
-		 * tag types to pick the one that is best fit for serializing the given class.
-		 */
-		if (clazz.isAssignableFrom(byte.class) || clazz.isAssignableFrom(Byte.class) ||
-			clazz.isAssignableFrom(boolean.class) || clazz.isAssignableFrom(Boolean.class)) {
-			return NBT_TAG_BYTE;
-		} else if (clazz.isAssignableFrom(short.class)              || clazz.isAssignableFrom(Short.class))         return NBT_TAG_SHORT;
-		else if (clazz.isAssignableFrom(int.class)                  || clazz.isAssignableFrom(Integer.class))       return NBT_TAG_INT;
-		else if (clazz.isAssignableFrom(long.class)                 || clazz.isAssignableFrom(Long.class))          return NBT_TAG_LONG;
-		else if (clazz.isAssignableFrom(float.class)                || clazz.isAssignableFrom(Float.class))         return NBT_TAG_FLOAT;
-		else if (clazz.isAssignableFrom(double.class)               || clazz.isAssignableFrom(Double.class))        return NBT_TAG_DOUBLE;
-		else if (clazz.isAssignableFrom(byte[].class)               || clazz.isAssignableFrom(Byte[].class))        return NBT_TAG_BYTE_ARRAY;
-		else if (clazz.isAssignableFrom(String.class))                                                              return NBT_TAG_STRING;
-		else if (clazz.isAssignableFrom(int[].class)                || clazz.isAssignableFrom(Integer[].class))     return NBT_TAG_INT_ARRAY;
-		else if (INBTSerializable.class.isAssignableFrom(clazz))                                                    return NBT_TAG_COMPOUND;
-		else if (Collection.class.isAssignableFrom(clazz)           || Map.class.isAssignableFrom(clazz))           return NBT_TAG_LIST;
-		return NBT_TAG_COMPOUND;
+	static int getIDFromClass(Class<?> clazz) {
+		/*
+		 * The codec for the class knows which tag type it produces. Classes without a codec
+		 * are assumed to be compound tags.
+		 */
+		NBTCodec<?> codec = NBTCodecs.get(clazz);
+		if (codec == null) return NBT_TAG_COMPOUND;
+		return codec.getTagId();
 	}
 }
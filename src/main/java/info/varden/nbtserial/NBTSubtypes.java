@@ -0,0 +1,219 @@
+package info.varden.nbtserial;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.lang.reflect.Modifier;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import net.minecraft.nbt.NBTBase;
+import net.minecraft.nbt.NBTTagCompound;
+
+/**
+ * <p>The registry of subtypes of {@link INBTSerializable} classes, which lets fields and
+ * collections declared as a base class or interface hold instances of its subclasses. Without
+ * it, every value is deserialized as the declared type, so a {@code List<Entity>} that holds
+ * zombies and skeletons comes back as a list of plain entities, or fails if {@code Entity}
+ * is abstract.</p>
+ * <p>Each subtype is registered under its base type with a small numeric ID:</p>
+ * <pre>
+ * NBTSubtypes.register(Entity.class, 1, Zombie.class);
+ * NBTSubtypes.register(Entity.class, 2, Skeleton.class);
+ * </pre>
+ * <p>Every instance of a registered subtype is then serialized with its ID, as a byte tag
+ * named {@link NBTSerializer#SUBTYPE_TAG} in its compound tag. Streams from
+ * {@link NBTSerializer#writeTo(INBTSerializable, DataOutput) writeTo} have it as the first
+ * tag of the compound, so that the class is known before any fields are read, while an
+ * {@link NBTTagCompound} has it wherever its map puts it. Both are read the same way. When a
+ * compound tag is deserialized into a field, collection element or map value that is
+ * declared as the base type or any of its subtypes, the ID picks the class to instantiate.
+ * The IDs are looked up in a table, and the ID of each instance written is looked up by its
+ * class once and cached, so neither costs more than a field access. Instances of classes that
+ * are not registered are written exactly as they are without the registry, so lists of them
+ * carry no IDs at all.</p>
+ * <p>A compound tag without an ID, or with an ID that does not name a registered subtype of
+ * the declared type, is deserialized as the declared type, as it would be without the
+ * registry. Instances of a concrete base type are read correctly without an ID, but
+ * {@link NBTSerializer#readFrom(Class, DataInput) streaming} reads them faster if the base
+ * type is registered under an ID of its own, too.</p>
+ * <p><b>Note:</b> Like codecs, subtypes should be registered during startup, before the base
+ * type is serialized or deserialized. The base type is registered as a hierarchy in
+ * {@link NBTCodecs} when its first subtype is registered.</p>
+ * 
+ * @author Marius
+ */
+public final class NBTSubtypes {
+	/**
+	 * The largest ID that a subtype can have, so that each ID fits into a byte.
+	 */
+	public static final int MAX_ID = 255;
+	
+	/**
+	 * The registered base types. Guarded by the class lock.
+	 */
+	private static final Map<Class<?>, Family<?>> FAMILIES = new LinkedHashMap<Class<?>, Family<?>>();
+	/**
+	 * The ID of each registered subtype.
+	 */
+	private static final Map<Class<?>, Integer> REGISTERED = new ConcurrentHashMap<Class<?>, Integer>();
+	/**
+	 * The ID of each class that has been written, or {@code null} if it is not registered.
+	 */
+	private static final ClassValue<Integer> IDS = new ClassValue<Integer>() {
+		@Override
+		protected Integer computeValue(Class<?> type) {
+			return REGISTERED.get(type);
+		}
+	};
+	
+	private NBTSubtypes() {}
+	
+	/**
+	 * <p>Registers a subtype of the given base type. IDs only need to be unique among the
+	 * subtypes of one base type, and must never be reused for a different class once data has
+	 * been written with them.</p>
+	 * 
+	 * @param base The base type, which fields and collections are declared as. It must not be
+	 * a subtype or supertype of another base type.
+	 * @param id The ID of the subtype, from 0 to {@link #MAX_ID}.
+	 * @param subtype The subtype. It must be a concrete class, and may be the base type itself.
+	 * @throws IllegalArgumentException if the ID is out of range or already taken, or if the
+	 * subtype is already registered with another ID or base type.
+	 */
+	public static synchronized <T extends INBTSerializable> void register(Class<T> base, int id, Class<? extends T> subtype) {
+		if (base == null || subtype == null) throw new IllegalArgumentException("Base type and subtype must not be null");
+		if (!base.isAssignableFrom(subtype)) throw new IllegalArgumentException(subtype.getName() + " is not a subtype of " + base.getName());
+		if (id < 0 || id > MAX_ID) throw new IllegalArgumentException("Subtype ID " + id + " is not between 0 and " + MAX_ID);
+		if (subtype.isInterface() || Modifier.isAbstract(subtype.getModifiers())) throw new IllegalArgumentException(subtype.getName() + " cannot be instantiated");
+		
+		Family<?> family = FAMILIES.get(base);
+		Integer existing = REGISTERED.get(subtype);
+		if (existing != null) {
+			if (family != null && existing == id && family.classes[id] == subtype) return;
+			throw new IllegalArgumentException(subtype.getName() + " is already registered as a subtype with ID " + existing);
+		}
+		if (family == null) {
+			/*
+			 * A declared type could belong to two overlapping families, and there would be no
+			 * telling which one the ID of a compound refers to.
+			 */
+			for (Family<?> f : FAMILIES.values()) {
+				if (f.base.isAssignableFrom(base) || base.isAssignableFrom(f.base)) throw new IllegalArgumentException("Base type " + base.getName() + " overlaps with base type " + f.base.getName());
+			}
+			Family<T> created = new Family<T>(base);
+			FAMILIES.put(base, created);
+			NBTCodecs.registerHierarchy(base, created);
+			family = created;
+		} else if (family.classes[id] != null) {
+			throw new IllegalArgumentException("Subtype ID " + id + " of " + base.getName() + " is already taken by " + family.classes[id].getName());
+		}
+		
+		family.add(id, subtype);
+		REGISTERED.put(subtype, id);
+		IDS.remove(subtype);
+	}
+	
+	/**
+	 * <p>Gets the ID that instances of the given class are written with.</p>
+	 * 
+	 * @param type The class.
+	 * @return The ID, or -1 if the class is not a registered subtype.
+	 */
+	public static int getId(Class<?> type) {
+		Integer id = IDS.get(type);
+		return id == null ? -1 : id;
+	}
+	
+	/**
+	 * <p>Gets the subtype of the given base type that is registered with the given ID.</p>
+	 * 
+	 * @param base The base type.
+	 * @param id The ID.
+	 * @return The subtype, or {@code null} if there is none.
+	 */
+	public static synchronized Class<?> get(Class<?> base, int id) {
+		Family<?> family = FAMILIES.get(base);
+		return family == null || id < 0 || id > MAX_ID ? null : family.classes[id];
+	}
+	
+	/**
+	 * <p>Gets the subtypes of the given type, i.e. the family of the base type that it is
+	 * registered under or belongs to.</p>
+	 * 
+	 * @param type The type.
+	 * @return The family, or {@code null} if the type has no registered subtypes.
+	 */
+	static Family<?> familyOf(Class<?> type) {
+		NBTCodec<?> codec = NBTCodecs.get(type);
+		return codec instanceof Family ? (Family<?>) codec : null;
+	}
+	
+	/**
+	 * <p>The codec for a base type and all of its subtypes. It writes compound tags like
+	 * {@link BuiltinCodecs#SERIALIZABLE} does, preceded by the ID of the class of the value if
+	 * it has one, and reads them into the class that the ID names.</p>
+	 */
+	static final class Family<T extends INBTSerializable> extends StreamingCodec<T> {
+		final Class<T> base;
+		/**
+		 * The subtype registered for each ID. The array is replaced rather than changed, so
+		 * that it can be read without locking.
+		 */
+		volatile Class<?>[] classes = new Class<?>[MAX_ID + 1];
+		
+		Family(Class<T> base) {
+			this.base = base;
+		}
+		
+		void add(int id, Class<?> subtype) {
+			Class<?>[] copy = this.classes.clone();
+			copy[id] = subtype;
+			this.classes = copy;
+		}
+		
+		/**
+		 * <p>Picks the class to instantiate for a compound tag.</p>
+		 * 
+		 * @param id The ID in the compound tag, or -1 if there is none.
+		 * @param declared The declared type that the compound tag is read as.
+		 * @return The subtype that the ID names, or the declared type if the ID does not name
+		 * one of its subtypes.
+		 */
+		Class<?> resolve(int id, Class<?> declared) {
+			Class<?> subtype = id < 0 ? null : this.classes[id];
+			return subtype != null && declared.isAssignableFrom(subtype) ? subtype : declared;
+		}
+		
+		@Override
+		public int getTagId() {
+			return NBTSerializer.NBT_TAG_COMPOUND;
+		}
+		
+		@Override
+		public NBTBase toTag(T value) throws IllegalAccessException, UnserializableClassException {
+			return NBTGraph.encode(value, getId(value.getClass()));
+		}
+		
+		@Override
+		void writePayload(T value, DataOutput out) throws IOException, IllegalAccessException, UnserializableClassException {
+			NBTGraph.write(value, getId(value.getClass()), out);
+		}
+		
+		@Override
+		public T fromTag(NBTBase tag, Class<? extends T> type) throws IllegalAccessException, InstantiationException, UnserializableClassException {
+			return type.cast(NBTGraph.decode((NBTTagCompound) tag, type, this));
+		}
+		
+		@Override
+		Object decode(NBTBase tag, ResolvedType type) throws IllegalAccessException, InstantiationException, UnserializableClassException {
+			return NBTGraph.decode((NBTTagCompound) tag, type.raw, this);
+		}
+		
+		@Override
+		Object readPayload(DataInput in, ResolvedType type) throws IOException, IllegalAccessException, InstantiationException, UnserializableClassException {
+			return NBTReader.readObject(in, type, this);
+		}
+	}
+}
@@ -0,0 +1,483 @@
+package info.varden.nbtserial;
+
+import java.util.Collection;
+import java.util.Map;
+import java.util.Map.Entry;
+
+import net.minecraft.nbt.NBTBase;
+import net.minecraft.nbt.NBTTagByte;
+import net.minecraft.nbt.NBTTagCompound;
+import net.minecraft.nbt.NBTTagDouble;
+import net.minecraft.nbt.NBTTagFloat;
+import net.minecraft.nbt.NBTTagInt;
+import net.minecraft.nbt.NBTTagList;
+import net.minecraft.nbt.NBTTagLong;
+import net.minecraft.nbt.NBTTagShort;
+import net.minecraft.nbt.NBTTagString;
+
+/**
+ * <p>Serializes an {@link INBTSerializable} instance repeatedly, re-encoding only the fields
+ * that have changed since the last time. This makes saving or synchronizing large objects
+ * that rarely change about as cheap as the change itself.</p>
+ * <p>The tracker remembers the tag of every field from the last call, along with enough
+ * state to tell whether the field has changed: the value itself for primitives, strings,
+ * numbers and enums, and a hash of the contents for arrays, collections, maps and other
+ * types. Collections and maps are compared element by element, and nested
+ * {@link INBTSerializable} instances get trackers of their own, so that only the changed
+ * parts of them are re-encoded as well. Tags of unchanged fields are reused in
+ * the next result, so tags returned by a tracker must not be modified.</p>
+ * <p>{@link #serialize()} returns the complete NBT data structure, while {@link #delta()}
+ * returns only what has changed, which can be applied to another instance with
+ * {@link NBTSerializer#patch(INBTSerializable, NBTTagCompound)}. Both advance the tracker,
+ * so an object that is both saved and sent to clients should have a separate tracker for
+ * each.</p>
+ * <p><b>Note:</b> Changes are detected by comparing against the last call. A change to the
+ * contents of a collection, map or array that leaves its hash unchanged is missed; this is
+ * very unlikely, but {@link #reset()} can be used to force a complete serialization, e.g.
+ * every few autosaves. Keys of maps and elements of collections other than lists should not
+ * be modified in place, as the previous ones are needed to tell what has been removed.
+ * Trackers are not thread-safe.</p>
+ * 
+ * @author Marius
+ * @param <T> The type of the tracked instance.
+ */
+public final class NBTTracker<T extends INBTSerializable> {
+	/**
+	 * <p>The name of the compound tag in a delta that holds what cannot be expressed as the
+	 * new tag of a field: a list of string tags named {@code "removed"}, with the tag names of
+	 * fields that have become {@code null}, and a compound tag named {@code "edits"}, with the
+	 * element-level operations for changed collections and maps, by the tag names of their
+	 * fields. No field can be serialized to a tag with this name, since
+	 * {@link NBTSerialize#name()} falls back to the field name when it is empty.</p>
+	 */
+	public static final String META_TAG = "";
+	
+	/**
+	 * The tracked instance.
+	 */
+	private final T object;
+	/**
+	 * The serialization plan of the class of the tracked instance.
+	 */
+	private final ClassPlan plan;
+	/**
+	 * Whether the state below is that of the last call. If not, all fields are considered
+	 * to have changed.
+	 */
+	private boolean tracked;
+	/**
+	 * The complete NBT data structure from the last call.
+	 */
+	private NBTTagCompound full;
+	/**
+	 * Whether each field was not {@code null} in the last call, by field index.
+	 */
+	private final boolean[] present;
+	/**
+	 * The tag of each field from the last call, or {@code null} if the field was
+	 * {@code null}, holds a nested instance, or its tag has not been created yet.
+	 */
+	private final NBTBase[] tags;
+	/**
+	 * The raw bits of each primitive field, or the hash of the contents of each field that
+	 * is compared by hash, from the last call.
+	 */
+	private final long[] hashes;
+	/**
+	 * The value of each field that is not primitive or a nested instance, from the last call.
+	 */
+	private final Object[] values;
+	/**
+	 * The snapshot of each collection or map field from the last call.
+	 */
+	private final ContainerEdits.Snapshot[] snapshots;
+	/**
+	 * The tracker of the nested {@link INBTSerializable} instance in each field, if any.
+	 */
+	private final NBTTracker<?>[] children;
+	
+	/**
+	 * <p>Creates a tracker for the given instance. The first call to {@link #serialize()} or
+	 * {@link #delta()} serializes the instance completely.</p>
+	 * 
+	 * @param object The {@link INBTSerializable} instance to track.
+	 */
+	public NBTTracker(T object) {
+		if (object == null) throw new NullPointerException("object");
+		this.object = object;
+		this.plan = ClassPlan.of(object.getClass());
+		int n = this.plan.fields.length;
+		this.present = new boolean[n];
+		this.tags = new NBTBase[n];
+		this.hashes = new long[n];
+		this.values = new Object[n];
+		this.children = new NBTTracker<?>[n];
+		this.snapshots = new ContainerEdits.Snapshot[n];
+	}
+	
+	/**
+	 * Gets the instance that this tracker serializes.
+	 * @return The tracked instance
+	 */
+	public T getObject() {
+		return this.object;
+	}
+	
+	/**
+	 * <p>Serializes the tracked instance to an NBT data structure, like
+	 * {@link NBTSerializer#serialize}, re-encoding only the fields that have changed since
+	 * the last call to this method or {@link #delta()}. If nothing has changed, the same data
+	 * structure as last time is returned.</p>
+	 * 
+	 * @return The tracked instance represented as a serialized NBT data structure. This must
+	 * not be modified.
+	 * @throws IllegalAccessException if a Field object in a serializable class is enforcing
+	 * Java language access control and the underlying field is inaccessible.
+	 * @throws UnserializableClassException if an attempt is made to serialize a class that is
+	 * not natively supported by the serializer and does not implement INBTSerializable.
+	 */
+	public NBTTagCompound serialize() throws IllegalAccessException, UnserializableClassException {
+		update(null);
+		return full();
+	}
+	
+	/**
+	 * <p>Serializes only the fields of the tracked instance that have changed since the last
+	 * call to this method or {@link #serialize()}. Changed nested {@link INBTSerializable}
+	 * instances are represented by deltas of their own, and changed collections and maps
+	 * that are still the same instance by the operations that turn their previous contents
+	 * into the current ones, such as inserting or removing an element. Fields that have
+	 * become {@code null} are listed as removed. See {@link #META_TAG}. If nothing has
+	 * changed, the delta is empty.</p>
+	 * <p>The first delta, and the first delta after {@link #reset()}, holds all fields, and
+	 * lists all fields that are {@code null} as removed, so that it can be applied to an
+	 * instance in any state.</p>
+	 * 
+	 * @return The changes to the tracked instance, to be applied with
+	 * {@link NBTSerializer#patch(INBTSerializable, NBTTagCompound)}.
+	 * @throws IllegalAccessException if a Field object in a serializable class is enforcing
+	 * Java language access control and the underlying field is inaccessible.
+	 * @throws UnserializableClassException if an attempt is made to serialize a class that is
+	 * not natively supported by the serializer and does not implement INBTSerializable.
+	 */
+	public NBTTagCompound delta() throws IllegalAccessException, UnserializableClassException {
+		NBTTagCompound delta = new NBTTagCompound();
+		update(delta);
+		return delta;
+	}
+	
+	/**
+	 * <p>Forgets the state from the last call, so that the next call to {@link #serialize()}
+	 * or {@link #delta()} serializes the tracked instance completely.</p>
+	 */
+	public void reset() {
+		this.tracked = false;
+	}
+	
+	/**
+	 * <p>Compares the fields of the tracked instance against the state from the last call,
+	 * re-encodes the ones that have changed and rebuilds the complete NBT data structure if
+	 * any of them have.</p>
+	 * 
+	 * @param delta The compound to add the changed fields to, or {@code null} if no delta is
+	 * needed.
+	 * @return Whether any field has changed.
+	 * @throws IllegalAccessException see {@link #serialize()}.
+	 * @throws UnserializableClassException see {@link #serialize()}.
+	 */
+	private boolean update(NBTTagCompound delta) throws IllegalAccessException, UnserializableClassException {
+		boolean tracked = this.tracked;
+		boolean changed = !tracked;
+		NBTTagList removed = null;
+		NBTTagCompound edits = null;
+		/*
+		 * If encoding a field fails halfway through, the state is a mix of old and new
+		 * fields, and the changes to the fields before the failing one would never make it
+		 * into a delta. To be safe, we forget the state until the next call succeeds.
+		 */
+		this.tracked = false;
+		/*
+		 * The same goes for the trackers of nested instances: without a state of our own,
+		 * their deltas would be relative to a call that we no longer know the result of.
+		 */
+		if (!tracked) {
+			for (NBTTracker<?> child : this.children) {
+				if (child != null) child.reset();
+			}
+		}
+		
+		for (FieldPlan fp : this.plan.fields) {
+			FieldAccessor fa = fp.accessor;
+			int i = fp.index;
+			NBTBase tag = null;
+			NBTBase fieldDelta = null;
+			
+			/*
+			 * Primitives are compared by their raw bits, so that e.g. a NaN that stays NaN
+			 * does not count as a change. Only if the bits differ is a new tag created.
+			 */
+			long bits;
+			switch (fp.kind) {
+			case BYTE:      bits = fa.getByte(this.object);                                 break;
+			case BOOLEAN:   bits = fa.getBoolean(this.object) ? 1 : 0;                      break;
+			case SHORT:     bits = fa.getShort(this.object);                                break;
+			case INT:       bits = fa.getInt(this.object);                                  break;
+			case LONG:      bits = fa.getLong(this.object);                                 break;
+			case FLOAT:     bits = Float.floatToRawIntBits(fa.getFloat(this.object));       break;
+			case DOUBLE:    bits = Double.doubleToRawLongBits(fa.getDouble(this.object));   break;
+			default:        bits = 0;
+			}
+			
+			if (fp.kind != FieldPlan.Kind.OBJECT) {
+				if (tracked && bits == this.hashes[i]) continue;
+				this.hashes[i] = bits;
+				tag = fieldDelta = primitiveTag(fp.kind, bits);
+			} else {
+				Object fv = fa.get(this.object);
+				if (fv == null) {
+					/*
+					 * The field is null, so it is not serialized. If it was not null last
+					 * time, or if we do not know what it was, it is listed as removed.
+					 */
+					if (tracked && !this.present[i]) continue;
+					if (this.present[i]) changed = true;
+					this.present[i] = false;
+					this.tags[i] = null;
+					this.values[i] = null;
+					this.children[i] = null;
+					this.snapshots[i] = null;
+					if (delta != null) {
+						if (removed == null) removed = new NBTTagList();
+						removed.appendTag(new NBTTagString(fp.tagName));
+					}
+					continue;
+				}
+				if (fp.codec == null) throw new UnserializableClassException(fp.type);
+				boolean known = tracked && this.present[i];
+				
+				if (fp.codec == BuiltinCodecs.SERIALIZABLE) {
+					/*
+					 * Nested INBTSerializable instances are tracked themselves. If the field
+					 * still holds the same instance, its tracker works out what has changed
+					 * within it, and the delta of the field is the delta of the instance. If
+					 * it holds a different instance, a new tracker serializes it completely.
+					 * The tag of the field is the complete data structure of the instance,
+					 * which its tracker builds when it is needed.
+					 */
+					NBTTracker<?> child = this.children[i];
+					if (child == null || child.object != fv) {
+						child = new NBTTracker<INBTSerializable>((INBTSerializable) fv);
+						this.children[i] = child;
+					}
+					NBTTagCompound childDelta = delta == null ? null : new NBTTagCompound();
+					if (!child.update(childDelta) && known) continue;
+					fieldDelta = childDelta;
+				} else if (isValue(fp.codec, fv)) {
+					/*
+					 * Strings, numbers and enums are immutable, so it is enough to keep the
+					 * value itself and compare it.
+					 */
+					if (known && fv.equals(this.values[i])) continue;
+					this.values[i] = fv;
+					tag = fieldDelta = fp.codec.encode(fv);
+				} else if (fp.codec == BuiltinCodecs.COLLECTION || fp.codec instanceof BuiltinCodecs.MapCodec) {
+					/*
+					 * Collections and maps are compared element by element. If the field
+					 * still holds the same instance as last time, the delta only holds the
+					 * operations that turn its previous contents into the current ones, and
+					 * the tag of the whole collection is not created until it is needed.
+					 */
+					ContainerEdits.Snapshot prev = known && fv == this.values[i] ? this.snapshots[i] : null;
+					ContainerEdits.Snapshot next = new ContainerEdits.Snapshot(fv, fp.codec == BuiltinCodecs.MAP);
+					if (prev != null && prev.matches(next)) continue;
+					this.values[i] = fv;
+					this.snapshots[i] = next;
+					NBTTagList ops = delta == null || prev == null ? null : ContainerEdits.diff(fv, prev, next);
+					if (ops != null) {
+						if (edits == null) edits = new NBTTagCompound();
+						edits.setTag(fp.tagName, ops);
+					} else {
+						tag = fieldDelta = fp.codec.encode(fv);
+					}
+				} else {
+					/*
+					 * Anything else may have been changed in place, so we compare a hash of
+					 * its contents instead.
+					 */
+					long hash = hash(fv);
+					if (known && hash == this.hashes[i]) continue;
+					this.hashes[i] = hash;
+					this.values[i] = fv;
+					tag = fieldDelta = fp.codec.encode(fv);
+				}
+			}
+			
+			this.tags[i] = tag;
+			this.present[i] = true;
+			changed = true;
+			if (delta != null && fieldDelta != null) delta.setTag(fp.tagName, fieldDelta);
+		}
+		if (removed != null || edits != null) {
+			NBTTagCompound meta = new NBTTagCompound();
+			if (removed != null) meta.setTag("removed", removed);
+			if (edits != null) meta.setTag("edits", edits);
+			delta.setTag(META_TAG, meta);
+		}
+		
+		/*
+		 * If anything has changed, the complete NBT data structure has to be rebuilt. This is
+		 * left until it is needed, so that creating deltas does not build it at all.
+		 */
+		if (changed) this.full = null;
+		this.tracked = true;
+		return changed;
+	}
+	
+	/**
+	 * <p>Gets the complete NBT data structure of the tracked instance as of the last call to
+	 * {@link #update(NBTTagCompound)}, building it from the tags of all fields if anything
+	 * has changed since it was last built. Most tags are reused from last time; the previous
+	 * data structure itself is left as it is, since it may still be in use by whoever it was
+	 * returned to.</p>
+	 * 
+	 * @return The complete NBT data structure.
+	 * @throws IllegalAccessException see {@link #serialize()}.
+	 * @throws UnserializableClassException see {@link #serialize()}.
+	 */
+	private NBTTagCompound full() throws IllegalAccessException, UnserializableClassException {
+		if (this.full == null) {
+			NBTTagCompound t = new NBTTagCompound();
+			for (FieldPlan fp : this.plan.fields) {
+				int i = fp.index;
+				if (!this.present[i]) continue;
+				NBTBase tag = this.tags[i];
+				if (this.children[i] != null) {
+					tag = this.children[i].full();
+				} else if (tag == null) {
+					/*
+					 * The tags of collections and maps that were only sent as edits have not
+					 * been created yet. The field still holds the same contents as when it
+					 * was compared, since this is only called right after an update.
+					 */
+					tag = this.tags[i] = fp.codec.encode(this.values[i]);
+				}
+				t.setTag(fp.tagName, tag);
+			}
+			this.full = t;
+		}
+		return this.full;
+	}
+	
+	/**
+	 * <p>Creates the NBT tag for a primitive field from its raw bits.</p>
+	 * 
+	 * @param kind The kind of the field.
+	 * @param bits The raw bits of the value of the field.
+	 * @return The NBT tag of the value.
+	 */
+	private static NBTBase primitiveTag(FieldPlan.Kind kind, long bits) {
+		switch (kind) {
+		case BYTE:      return new NBTTagByte((byte) bits);
+		case BOOLEAN:   return new NBTTagByte((byte) bits);
+		case SHORT:     return new NBTTagShort((short) bits);
+		case INT:       return new NBTTagInt((int) bits);
+		case LONG:      return new NBTTagLong(bits);
+		case FLOAT:     return new NBTTagFloat(Float.intBitsToFloat((int) bits));
+		default:        return new NBTTagDouble(Double.longBitsToDouble(bits));
+		}
+	}
+	
+	/**
+	 * <p>Checks whether the given field value is immutable, and can therefore be compared by
+	 * value.</p>
+	 * 
+	 * @param codec The codec for the field.
+	 * @param value The value of the field.
+	 * @return Whether the value can be compared with {@link Object#equals(Object)}.
+	 */
+	private static boolean isValue(NBTCodec<?> codec, Object value) {
+		return codec == BuiltinCodecs.STRING || codec == BuiltinCodecs.INT || codec == BuiltinCodecs.LONG
+				|| codec == BuiltinCodecs.BYTE || codec == BuiltinCodecs.BOOLEAN || codec == BuiltinCodecs.SHORT
+				|| codec == BuiltinCodecs.FLOAT || codec == BuiltinCodecs.DOUBLE || value instanceof Enum;
+	}
+	
+	/**
+	 * <p>Computes a 64-bit hash of the contents of the given value, descending into arrays,
+	 * collections, maps, loaded {@link NBTLazy} holders and the annotated fields of
+	 * {@link INBTSerializable} instances. The hash depends on the iteration order of
+	 * collections and maps, since so does the serialized form.</p>
+	 * 
+	 * @param value The value to hash.
+	 * @return The hash of the value.
+	 * @throws IllegalAccessException if a Field object in a serializable class is enforcing
+	 * Java language access control and the underlying field is inaccessible.
+	 */
+	static long hash(Object value) throws IllegalAccessException {
+		if (value == null) return 0;
+		long h = 1;
+		if (value instanceof INBTSerializable) {
+			for (FieldPlan fp : ClassPlan.of(value.getClass()).fields) {
+				FieldAccessor fa = fp.accessor;
+				switch (fp.kind) {
+				case BYTE:      h = mix(h, fa.getByte(value));                                  break;
+				case BOOLEAN:   h = mix(h, fa.getBoolean(value) ? 1 : 0);                       break;
+				case SHORT:     h = mix(h, fa.getShort(value));                                 break;
+				case INT:       h = mix(h, fa.getInt(value));                                   break;
+				case LONG:      h = mix(h, fa.getLong(value));                                  break;
+				case FLOAT:     h = mix(h, Float.floatToRawIntBits(fa.getFloat(value)));        break;
+				case DOUBLE:    h = mix(h, Double.doubleToRawLongBits(fa.getDouble(value)));    break;
+				default:        h = mix(h, hash(fa.get(value)));
+				}
+			}
+		} else if (value instanceof NBTLazy) {
+			/*
+			 * The data of a holder that has not been loaded cannot have changed, so the
+			 * holder itself stands for it. Once loaded, the value may be changed in place
+			 * through get(), so its contents are hashed like those of any other value.
+			 */
+			NBTLazy<?> lazy = (NBTLazy<?>) value;
+			if (!lazy.isLoaded()) return mix(h, System.identityHashCode(lazy));
+			h = mix(h, hash(lazy.get()));
+		} else if (value instanceof Collection) {
+			for (Object o : (Collection<?>) value) h = mix(h, hash(o));
+		} else if (value instanceof Map) {
+			for (Entry<?, ?> e : ((Map<?, ?>) value).entrySet()) h = mix(mix(h, hash(e.getKey())), hash(e.getValue()));
+		} else if (value instanceof Object[]) {
+			for (Object o : (Object[]) value) h = mix(h, hash(o));
+		} else if (value instanceof long[]) {
+			for (long v : (long[]) value) h = mix(h, v);
+		} else if (value instanceof int[]) {
+			for (int v : (int[]) value) h = mix(h, v);
+		} else if (value instanceof short[]) {
+			for (short v : (short[]) value) h = mix(h, v);
+		} else if (value instanceof byte[]) {
+			for (byte v : (byte[]) value) h = mix(h, v);
+		} else if (value instanceof char[]) {
+			for (char v : (char[]) value) h = mix(h, v);
+		} else if (value instanceof boolean[]) {
+			for (boolean v : (boolean[]) value) h = mix(h, v ? 1 : 0);
+		} else if (value instanceof float[]) {
+			for (float v : (float[]) value) h = mix(h, Float.floatToRawIntBits(v));
+		} else if (value instanceof double[]) {
+			for (double v : (double[]) value) h = mix(h, Double.doubleToRawLongBits(v));
+		} else {
+			return mix(h, value.hashCode());
+		}
+		/*
+		 * Mixing in the class as well tells e.g. an empty list apart from an empty array.
+		 */
+		return mix(h, value.getClass().hashCode());
+	}
+	
+	/**
+	 * <p>Mixes a value into a hash.</p>
+	 * 
+	 * @param h The hash so far.
+	 * @param v The value to mix in.
+	 * @return The new hash.
+	 */
+	static long mix(long h, long v) {
+		h = (h ^ v) * 0x9E3779B97F4A7C15L;
+		return h ^ (h >>> 31);
+	}
+}
@@ -0,0 +1,441 @@
+package info.varden.nbtserial;
+
+import java.io.DataOutput;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+
+import net.minecraft.nbt.NBTBase;
+import net.minecraft.nbt.NBTTagByte;
+import net.minecraft.nbt.NBTTagByteArray;
+import net.minecraft.nbt.NBTTagCompound;
+import net.minecraft.nbt.NBTTagDouble;
+import net.minecraft.nbt.NBTTagFloat;
+import net.minecraft.nbt.NBTTagInt;
+import net.minecraft.nbt.NBTTagIntArray;
+import net.minecraft.nbt.NBTTagList;
+import net.minecraft.nbt.NBTTagLong;
+import net.minecraft.nbt.NBTTagShort;
+import net.minecraft.nbt.NBTTagString;
+
+/**
+ * <p>Writes {@link INBTSerializable} instances straight to a stream in the binary NBT format,
+ * without building an {@link NBTTagCompound} tree first. The output is byte-identical to
+ * serializing the instance with {@link NBTSerializer#serialize(INBTSerializable)} and writing
+ * the result with {@code CompressedStreamTools.write()}, except for the compounds of
+ * instances of {@link NBTSubtypes registered subtypes}, which start with their subtype ID
+ * instead of having it among their other tags.</p>
+ * 
+ * @author Marius
+ */
+final class NBTWriter {
+	/**
+	 * The names of the key and value tags of a serialized map entry, in the order an entry
+	 * compound holding both of them writes them in.
+	 */
+	private static final String[] ENTRY_ORDER;
+	/**
+	 * The encoded names of the key and value tags, in the same order.
+	 */
+	private static final byte[][] ENCODED_ENTRY_ORDER;
+	
+	/**
+	 * The encoded name of the long tag that holds the schema fingerprint.
+	 */
+	static final byte[] ENCODED_SCHEMA_TAG = ModifiedUtf8.encode(NBTSerializer.SCHEMA_TAG);
+	/**
+	 * The name of the tag that holds the ID of a subtype, encoded.
+	 */
+	static final byte[] ENCODED_SUBTYPE_TAG = ModifiedUtf8.encode(NBTSerializer.SUBTYPE_TAG);
+	/**
+	 * The names of the tags that number an object in a graph and refer back to it, encoded.
+	 */
+	static final byte[] ENCODED_ID_TAG = ModifiedUtf8.encode(NBTSerializer.ID_TAG);
+	static final byte[] ENCODED_REFERENCE_TAG = ModifiedUtf8.encode(NBTSerializer.REFERENCE_TAG);
+	
+	static {
+		String[] names = {"k", "v"};
+		int[] order = CompoundOrder.order(names, CompoundOrder.DEFAULT_CAPACITY);
+		ENTRY_ORDER = new String[] {names[order[0]], names[order[1]]};
+		ENCODED_ENTRY_ORDER = new byte[][] {ModifiedUtf8.encode(ENTRY_ORDER[0]), ModifiedUtf8.encode(ENTRY_ORDER[1])};
+	}
+	
+	private NBTWriter() {}
+	
+	/**
+	 * <p>Writes the given instance as an unnamed root compound tag, like
+	 * {@code CompressedStreamTools.write()} does.</p>
+	 * 
+	 * @param object The instance to write.
+	 * @param out The stream to write to.
+	 * @param writeSchema Whether to write the schema fingerprint of the class of the
+	 * instance as the first tag of the compound.
+	 * @throws IOException if writing to the stream fails.
+	 * @throws IllegalAccessException if a Field object in a serializable class is enforcing
+	 * Java language access control and the underlying field is inaccessible.
+	 * @throws UnserializableClassException if an attempt is made to serialize a class that is
+	 * not natively supported by the serializer and does not implement INBTSerializable.
+	 */
+	static void writeRoot(INBTSerializable object, DataOutput out, boolean writeSchema) throws IOException, IllegalAccessException, UnserializableClassException {
+		out.writeByte(NBTSerializer.NBT_TAG_COMPOUND);
+		out.writeUTF("");
+		if (writeSchema) {
+			out.writeByte(NBTSerializer.NBT_TAG_LONG);
+			out.write(ENCODED_SCHEMA_TAG);
+			out.writeLong(ClassPlan.of(object.getClass()).fingerprint());
+		}
+		writeCompound(object, out);
+	}
+	
+	/**
+	 * <p>Writes the payload of the compound tag that the given instance serializes to.</p>
+	 * 
+	 * @param object The instance to write.
+	 * @param out The stream to write to.
+	 * @throws IOException if writing to the stream fails.
+	 * @throws IllegalAccessException see {@link #writeRoot(INBTSerializable, DataOutput, boolean)}.
+	 * @throws UnserializableClassException see
+	 * {@link #writeRoot(INBTSerializable, DataOutput, boolean)}.
+	 */
+	static void writeCompound(INBTSerializable object, DataOutput out) throws IOException, IllegalAccessException, UnserializableClassException {
+		/*
+		 * Measure the serialization if metrics are being collected. Only data output streams
+		 * count the bytes written to them.
+		 */
+		NBTMetrics.Counters metrics = NBTMetrics.of(object.getClass());
+		if (metrics == null) {
+			writeFields(object, out);
+			return;
+		}
+		long start = System.nanoTime();
+		int size = out instanceof DataOutputStream ? ((DataOutputStream) out).size() : -1;
+		try {
+			int tags = writeFields(object, out);
+			metrics.serialized(System.nanoTime() - start, tags, size < 0 ? -1 : ((DataOutputStream) out).size() - size);
+		} catch (Throwable t) {
+			metrics.failed(t);
+			throw t;
+		}
+	}
+	
+	/**
+	 * <p>Writes the annotated fields of the given instance, followed by the end tag of the
+	 * compound tag that holds them.</p>
+	 * 
+	 * @param object The instance to write.
+	 * @param out The stream to write to.
+	 * @return The number of tags written for the fields.
+	 * @throws IOException if writing to the stream fails.
+	 * @throws IllegalAccessException see
+	 * {@link #writeRoot(INBTSerializable, DataOutput, boolean)}.
+	 * @throws UnserializableClassException see
+	 * {@link #writeRoot(INBTSerializable, DataOutput, boolean)}.
+	 */
+	private static int writeFields(INBTSerializable object, DataOutput out) throws IOException, IllegalAccessException, UnserializableClassException {
+		ClassPlan plan = ClassPlan.of(object.getClass());
+		/*
+		 * The order in which the fields must be written depends on how many of them are
+		 * present. For classes with only a few fields, it is the same no matter how many are
+		 * null, so we only count them when needed.
+		 */
+		int present = plan.fields.length;
+		if (plan.writeOrderVaries()) {
+			for (FieldPlan fp : plan.fields) {
+				if (fp.kind == FieldPlan.Kind.OBJECT && fp.accessor.get(object) == null) present--;
+			}
+		}
+		
+		int written = 0;
+		FieldPlan[] order = plan.writeOrder(present);
+		if (order == null) order = plan.writeOrder(object);
+		for (FieldPlan fp : order) {
+			FieldAccessor fa = fp.accessor;
+			/*
+			 * Primitive fields are written directly, with the tag types that the tree
+			 * serializer uses for them. Tag names were encoded when the plan was built.
+			 */
+			switch (fp.kind) {
+			case BYTE:      writeHeader(NBTSerializer.NBT_TAG_BYTE, fp, out);      out.writeByte(fa.getByte(object));                  break;
+			case BOOLEAN:   writeHeader(NBTSerializer.NBT_TAG_BYTE, fp, out);      out.writeByte(fa.getBoolean(object) ? 1 : 0);       break;
+			case SHORT:     writeHeader(NBTSerializer.NBT_TAG_SHORT, fp, out);     out.writeShort(fa.getShort(object));                break;
+			case INT:       writeHeader(NBTSerializer.NBT_TAG_INT, fp, out);       out.writeInt(fa.getInt(object));                    break;
+			case LONG:      writeHeader(NBTSerializer.NBT_TAG_LONG, fp, out);      out.writeLong(fa.getLong(object));                  break;
+			case FLOAT:     writeHeader(NBTSerializer.NBT_TAG_FLOAT, fp, out);     out.writeFloat(fa.getFloat(object));                break;
+			case DOUBLE:    writeHeader(NBTSerializer.NBT_TAG_DOUBLE, fp, out);    out.writeDouble(fa.getDouble(object));              break;
+			
+			/*
+			 * Everything else is written through the codec of the field, unless it is null.
+			 */
+			default:
+				Object fv = fa.get(object);
+				if (fv == null) continue;
+				if (fp.codec == null) throw new UnserializableClassException(fp.type);
+				writeNamed(fp.codec, fp.tagName, fp.encodedName, fv, out);
+			}
+			written++;
+		}
+		out.writeByte(NBTSerializer.NBT_TAG_END);
+		return written;
+	}
+	
+	/**
+	 * <p>Writes the payload of the list tag that the given collection serializes to.</p>
+	 * 
+	 * @param col The collection to write.
+	 * @param out The stream to write to.
+	 * @throws IOException if writing to the stream fails.
+	 * @throws IllegalAccessException see {@link #writeRoot(INBTSerializable, DataOutput, boolean)}.
+	 * @throws UnserializableClassException see
+	 * {@link #writeRoot(INBTSerializable, DataOutput, boolean)}.
+	 */
+	static void writeList(Collection<?> col, DataOutput out) throws IOException, IllegalAccessException, UnserializableClassException {
+		/*
+		 * Like the tree serializer, we look up the codec for the class of each element, but
+		 * only when the class changes. Null elements are skipped, so they must not be counted
+		 * either. If any of the codecs cannot stream, we let the tree serializer build the
+		 * list and write that instead.
+		 */
+		int count = 0;
+		int tagId = NBTSerializer.NBT_TAG_END;
+		boolean streaming = true;
+		Class<?> last = null;
+		for (Object element : col) {
+			if (element == null) continue;
+			count++;
+			if (element.getClass() != last) {
+				last = element.getClass();
+				NBTCodec<?> codec = NBTSerializer.codecFor(last);
+				tagId = NBTSerializer.checkElementTag(tagId, codec, last);
+				if (!(codec instanceof StreamingCodec)) streaming = false;
+			}
+		}
+		
+		/*
+		 * Empty lists are written with the end tag as their element type.
+		 */
+		if (count <= 0) {
+			out.writeByte(NBTSerializer.NBT_TAG_END);
+			out.writeInt(0);
+			return;
+		}
+		if (!streaming) {
+			writePayload(NBTSerializer.serializeCollection(col), out);
+			return;
+		}
+		
+		out.writeByte(tagId);
+		out.writeInt(count);
+		last = null;
+		StreamingCodec<?> sc = null;
+		for (Object element : col) {
+			if (element == null) continue;
+			if (element.getClass() != last) {
+				last = element.getClass();
+				sc = (StreamingCodec<?>) NBTSerializer.codecFor(last);
+			}
+			sc.stream(element, out);
+		}
+	}
+	
+	/**
+	 * <p>Writes the payload of the list tag that the given map serializes to.</p>
+	 * 
+	 * @param map The map to write.
+	 * @param out The stream to write to.
+	 * @throws IOException if writing to the stream fails.
+	 * @throws IllegalAccessException see {@link #writeRoot(INBTSerializable, DataOutput, boolean)}.
+	 * @throws UnserializableClassException see
+	 * {@link #writeRoot(INBTSerializable, DataOutput, boolean)}.
+	 */
+	static void writeMap(Map<?, ?> map, DataOutput out) throws IOException, IllegalAccessException, UnserializableClassException {
+		writeList(map.entrySet(), out);
+	}
+	
+	/**
+	 * <p>Writes the payload of the compound tag that the given map serializes to with
+	 * {@link MapLayout#COMPOUND}.</p>
+	 * 
+	 * @param map The map to write. Its keys must be strings.
+	 * @param out The stream to write to.
+	 * @throws IOException if writing to the stream fails.
+	 * @throws IllegalAccessException see {@link #writeRoot(INBTSerializable, DataOutput, boolean)}.
+	 * @throws UnserializableClassException see
+	 * {@link #writeRoot(INBTSerializable, DataOutput, boolean)}.
+	 */
+	static void writeMapCompound(Map<?, ?> map, DataOutput out) throws IOException, IllegalAccessException, UnserializableClassException {
+		List<Object> keys = new ArrayList<Object>(map.size());
+		List<Object> values = new ArrayList<Object>(map.size());
+		NBTSerializer.splitEntries(map, keys, values);
+		
+		/*
+		 * The keys become the names of the child tags, so they must be written in the order
+		 * the compound tag would write them in, given that they were put into it in iteration
+		 * order.
+		 */
+		String[] names = keys.toArray(new String[keys.size()]);
+		for (int i : CompoundOrder.order(names)) {
+			Object value = values.get(i);
+			writeNamed(NBTSerializer.codecFor(value.getClass()), names[i], null, value, out);
+		}
+		out.writeByte(NBTSerializer.NBT_TAG_END);
+	}
+	
+	/**
+	 * <p>Writes the payload of the list tag that the given map serializes to with
+	 * {@link MapLayout#LISTS}.</p>
+	 * 
+	 * @param map The map to write.
+	 * @param out The stream to write to.
+	 * @throws IOException if writing to the stream fails.
+	 * @throws IllegalAccessException see {@link #writeRoot(INBTSerializable, DataOutput, boolean)}.
+	 * @throws UnserializableClassException see
+	 * {@link #writeRoot(INBTSerializable, DataOutput, boolean)}.
+	 */
+	static void writeMapLists(Map<?, ?> map, DataOutput out) throws IOException, IllegalAccessException, UnserializableClassException {
+		List<Object> keys = new ArrayList<Object>(map.size());
+		List<Object> values = new ArrayList<Object>(map.size());
+		NBTSerializer.splitEntries(map, keys, values);
+		
+		out.writeByte(NBTSerializer.NBT_TAG_LIST);
+		out.writeInt(2);
+		writeList(keys, out);
+		writeList(values, out);
+	}
+	
+	/**
+	 * <p>Writes the payload of the compound tag that the given map entry serializes to.</p>
+	 * 
+	 * @param entry The entry to write.
+	 * @param out The stream to write to.
+	 * @throws IOException if writing to the stream fails.
+	 * @throws IllegalAccessException see {@link #writeRoot(INBTSerializable, DataOutput, boolean)}.
+	 * @throws UnserializableClassException see
+	 * {@link #writeRoot(INBTSerializable, DataOutput, boolean)}.
+	 */
+	static void writeEntry(Entry<?, ?> entry, DataOutput out) throws IOException, IllegalAccessException, UnserializableClassException {
+		/*
+		 * An entry compound never holds more than two tags, so its write order is fixed. Null
+		 * keys and values are not written at all.
+		 */
+		for (int i = 0; i < ENTRY_ORDER.length; i++) {
+			Object value = ENTRY_ORDER[i].equals("k") ? entry.getKey() : entry.getValue();
+			if (value != null) writeNamed(NBTSerializer.codecFor(value.getClass()), ENTRY_ORDER[i], ENCODED_ENTRY_ORDER[i], value, out);
+		}
+		out.writeByte(NBTSerializer.NBT_TAG_END);
+	}
+	
+	/**
+	 * <p>Writes a named tag for the given value, using the given codec.</p>
+	 * 
+	 * @param codec The codec for the value.
+	 * @param name The name of the tag.
+	 * @param encodedName The name of the tag, already encoded, or {@code null} to encode it.
+	 * @param value The value to write.
+	 * @param out The stream to write to.
+	 * @throws IOException if writing to the stream fails.
+	 * @throws IllegalAccessException see {@link #writeRoot(INBTSerializable, DataOutput, boolean)}.
+	 * @throws UnserializableClassException see
+	 * {@link #writeRoot(INBTSerializable, DataOutput, boolean)}.
+	 */
+	private static void writeNamed(NBTCodec<?> codec, String name, byte[] encodedName, Object value, DataOutput out) throws IOException, IllegalAccessException, UnserializableClassException {
+		if (codec instanceof StreamingCodec) {
+			writeHeader(codec.getTagId(), name, encodedName, out);
+			((StreamingCodec<?>) codec).stream(value, out);
+		} else {
+			/*
+			 * Codecs registered by users can only create tags, so we create the tag and then
+			 * write it.
+			 */
+			NBTBase tag = codec.encode(value);
+			writeHeader(tag.getId(), name, encodedName, out);
+			writePayload(tag, out);
+		}
+	}
+	
+	/**
+	 * <p>Writes the type and name of the tag of the given field.</p>
+	 * 
+	 * @param id The NBT tag ID of the tag.
+	 * @param fp The field.
+	 * @param out The stream to write to.
+	 * @throws IOException if writing to the stream fails.
+	 */
+	private static void writeHeader(int id, FieldPlan fp, DataOutput out) throws IOException {
+		writeHeader(id, fp.tagName, fp.encodedName, out);
+	}
+	
+	/**
+	 * <p>Writes the type and name of a named tag.</p>
+	 * 
+	 * @param id The NBT tag ID of the tag.
+	 * @param name The name of the tag.
+	 * @param encodedName The name of the tag, already encoded, or {@code null} to encode it.
+	 * @param out The stream to write to.
+	 * @throws IOException if writing to the stream fails, or if the name is too long.
+	 */
+	private static void writeHeader(int id, String name, byte[] encodedName, DataOutput out) throws IOException {
+		out.writeByte(id);
+		if (encodedName != null) out.write(encodedName);
+		else ModifiedUtf8.write(name, out);
+	}
+	
+	/**
+	 * <p>Writes the payload of an existing NBT tag, exactly like the tag would write itself.
+	 * This is used for tags created by codecs that cannot stream.</p>
+	 * 
+	 * @param tag The tag to write.
+	 * @param out The stream to write to.
+	 * @throws IOException if writing to the stream fails, or if the tag is of an unknown
+	 * type.
+	 */
+	static void writePayload(NBTBase tag, DataOutput out) throws IOException {
+		switch (tag.getId()) {
+		case NBTSerializer.NBT_TAG_BYTE:    out.writeByte(((NBTTagByte) tag).getByte());       break;
+		case NBTSerializer.NBT_TAG_SHORT:   out.writeShort(((NBTTagShort) tag).getShort());    break;
+		case NBTSerializer.NBT_TAG_INT:     out.writeInt(((NBTTagInt) tag).getInt());          break;
+		case NBTSerializer.NBT_TAG_LONG:    out.writeLong(((NBTTagLong) tag).getLong());       break;
+		case NBTSerializer.NBT_TAG_FLOAT:   out.writeFloat(((NBTTagFloat) tag).getFloat());    break;
+		case NBTSerializer.NBT_TAG_DOUBLE:  out.writeDouble(((NBTTagDouble) tag).getDouble()); break;
+		case NBTSerializer.NBT_TAG_STRING:  ModifiedUtf8.write(((NBTTagString) tag).getString(), out); break;
+		case NBTSerializer.NBT_TAG_BYTE_ARRAY: {
+			byte[] data = ((NBTTagByteArray) tag).getByteArray();
+			out.writeInt(data.length);
+			out.write(data);
+			break;
+		}
+		case NBTSerializer.NBT_TAG_INT_ARRAY: {
+			int[] data = ((NBTTagIntArray) tag).getIntArray();
+			out.writeInt(data.length);
+			for (int i : data) out.writeInt(i);
+			break;
+		}
+		case NBTSerializer.NBT_TAG_LIST: {
+			NBTTagList list = (NBTTagList) tag;
+			int count = list.tagCount();
+			out.writeByte(count > 0 ? list.get(0).getId() : NBTSerializer.NBT_TAG_END);
+			out.writeInt(count);
+			for (int i = 0; i < count; i++) writePayload(list.get(i), out);
+			break;
+		}
+		case NBTSerializer.NBT_TAG_COMPOUND: {
+			NBTTagCompound compound = (NBTTagCompound) tag;
+			for (String name : compound.getKeySet()) {
+				NBTBase child = compound.getTag(name);
+				out.writeByte(child.getId());
+				if (child.getId() != NBTSerializer.NBT_TAG_END) {
+					ModifiedUtf8.write(name, out);
+					writePayload(child, out);
+				}
+			}
+			out.writeByte(NBTSerializer.NBT_TAG_END);
+			break;
+		}
+		default:
+			throw new IOException("Cannot write NBT tag of unknown type " + tag.getId());
+		}
+	}
+}
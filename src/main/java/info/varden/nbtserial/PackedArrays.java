@@ -0,0 +1,320 @@
+package info.varden.nbtserial;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+import net.minecraft.nbt.NBTBase;
+import net.minecraft.nbt.NBTBase.NBTPrimitive;
+import net.minecraft.nbt.NBTTagByteArray;
+import net.minecraft.nbt.NBTTagIntArray;
+import net.minecraft.nbt.NBTTagList;
+
+import org.apache.commons.lang3.ArrayUtils;
+
+/**
+ * <p>Converts arrays of primitives to and from packed NBT array tags. Bytes and ints are
+ * stored in their own array tags. NBT has no array tags for the other primitive types, so
+ * they are packed into a byte array tag instead, big-endian and without any padding, so that
+ * each element costs exactly as many bytes as the primitive itself.</p>
+ * <p>Reading is lenient: a packed array can also be read from an int array tag or from a
+ * list of numeric tags, so fields can be switched to a packed encoding without breaking
+ * existing data.</p>
+ * 
+ * @author Marius
+ */
+final class PackedArrays {
+	/**
+	 * The size of the buffer used to convert elements when streaming.
+	 */
+	private static final int CHUNK = 8192;
+	
+	private PackedArrays() {}
+	
+	/**
+	 * <p>The primitive types that can be packed.</p>
+	 */
+	enum Element {
+		BOOLEAN (1, boolean.class,  Boolean.class,  NBTSerializer.NBT_TAG_BYTE_ARRAY),
+		BYTE    (1, byte.class,     Byte.class,     NBTSerializer.NBT_TAG_BYTE_ARRAY),
+		SHORT   (2, short.class,    Short.class,    NBTSerializer.NBT_TAG_BYTE_ARRAY),
+		INT     (4, int.class,      Integer.class,  NBTSerializer.NBT_TAG_INT_ARRAY),
+		LONG    (8, long.class,     Long.class,     NBTSerializer.NBT_TAG_BYTE_ARRAY),
+		FLOAT   (4, float.class,    Float.class,    NBTSerializer.NBT_TAG_BYTE_ARRAY),
+		DOUBLE  (8, double.class,   Double.class,   NBTSerializer.NBT_TAG_BYTE_ARRAY);
+		
+		/**
+		 * The number of bytes each element takes up.
+		 */
+		final int size;
+		final Class<?> primitive;
+		final Class<?> boxed;
+		/**
+		 * The NBT tag ID of the array tag that arrays of this element are stored in.
+		 */
+		final int tagId;
+		
+		private Element(int size, Class<?> primitive, Class<?> boxed, int tagId) {
+			this.size = size;
+			this.primitive = primitive;
+			this.boxed = boxed;
+			this.tagId = tagId;
+		}
+		
+		/**
+		 * <p>Gets the element for the given primitive or wrapper class.</p>
+		 * 
+		 * @param type A primitive class or its wrapper class.
+		 * @return The element, or {@code null} if the class is not a packable primitive.
+		 */
+		static Element of(Class<?> type) {
+			for (Element e : values()) {
+				if (e.primitive == type || e.boxed == type) return e;
+			}
+			return null;
+		}
+	}
+	
+	/**
+	 * <p>Gets the number of elements in the given primitive array.</p>
+	 */
+	static int length(Object array, Element e) {
+		switch (e) {
+		case BOOLEAN:   return ((boolean[]) array).length;
+		case BYTE:      return ((byte[]) array).length;
+		case SHORT:     return ((short[]) array).length;
+		case INT:       return ((int[]) array).length;
+		case LONG:      return ((long[]) array).length;
+		case FLOAT:     return ((float[]) array).length;
+		default:        return ((double[]) array).length;
+		}
+	}
+	
+	/**
+	 * <p>Creates the array tag for the given primitive array.</p>
+	 * 
+	 * @param array A primitive array of the given element type.
+	 * @param e The element type of the array.
+	 * @return An array tag of the type given by {@link Element#tagId}.
+	 */
+	static NBTBase toTag(Object array, Element e) {
+		if (e == Element.INT) return new NBTTagIntArray((int[]) array);
+		if (e == Element.BYTE) return new NBTTagByteArray((byte[]) array);
+		
+		ByteBuffer bb = ByteBuffer.allocate(length(array, e) * e.size);
+		put(bb, array, e, 0, length(array, e));
+		return new NBTTagByteArray(bb.array());
+	}
+	
+	/**
+	 * <p>Reads a primitive array from an array tag or a list of numeric tags.</p>
+	 * 
+	 * @param tag The tag to read.
+	 * @param e The element type of the array.
+	 * @return A primitive array of the given element type.
+	 * @throws ClassCastException if the tag is not an array tag or a list tag.
+	 */
+	static Object fromTag(NBTBase tag, Element e) {
+		if (tag instanceof NBTTagByteArray) {
+			byte[] data = ((NBTTagByteArray) tag).getByteArray();
+			if (e == Element.BYTE) return data;
+			/*
+			 * Any trailing bytes that do not make up a whole element are ignored.
+			 */
+			Object array = newArray(e, data.length / e.size);
+			get(ByteBuffer.wrap(data), array, e, 0, length(array, e));
+			return array;
+		}
+		if (tag instanceof NBTTagIntArray) {
+			int[] data = ((NBTTagIntArray) tag).getIntArray();
+			if (e == Element.INT) return data;
+			Object array = newArray(e, data.length);
+			for (int i = 0; i < data.length; i++) set(array, e, i, data[i], data[i]);
+			return array;
+		}
+		
+		/*
+		 * Lists of numeric tags are converted element by element. Anything in the list that
+		 * is not a number is read as zero, like NBTTagCompound does for missing numbers.
+		 */
+		NBTTagList list = (NBTTagList) tag;
+		Object array = newArray(e, list.tagCount());
+		for (int i = 0; i < list.tagCount(); i++) {
+			NBTBase element = list.get(i);
+			if (element instanceof NBTPrimitive) {
+				NBTPrimitive p = (NBTPrimitive) element;
+				set(array, e, i, p.getLong(), p.getDouble());
+			}
+		}
+		return array;
+	}
+	
+	/**
+	 * <p>Writes the payload of the array tag that {@link #toTag(Object, Element)} would create
+	 * for the given primitive array.</p>
+	 * 
+	 * @param array A primitive array of the given element type.
+	 * @param e The element type of the array.
+	 * @param out The stream to write to.
+	 * @throws IOException if writing to the stream fails.
+	 */
+	static void write(Object array, Element e, DataOutput out) throws IOException {
+		int length = length(array, e);
+		out.writeInt(e.tagId == NBTSerializer.NBT_TAG_INT_ARRAY ? length : length * e.size);
+		if (e == Element.BYTE) {
+			out.write((byte[]) array);
+			return;
+		}
+		
+		/*
+		 * The elements are converted to bytes in chunks, so that large arrays do not need a
+		 * second copy of the whole array.
+		 */
+		int perChunk = CHUNK / e.size;
+		ByteBuffer bb = ByteBuffer.allocate(Math.min(length, perChunk) * e.size);
+		for (int off = 0; off < length; off += perChunk) {
+			int count = Math.min(perChunk, length - off);
+			bb.clear();
+			put(bb, array, e, off, count);
+			out.write(bb.array(), 0, count * e.size);
+		}
+	}
+	
+	/**
+	 * <p>Reads the payload of an array tag of the type given by {@link Element#tagId} into a
+	 * primitive array.</p>
+	 * 
+	 * @param in The stream to read from.
+	 * @param e The element type of the array.
+	 * @return A primitive array of the given element type.
+	 * @throws IOException if reading from the stream fails.
+	 */
+	static Object read(DataInput in, Element e) throws IOException {
+		int bytes = in.readInt();
+		if (e.tagId == NBTSerializer.NBT_TAG_INT_ARRAY) bytes *= e.size;
+		if (e == Element.BYTE) {
+			byte[] data = new byte[bytes];
+			in.readFully(data);
+			return data;
+		}
+		
+		Object array = newArray(e, bytes / e.size);
+		int length = length(array, e);
+		int perChunk = CHUNK / e.size;
+		ByteBuffer bb = ByteBuffer.allocate(Math.min(length, perChunk) * e.size);
+		for (int off = 0; off < length; off += perChunk) {
+			int count = Math.min(perChunk, length - off);
+			in.readFully(bb.array(), 0, count * e.size);
+			bb.clear();
+			get(bb, array, e, off, count);
+		}
+		/*
+		 * Skip any trailing bytes that do not make up a whole element.
+		 */
+		for (int i = length * e.size; i < bytes; i++) in.readByte();
+		return array;
+	}
+	
+	/**
+	 * <p>Converts a primitive array into an array of its wrapper class.</p>
+	 */
+	static Object[] box(Object array, Element e) {
+		switch (e) {
+		case BOOLEAN:   return ArrayUtils.toObject((boolean[]) array);
+		case BYTE:      return ArrayUtils.toObject((byte[]) array);
+		case SHORT:     return ArrayUtils.toObject((short[]) array);
+		case INT:       return ArrayUtils.toObject((int[]) array);
+		case LONG:      return ArrayUtils.toObject((long[]) array);
+		case FLOAT:     return ArrayUtils.toObject((float[]) array);
+		default:        return ArrayUtils.toObject((double[]) array);
+		}
+	}
+	
+	/**
+	 * <p>Converts an array of a wrapper class into a primitive array. Null elements cannot be
+	 * represented in a packed array, so they become zero or {@code false}.</p>
+	 */
+	static Object unbox(Object[] array, Element e) {
+		switch (e) {
+		case BOOLEAN:   return ArrayUtils.toPrimitive((Boolean[]) array, false);
+		case BYTE:      return ArrayUtils.toPrimitive((Byte[]) array, (byte) 0);
+		case SHORT:     return ArrayUtils.toPrimitive((Short[]) array, (short) 0);
+		case INT:       return ArrayUtils.toPrimitive((Integer[]) array, 0);
+		case LONG:      return ArrayUtils.toPrimitive((Long[]) array, 0L);
+		case FLOAT:     return ArrayUtils.toPrimitive((Float[]) array, 0.0F);
+		default:        return ArrayUtils.toPrimitive((Double[]) array, 0.0D);
+		}
+	}
+	
+	/**
+	 * <p>Creates a primitive array of the given element type.</p>
+	 */
+	static Object newArray(Element e, int length) {
+		switch (e) {
+		case BOOLEAN:   return new boolean[length];
+		case BYTE:      return new byte[length];
+		case SHORT:     return new short[length];
+		case INT:       return new int[length];
+		case LONG:      return new long[length];
+		case FLOAT:     return new float[length];
+		default:        return new double[length];
+		}
+	}
+	
+	/**
+	 * <p>Sets an element of a primitive array from a number. Integer types are set from the
+	 * given long, and floating point types from the given double.</p>
+	 */
+	static void set(Object array, Element e, int index, long l, double d) {
+		switch (e) {
+		case BOOLEAN:   ((boolean[]) array)[index] = l != 0;    break;
+		case BYTE:      ((byte[]) array)[index] = (byte) l;     break;
+		case SHORT:     ((short[]) array)[index] = (short) l;   break;
+		case INT:       ((int[]) array)[index] = (int) l;       break;
+		case LONG:      ((long[]) array)[index] = l;            break;
+		case FLOAT:     ((float[]) array)[index] = (float) d;   break;
+		default:        ((double[]) array)[index] = d;          break;
+		}
+	}
+	
+	/**
+	 * <p>Puts a range of elements of a primitive array into a buffer, starting at its current
+	 * position.</p>
+	 */
+	private static void put(ByteBuffer bb, Object array, Element e, int off, int count) {
+		switch (e) {
+		case BOOLEAN: {
+			boolean[] a = (boolean[]) array;
+			for (int i = off; i < off + count; i++) bb.put(a[i] ? (byte) 1 : (byte) 0);
+			break;
+		}
+		case BYTE:      bb.put((byte[]) array, off, count);                     break;
+		case SHORT:     bb.asShortBuffer().put((short[]) array, off, count);    break;
+		case INT:       bb.asIntBuffer().put((int[]) array, off, count);        break;
+		case LONG:      bb.asLongBuffer().put((long[]) array, off, count);      break;
+		case FLOAT:     bb.asFloatBuffer().put((float[]) array, off, count);    break;
+		default:        bb.asDoubleBuffer().put((double[]) array, off, count);  break;
+		}
+	}
+	
+	/**
+	 * <p>Gets a range of elements of a primitive array from a buffer, starting at its current
+	 * position.</p>
+	 */
+	private static void get(ByteBuffer bb, Object array, Element e, int off, int count) {
+		switch (e) {
+		case BOOLEAN: {
+			boolean[] a = (boolean[]) array;
+			for (int i = off; i < off + count; i++) a[i] = bb.get() != 0;
+			break;
+		}
+		case BYTE:      bb.get((byte[]) array, off, count);                     break;
+		case SHORT:     bb.asShortBuffer().get((short[]) array, off, count);    break;
+		case INT:       bb.asIntBuffer().get((int[]) array, off, count);        break;
+		case LONG:      bb.asLongBuffer().get((long[]) array, off, count);      break;
+		case FLOAT:     bb.asFloatBuffer().get((float[]) array, off, count);    break;
+		default:        bb.asDoubleBuffer().get((double[]) array, off, count);  break;
+		}
+	}
+}
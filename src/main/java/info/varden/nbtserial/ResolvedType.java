@@ -0,0 +1,110 @@
+package info.varden.nbtserial;
+
+import java.lang.reflect.GenericArrayType;
+import java.lang.reflect.ParameterizedType;
+import java.lang.reflect.Type;
+import java.lang.reflect.TypeVariable;
+import java.lang.reflect.WildcardType;
+
+/**
+ * <p>A {@link Type} that has been resolved into its raw {@link Class} and, recursively, the
+ * raw classes of its type arguments. Resolved types are built once per field when a
+ * {@link ClassPlan} is created, so that deserializing generic collections and maps does not
+ * have to pick apart {@link ParameterizedType} instances for every element.</p>
+ * 
+ * @author Marius
+ */
+final class ResolvedType {
+	/**
+	 * An empty array of type arguments, shared by all non-generic types.
+	 */
+	private static final ResolvedType[] NO_ARGUMENTS = new ResolvedType[0];
+	
+	/**
+	 * The raw class of the type.
+	 */
+	final Class<?> raw;
+	/**
+	 * The type that was resolved.
+	 */
+	final Type type;
+	/**
+	 * The resolved type arguments of the type, if it is parameterized.
+	 */
+	final ResolvedType[] arguments;
+	
+	private ResolvedType(Class<?> raw, Type type, ResolvedType[] arguments) {
+		this.raw = raw;
+		this.type = type;
+		this.arguments = arguments;
+	}
+	
+	/**
+	 * <p>Resolves the given type, using the given class as the raw class instead of the raw
+	 * class of the type. This is used for fields that have a {@code typeOverride} set.</p>
+	 * 
+	 * @param raw The class to use as the raw class of the resolved type.
+	 * @param type The type whose type arguments should be resolved.
+	 * @return The resolved type.
+	 */
+	static ResolvedType of(Class<?> raw, Type type) {
+		/*
+		 * Only parameterized types carry type arguments that we need to resolve. Everything
+		 * else is treated as a plain class.
+		 */
+		if (!(type instanceof ParameterizedType)) return new ResolvedType(raw, type, NO_ARGUMENTS);
+		
+		Type[] args = ((ParameterizedType) type).getActualTypeArguments();
+		ResolvedType[] resolved = new ResolvedType[args.length];
+		for (int i = 0; i < args.length; i++) {
+			resolved[i] = of(args[i]);
+		}
+		return new ResolvedType(raw, type, resolved);
+	}
+	
+	/**
+	 * <p>Resolves the given type.</p>
+	 * 
+	 * @param type The type to resolve.
+	 * @return The resolved type.
+	 */
+	static ResolvedType of(Type type) {
+		return of(rawClassOf(type), type);
+	}
+	
+	/**
+	 * <p>Gets the resolved type argument at the given index. If the type is not
+	 * parameterized, a raw {@link Object} type is returned, which the serializer will refuse
+	 * to deserialize.</p>
+	 * 
+	 * @param index The index of the type argument.
+	 * @return The resolved type argument.
+	 */
+	ResolvedType argument(int index) {
+		if (index < this.arguments.length) return this.arguments[index];
+		return new ResolvedType(Object.class, Object.class, NO_ARGUMENTS);
+	}
+	
+	/**
+	 * <p>Gets the raw {@link Class} that corresponds to the given {@link Type}.</p>
+	 * 
+	 * @param type The type to get the raw class of.
+	 * @return The raw class of the type.
+	 */
+	private static Class<?> rawClassOf(Type type) {
+		if (type instanceof Class) {
+			return (Class<?>) type;
+		} else if (type instanceof ParameterizedType) {
+			return (Class<?>) ((ParameterizedType) type).getRawType();
+		} else if (type instanceof GenericArrayType) {
+			Class<?> component = rawClassOf(((GenericArrayType) type).getGenericComponentType());
+			return java.lang.reflect.Array.newInstance(component, 0).getClass();
+		} else if (type instanceof WildcardType) {
+			return rawClassOf(((WildcardType) type).getUpperBounds()[0]);
+		} else if (type instanceof TypeVariable) {
+			Type[] bounds = ((TypeVariable<?>) type).getBounds();
+			return bounds.length > 0 ? rawClassOf(bounds[0]) : Object.class;
+		}
+		return Object.class;
+	}
+}
@@ -0,0 +1,177 @@
+package info.varden.nbtserial;
+
+import java.lang.reflect.Array;
+import java.nio.ByteBuffer;
+import java.nio.IntBuffer;
+import java.util.AbstractMap;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.SortedMap;
+import java.util.SortedSet;
+import java.util.TreeMap;
+import java.util.TreeSet;
+
+/**
+ * <p>Copies the annotated fields of {@link INBTSerializable} instances into detached
+ * instances, for {@link NBTSerializer#snapshot(INBTSerializable)}. No NBT tags are built; the
+ * copy is serialized later, and produces the same data as the original would have.</p>
+ * <p>Only what the original could still change is copied:</p>
+ * <ul>
+ * <li>Primitive fields are copied by value.</li>
+ * <li>Nested serializable objects are copied recursively. An object that is held in several
+ * places is copied once, so cycles do not recurse forever, and the copies are shared the
+ * same way the originals are.</li>
+ * <li>Collections and maps are copied into new containers that iterate in the same order,
+ * with their elements copied as values of their own.</li>
+ * <li>Arrays and buffers are copied.</li>
+ * <li>{@link NBTLazy} holders are copied along with their value, if it has been loaded.
+ * The data of holders that have not been loaded is shared, as it never changes.</li>
+ * <li>Strings, boxed numbers, enums and values of classes that are handled by codecs
+ * registered in {@link NBTCodecs} are taken to be immutable, and are shared with the
+ * copy.</li>
+ * </ul>
+ * 
+ * @author Marius
+ */
+final class SnapshotCopier {
+	/**
+	 * The copy of each serializable object that has been copied.
+	 */
+	private final Map<Object, Object> copies = new IdentityHashMap<Object, Object>();
+	
+	private SnapshotCopier() {}
+	
+	/**
+	 * <p>Copies the given instance.</p>
+	 * 
+	 * @param object The instance to copy.
+	 * @return The copy.
+	 * @throws IllegalAccessException see {@link NBTSerializer#snapshot(INBTSerializable)}.
+	 * @throws InstantiationException see {@link NBTSerializer#snapshot(INBTSerializable)}.
+	 */
+	@SuppressWarnings("unchecked")
+	static <T extends INBTSerializable> T copy(T object) throws IllegalAccessException, InstantiationException {
+		return (T) new SnapshotCopier().copyObject(object);
+	}
+	
+	/**
+	 * <p>Copies a serializable object, unless it has been copied before.</p>
+	 * 
+	 * @param object The object.
+	 * @return The copy.
+	 */
+	private Object copyObject(INBTSerializable object) throws IllegalAccessException, InstantiationException {
+		Object existing = this.copies.get(object);
+		if (existing != null) return existing;
+		INBTSerializable copy = NBTInstances.construct(object.getClass());
+		/*
+		 * The copy is registered before its fields are copied, so that fields which refer
+		 * back to the object get the copy.
+		 */
+		this.copies.put(object, copy);
+		for (FieldPlan fp : ClassPlan.of(object.getClass()).fields) {
+			FieldAccessor fa = fp.accessor;
+			switch (fp.kind) {
+			case BYTE:      fa.setByte      (copy,  fa.getByte(object));       break;
+			case BOOLEAN:   fa.setBoolean   (copy,  fa.getBoolean(object));    break;
+			case SHORT:     fa.setShort     (copy,  fa.getShort(object));      break;
+			case INT:       fa.setInt       (copy,  fa.getInt(object));        break;
+			case LONG:      fa.setLong      (copy,  fa.getLong(object));       break;
+			case FLOAT:     fa.setFloat     (copy,  fa.getFloat(object));      break;
+			case DOUBLE:    fa.setDouble    (copy,  fa.getDouble(object));     break;
+			default:        fa.set          (copy,  copyValue(fa.get(object), fp.type));
+			}
+		}
+		return copy;
+	}
+	
+	/**
+	 * <p>Copies a value according to the codec that serializes it.</p>
+	 * 
+	 * @param value The value, or {@code null}.
+	 * @param required The class that the copy must be an instance of, i.e. the declared type
+	 * of the field that holds it, or {@link Object} for elements of containers.
+	 * @return The copy, or the value itself if it is immutable.
+	 */
+	Object copyValue(Object value, Class<?> required) throws IllegalAccessException, InstantiationException {
+		if (value == null) return null;
+		if (value.getClass().isArray()) {
+			int length = Array.getLength(value);
+			Object copy = Array.newInstance(value.getClass().getComponentType(), length);
+			System.arraycopy(value, 0, copy, 0, length);
+			return copy;
+		}
+		if (value instanceof NBTLazy) return ((NBTLazy<?>) value).copy(this);
+		
+		NBTCodec<?> codec = NBTCodecs.get(value.getClass());
+		if (codec == BuiltinCodecs.SERIALIZABLE || codec instanceof NBTSubtypes.Family) {
+			return copyObject((INBTSerializable) value);
+		}
+		if (codec == BuiltinCodecs.COLLECTION) return copyCollection((Collection<?>) value, required);
+		if (codec == BuiltinCodecs.MAP) return copyMap((Map<?, ?>) value, required);
+		if (codec == BuiltinCodecs.ENTRY) {
+			Entry<?, ?> e = (Entry<?, ?>) value;
+			return new AbstractMap.SimpleImmutableEntry<Object, Object>(copyValue(e.getKey(), Object.class), copyValue(e.getValue(), Object.class));
+		}
+		if (codec == BuiltinCodecs.BYTE_BUFFER) {
+			ByteBuffer copy = ByteBuffer.allocate(((ByteBuffer) value).remaining());
+			copy.put(((ByteBuffer) value).duplicate());
+			copy.flip();
+			return copy;
+		}
+		if (codec == BuiltinCodecs.INT_BUFFER) {
+			IntBuffer copy = IntBuffer.allocate(((IntBuffer) value).remaining());
+			copy.put(((IntBuffer) value).duplicate());
+			copy.flip();
+			return copy;
+		}
+		return value;
+	}
+	
+	/**
+	 * <p>Copies a collection into one of the general-purpose collections that iterate in the
+	 * order they are filled in, or into a sorted set with the same comparator. Only if none
+	 * of these fits the declared type, a new instance of the class of the collection is
+	 * filled instead.</p>
+	 */
+	@SuppressWarnings("unchecked")
+	private Collection<Object> copyCollection(Collection<?> c, Class<?> required) throws IllegalAccessException, InstantiationException {
+		Collection<Object> copy;
+		if (c instanceof SortedSet && required.isAssignableFrom(TreeSet.class)) copy = new TreeSet<Object>(((SortedSet<Object>) c).comparator());
+		else if (required.isAssignableFrom(ArrayList.class)) copy = new ArrayList<Object>(c.size());
+		else if (required.isAssignableFrom(LinkedHashSet.class)) copy = new LinkedHashSet<Object>(capacity(c.size()));
+		else if (required.isAssignableFrom(ArrayDeque.class)) copy = new ArrayDeque<Object>(c.size());
+		else copy = (Collection<Object>) NBTInstances.construct(c.getClass());
+		for (Object e : c) copy.add(copyValue(e, Object.class));
+		return copy;
+	}
+	
+	/**
+	 * <p>Copies a map into a {@link LinkedHashMap}, or into a sorted map with the same
+	 * comparator. Only if neither fits the declared type, a new instance of the class of the
+	 * map is filled instead.</p>
+	 */
+	@SuppressWarnings("unchecked")
+	private Map<Object, Object> copyMap(Map<?, ?> m, Class<?> required) throws IllegalAccessException, InstantiationException {
+		Map<Object, Object> copy;
+		if (m instanceof SortedMap && required.isAssignableFrom(TreeMap.class)) copy = new TreeMap<Object, Object>(((SortedMap<Object, Object>) m).comparator());
+		else if (required.isAssignableFrom(LinkedHashMap.class)) copy = new LinkedHashMap<Object, Object>(capacity(m.size()));
+		else copy = (Map<Object, Object>) NBTInstances.construct(m.getClass());
+		for (Entry<?, ?> e : m.entrySet()) copy.put(copyValue(e.getKey(), Object.class), copyValue(e.getValue(), Object.class));
+		return copy;
+	}
+	
+	/**
+	 * <p>Gets the capacity of a hash-based container that holds the given number of elements
+	 * without growing.</p>
+	 */
+	private static int capacity(int size) {
+		return Math.max(16, (int) (size / 0.75f) + 1);
+	}
+}
@@ -0,0 +1,61 @@
+package info.varden.nbtserial;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+
+/**
+ * <p>An {@link NBTCodec} that can also write and read values straight to and from a binary
+ * NBT stream, without creating an NBT tag first. All built-in codecs are streaming codecs;
+ * codecs registered by users are not, and their tags are created and then written by
+ * {@link NBTWriter}, or read and then converted by {@link NBTReader}, instead.</p>
+ * <p>A streaming codec always produces tags of the type given by {@link #getTagId()}.</p>
+ * 
+ * @author Marius
+ * @param <T> The type of values handled by this codec.
+ */
+abstract class StreamingCodec<T> extends NBTCodec<T> {
+	/**
+	 * <p>Writes the payload of the tag that {@link #toTag(Object)} would create for the given
+	 * value, i.e. exactly what that tag would write to a stream, excluding its type and
+	 * name.</p>
+	 * 
+	 * @param value The value to write. This is never {@code null}.
+	 * @param out The stream to write to.
+	 * @throws IOException if writing to the stream fails.
+	 * @throws IllegalAccessException see {@link #toTag(Object)}.
+	 * @throws UnserializableClassException see {@link #toTag(Object)}.
+	 */
+	abstract void writePayload(T value, DataOutput out) throws IOException, IllegalAccessException, UnserializableClassException;
+	
+	/**
+	 * <p>Writes the payload of a value whose class has already been matched against this
+	 * codec.</p>
+	 * 
+	 * @param value The value to write.
+	 * @param out The stream to write to.
+	 * @throws IOException if writing to the stream fails.
+	 * @throws IllegalAccessException see {@link #toTag(Object)}.
+	 * @throws UnserializableClassException see {@link #toTag(Object)}.
+	 */
+	@SuppressWarnings("unchecked")
+	final void stream(Object value, DataOutput out) throws IOException, IllegalAccessException, UnserializableClassException {
+		writePayload((T) value, out);
+	}
+	
+	/**
+	 * <p>Reads the payload of a tag of the type given by {@link #getTagId()} and converts it
+	 * into a value, i.e. the value that {@link #decode(net.minecraft.nbt.NBTBase, ResolvedType)}
+	 * would return for that tag.</p>
+	 * 
+	 * @param in The stream to read from.
+	 * @param type The resolved type of the value.
+	 * @return The value.
+	 * @throws IOException if reading from the stream fails.
+	 * @throws IllegalAccessException see {@link #fromTag(net.minecraft.nbt.NBTBase, Class)}.
+	 * @throws InstantiationException see {@link #fromTag(net.minecraft.nbt.NBTBase, Class)}.
+	 * @throws UnserializableClassException see
+	 * {@link #fromTag(net.minecraft.nbt.NBTBase, Class)}.
+	 */
+	abstract Object readPayload(DataInput in, ResolvedType type) throws IOException, IllegalAccessException, InstantiationException, UnserializableClassException;
+}
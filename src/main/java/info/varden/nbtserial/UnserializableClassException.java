@@ -7,6 +7,8 @@ package info.varden.nbtserial;
  * @author Marius
  */
 public class UnserializableClassException extends Exception {
+	private static final long serialVersionUID = 1L;
+	
 	/**
 	 * The class on which serialization was attempted.
 	 */
@@ -16,6 +18,16 @@ public class UnserializableClassException extends Exception {
 		this.clazz = clazz;
 	}
 	
+	/**
+	 * Creates an exception that explains why the class could not be handled.
+	 * @param clazz The class on which serialization was attempted
+	 * @param message The reason it failed
+	 */
+	public UnserializableClassException(Class<?> clazz, String message) {
+		super(message);
+		this.clazz = clazz;
+	}
+	
 	/**
 	 * Gets the class that {@link NBTSerializer} failed to serialize or deserialize.
 	 * @return The {@link Class} instance that caused the error
@@ -0,0 +1,214 @@
+package info.varden.nbtserial;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Random;
+
+import net.minecraft.nbt.CompressedStreamTools;
+import net.minecraft.nbt.NBTTagCompound;
+
+import org.junit.Test;
+
+/**
+ * <p>Tests for {@link CompoundOrder}: {@link NBTSerializer#writeTo(INBTSerializable,
+ * java.io.DataOutput)} must write the tags of each compound in the order in which
+ * {@link CompressedStreamTools} writes the data structure from
+ * {@link NBTSerializer#serialize(INBTSerializable)}. This depends on the iteration order of
+ * the JDK's HashMap, which these tests guard against changes to.</p>
+ * 
+ * @author Marius
+ */
+public class CompoundOrderTest {
+	/**
+	 * <p>More fields than a default HashMap holds before it first resizes, some of whose
+	 * names share a hash code.</p>
+	 */
+	public static class Wide implements INBTSerializable {
+		@NBTSerialize public int Aa;
+		@NBTSerialize public int BB;
+		@NBTSerialize public int AaAa;
+		@NBTSerialize public int AaBB;
+		@NBTSerialize public int BBAa;
+		@NBTSerialize public int BBBB;
+		@NBTSerialize public String name = "wide";
+		@NBTSerialize public long seed = 42;
+		@NBTSerialize public double x = 1.5;
+		@NBTSerialize public double y = 2.5;
+		@NBTSerialize public double z = 3.5;
+		@NBTSerialize public boolean alive = true;
+		@NBTSerialize public short health = 20;
+		@NBTSerialize public byte level = 3;
+		@NBTSerialize public int[] counts = { 1, 2, 3 };
+		@NBTSerialize(mapLayout = MapLayout.COMPOUND) public HashMap<String, Integer> map;
+		@NBTSerialize(mapLayout = MapLayout.COMPOUND) public LinkedHashMap<String, Integer> linked;
+	}
+	
+	/**
+	 * <p>Fields whose names all share a hash code, which HashMap keeps in a tree.</p>
+	 */
+	public static class Colliding implements INBTSerializable {
+		@NBTSerialize public int AaAaAaAa = 0;
+		@NBTSerialize public int AaAaAaBB = 1;
+		@NBTSerialize public int AaAaBBAa = 2;
+		@NBTSerialize public int AaAaBBBB = 3;
+		@NBTSerialize public int AaBBAaAa = 4;
+		@NBTSerialize public int AaBBAaBB = 5;
+		@NBTSerialize public int AaBBBBAa = 6;
+		@NBTSerialize public int AaBBBBBB = 7;
+		@NBTSerialize public int BBAaAaAa = 8;
+		@NBTSerialize public int BBAaAaBB = 9;
+		@NBTSerialize public int BBAaBBAa = 10;
+		@NBTSerialize public int BBAaBBBB = 11;
+		@NBTSerialize public int BBBBAaAa = 12;
+		@NBTSerialize public int BBBBAaBB = 13;
+		@NBTSerialize public int BBBBBBAa = 14;
+		@NBTSerialize public int BBBBBBBB = 15;
+		@NBTSerialize public String label;
+		@NBTSerialize public HashMap<String, Integer> map;
+	}
+	
+	public static abstract class Shape implements INBTSerializable {
+		@NBTSerialize public int alpha;
+		@NBTSerialize public int zzzzz;
+	}
+	
+	public static class Square extends Shape {
+		@NBTSerialize public int side;
+	}
+	
+	public static class Scene implements INBTSerializable {
+		@NBTSerialize public ArrayList<Shape> shapes;
+		@NBTSerialize public Wide wide;
+	}
+	
+	static {
+		NBTSubtypes.register(Shape.class, 3, Square.class);
+	}
+	
+	@Test
+	public void writesFieldsInHashMapOrder() throws Exception {
+		Wide w = new Wide();
+		w.Aa = 1;
+		w.BB = 2;
+		w.map = new HashMap<String, Integer>();
+		assertSameBytes(w);
+	}
+	
+	@Test
+	public void writesCollidingFieldsInHashMapOrder() throws Exception {
+		Colliding c = new Colliding();
+		assertSameBytes(c);
+		c.label = "label";
+		assertSameBytes(c);
+		c.map = new HashMap<String, Integer>();
+		assertSameBytes(c);
+		
+		/*
+		 * The same data is read back, with or without the schema.
+		 */
+		for (boolean schema : new boolean[] { false, true }) {
+			ByteArrayOutputStream out = new ByteArrayOutputStream();
+			NBTSerializer.writeTo(c, out, schema);
+			Colliding r = NBTSerializer.readFrom(Colliding.class, new ByteArrayInputStream(out.toByteArray()));
+			assertEquals(NBTSerializer.serialize(c), NBTSerializer.serialize(r));
+		}
+	}
+	
+	@Test
+	public void writesLargeMapsInHashMapOrder() throws Exception {
+		/*
+		 * Sizes around each resize of the table, which reorders the entries.
+		 */
+		for (int size : new int[] { 1, 12, 13, 24, 25, 48, 49, 96, 97, 768, 769, 5000 }) {
+			Wide w = new Wide();
+			w.map = new HashMap<String, Integer>();
+			for (int i = 0; i < size; i++) w.map.put("key" + i, i);
+			assertSameBytes(w);
+		}
+	}
+	
+	@Test
+	public void writesCollidingKeysInHashMapOrder() throws Exception {
+		/*
+		 * "Aa" and "BB" have the same hash code, so all strings made of them that are equally
+		 * long do, too. The map is written in the order of the source map, which need not be
+		 * the order of the compound, so several insertion orders are checked.
+		 */
+		List<String> colliding = colliding(5);
+		Random random = new Random(5);
+		for (int filler : new int[] { 0, 10, 100 }) {
+			for (int shuffle = 0; shuffle < 20; shuffle++) {
+				LinkedHashMap<String, Integer> source = new LinkedHashMap<String, Integer>();
+				for (int i = 0; i < filler; i++) source.put("f" + i, i);
+				for (int i = 0; i < colliding.size(); i++) source.put(colliding.get(i), i);
+				Collections.shuffle(colliding, random);
+				Wide w = new Wide();
+				w.map = new HashMap<String, Integer>(source);
+				assertSameBytes(w);
+				w.map = null;
+				w.linked = source;
+				assertSameBytes(w);
+			}
+		}
+	}
+	
+	@Test
+	public void writesSubtypesWithTheSameTags() throws Exception {
+		/*
+		 * Compounds of subtypes start with the subtype ID, so only their tags are the same.
+		 */
+		Scene s = new Scene();
+		s.shapes = new ArrayList<Shape>();
+		for (int i = 0; i < 20; i++) {
+			Square sq = new Square();
+			sq.alpha = i;
+			sq.zzzzz = -i;
+			sq.side = i * i;
+			s.shapes.add(sq);
+		}
+		s.wide = new Wide();
+		s.wide.map = new HashMap<String, Integer>();
+		for (String key : colliding(4)) s.wide.map.put(key, key.length());
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		NBTSerializer.writeTo(s, out);
+		NBTTagCompound read = CompressedStreamTools.read(new DataInputStream(new ByteArrayInputStream(out.toByteArray())));
+		assertEquals(NBTSerializer.serialize(s), read);
+	}
+	
+	/**
+	 * <p>Gets all strings made of the given number of "Aa" and "BB" pairs, which all have
+	 * the same hash code.</p>
+	 */
+	private static List<String> colliding(int pairs) {
+		List<String> keys = new ArrayList<String>();
+		keys.add("");
+		for (int i = 0; i < pairs; i++) {
+			List<String> next = new ArrayList<String>();
+			for (String key : keys) {
+				next.add(key + "Aa");
+				next.add(key + "BB");
+			}
+			keys = next;
+		}
+		return keys;
+	}
+	
+	private static void assertSameBytes(INBTSerializable object) throws Exception {
+		ByteArrayOutputStream tree = new ByteArrayOutputStream();
+		CompressedStreamTools.write(NBTSerializer.serialize(object), new DataOutputStream(tree));
+		ByteArrayOutputStream stream = new ByteArrayOutputStream();
+		NBTSerializer.writeTo(object, stream);
+		assertArrayEquals(tree.toByteArray(), stream.toByteArray());
+	}
+}
@@ -0,0 +1,156 @@
+package info.varden.nbtserial;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Random;
+
+import org.junit.Test;
+
+/**
+ * <p>Tests for {@link LZ4Block}: blocks of all kinds of data must decompress to exactly what
+ * was compressed, and malformed blocks must be rejected with an {@link IOException} rather
+ * than an unchecked exception or a write outside of the output.</p>
+ * 
+ * @author Marius
+ */
+public class LZ4BlockTest {
+	@Test
+	public void roundTripsEmptyAndShortBlocks() throws IOException {
+		for (int length = 0; length <= 16; length++) {
+			byte[] data = new byte[length];
+			for (int i = 0; i < length; i++) data[i] = (byte) ('a' + i % 3);
+			assertRoundTrip(data);
+		}
+	}
+	
+	@Test
+	public void roundTripsRandomData() throws IOException {
+		Random random = new Random(1);
+		for (int length : new int[] { 13, 100, 4096, 70000 }) {
+			byte[] data = new byte[length];
+			random.nextBytes(data);
+			assertRoundTrip(data);
+		}
+	}
+	
+	@Test
+	public void roundTripsRepetitiveData() throws IOException {
+		StringBuilder text = new StringBuilder();
+		for (int i = 0; i < 2000; i++) text.append("position").append(i % 17).append(';');
+		assertRoundTrip(text.toString().getBytes(StandardCharsets.UTF_8));
+	}
+	
+	@Test
+	public void roundTripsLongRuns() throws IOException {
+		/*
+		 * Runs longer than 15 + 255 bytes need several extra length bytes, and a run of one
+		 * byte repeated is a match that overlaps the bytes it produces.
+		 */
+		byte[] data = new byte[100000];
+		Arrays.fill(data, 0, 40000, (byte) 7);
+		Random random = new Random(2);
+		byte[] noise = new byte[1000];
+		random.nextBytes(noise);
+		System.arraycopy(noise, 0, data, 40000, noise.length);
+		System.arraycopy(noise, 0, data, 41000, noise.length);
+		assertRoundTrip(data);
+	}
+	
+	@Test
+	public void roundTripsAtOffsets() throws IOException {
+		byte[] data = "abcabcabcabcabcabcabcabcxyzxyzxyzxyzxyz".getBytes(StandardCharsets.US_ASCII);
+		byte[] src = new byte[data.length + 10];
+		System.arraycopy(data, 0, src, 7, data.length);
+		byte[] block = new byte[LZ4Block.maxCompressedLength(data.length) + 5];
+		int size = LZ4Block.compress(src, 7, data.length, block, 5, LZ4Block.newTable());
+		byte[] out = new byte[data.length + 3];
+		LZ4Block.decompress(block, 5, size, out, 3, data.length);
+		assertArrayEquals(data, Arrays.copyOfRange(out, 3, out.length));
+	}
+	
+	@Test
+	public void rejectsTruncatedBlocks() {
+		byte[] data = repetitive(5000);
+		byte[] block = compress(data);
+		for (int length = 0; length < block.length; length++) {
+			assertMalformed(Arrays.copyOf(block, length), data.length);
+		}
+	}
+	
+	@Test
+	public void rejectsWrongDecompressedLength() {
+		byte[] data = repetitive(5000);
+		byte[] block = compress(data);
+		assertMalformed(block, data.length - 1);
+		assertMalformed(block, data.length + 1);
+		assertMalformed(block, 0);
+	}
+	
+	@Test
+	public void rejectsInvalidMatchDistances() {
+		/*
+		 * One literal, followed by a match at distance zero, and then by a match that starts
+		 * before the beginning of the output.
+		 */
+		assertMalformed(new byte[] { 0x10, 'a', 0, 0, 0x00 }, 5);
+		assertMalformed(new byte[] { 0x10, 'a', 2, 0, 0x00 }, 5);
+	}
+	
+	@Test
+	public void rejectsCorruptedBlocks() {
+		byte[] data = repetitive(3000);
+		byte[] block = compress(data);
+		Random random = new Random(3);
+		for (int i = 0; i < 2000; i++) {
+			byte[] corrupt = block.clone();
+			int flips = 1 + random.nextInt(4);
+			for (int j = 0; j < flips; j++) corrupt[random.nextInt(corrupt.length)] ^= (byte) (1 + random.nextInt(255));
+			/*
+			 * A corrupted block may still happen to be well-formed, so all that is required
+			 * is that it either decompresses or fails with an IOException.
+			 */
+			byte[] out = new byte[data.length + 16];
+			try {
+				LZ4Block.decompress(corrupt, 0, corrupt.length, out, 8, data.length);
+			} catch (IOException e) {
+				continue;
+			}
+			for (int j = 0; j < 8; j++) assertTrue("Wrote before the output", out[j] == 0 && out[out.length - 1 - j] == 0);
+		}
+	}
+	
+	private static byte[] repetitive(int length) {
+		byte[] data = new byte[length];
+		Random random = new Random(length);
+		for (int i = 0; i < length; i++) data[i] = (byte) (i % 64 < 32 ? i % 11 : random.nextInt(4));
+		return data;
+	}
+	
+	private static byte[] compress(byte[] data) {
+		byte[] block = new byte[LZ4Block.maxCompressedLength(data.length)];
+		int size = LZ4Block.compress(data, 0, data.length, block, 0, LZ4Block.newTable());
+		return Arrays.copyOf(block, size);
+	}
+	
+	private static void assertRoundTrip(byte[] data) throws IOException {
+		byte[] block = compress(data);
+		assertTrue("Block exceeds the maximum compressed length", block.length <= LZ4Block.maxCompressedLength(data.length));
+		byte[] out = new byte[data.length];
+		LZ4Block.decompress(block, 0, block.length, out, 0, data.length);
+		assertArrayEquals(data, out);
+	}
+	
+	private static void assertMalformed(byte[] block, int decompressedLength) {
+		try {
+			LZ4Block.decompress(block, 0, block.length, new byte[Math.max(decompressedLength, 0)], 0, decompressedLength);
+		} catch (IOException e) {
+			return;
+		}
+		fail("Malformed block of " + block.length + " bytes was accepted");
+	}
+}
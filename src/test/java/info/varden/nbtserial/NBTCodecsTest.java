@@ -0,0 +1,162 @@
+package info.varden.nbtserial;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.fail;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+
+import net.minecraft.nbt.NBTBase;
+import net.minecraft.nbt.NBTTagCompound;
+import net.minecraft.nbt.NBTTagString;
+
+import org.junit.Test;
+
+/**
+ * <p>Tests for {@link NBTCodecs}: a codec that is registered after a class has been looked
+ * up, or serialized, must be used from then on.</p>
+ * 
+ * @author Marius
+ */
+public class NBTCodecsTest {
+	/**
+	 * <p>A class that is only serializable once a codec is registered for it.</p>
+	 */
+	public static class Celsius {
+		final double degrees;
+		
+		Celsius(double degrees) {
+			this.degrees = degrees;
+		}
+	}
+	
+	public static class Reading implements INBTSerializable {
+		@NBTSerialize public Celsius value;
+	}
+	
+	public interface Unit {
+		String symbol();
+	}
+	
+	public static class Meter implements Unit {
+		@Override
+		public String symbol() {
+			return "m";
+		}
+	}
+	
+	public static class Tag implements INBTSerializable {
+		@NBTSerialize public String name;
+	}
+	
+	public static class Tagged implements INBTSerializable {
+		@NBTSerialize public Tag tag;
+	}
+	
+	@Test
+	public void usesCodecsRegisteredForClassesThatWereLookedUp() throws Exception {
+		Reading r = new Reading();
+		r.value = new Celsius(21.5);
+		assertNull(NBTCodecs.get(Celsius.class));
+		try {
+			NBTSerializer.serialize(r);
+			fail("A field of a class without a codec must not be serialized");
+		} catch (UnserializableClassException e) {
+		}
+		
+		NBTCodecs.register(Celsius.class, new StringCodec<Celsius>() {
+			@Override
+			String toString(Celsius value) {
+				return Double.toString(value.degrees);
+			}
+			
+			@Override
+			Celsius fromString(String value, Class<? extends Celsius> type) {
+				return new Celsius(Double.parseDouble(value));
+			}
+		});
+		NBTTagCompound data = NBTSerializer.serialize(r);
+		assertEquals("21.5", data.getString("value"));
+		assertEquals(21.5, NBTSerializer.deserialize(Reading.class, data).value.degrees, 0);
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		NBTSerializer.writeTo(r, out);
+		assertEquals(21.5, NBTSerializer.readFrom(Reading.class, new ByteArrayInputStream(out.toByteArray())).value.degrees, 0);
+	}
+	
+	@Test
+	public void usesHierarchiesRegisteredForClassesThatWereLookedUp() throws Exception {
+		assertNull(NBTCodecs.get(Meter.class));
+		StringCodec<Unit> codec = new StringCodec<Unit>() {
+			@Override
+			String toString(Unit value) {
+				return value.symbol();
+			}
+			
+			@Override
+			Unit fromString(String value, Class<? extends Unit> type) {
+				return new Meter();
+			}
+		};
+		NBTCodecs.registerHierarchy(Unit.class, codec);
+		assertSame(codec, NBTCodecs.get(Meter.class));
+		assertSame(codec, NBTCodecs.get(Unit.class));
+	}
+	
+	@Test
+	public void replacesCodecsThatWereLookedUp() throws Exception {
+		Tagged t = new Tagged();
+		t.tag = new Tag();
+		t.tag.name = "red";
+		assertSame(BuiltinCodecs.SERIALIZABLE, NBTCodecs.get(Tag.class));
+		assertEquals(NBTSerializer.NBT_TAG_COMPOUND, NBTSerializer.serialize(t).getTag("tag").getId());
+		
+		/*
+		 * The plan of the class that holds the field is built again with the new codec.
+		 */
+		NBTCodecs.register(Tag.class, new StringCodec<Tag>() {
+			@Override
+			String toString(Tag value) {
+				return value.name;
+			}
+			
+			@Override
+			Tag fromString(String value, Class<? extends Tag> type) {
+				Tag tag = new Tag();
+				tag.name = value;
+				return tag;
+			}
+		});
+		NBTTagCompound data = NBTSerializer.serialize(t);
+		assertEquals("red", data.getString("tag"));
+		assertEquals("red", NBTSerializer.deserialize(Tagged.class, data).tag.name);
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		NBTSerializer.writeTo(t, out);
+		assertEquals("red", NBTSerializer.readFrom(Tagged.class, new ByteArrayInputStream(out.toByteArray())).tag.name);
+	}
+	
+	/**
+	 * <p>A codec that writes values as string tags.</p>
+	 */
+	static abstract class StringCodec<T> extends NBTCodec<T> {
+		@Override
+		public int getTagId() {
+			return NBTSerializer.NBT_TAG_STRING;
+		}
+		
+		@Override
+		public NBTBase toTag(T value) {
+			return new NBTTagString(toString(value));
+		}
+		
+		@Override
+		public T fromTag(NBTBase tag, Class<? extends T> type) {
+			return fromString(((NBTTagString) tag).getString(), type);
+		}
+		
+		abstract String toString(T value);
+		
+		abstract T fromString(String value, Class<? extends T> type);
+	}
+}
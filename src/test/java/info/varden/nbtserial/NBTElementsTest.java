@@ -0,0 +1,214 @@
+package info.varden.nbtserial;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Spliterator;
+import java.util.stream.Collectors;
+
+import net.minecraft.nbt.NBTTagCompound;
+
+import org.junit.Test;
+
+/**
+ * <p>Tests for {@link NBTElements}: the elements of a streamed collection field must be the
+ * ones that deserializing the class would put into the field, wherever they are read
+ * from.</p>
+ * 
+ * @author Marius
+ */
+public class NBTElementsTest {
+	public static class Log implements INBTSerializable {
+		@NBTSerialize public String title;
+		@NBTSerialize public ArrayList<Integer> entries;
+		@NBTSerialize public int count;
+	}
+	
+	public static class Entry implements INBTSerializable {
+		@NBTSerialize public int level;
+		@NBTSerialize public String message;
+	}
+	
+	public static class Warning extends Entry {
+		@NBTSerialize public String code;
+	}
+	
+	public static class Journal implements INBTSerializable {
+		@NBTSerialize public String title;
+		@NBTSerialize public LinkedList<Entry> entries;
+		@NBTSerialize public ArrayList<String> authors;
+		@NBTSerialize(packed = true) public ArrayList<Long> times;
+		@NBTSerialize public HashMap<String, Integer> index;
+	}
+	
+	static {
+		NBTSubtypes.register(Entry.class, 1, Warning.class);
+	}
+	
+	@Test
+	public void streamsFromDataInputStreams() throws Exception {
+		Log log = log(1000);
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		NBTSerializer.writeTo(log, bytes);
+		DataInputStream in = new DataInputStream(new ByteArrayInputStream(bytes.toByteArray()));
+		List<Integer> entries = NBTElements.stream(Log.class, "entries", Integer.class, in).collect(Collectors.<Integer>toList());
+		assertEquals(log.entries, entries);
+	}
+	
+	@Test
+	public void streamsTheSameElementsFromEverySource() throws Exception {
+		Journal journal = journal(500);
+		Journal read = NBTSerializer.deserialize(Journal.class, NBTSerializer.serialize(journal));
+		for (List<Entry> entries : sources(journal, "entries", Entry.class)) {
+			assertEquals(describe(read.entries), describe(entries));
+			assertTrue(entries.get(3) instanceof Warning);
+		}
+		for (List<String> authors : sources(journal, "authors", String.class)) assertEquals(read.authors, authors);
+		for (List<Long> times : sources(journal, "times", Long.class)) assertEquals(read.times, times);
+		
+		/*
+		 * A field without a tag has no elements.
+		 */
+		journal.authors = null;
+		for (List<String> authors : sources(journal, "authors", String.class)) assertTrue(authors.isEmpty());
+	}
+	
+	@Test
+	public void splitsForParallelStreams() throws Exception {
+		Log log = log(10000);
+		NBTTagCompound tree = NBTSerializer.serialize(log);
+		NBTMappedCompound mapped = NBTMappedCompound.wrap(ByteBuffer.wrap(bytes(log)));
+		Spliterator<Integer> fromTree = NBTElements.stream(Log.class, "entries", Integer.class, tree).spliterator();
+		Spliterator<Integer> fromMapped = NBTElements.stream(Log.class, "entries", Integer.class, mapped).spliterator();
+		for (Spliterator<Integer> whole : Arrays.asList(fromTree, fromMapped)) {
+			assertEquals(10000, whole.estimateSize());
+			Spliterator<Integer> half = whole.trySplit();
+			assertEquals(5000, half.estimateSize());
+			assertEquals(5000, whole.estimateSize());
+			List<Integer> elements = new ArrayList<Integer>();
+			half.forEachRemaining(elements::add);
+			whole.forEachRemaining(elements::add);
+			assertEquals(log.entries, elements);
+		}
+		
+		assertEquals(log.entries, NBTElements.stream(Log.class, "entries", Integer.class, tree).parallel().collect(Collectors.<Integer>toList()));
+		assertEquals(log.entries, NBTElements.stream(Log.class, "entries", Integer.class, mapped).parallel().collect(Collectors.<Integer>toList()));
+		InputStream in = new ByteArrayInputStream(bytes(log));
+		assertEquals(log.entries, NBTElements.stream(Log.class, "entries", Integer.class, in).parallel().collect(Collectors.<Integer>toList()));
+		
+		/*
+		 * Elements that are compounds are skipped over to split the list.
+		 */
+		Journal journal = journal(1000);
+		mapped = NBTMappedCompound.wrap(ByteBuffer.wrap(bytes(journal)));
+		List<Entry> entries = NBTElements.stream(Journal.class, "entries", Entry.class, mapped).parallel().collect(Collectors.<Entry>toList());
+		assertEquals(describe(journal.entries), describe(entries));
+	}
+	
+	@Test
+	public void stopsReadingWhenDone() throws Exception {
+		Log log = log(10000);
+		byte[] data = bytes(log);
+		ByteArrayInputStream bytes = new ByteArrayInputStream(data);
+		DataInputStream in = new DataInputStream(bytes);
+		assertEquals(Integer.valueOf(0), NBTElements.stream(Log.class, "entries", Integer.class, in).findFirst().get());
+		assertTrue(bytes.available() > data.length / 2);
+		
+		/*
+		 * An iterator reads as far as it is advanced.
+		 */
+		bytes = new ByteArrayInputStream(data);
+		Iterator<Integer> it = NBTElements.stream(Log.class, "entries", Integer.class, new DataInputStream(bytes)).iterator();
+		for (int i = 0; i < 100; i++) assertEquals(Integer.valueOf(i * 7), it.next());
+		assertTrue(bytes.available() > data.length / 2);
+	}
+	
+	@Test
+	public void rejectsFieldsThatAreNoCollections() throws Exception {
+		NBTTagCompound tree = NBTSerializer.serialize(journal(3));
+		for (String field : new String[] { "missing", "title", "index" }) {
+			try {
+				NBTElements.stream(Journal.class, field, Object.class, tree);
+				fail("Field " + field + " must not be streamed");
+			} catch (IllegalArgumentException e) {
+			}
+		}
+		try {
+			NBTElements.stream(Journal.class, "authors", Integer.class, tree);
+			fail("Strings must not be streamed as integers");
+		} catch (IllegalArgumentException e) {
+		}
+		try {
+			NBTElements.stream(Journal.class, "entries", Warning.class, tree);
+			fail("Elements must not be streamed as a subclass of the declared class");
+		} catch (IllegalArgumentException e) {
+		}
+		assertEquals(3, NBTElements.stream(Journal.class, "entries", Object.class, tree).count());
+	}
+	
+	/**
+	 * <p>Streams the elements of the given field of the journal from each source: its data
+	 * structure, a mapped buffer, and a stream.</p>
+	 */
+	private static <T> List<List<T>> sources(Journal journal, String field, Class<T> elementType) throws Exception {
+		List<List<T>> sources = new ArrayList<List<T>>();
+		NBTTagCompound tree = NBTSerializer.serialize(journal);
+		sources.add(NBTElements.stream(Journal.class, field, elementType, tree).collect(Collectors.<T>toList()));
+		NBTMappedCompound mapped = NBTMappedCompound.wrap(ByteBuffer.wrap(bytes(journal)));
+		sources.add(NBTElements.stream(Journal.class, field, elementType, mapped).collect(Collectors.<T>toList()));
+		InputStream in = new ByteArrayInputStream(bytes(journal));
+		sources.add(NBTElements.stream(Journal.class, field, elementType, in).collect(Collectors.<T>toList()));
+		return sources;
+	}
+	
+	private static List<String> describe(List<Entry> entries) {
+		List<String> described = new ArrayList<String>();
+		for (Entry e : entries) described.add(e.getClass().getSimpleName() + " " + e.level + " " + e.message + (e instanceof Warning ? " " + ((Warning) e).code : ""));
+		return described;
+	}
+	
+	private static byte[] bytes(INBTSerializable object) throws Exception {
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		NBTSerializer.writeTo(object, out);
+		return out.toByteArray();
+	}
+	
+	private static Journal journal(int size) {
+		Journal journal = new Journal();
+		journal.title = "journal";
+		journal.entries = new LinkedList<Entry>();
+		journal.authors = new ArrayList<String>(Arrays.asList("Ann", "Ben"));
+		journal.times = new ArrayList<Long>();
+		journal.index = new HashMap<String, Integer>();
+		for (int i = 0; i < size; i++) {
+			Entry e = i % 3 == 0 ? new Warning() : new Entry();
+			e.level = i % 5;
+			e.message = "message " + i;
+			if (e instanceof Warning) ((Warning) e).code = "W" + i;
+			journal.entries.add(e);
+			journal.times.add(1000L * i);
+		}
+		return journal;
+	}
+	
+	static Log log(int size) {
+		Log log = new Log();
+		log.title = "log";
+		log.entries = new ArrayList<Integer>();
+		for (int i = 0; i < size; i++) log.entries.add(i * 7);
+		log.count = size;
+		return log;
+	}
+}
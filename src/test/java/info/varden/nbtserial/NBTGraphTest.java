@@ -0,0 +1,231 @@
+package info.varden.nbtserial;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.fail;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+
+import net.minecraft.nbt.CompressedStreamTools;
+import net.minecraft.nbt.NBTTagCompound;
+
+import org.junit.Test;
+
+/**
+ * <p>Tests for {@link NBTGraph}: shared objects and cycles must be read back as the same
+ * instances, whichever way they were written and read.</p>
+ * 
+ * @author Marius
+ */
+public class NBTGraphTest {
+	public static class Node implements INBTSerializable {
+		@NBTSerialize public String name;
+		@NBTSerialize public Node parent;
+		@NBTSerialize public ArrayList<Node> children = new ArrayList<Node>();
+		
+		Node add(String name) {
+			Node child = new Node();
+			child.name = name;
+			child.parent = this;
+			this.children.add(child);
+			return child;
+		}
+	}
+	
+	public static abstract class Animal implements INBTSerializable {
+		@NBTSerialize public String name;
+		@NBTSerialize public Animal friend;
+	}
+	
+	public static class Cat extends Animal {
+		@NBTSerialize public int lives = 9;
+	}
+	
+	public static class Dog extends Animal {
+		@NBTSerialize public ArrayList<Animal> pack = new ArrayList<Animal>();
+	}
+	
+	public static class Farm implements INBTSerializable {
+		@NBTSerialize public Animal favourite;
+		@NBTSerialize public ArrayList<Animal> animals = new ArrayList<Animal>();
+		@NBTSerialize public HashMap<String, Animal> byName = new HashMap<String, Animal>();
+		@NBTSerialize public Node root;
+		@NBTSerialize public Node sameRoot;
+	}
+	
+	static {
+		NBTSubtypes.register(Animal.class, 1, Cat.class);
+		NBTSubtypes.register(Animal.class, 2, Dog.class);
+	}
+	
+	@Test
+	public void rebuildsSharedObjectsAndCycles() throws Exception {
+		Farm farm = farm();
+		for (Farm copy : copies(farm)) {
+			assertTree(copy.root);
+			assertSame(copy.root, copy.sameRoot);
+			Cat cat = (Cat) copy.animals.get(0);
+			Dog dog = (Dog) copy.animals.get(1);
+			assertSame(cat, copy.favourite);
+			assertSame(cat, copy.animals.get(2));
+			assertSame(cat, copy.byName.get("Tom"));
+			assertSame(dog, copy.byName.get("Rex"));
+			assertSame(dog, cat.friend);
+			assertSame(cat, dog.friend);
+			assertSame(dog, dog.pack.get(0));
+			assertSame(cat, dog.pack.get(1));
+			assertEquals(7, cat.lives);
+			assertEquals(3, copy.animals.size());
+		}
+	}
+	
+	@Test
+	public void writesEachObjectOnce() throws Exception {
+		Farm farm = farm();
+		NBTTagCompound data = NBTGraph.serialize(farm);
+		assertEquals(0, data.getInteger(NBTSerializer.ID_TAG));
+		
+		/*
+		 * Every later occurrence is a reference, which holds nothing else.
+		 */
+		NBTTagCompound sameRoot = data.getCompoundTag("sameRoot");
+		assertEquals(Collections.singleton(NBTSerializer.REFERENCE_TAG), sameRoot.getKeySet());
+		assertEquals(data.getCompoundTag("root").getInteger(NBTSerializer.ID_TAG), sameRoot.getInteger(NBTSerializer.REFERENCE_TAG));
+		
+		/*
+		 * Without tracking, a cycle never ends.
+		 */
+		try {
+			NBTSerializer.serialize(farm);
+			fail("A cycle must not be serializable without tracking");
+		} catch (StackOverflowError e) {
+		}
+	}
+	
+	@Test
+	public void rejectsBrokenReferences() throws Exception {
+		NBTTagCompound data = NBTGraph.serialize(farm());
+		NBTTagCompound dangling = new NBTTagCompound();
+		dangling.setInteger(NBTSerializer.REFERENCE_TAG, 1000);
+		data.setTag("sameRoot", dangling);
+		try {
+			NBTGraph.deserialize(Farm.class, data);
+			fail("A reference to an object that is not there must be rejected");
+		} catch (IllegalArgumentException e) {
+		}
+		
+		/*
+		 * A reference to an object of another type is rejected as well.
+		 */
+		NBTTagCompound wrong = new NBTTagCompound();
+		wrong.setInteger(NBTSerializer.REFERENCE_TAG, data.getCompoundTag("favourite").getInteger(NBTSerializer.ID_TAG));
+		data.setTag("sameRoot", wrong);
+		try {
+			NBTGraph.deserialize(Farm.class, data);
+			fail("A reference to an object of another type must be rejected");
+		} catch (IllegalArgumentException e) {
+		}
+		
+		/*
+		 * In a stream, the farm refers to itself as its root node.
+		 */
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		DataOutputStream out = new DataOutputStream(bytes);
+		out.writeByte(NBTSerializer.NBT_TAG_COMPOUND);
+		out.writeUTF("");
+		out.writeByte(NBTSerializer.NBT_TAG_INT);
+		out.writeUTF(NBTSerializer.ID_TAG);
+		out.writeInt(0);
+		out.writeByte(NBTSerializer.NBT_TAG_COMPOUND);
+		out.writeUTF("root");
+		out.writeByte(NBTSerializer.NBT_TAG_INT);
+		out.writeUTF(NBTSerializer.REFERENCE_TAG);
+		out.writeInt(0);
+		out.writeByte(NBTSerializer.NBT_TAG_END);
+		out.writeByte(NBTSerializer.NBT_TAG_END);
+		try {
+			NBTGraph.readFrom(Farm.class, new ByteArrayInputStream(bytes.toByteArray()));
+			fail("A reference to an object of another type must be rejected");
+		} catch (IOException e) {
+		}
+	}
+	
+	@Test
+	public void streamsThroughDataStreams() throws Exception {
+		Node root = tree();
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		DataOutputStream out = new DataOutputStream(bytes);
+		NBTGraph.writeTo(root, out);
+		NBTGraph.writeTo(root, out);
+		
+		/*
+		 * A data input stream is read from directly, so the second graph is left in it.
+		 */
+		DataInputStream in = new DataInputStream(new ByteArrayInputStream(bytes.toByteArray()));
+		assertTree(NBTGraph.readFrom(Node.class, in));
+		assertTree(NBTGraph.readFrom(Node.class, in));
+		assertEquals(-1, in.read());
+	}
+	
+	/**
+	 * <p>Gets the copies of the given farm read back in every supported way: from a data
+	 * structure, from a stream, and from a stream read into a data structure.</p>
+	 */
+	static List<Farm> copies(Farm farm) throws Exception {
+		List<Farm> copies = new ArrayList<Farm>();
+		copies.add(NBTGraph.deserialize(Farm.class, NBTGraph.serialize(farm)));
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		NBTGraph.writeTo(farm, bytes);
+		copies.add(NBTGraph.readFrom(Farm.class, new ByteArrayInputStream(bytes.toByteArray())));
+		NBTTagCompound tree = CompressedStreamTools.read(new DataInputStream(new ByteArrayInputStream(bytes.toByteArray())));
+		copies.add(NBTGraph.deserialize(Farm.class, tree));
+		return copies;
+	}
+	
+	static Farm farm() {
+		Cat cat = new Cat();
+		cat.name = "Tom";
+		cat.lives = 7;
+		Dog dog = new Dog();
+		dog.name = "Rex";
+		cat.friend = dog;
+		dog.friend = cat;
+		dog.pack.add(dog);
+		dog.pack.add(cat);
+		Farm farm = new Farm();
+		farm.favourite = cat;
+		farm.animals.add(cat);
+		farm.animals.add(dog);
+		farm.animals.add(cat);
+		farm.byName.put(cat.name, cat);
+		farm.byName.put(dog.name, dog);
+		farm.root = tree();
+		farm.sameRoot = farm.root;
+		return farm;
+	}
+	
+	static Node tree() {
+		Node root = new Node();
+		root.name = "root";
+		root.add("a").add("a1");
+		root.add("b");
+		return root;
+	}
+	
+	static void assertTree(Node root) {
+		assertEquals("root", root.name);
+		assertEquals(2, root.children.size());
+		for (Node child : root.children) assertSame(root, child.parent);
+		Node a1 = root.children.get(0).children.get(0);
+		assertEquals("a1", a1.name);
+		assertSame(root.children.get(0), a1.parent);
+	}
+}
@@ -0,0 +1,215 @@
+package info.varden.nbtserial;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import net.minecraft.nbt.CompressedStreamTools;
+import net.minecraft.nbt.NBTTagCompound;
+import net.minecraft.nbt.NBTTagList;
+
+import org.junit.Test;
+
+/**
+ * <p>Tests for {@link NBTLazy}: a field declared as a holder must be written and read like
+ * a field of the type of its value, and a holder that has not been loaded must be written
+ * back from the data it was read from, without decoding it.</p>
+ * 
+ * @author Marius
+ */
+public class NBTLazyTest {
+	public static class Event implements INBTSerializable {
+		@NBTSerialize public String name;
+		@NBTSerialize public long time;
+	}
+	
+	public static class History implements INBTSerializable {
+		@NBTSerialize public String owner;
+		@NBTSerialize public ArrayList<Event> events;
+		@NBTSerialize(mapLayout = MapLayout.COMPOUND) public HashMap<String, Integer> scores;
+		@NBTSerialize(packed = true) public ArrayList<Integer> samples;
+	}
+	
+	/**
+	 * <p>The same fields as {@link History}, held lazily.</p>
+	 */
+	public static class LazyHistory implements INBTSerializable {
+		@NBTSerialize public String owner;
+		@NBTSerialize public NBTLazy<ArrayList<Event>> events;
+		@NBTSerialize(mapLayout = MapLayout.COMPOUND) public NBTLazy<HashMap<String, Integer>> scores;
+		@NBTSerialize(packed = true) public NBTLazy<ArrayList<Integer>> samples;
+	}
+	
+	@Test
+	public void writesTheSameDataAsThePlainValue() throws Exception {
+		History history = history(20);
+		LazyHistory lazy = new LazyHistory();
+		lazy.owner = history.owner;
+		lazy.events = new NBTLazy<ArrayList<Event>>(history.events);
+		lazy.scores = new NBTLazy<HashMap<String, Integer>>(history.scores);
+		lazy.samples = new NBTLazy<ArrayList<Integer>>(history.samples);
+		assertEquals(NBTSerializer.serialize(history), NBTSerializer.serialize(lazy));
+		assertArrayEquals(bytes(history), bytes(lazy));
+		
+		/*
+		 * Data of the plain class is read into holders, which hold the same values once they
+		 * are loaded, whether it was read from the data structure or from a stream.
+		 */
+		LazyHistory fromTree = NBTSerializer.deserialize(LazyHistory.class, NBTSerializer.serialize(history));
+		LazyHistory fromStream = NBTSerializer.readFrom(LazyHistory.class, new ByteArrayInputStream(bytes(history)));
+		for (LazyHistory read : new LazyHistory[] { fromTree, fromStream }) {
+			assertFalse(read.events.isLoaded());
+			assertFalse(read.scores.isLoaded());
+			assertFalse(read.samples.isLoaded());
+			assertEquals(describe(history.events), describe(read.events.get()));
+			assertEquals(history.scores, read.scores.get());
+			assertEquals(history.samples, read.samples.get());
+			assertTrue(read.events.isLoaded());
+			assertSame(read.events.get(), read.events.get());
+		}
+		
+		/*
+		 * Fields without a value have no holder.
+		 */
+		LazyHistory empty = NBTSerializer.deserialize(LazyHistory.class, NBTSerializer.serialize(new History()));
+		assertNull(empty.events);
+		assertEquals(NBTSerializer.serialize(new History()), NBTSerializer.serialize(empty));
+	}
+	
+	@Test
+	public void writesUnloadedHoldersBackWithoutDecoding() throws Exception {
+		/*
+		 * The events hold a tag that no field reads, which decoding them would drop.
+		 */
+		NBTTagCompound tree = NBTSerializer.serialize(history(50));
+		NBTTagList events = (NBTTagList) tree.getTag("events");
+		for (int i = 0; i < events.tagCount(); i++) events.getCompoundTagAt(i).setString("unknown", "kept " + i);
+		byte[] data = bytes(tree);
+		
+		LazyHistory fromTree = NBTSerializer.deserialize(LazyHistory.class, tree);
+		LazyHistory fromStream = NBTSerializer.readFrom(LazyHistory.class, new ByteArrayInputStream(data));
+		LazyHistory fromBuffer = NBTSerializer.deserialize(LazyHistory.class, NBTMappedCompound.wrap(ByteBuffer.wrap(data)));
+		for (LazyHistory read : new LazyHistory[] { fromTree, fromStream, fromBuffer }) {
+			assertEquals(tree, NBTSerializer.serialize(read));
+			assertArrayEquals(data, bytes(read));
+			assertFalse(read.events.isLoaded());
+			assertFalse(read.scores.isLoaded());
+			assertFalse(read.samples.isLoaded());
+		}
+		
+		/*
+		 * The data structure that is written is a copy, which may be changed without
+		 * changing the holder.
+		 */
+		NBTTagCompound written = NBTSerializer.serialize(fromTree);
+		((NBTTagList) written.getTag("events")).getCompoundTagAt(0).setString("unknown", "changed");
+		assertEquals(tree, NBTSerializer.serialize(fromTree));
+		
+		/*
+		 * Once a holder is loaded or set, its value is written instead.
+		 */
+		fromStream.events.get().remove(0);
+		fromStream.samples.set(new ArrayList<Integer>());
+		NBTTagCompound changed = NBTSerializer.serialize(fromStream);
+		assertEquals(49, ((NBTTagList) changed.getTag("events")).tagCount());
+		assertFalse(((NBTTagList) changed.getTag("events")).getCompoundTagAt(0).hasKey("unknown"));
+		assertEquals(tree.getTag("scores"), changed.getTag("scores"));
+		assertFalse(fromStream.scores.isLoaded());
+		assertArrayEquals(bytes(changed), bytes(fromStream));
+	}
+	
+	@Test
+	public void loadsOnceAcrossThreads() throws Exception {
+		final LazyHistory read = NBTSerializer.readFrom(LazyHistory.class, new ByteArrayInputStream(bytes(history(1000))));
+		final CountDownLatch start = new CountDownLatch(1);
+		List<Callable<ArrayList<Event>>> tasks = new ArrayList<Callable<ArrayList<Event>>>();
+		for (int i = 0; i < 8; i++) {
+			tasks.add(new Callable<ArrayList<Event>>() {
+				@Override
+				public ArrayList<Event> call() throws Exception {
+					start.await();
+					return read.events.get();
+				}
+			});
+		}
+		ExecutorService executor = Executors.newFixedThreadPool(tasks.size());
+		try {
+			List<Future<ArrayList<Event>>> futures = new ArrayList<Future<ArrayList<Event>>>();
+			for (Callable<ArrayList<Event>> task : tasks) futures.add(executor.submit(task));
+			start.countDown();
+			ArrayList<Event> events = futures.get(0).get();
+			assertEquals(1000, events.size());
+			for (Future<ArrayList<Event>> future : futures) assertSame(events, future.get());
+		} finally {
+			executor.shutdown();
+		}
+	}
+	
+	@Test
+	public void rejectsNullValues() throws Exception {
+		try {
+			new NBTLazy<String>(null);
+			fail("A holder must not hold null");
+		} catch (IllegalArgumentException e) {
+		}
+		NBTLazy<String> holder = new NBTLazy<String>("value");
+		try {
+			holder.set(null);
+			fail("A holder must not be set to null");
+		} catch (IllegalArgumentException e) {
+		}
+		assertEquals("value", holder.get());
+	}
+	
+	private static List<String> describe(List<Event> events) {
+		List<String> described = new ArrayList<String>();
+		for (Event e : events) described.add(e.name + " " + e.time);
+		return described;
+	}
+	
+	private static byte[] bytes(INBTSerializable object) throws Exception {
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		NBTSerializer.writeTo(object, out);
+		return out.toByteArray();
+	}
+	
+	private static byte[] bytes(NBTTagCompound tree) throws Exception {
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		CompressedStreamTools.write(tree, new DataOutputStream(out));
+		return out.toByteArray();
+	}
+	
+	private static History history(int size) {
+		History history = new History();
+		history.owner = "owner";
+		history.events = new ArrayList<Event>();
+		history.scores = new HashMap<String, Integer>();
+		history.samples = new ArrayList<Integer>();
+		for (int i = 0; i < size; i++) {
+			Event e = new Event();
+			e.name = "event " + i;
+			e.time = 1000L * i;
+			history.events.add(e);
+			history.scores.put("player" + i, i * i);
+			history.samples.add(-i);
+		}
+		return history;
+	}
+}
@@ -0,0 +1,245 @@
+package info.varden.nbtserial;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.IntBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+
+import net.minecraft.nbt.CompressedStreamTools;
+import net.minecraft.nbt.NBTTagCompound;
+import net.minecraft.nbt.NBTTagList;
+
+import org.junit.Test;
+
+/**
+ * <p>Tests for {@link NBTMappedCompound}: tags looked up in a mapped compound must be the
+ * same as in the NBT data structure that was written to the buffer, without reading more of
+ * the buffer than it takes to find them.</p>
+ * 
+ * @author Marius
+ */
+public class NBTMappedCompoundTest {
+	public static class Chunk implements INBTSerializable {
+		@NBTSerialize public String name;
+		@NBTSerialize public int x;
+		@NBTSerialize public ByteBuffer blocks;
+		@NBTSerialize public IntBuffer heights;
+		@NBTSerialize public byte[] light;
+		@NBTSerialize public ArrayList<String> entities;
+		@NBTSerialize public Chunk neighbour;
+	}
+	
+	@Test
+	public void readsTheSameTagsAsTheDataStructure() throws Exception {
+		NBTTagCompound tree = tree();
+		NBTMappedCompound mapped = NBTMappedCompound.wrap(ByteBuffer.wrap(bytes(tree)));
+		assertEquals(3, mapped.getByte("b"));
+		assertEquals(-4, mapped.getShort("s"));
+		assertEquals(70000, mapped.getInteger("i"));
+		assertEquals(1L << 40, mapped.getLong("l"));
+		assertEquals(0.5f, mapped.getFloat("f"), 0);
+		assertEquals(-2.25, mapped.getDouble("d"), 0);
+		assertTrue(mapped.getBoolean("b"));
+		assertEquals("h\u00e9llo", mapped.getString("str"));
+		
+		/*
+		 * Numeric tags are converted like NBTTagCompound does.
+		 */
+		assertEquals(70000L, mapped.getLong("i"));
+		assertEquals(3.0, mapped.getDouble("b"), 0);
+		
+		ByteBuffer bytes = mapped.getByteArray("ba");
+		assertTrue(bytes.isReadOnly());
+		assertEquals(3, bytes.remaining());
+		assertEquals(-1, bytes.get(1));
+		IntBuffer ints = mapped.getIntArray("ia");
+		assertEquals(2, ints.remaining());
+		assertEquals(Integer.MIN_VALUE, ints.get(1));
+		assertEquals(tree.getTag("list"), mapped.getTag("list"));
+		assertEquals("inner", mapped.getCompoundTag("nested").getString("name"));
+		assertEquals(tree.getKeySet(), mapped.getKeySet());
+		assertEquals(tree, mapped.toTagCompound());
+		
+		/*
+		 * Missing tags, and tags of another type, read as empty or zero.
+		 */
+		assertFalse(mapped.hasKey("missing"));
+		assertEquals(NBTSerializer.NBT_TAG_END, mapped.getTagId("missing"));
+		assertEquals(0, mapped.getInteger("missing"));
+		assertEquals(0, mapped.getInteger("str"));
+		assertEquals("", mapped.getString("i"));
+		assertEquals(0, mapped.getByteArray("ia").remaining());
+		assertEquals(0, mapped.getIntArray("ba").remaining());
+		assertTrue(mapped.getCompoundTag("list").getKeySet().isEmpty());
+		assertNull(mapped.getTag("missing"));
+	}
+	
+	@Test
+	public void readsOnlyUpToTheTagThatIsLookedUp() throws Exception {
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		DataOutputStream out = new DataOutputStream(bytes);
+		out.writeByte(NBTSerializer.NBT_TAG_COMPOUND);
+		out.writeUTF("");
+		out.writeByte(NBTSerializer.NBT_TAG_INT);
+		out.writeUTF("first");
+		out.writeInt(1);
+		int first = out.size();
+		out.writeByte(NBTSerializer.NBT_TAG_COMPOUND);
+		out.writeUTF("nested");
+		out.write(bytes(tree()), 3, bytes(tree()).length - 3);
+		out.writeByte(NBTSerializer.NBT_TAG_INT);
+		out.writeUTF("last");
+		out.writeInt(2);
+		out.writeByte(NBTSerializer.NBT_TAG_END);
+		byte[] data = bytes.toByteArray();
+		
+		/*
+		 * A compound that is cut off after its first tag can still be read up to it.
+		 */
+		NBTMappedCompound cut = NBTMappedCompound.wrap(ByteBuffer.wrap(Arrays.copyOf(data, first)));
+		assertEquals(1, cut.getInteger("first"));
+		try {
+			cut.getInteger("last");
+			fail("A tag past the end of the buffer must not be found");
+		} catch (EOFException e) {
+		}
+		
+		/*
+		 * A nested compound is not indexed until one of its own tags is looked up, and the
+		 * tags after it are found by skipping its payload.
+		 */
+		NBTMappedCompound mapped = NBTMappedCompound.wrap(ByteBuffer.wrap(data));
+		NBTMappedCompound nested = mapped.getCompoundTag("nested");
+		assertEquals(2, mapped.getInteger("last"));
+		assertEquals(70000, nested.getInteger("i"));
+		assertEquals(tree(), nested.toTagCompound());
+		assertEquals(Arrays.asList("first", "nested", "last"), new ArrayList<String>(mapped.getKeySet()));
+	}
+	
+	@Test
+	public void deserializesFieldsIntoViews() throws Exception {
+		Chunk chunk = chunk();
+		chunk.neighbour = chunk();
+		chunk.neighbour.name = "east";
+		NBTTagCompound tree = NBTSerializer.serialize(chunk);
+		NBTMappedCompound mapped = NBTMappedCompound.wrap(ByteBuffer.wrap(bytes(tree)));
+		Chunk read = NBTSerializer.deserialize(Chunk.class, mapped);
+		assertEquals(tree, NBTSerializer.serialize(read));
+		assertTrue(read.blocks.isReadOnly());
+		assertTrue(read.heights.isReadOnly());
+		assertEquals("east", read.neighbour.name);
+		
+		/*
+		 * Fields that are missing are set to null, unless asked to be left as they are.
+		 */
+		Chunk partial = new Chunk();
+		partial.x = 9;
+		mapped = NBTMappedCompound.wrap(ByteBuffer.wrap(bytes(NBTSerializer.serialize(partial))));
+		assertNull(NBTSerializer.deserialize(Chunk.class, mapped).blocks);
+		NBTSerializer.deserialize(read, mapped, false);
+		assertEquals(9, read.x);
+		assertEquals("chunk", read.name);
+	}
+	
+	@Test
+	public void mapsRegionsOfFiles() throws Exception {
+		NBTTagCompound first = NBTSerializer.serialize(chunk());
+		NBTTagCompound second = tree();
+		byte[] a = bytes(first);
+		byte[] b = bytes(second);
+		File file = File.createTempFile("mapped", ".nbt");
+		try {
+			FileOutputStream out = new FileOutputStream(file);
+			try {
+				out.write(a);
+				out.write(b);
+			} finally {
+				out.close();
+			}
+			RandomAccessFile raf = new RandomAccessFile(file, "r");
+			try {
+				assertEquals(first, NBTMappedCompound.open(raf.getChannel(), 0, a.length).toTagCompound());
+				assertEquals(second, NBTMappedCompound.open(raf.getChannel(), a.length, b.length).toTagCompound());
+			} finally {
+				raf.close();
+			}
+			
+			/*
+			 * The whole file holds the first compound, followed by bytes that are not read.
+			 */
+			assertEquals(first, NBTMappedCompound.open(file).toTagCompound());
+		} finally {
+			file.delete();
+		}
+		
+		/*
+		 * A buffer is read from its position.
+		 */
+		ByteBuffer buffer = ByteBuffer.allocate(b.length + 5);
+		buffer.position(5);
+		buffer.put(b);
+		buffer.position(5);
+		assertEquals(second, NBTMappedCompound.wrap(buffer).toTagCompound());
+		
+		try {
+			NBTMappedCompound.wrap(ByteBuffer.wrap(new byte[] { NBTSerializer.NBT_TAG_LIST, 0, 0 }));
+			fail("A root tag that is not a compound must be rejected");
+		} catch (IOException e) {
+		}
+		assertTrue(NBTMappedCompound.wrap(ByteBuffer.wrap(new byte[1])).getKeySet().isEmpty());
+	}
+	
+	private static NBTTagCompound tree() {
+		NBTTagCompound tree = new NBTTagCompound();
+		tree.setByte("b", (byte) 3);
+		tree.setShort("s", (short) -4);
+		tree.setInteger("i", 70000);
+		tree.setLong("l", 1L << 40);
+		tree.setFloat("f", 0.5f);
+		tree.setDouble("d", -2.25);
+		tree.setString("str", "h\u00e9llo");
+		tree.setByteArray("ba", new byte[] { 1, -1, 2 });
+		tree.setIntArray("ia", new int[] { 5, Integer.MIN_VALUE });
+		NBTTagList list = new NBTTagList();
+		for (int i = 0; i < 3; i++) {
+			NBTTagCompound element = new NBTTagCompound();
+			element.setInteger("n", i);
+			list.appendTag(element);
+		}
+		tree.setTag("list", list);
+		NBTTagCompound nested = new NBTTagCompound();
+		nested.setString("name", "inner");
+		tree.setTag("nested", nested);
+		return tree;
+	}
+	
+	private static Chunk chunk() {
+		Chunk chunk = new Chunk();
+		chunk.name = "chunk";
+		chunk.x = -3;
+		chunk.blocks = ByteBuffer.wrap(new byte[] { 1, 2, 3, 4 });
+		chunk.heights = IntBuffer.wrap(new int[] { 64, 65 });
+		chunk.light = new byte[] { 15, 0 };
+		chunk.entities = new ArrayList<String>(Arrays.asList("cow", "pig"));
+		return chunk;
+	}
+	
+	private static byte[] bytes(NBTTagCompound tree) throws IOException {
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		CompressedStreamTools.write(tree, new DataOutputStream(out));
+		return out.toByteArray();
+	}
+}
@@ -0,0 +1,165 @@
+package info.varden.nbtserial;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.Arrays;
+
+import javax.management.JMX;
+import javax.management.ObjectName;
+
+import net.minecraft.nbt.NBTTagCompound;
+
+import org.junit.Test;
+
+/**
+ * <p>Tests for {@link NBTMetrics}: each instance must be counted for its own class, and
+ * failures must be counted by the kind of exception they failed with.</p>
+ * 
+ * @author Marius
+ */
+public class NBTMetricsTest {
+	public static class Point implements INBTSerializable {
+		@NBTSerialize public int x;
+		@NBTSerialize public int y;
+	}
+	
+	public static class Path implements INBTSerializable {
+		@NBTSerialize public String name;
+		@NBTSerialize public ArrayList<Point> points;
+	}
+	
+	/**
+	 * <p>A class that no codec is registered for.</p>
+	 */
+	public static class Opaque {
+	}
+	
+	public static class Broken implements INBTSerializable {
+		@NBTSerialize public Opaque opaque;
+	}
+	
+	@Test
+	public void countsInstancesForTheirOwnClasses() throws Exception {
+		NBTMetrics.enable();
+		try {
+			NBTMetrics.reset();
+			Path path = path(3);
+			NBTTagCompound data = NBTSerializer.serialize(path);
+			ByteArrayOutputStream out = new ByteArrayOutputStream();
+			NBTSerializer.writeTo(path, out);
+			NBTSerializer.readFrom(Path.class, new ByteArrayInputStream(out.toByteArray()));
+			
+			/*
+			 * Only the fields of an instance are counted for it, not the tags nested in them,
+			 * and only writing to a stream counts bytes.
+			 */
+			NBTMetrics.Snapshot p = NBTMetrics.snapshot().get(Path.class.getName());
+			assertEquals(2, p.getSerializations());
+			assertEquals(1, p.getDeserializations());
+			assertEquals(2 * data.getKeySet().size(), p.getFieldsWritten());
+			assertEquals(1, p.getSizedSerializations());
+			assertEquals(out.size() - 3, p.getBytesWritten());
+			assertEquals(0, p.getFailures());
+			
+			NBTMetrics.Snapshot pt = NBTMetrics.snapshot().get(Point.class.getName());
+			assertEquals(6, pt.getSerializations());
+			assertEquals(3, pt.getDeserializations());
+			assertEquals(12, pt.getFieldsWritten());
+			assertEquals(3, pt.getSizedSerializations());
+			assertTrue(pt.getBytesWritten() > 0);
+			assertTrue(pt.getBytesWritten() < p.getBytesWritten());
+			
+			/*
+			 * Nothing is counted while metrics are off.
+			 */
+			NBTMetrics.disable();
+			NBTSerializer.serialize(path);
+			assertEquals(2, NBTMetrics.snapshot().get(Path.class.getName()).getSerializations());
+		} finally {
+			NBTMetrics.disable();
+			NBTMetrics.reset();
+		}
+	}
+	
+	@Test
+	public void countsFailuresByCause() throws Exception {
+		NBTMetrics.enable();
+		try {
+			NBTMetrics.reset();
+			Broken broken = new Broken();
+			broken.opaque = new Opaque();
+			try {
+				NBTSerializer.serialize(broken);
+				fail("A field without a codec must not be serialized");
+			} catch (UnserializableClassException e) {
+			}
+			
+			/*
+			 * A tag of the wrong type, or data that ends too early, fails because of the data.
+			 */
+			NBTTagCompound wrong = new NBTTagCompound();
+			wrong.setInteger("name", 1);
+			try {
+				NBTSerializer.deserialize(Path.class, wrong);
+				fail("A tag of the wrong type must not be read");
+			} catch (ClassCastException e) {
+			}
+			ByteArrayOutputStream out = new ByteArrayOutputStream();
+			NBTSerializer.writeTo(path(2), out);
+			byte[] cut = Arrays.copyOf(out.toByteArray(), out.size() - 4);
+			try {
+				NBTSerializer.readFrom(Path.class, new ByteArrayInputStream(cut));
+				fail("Data that ends too early must not be read");
+			} catch (IOException e) {
+			}
+			
+			NBTMetrics.Snapshot b = NBTMetrics.snapshot().get(Broken.class.getName());
+			assertEquals(1, b.getUnserializableFailures());
+			assertEquals(0, b.getSerializations());
+			NBTMetrics.Snapshot p = NBTMetrics.snapshot().get(Path.class.getName());
+			assertEquals(2, p.getDataFailures());
+			assertEquals(0, p.getOtherFailures());
+			assertEquals(2, p.getFailures());
+			
+			/*
+			 * JMX clients read the same counters.
+			 */
+			NBTMetrics.registerMBean();
+			try {
+				NBTMetricsMXBean proxy = JMX.newMXBeanProxy(ManagementFactory.getPlatformMBeanServer(), new ObjectName(NBTMetrics.OBJECT_NAME), NBTMetricsMXBean.class);
+				NBTMetrics.Snapshot read = null;
+				for (NBTMetrics.Snapshot s : proxy.getClasses()) {
+					if (s.getClassName().equals(Broken.class.getName())) read = s;
+				}
+				assertEquals(b.toString(), read.toString());
+			} finally {
+				NBTMetrics.unregisterMBean();
+			}
+		} finally {
+			NBTMetrics.disable();
+			NBTMetrics.reset();
+		}
+		assertNull(NBTMetrics.snapshot().get(Broken.class.getName()));
+	}
+	
+	private static Path path(int size) {
+		Path path = new Path();
+		path.name = "path";
+		path.points = new ArrayList<Point>();
+		for (int i = 0; i < size; i++) {
+			Point p = new Point();
+			p.x = i;
+			p.y = -i;
+			path.points.add(p);
+		}
+		return path;
+	}
+}
@@ -0,0 +1,307 @@
+package info.varden.nbtserial;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+import java.util.zip.GZIPOutputStream;
+import java.util.zip.ZipException;
+
+import net.minecraft.nbt.CompressedStreamTools;
+import net.minecraft.nbt.NBTTagCompound;
+
+import org.junit.Test;
+
+/**
+ * <p>Tests for the compression formats of {@link NBTPipeline}: data must round-trip in every
+ * format, GZIP data must be interchangeable with {@link CompressedStreamTools}, and corrupted
+ * data must be rejected with an {@link IOException}.</p>
+ * 
+ * @author Marius
+ */
+public class NBTPipelineCompressionTest {
+	private static final int FHCRC = 2;
+	private static final int FEXTRA = 4;
+	private static final int FNAME = 8;
+	private static final int FCOMMENT = 16;
+	
+	@Test
+	public void roundTripsEveryFormat() throws IOException {
+		NBTTagCompound tag = sample();
+		for (NBTCompression compression : NBTCompression.values()) {
+			NBTPipeline pipeline = NBTPipeline.of(compression);
+			assertEquals(compression.name(), tag, pipeline.decode(pipeline.encode(tag)));
+			ByteArrayOutputStream out = new ByteArrayOutputStream();
+			pipeline.write(tag, out);
+			assertEquals(compression.name(), tag, pipeline.read(new ByteArrayInputStream(out.toByteArray())));
+		}
+	}
+	
+	@Test
+	public void roundTripsEmptyCompound() throws IOException {
+		for (NBTCompression compression : NBTCompression.values()) {
+			NBTPipeline pipeline = NBTPipeline.of(compression);
+			assertEquals(compression.name(), new NBTTagCompound(), pipeline.decode(pipeline.encode(new NBTTagCompound())));
+		}
+	}
+	
+	@Test
+	public void roundTripsFrames() throws IOException {
+		NBTTagCompound first = sample();
+		NBTTagCompound second = new NBTTagCompound();
+		second.setString("name", "second");
+		for (NBTCompression compression : NBTCompression.values()) {
+			NBTPipeline pipeline = NBTPipeline.of(compression);
+			ByteArrayOutputStream out = new ByteArrayOutputStream();
+			pipeline.writeFrame(first, out);
+			pipeline.writeFrame(second, out);
+			ByteArrayInputStream in = new ByteArrayInputStream(out.toByteArray());
+			assertEquals(compression.name(), first, pipeline.readFrame(in));
+			assertEquals(compression.name(), second, pipeline.readFrame(in));
+		}
+	}
+	
+	@Test
+	public void gzipIsReadByCompressedStreamTools() throws IOException {
+		NBTTagCompound tag = sample();
+		byte[] data = NBTPipeline.of(NBTCompression.GZIP).encode(tag);
+		assertEquals(tag, CompressedStreamTools.readCompressed(new ByteArrayInputStream(data)));
+	}
+	
+	@Test
+	public void gzipFromCompressedStreamToolsIsRead() throws IOException {
+		NBTTagCompound tag = sample();
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		CompressedStreamTools.writeCompressed(tag, out);
+		assertEquals(tag, NBTPipeline.of(NBTCompression.GZIP).decode(out.toByteArray()));
+	}
+	
+	@Test
+	public void gzipHeaderFieldsAreSkipped() throws IOException {
+		NBTTagCompound tag = sample();
+		byte[] plain = NBTPipeline.of(NBTCompression.NONE).encode(tag);
+		NBTPipeline gzip = NBTPipeline.of(NBTCompression.GZIP);
+		for (int flags : new int[] { FEXTRA, FNAME, FCOMMENT, FHCRC, FEXTRA | FNAME | FCOMMENT | FHCRC }) {
+			assertEquals("Flags " + flags, tag, gzip.decode(gzipMember(plain, 0, plain.length, flags)));
+		}
+	}
+	
+	@Test
+	public void gzipMembersAreConcatenated() throws IOException {
+		NBTTagCompound tag = sample();
+		byte[] plain = NBTPipeline.of(NBTCompression.NONE).encode(tag);
+		int split = plain.length / 3;
+		byte[] first = gzipMember(plain, 0, split, 0);
+		byte[] second = gzipMember(plain, split, plain.length - split, FNAME);
+		byte[] data = Arrays.copyOf(first, first.length + second.length);
+		System.arraycopy(second, 0, data, first.length, second.length);
+		assertEquals(tag, NBTPipeline.of(NBTCompression.GZIP).decode(data));
+	}
+	
+	@Test
+	public void rejectsInvalidGzipHeaders() throws IOException {
+		NBTPipeline gzip = NBTPipeline.of(NBTCompression.GZIP);
+		byte[] data = gzip.encode(sample());
+		
+		byte[] magic = data.clone();
+		magic[1] = 0x00;
+		assertRejected(gzip, magic, ZipException.class);
+		
+		byte[] method = data.clone();
+		method[2] = 0x07;
+		assertRejected(gzip, method, ZipException.class);
+		
+		/*
+		 * A name that is never terminated, and an extra field that is longer than the data,
+		 * run past the end of the header.
+		 */
+		byte[] plain = NBTPipeline.of(NBTCompression.NONE).encode(sample());
+		byte[] name = gzipMember(plain, 0, plain.length, FNAME);
+		assertRejected(gzip, Arrays.copyOf(name, 14), IOException.class);
+		byte[] extra = gzipMember(plain, 0, plain.length, FEXTRA);
+		extra[10] = (byte) 0xFF;
+		extra[11] = (byte) 0xFF;
+		assertRejected(gzip, extra, IOException.class);
+	}
+	
+	@Test
+	public void rejectsCorruptGzipTrailers() throws IOException {
+		NBTPipeline gzip = NBTPipeline.of(NBTCompression.GZIP);
+		byte[] data = gzip.encode(sample());
+		
+		byte[] crc = data.clone();
+		crc[crc.length - 8] ^= 1;
+		assertRejected(gzip, crc, ZipException.class);
+		
+		byte[] size = data.clone();
+		size[size.length - 4] ^= 1;
+		assertRejected(gzip, size, ZipException.class);
+	}
+	
+	@Test
+	public void rejectsTruncatedData() throws IOException {
+		for (NBTCompression compression : new NBTCompression[] { NBTCompression.GZIP, NBTCompression.DEFLATE, NBTCompression.LZ4 }) {
+			NBTPipeline pipeline = NBTPipeline.of(compression);
+			byte[] data = pipeline.encode(sample());
+			for (int length = 0; length < data.length; length++) {
+				assertRejected(pipeline, Arrays.copyOf(data, length), IOException.class);
+			}
+		}
+	}
+	
+	@Test
+	public void rejectsTrailingDeflateData() throws IOException {
+		NBTPipeline deflate = NBTPipeline.of(NBTCompression.DEFLATE);
+		byte[] data = deflate.encode(sample());
+		assertRejected(deflate, Arrays.copyOf(data, data.length + 1), ZipException.class);
+	}
+	
+	@Test
+	public void rejectsImpossibleLZ4Sizes() throws IOException {
+		NBTPipeline lz4 = NBTPipeline.of(NBTCompression.LZ4);
+		byte[] data = lz4.encode(sample());
+		
+		byte[] negative = data.clone();
+		negative[0] = (byte) 0x80;
+		assertRejected(lz4, negative, ZipException.class);
+		
+		/*
+		 * A size that the block cannot possibly decompress to must be rejected before
+		 * anything is allocated for it.
+		 */
+		byte[] huge = data.clone();
+		huge[0] = 0x7F;
+		assertRejected(lz4, huge, ZipException.class);
+	}
+	
+	@Test
+	public void rejectsCorruptedData() {
+		/*
+		 * GZIP and zlib data have checksums, and LZ4 data only its structure, so corrupted
+		 * data may occasionally still be read. It must never fail with anything but an
+		 * IOException, though.
+		 */
+		Random random = new Random(4);
+		for (NBTCompression compression : new NBTCompression[] { NBTCompression.GZIP, NBTCompression.DEFLATE, NBTCompression.LZ4 }) {
+			NBTPipeline pipeline = NBTPipeline.of(compression);
+			byte[] data;
+			try {
+				data = pipeline.encode(sample());
+			} catch (IOException e) {
+				throw new AssertionError(e);
+			}
+			for (int i = 0; i < 500; i++) {
+				byte[] corrupt = data.clone();
+				corrupt[random.nextInt(corrupt.length)] ^= (byte) (1 + random.nextInt(255));
+				try {
+					pipeline.decode(corrupt);
+				} catch (IOException e) {
+					/* Expected. */
+				}
+			}
+		}
+	}
+	
+	@Test
+	public void gzipMatchesJavaUtilZip() throws IOException {
+		/*
+		 * The payload of the pipeline's GZIP data is the same as that of GZIPOutputStream,
+		 * apart from the compression level.
+		 */
+		byte[] plain = NBTPipeline.of(NBTCompression.NONE).encode(sample());
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		GZIPOutputStream gzip = new GZIPOutputStream(out);
+		gzip.write(plain);
+		gzip.close();
+		assertArrayEquals(plain, NBTPipeline.of(NBTCompression.NONE).encode(NBTPipeline.of(NBTCompression.GZIP).decode(out.toByteArray())));
+	}
+	
+	private static NBTTagCompound sample() {
+		NBTTagCompound tag = new NBTTagCompound();
+		tag.setString("name", "sample");
+		tag.setInteger("count", 42);
+		tag.setLong("seed", 0x123456789ABCDEFL);
+		tag.setDouble("x", 12.5);
+		byte[] bytes = new byte[4000];
+		for (int i = 0; i < bytes.length; i++) bytes[i] = (byte) (i % 7 == 0 ? i : 1);
+		tag.setByteArray("blocks", bytes);
+		int[] ints = new int[500];
+		for (int i = 0; i < ints.length; i++) ints[i] = i * i;
+		tag.setIntArray("heights", ints);
+		NBTTagCompound nested = new NBTTagCompound();
+		nested.setBoolean("flag", true);
+		nested.setString("text", "the quick brown fox jumps over the lazy dog");
+		tag.setTag("nested", nested);
+		return tag;
+	}
+	
+	/**
+	 * <p>Builds a GZIP member by hand, so that its header can have optional fields.</p>
+	 */
+	private static byte[] gzipMember(byte[] data, int offset, int length, int flags) {
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		out.write(0x1F);
+		out.write(0x8B);
+		out.write(Deflater.DEFLATED);
+		out.write(flags);
+		for (int i = 0; i < 5; i++) out.write(0);
+		out.write(0xFF);
+		if ((flags & FEXTRA) != 0) {
+			out.write(3);
+			out.write(0);
+			out.write('a');
+			out.write('b');
+			out.write('c');
+		}
+		if ((flags & FNAME) != 0) {
+			for (char c : "level.dat".toCharArray()) out.write(c);
+			out.write(0);
+		}
+		if ((flags & FCOMMENT) != 0) {
+			for (char c : "comment".toCharArray()) out.write(c);
+			out.write(0);
+		}
+		if ((flags & FHCRC) != 0) {
+			CRC32 crc = new CRC32();
+			crc.update(out.toByteArray());
+			writeShortLE(out, (int) crc.getValue());
+		}
+		
+		Deflater deflater = new Deflater(Deflater.DEFAULT_COMPRESSION, true);
+		deflater.setInput(data, offset, length);
+		deflater.finish();
+		byte[] buffer = new byte[1024];
+		while (!deflater.finished()) out.write(buffer, 0, deflater.deflate(buffer));
+		deflater.end();
+		
+		CRC32 crc = new CRC32();
+		crc.update(data, offset, length);
+		writeShortLE(out, (int) crc.getValue());
+		writeShortLE(out, (int) (crc.getValue() >>> 16));
+		writeShortLE(out, length);
+		writeShortLE(out, length >>> 16);
+		return out.toByteArray();
+	}
+	
+	private static void writeShortLE(ByteArrayOutputStream out, int v) {
+		out.write(v);
+		out.write(v >>> 8);
+	}
+	
+	private static void assertRejected(NBTPipeline pipeline, byte[] data, Class<? extends IOException> expected) {
+		try {
+			pipeline.decode(data);
+		} catch (IOException e) {
+			if (expected.isInstance(e)) return;
+			throw new AssertionError("Expected " + expected.getSimpleName() + ", got " + e);
+		}
+		fail("Data of " + data.length + " bytes was accepted");
+	}
+}
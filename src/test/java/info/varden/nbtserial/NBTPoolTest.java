@@ -0,0 +1,157 @@
+package info.varden.nbtserial;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.TreeMap;
+import java.util.TreeSet;
+
+import net.minecraft.nbt.NBTTagCompound;
+
+import org.junit.Test;
+
+/**
+ * <p>Tests for {@link NBTPool} and {@link NBTSerializer#refill(INBTSerializable,
+ * NBTTagCompound)}: a refilled instance must hold the same data as a newly deserialized
+ * one, while keeping the objects that its fields held wherever their classes match.</p>
+ * 
+ * @author Marius
+ */
+public class NBTPoolTest {
+	public static class Part implements INBTSerializable {
+		@NBTSerialize public String label;
+		@NBTSerialize public int weight;
+	}
+	
+	public static class Message implements INBTSerializable {
+		@NBTSerialize public String text;
+		@NBTSerialize public int sequence;
+		@NBTSerialize public Part header;
+		@NBTSerialize public ArrayList<Part> parts;
+		@NBTSerialize public ArrayList<String> words;
+		/**
+		 * Sorted, so that a refilled container, whose table may be larger than that of a new
+		 * one, is written in the same order.
+		 */
+		@NBTSerialize public TreeSet<Integer> flags;
+		@NBTSerialize public TreeMap<String, Part> index;
+		@NBTSerialize public int[] checksums;
+	}
+	
+	@Test
+	public void refillsReleasedInstances() throws Exception {
+		NBTPool<Message> pool = new NBTPool<Message>(Message.class, 4);
+		NBTInstances.register(Message.class, pool);
+		try {
+			Message first = NBTSerializer.deserialize(Message.class, NBTSerializer.serialize(message(1, 5)));
+			Part header = first.header;
+			ArrayList<Part> parts = first.parts;
+			Part part = first.parts.get(2);
+			ArrayList<String> words = first.words;
+			TreeSet<Integer> flags = first.flags;
+			TreeMap<String, Part> index = first.index;
+			pool.release(first);
+			assertEquals(1, pool.size());
+			
+			/*
+			 * The next message is read into the released instance, and into everything it
+			 * holds, whether it has more elements or fewer.
+			 */
+			for (int size : new int[] { 3, 8, 0 }) {
+				NBTTagCompound data = NBTSerializer.serialize(message(size + 10, size));
+				Message next = NBTSerializer.deserialize(Message.class, data);
+				assertEquals(0, pool.size());
+				assertSame(first, next);
+				assertEquals(data, NBTSerializer.serialize(next));
+				assertSame(header, next.header);
+				assertSame(parts, next.parts);
+				assertSame(words, next.words);
+				assertSame(flags, next.flags);
+				assertSame(index, next.index);
+				if (size > 2) assertSame(part, next.parts.get(2));
+				pool.release(next);
+			}
+			
+			/*
+			 * Fields that are missing from the data are cleared.
+			 */
+			Message empty = new Message();
+			empty.sequence = 7;
+			assertSame(first, NBTSerializer.deserialize(Message.class, NBTSerializer.serialize(empty)));
+			assertNull(first.header);
+			assertNull(first.parts);
+			assertEquals(7, first.sequence);
+		} finally {
+			NBTInstances.unregister(Message.class);
+		}
+		
+		/*
+		 * Without the pool, every instance is new.
+		 */
+		NBTTagCompound data = NBTSerializer.serialize(message(1, 1));
+		assertNotSame(NBTSerializer.deserialize(Message.class, data), NBTSerializer.deserialize(Message.class, data));
+	}
+	
+	@Test
+	public void refillsInstancesThatAreHeld() throws Exception {
+		Message held = NBTSerializer.deserialize(Message.class, NBTSerializer.serialize(message(1, 4)));
+		Part header = held.header;
+		Part part = held.parts.get(0);
+		NBTTagCompound data = NBTSerializer.serialize(message(2, 6));
+		NBTSerializer.refill(held, data);
+		assertEquals(data, NBTSerializer.serialize(held));
+		assertSame(header, held.header);
+		assertSame(part, held.parts.get(0));
+	}
+	
+	@Test
+	public void keepsOnlyAsManyInstancesAsItHolds() throws Exception {
+		@SuppressWarnings({ "unchecked", "rawtypes" })
+		Class<ArrayList<String>> type = (Class<ArrayList<String>>) (Class) ArrayList.class;
+		NBTPool<ArrayList<String>> pool = new NBTPool<ArrayList<String>>(type, 2);
+		ArrayList<String> list = new ArrayList<String>(Arrays.asList("a", "b"));
+		pool.release(list);
+		assertEquals(0, list.size());
+		pool.release(new ArrayList<String>());
+		pool.release(new ArrayList<String>());
+		assertEquals(2, pool.size());
+		
+		/*
+		 * Instances of subclasses, and null, are not pooled.
+		 */
+		assertSame(list, pool.get());
+		pool.release(new ArrayList<String>() {});
+		pool.release(null);
+		assertEquals(1, pool.size());
+		pool.get();
+		assertEquals(0, pool.size());
+		assertNotSame(pool.get(), pool.get());
+	}
+	
+	private static Message message(int seed, int size) {
+		Message m = new Message();
+		m.text = "message " + seed;
+		m.sequence = seed;
+		m.header = new Part();
+		m.header.label = "header " + seed;
+		m.parts = new ArrayList<Part>();
+		m.words = new ArrayList<String>();
+		m.flags = new TreeSet<Integer>();
+		m.index = new TreeMap<String, Part>();
+		for (int i = 0; i < size; i++) {
+			Part p = new Part();
+			p.label = "part " + (seed + i);
+			p.weight = seed * i;
+			m.parts.add(p);
+			m.words.add("word" + i);
+			m.flags.add(seed + i);
+			m.index.put(p.label, p);
+		}
+		m.checksums = new int[size];
+		return m;
+	}
+}
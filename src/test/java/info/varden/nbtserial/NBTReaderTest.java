@@ -0,0 +1,152 @@
+package info.varden.nbtserial;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+
+import org.junit.Test;
+
+/**
+ * <p>Tests for {@link NBTReader}: malformed or hostile streams must be rejected with an
+ * {@link IOException}, and must not make the reader allocate more than the stream holds.</p>
+ * 
+ * @author Marius
+ */
+public class NBTReaderTest {
+	public static class Holder implements INBTSerializable {
+		@NBTSerialize public ArrayList<Integer> list;
+		@NBTSerialize public HashMap<Integer, String> map;
+	}
+	
+	@Test
+	public void readsWhatIsWritten() throws Exception {
+		Holder h = new Holder();
+		h.list = new ArrayList<Integer>(Arrays.asList(1, 2, 3));
+		h.map = new HashMap<Integer, String>();
+		h.map.put(4, "four");
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		NBTSerializer.writeTo(h, out);
+		Holder r = NBTSerializer.readFrom(Holder.class, new ByteArrayInputStream(out.toByteArray()));
+		assertEquals(h.list, r.list);
+		assertEquals(h.map, r.map);
+	}
+	
+	@Test
+	public void hostileListCountsDoNotPresize() throws Exception {
+		/*
+		 * Each of these claims almost two billion elements, but holds only two. Reading them
+		 * must fail at the end of the stream rather than with an OutOfMemoryError.
+		 */
+		assertRejected(hostile("list", NBTSerializer.NBT_TAG_INT), IOException.class);
+		assertRejected(hostile("map", NBTSerializer.NBT_TAG_COMPOUND), IOException.class);
+		assertRejected(hostileKeys(Integer.MAX_VALUE - 8), IOException.class);
+	}
+	
+	@Test
+	public void rejectsNegativeListCounts() throws Exception {
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		DataOutputStream out = root(bytes);
+		out.writeByte(NBTSerializer.NBT_TAG_LIST);
+		out.writeUTF("list");
+		out.writeByte(NBTSerializer.NBT_TAG_INT);
+		out.writeInt(-1);
+		out.writeByte(NBTSerializer.NBT_TAG_END);
+		assertRejected(bytes.toByteArray(), IOException.class);
+		assertRejected(hostileKeys(-1), IOException.class);
+	}
+	
+	@Test
+	public void rejectsMalformedMaps() throws Exception {
+		/*
+		 * A map of lists with only a list of keys, and a map whose entries are neither
+		 * lists nor compound tags.
+		 */
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		DataOutputStream out = root(bytes);
+		out.writeByte(NBTSerializer.NBT_TAG_LIST);
+		out.writeUTF("map");
+		out.writeByte(NBTSerializer.NBT_TAG_LIST);
+		out.writeInt(1);
+		out.writeByte(NBTSerializer.NBT_TAG_INT);
+		out.writeInt(1);
+		out.writeInt(4);
+		out.writeByte(NBTSerializer.NBT_TAG_END);
+		assertRejected(bytes.toByteArray(), IOException.class);
+		
+		bytes = new ByteArrayOutputStream();
+		out = root(bytes);
+		out.writeByte(NBTSerializer.NBT_TAG_LIST);
+		out.writeUTF("map");
+		out.writeByte(NBTSerializer.NBT_TAG_INT);
+		out.writeInt(1);
+		out.writeInt(4);
+		out.writeByte(NBTSerializer.NBT_TAG_END);
+		assertRejected(bytes.toByteArray(), IOException.class);
+	}
+	
+	/**
+	 * <p>Writes a root compound holding a list tag for the given field, whose count is much
+	 * larger than the number of elements that follow it.</p>
+	 */
+	private static byte[] hostile(String field, int elementId) throws IOException {
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		DataOutputStream out = root(bytes);
+		out.writeByte(NBTSerializer.NBT_TAG_LIST);
+		out.writeUTF(field);
+		out.writeByte(elementId);
+		out.writeInt(Integer.MAX_VALUE - 8);
+		for (int i = 0; i < 2; i++) {
+			if (elementId == NBTSerializer.NBT_TAG_INT) {
+				out.writeInt(i);
+			} else {
+				out.writeByte(NBTSerializer.NBT_TAG_INT);
+				out.writeUTF("k");
+				out.writeInt(i);
+				out.writeByte(NBTSerializer.NBT_TAG_END);
+			}
+		}
+		return bytes.toByteArray();
+	}
+	
+	/**
+	 * <p>Writes a root compound holding a map in the layout of {@link MapLayout#LISTS}, whose
+	 * list of keys has the given count but holds only two keys.</p>
+	 */
+	private static byte[] hostileKeys(int count) throws IOException {
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		DataOutputStream out = root(bytes);
+		out.writeByte(NBTSerializer.NBT_TAG_LIST);
+		out.writeUTF("map");
+		out.writeByte(NBTSerializer.NBT_TAG_LIST);
+		out.writeInt(2);
+		out.writeByte(NBTSerializer.NBT_TAG_INT);
+		out.writeInt(count);
+		out.writeInt(1);
+		out.writeInt(2);
+		return bytes.toByteArray();
+	}
+	
+	private static DataOutputStream root(ByteArrayOutputStream bytes) throws IOException {
+		DataOutputStream out = new DataOutputStream(bytes);
+		out.writeByte(NBTSerializer.NBT_TAG_COMPOUND);
+		out.writeUTF("");
+		return out;
+	}
+	
+	private static void assertRejected(byte[] data, Class<? extends IOException> expected) throws Exception {
+		try {
+			NBTSerializer.readFrom(Holder.class, new ByteArrayInputStream(data));
+		} catch (IOException e) {
+			if (expected.isInstance(e)) return;
+			throw new AssertionError("Expected " + expected.getSimpleName() + ", got " + e);
+		}
+		fail("Data of " + data.length + " bytes was accepted");
+	}
+}
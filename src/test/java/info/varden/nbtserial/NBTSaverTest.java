@@ -0,0 +1,281 @@
+package info.varden.nbtserial;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.junit.Test;
+
+/**
+ * <p>Tests for {@link NBTSaver}: saves of the same key must be written in order, a save of a
+ * key that is still waiting must replace its snapshot, and the number of pending saves must
+ * stay within the capacity. The saves run on an executor that the tests drive by hand.</p>
+ * 
+ * @author Marius
+ */
+public class NBTSaverTest {
+	public static class Level implements INBTSerializable {
+		@NBTSerialize public String name;
+		@NBTSerialize public int time;
+	}
+	
+	/**
+	 * <p>An executor that only runs its tasks when told to.</p>
+	 */
+	static final class ManualExecutor implements Executor {
+		final ArrayDeque<Runnable> tasks = new ArrayDeque<Runnable>();
+		boolean rejecting;
+		
+		@Override
+		public synchronized void execute(Runnable task) {
+			if (this.rejecting) throw new RejectedExecutionException();
+			this.tasks.add(task);
+		}
+		
+		synchronized Runnable next() {
+			return this.tasks.poll();
+		}
+		
+		synchronized int size() {
+			return this.tasks.size();
+		}
+		
+		void runAll() {
+			Runnable task;
+			while ((task = next()) != null) task.run();
+		}
+	}
+	
+	/**
+	 * <p>An executor that runs each task right away, on the calling thread.</p>
+	 */
+	static final class DirectExecutor implements Executor {
+		@Override
+		public void execute(Runnable task) {
+			task.run();
+		}
+	}
+	
+	/**
+	 * <p>A sink that decodes and records what is written to it.</p>
+	 */
+	static class RecordingSink implements NBTSaver.Sink<String> {
+		final List<String> writes = new ArrayList<String>();
+		
+		@Override
+		public void write(String key, byte[] data) throws IOException {
+			try {
+				Level level = PIPELINE.decode(Level.class, data);
+				this.writes.add(key + "=" + level.time);
+			} catch (Exception e) {
+				throw new IOException(e);
+			}
+		}
+	}
+	
+	private static final NBTPipeline PIPELINE = NBTPipeline.of(NBTCompression.NONE);
+	
+	@Test
+	public void replacesTheSnapshotOfAWaitingSave() throws Exception {
+		ManualExecutor executor = new ManualExecutor();
+		RecordingSink sink = new RecordingSink();
+		NBTSaver<String> saver = new NBTSaver<String>(PIPELINE, sink, executor, 8);
+		Level level = level();
+		CompletableFuture<Void> first = saver.save("a", level);
+		level.time = 2;
+		assertSame(first, saver.save("a", level));
+		level.time = 3;
+		assertSame(first, saver.trySave("a", level));
+		
+		/*
+		 * The snapshot is taken when saving, so later changes are not written.
+		 */
+		level.time = 4;
+		assertEquals(1, executor.size());
+		assertFalse(first.isDone());
+		executor.runAll();
+		assertTrue(first.isDone());
+		assertEquals(list("a=3"), sink.writes);
+		
+		NBTSaver.Stats stats = saver.getStats();
+		assertEquals(3, stats.getSaves());
+		assertEquals(2, stats.getCoalesced());
+		assertEquals(1, stats.getEncodes());
+		assertEquals(0, stats.getPending());
+		assertEquals(0, stats.getFailures());
+		assertTrue(stats.getBytesWritten() > 0);
+	}
+	
+	@Test
+	public void writesSavesOfAKeyInOrder() throws Exception {
+		final ManualExecutor executor = new ManualExecutor();
+		final Level level = level();
+		final List<CompletableFuture<Void>> later = new ArrayList<CompletableFuture<Void>>();
+		final AtomicInteger waiting = new AtomicInteger(-1);
+		final AtomicReference<NBTSaver<String>> saver = new AtomicReference<NBTSaver<String>>();
+		RecordingSink sink = new RecordingSink() {
+			@Override
+			public void write(String key, byte[] data) throws IOException {
+				super.write(key, data);
+				/*
+				 * Saves made while the key is being written wait for it, behind the saves of
+				 * other keys that were already waiting, and are merged with each other, but
+				 * not with the save that is being written.
+				 */
+				if (this.writes.size() == 1) {
+					try {
+						level.time = 2;
+						later.add(saver.get().save("a", level));
+						level.time = 3;
+						later.add(saver.get().save("a", level));
+					} catch (Exception e) {
+						throw new IOException(e);
+					}
+					waiting.set(executor.size());
+				}
+			}
+		};
+		saver.set(new NBTSaver<String>(PIPELINE, sink, executor, 8));
+		CompletableFuture<Void> first = saver.get().save("a", level);
+		level.time = 10;
+		CompletableFuture<Void> other = saver.get().save("b", level);
+		assertFalse(first == other);
+		assertEquals(2, executor.size());
+		
+		executor.next().run();
+		first.get();
+		assertEquals(1, waiting.get());
+		assertFalse(later.get(0).isDone());
+		assertSame(later.get(0), later.get(1));
+		assertEquals(2, executor.size());
+		executor.runAll();
+		assertTrue(later.get(0).isDone());
+		assertTrue(other.isDone());
+		assertEquals(list("a=1", "b=10", "a=3"), sink.writes);
+		assertTrue(saver.get().flush().isDone());
+	}
+	
+	@Test
+	public void staysWithinItsCapacity() throws Exception {
+		final ManualExecutor executor = new ManualExecutor();
+		RecordingSink sink = new RecordingSink();
+		final NBTSaver<String> saver = new NBTSaver<String>(PIPELINE, sink, executor, 1);
+		final Level level = level();
+		CompletableFuture<Void> first = saver.save("a", level);
+		
+		/*
+		 * A full saver still merges saves into the waiting one, but does not take new ones.
+		 */
+		assertNull(saver.trySave("b", level));
+		assertSame(first, saver.trySave("a", level));
+		assertEquals(1, saver.getStats().getPending());
+		assertEquals(2, saver.getStats().getSaves());
+		
+		final CompletableFuture<CompletableFuture<Void>> blocked = new CompletableFuture<CompletableFuture<Void>>();
+		Thread thread = new Thread() {
+			@Override
+			public void run() {
+				try {
+					blocked.complete(saver.save("b", level));
+				} catch (Throwable t) {
+					blocked.completeExceptionally(t);
+				}
+			}
+		};
+		thread.start();
+		try {
+			blocked.get(100, TimeUnit.MILLISECONDS);
+			fail("A save must wait for capacity");
+		} catch (TimeoutException e) {
+		}
+		executor.next().run();
+		CompletableFuture<Void> second = blocked.get(10, TimeUnit.SECONDS);
+		thread.join();
+		executor.runAll();
+		assertTrue(second.isDone());
+		assertEquals(list("a=1", "b=1"), sink.writes);
+		assertTrue(saver.getStats().getBlockedNanos() > 0);
+	}
+	
+	@Test
+	public void reportsFailures() throws Exception {
+		ManualExecutor executor = new ManualExecutor();
+		NBTSaver<String> saver = new NBTSaver<String>(PIPELINE, new NBTSaver.Sink<String>() {
+			@Override
+			public void write(String key, byte[] data) throws IOException {
+				throw new IOException("Disk full");
+			}
+		}, executor, 1);
+		CompletableFuture<Void> failed = saver.save("a", level());
+		CompletableFuture<Void> flushed = saver.flush();
+		executor.runAll();
+		assertCause(IOException.class, failed);
+		assertCause(IOException.class, flushed);
+		
+		/*
+		 * A failed save frees its capacity, as does one that the executor rejects.
+		 */
+		executor.rejecting = true;
+		assertCause(RejectedExecutionException.class, saver.save("a", level()));
+		assertEquals(0, saver.getStats().getPending());
+		assertEquals(2, saver.getStats().getFailures());
+	}
+	
+	@Test
+	public void replacesFiles() throws Exception {
+		File dir = Files.createTempDirectory("saver").toFile();
+		File file = new File(dir, "level.dat");
+		try {
+			NBTSaver<File> saver = new NBTSaver<File>(PIPELINE, NBTSaver.files(), new DirectExecutor(), 4);
+			Level level = level();
+			saver.save(file, level).get();
+			level.time = 2;
+			saver.save(file, level).get();
+			assertEquals(2, PIPELINE.decode(Level.class, Files.readAllBytes(file.toPath())).time);
+			assertEquals(1, dir.list().length);
+		} finally {
+			for (File f : dir.listFiles()) f.delete();
+			dir.delete();
+		}
+	}
+	
+	private static void assertCause(Class<? extends Throwable> type, CompletableFuture<Void> future) throws InterruptedException {
+		try {
+			future.get();
+			fail("The future must complete exceptionally");
+		} catch (ExecutionException e) {
+			assertEquals(type, e.getCause().getClass());
+		}
+	}
+	
+	private static List<String> list(String... writes) {
+		List<String> list = new ArrayList<String>();
+		for (String write : writes) list.add(write);
+		return list;
+	}
+	
+	private static Level level() {
+		Level level = new Level();
+		level.name = "world";
+		level.time = 1;
+		return level;
+	}
+}
@@ -0,0 +1,248 @@
+package info.varden.nbtserial;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+
+import net.minecraft.nbt.CompressedStreamTools;
+import net.minecraft.nbt.NBTTagCompound;
+
+import org.junit.Test;
+
+/**
+ * <p>Tests for schema fingerprints: {@link NBTSerializer#fingerprint(Class)} must change
+ * whenever the data written for a class changes, and
+ * {@link NBTSerializer#readFrom(Class, java.io.DataInput)} must read the same data whether or
+ * not it takes the fast path for a matching fingerprint.</p>
+ * 
+ * @author Marius
+ */
+public class NBTSchemaTest {
+	public static class Stats implements INBTSerializable {
+		@NBTSerialize public int level;
+		@NBTSerialize public ArrayList<Integer> history;
+	}
+	
+	public static class Player implements INBTSerializable {
+		@NBTSerialize public String name;
+		@NBTSerialize public int health;
+		@NBTSerialize public long seen;
+		@NBTSerialize public double x;
+		@NBTSerialize public boolean op;
+		@NBTSerialize public int[] inventory;
+		@NBTSerialize public Stats stats;
+		@NBTSerialize public ArrayList<Stats> history;
+		@NBTSerialize public HashMap<String, Integer> scores;
+	}
+	
+	/*
+	 * Variations of Player, each changing one thing about the data written for it.
+	 */
+	
+	public static class SamePlayer implements INBTSerializable {
+		@NBTSerialize public String name;
+		@NBTSerialize public int health;
+		@NBTSerialize public long seen;
+		@NBTSerialize public double x;
+		@NBTSerialize public boolean op;
+		@NBTSerialize public int[] inventory;
+		@NBTSerialize public Stats stats;
+		@NBTSerialize public ArrayList<Stats> history;
+		@NBTSerialize public HashMap<String, Integer> scores;
+	}
+	
+	public static class WiderPlayer implements INBTSerializable {
+		@NBTSerialize public String name;
+		@NBTSerialize public long health;
+		@NBTSerialize public long seen;
+		@NBTSerialize public double x;
+		@NBTSerialize public boolean op;
+		@NBTSerialize public int[] inventory;
+		@NBTSerialize public Stats stats;
+		@NBTSerialize public ArrayList<Stats> history;
+		@NBTSerialize public HashMap<String, Integer> scores;
+		@NBTSerialize public String title;
+	}
+	
+	public static class NamedPlayer implements INBTSerializable {
+		@NBTSerialize public String name;
+	}
+	
+	public static class RenamedPlayer implements INBTSerializable {
+		@NBTSerialize(name = "displayName") public String name;
+	}
+	
+	public static class OtherStats implements INBTSerializable {
+		@NBTSerialize public int level;
+		@NBTSerialize public ArrayList<Long> history;
+	}
+	
+	public static class NestedPlayer implements INBTSerializable {
+		@NBTSerialize public Stats stats;
+	}
+	
+	public static class OtherNestedPlayer implements INBTSerializable {
+		@NBTSerialize public OtherStats stats;
+	}
+	
+	public static class Node implements INBTSerializable {
+		@NBTSerialize public String name;
+		@NBTSerialize public Node next;
+	}
+	
+	public static class Reserved implements INBTSerializable {
+		@NBTSerialize(name = NBTSerializer.SCHEMA_TAG) public long schema;
+	}
+	
+	@Test
+	public void fingerprintsChangeWithTheData() {
+		long player = NBTSerializer.fingerprint(Player.class);
+		assertEquals(player, NBTSerializer.fingerprint(Player.class));
+		assertEquals(player, NBTSerializer.fingerprint(SamePlayer.class));
+		assertFalse(player == NBTSerializer.fingerprint(WiderPlayer.class));
+		
+		/*
+		 * Tag names, element types and the fingerprints of nested classes are all part of
+		 * it.
+		 */
+		assertFalse(NBTSerializer.fingerprint(NamedPlayer.class) == NBTSerializer.fingerprint(RenamedPlayer.class));
+		assertFalse(NBTSerializer.fingerprint(Stats.class) == NBTSerializer.fingerprint(OtherStats.class));
+		assertFalse(NBTSerializer.fingerprint(NestedPlayer.class) == NBTSerializer.fingerprint(OtherNestedPlayer.class));
+		
+		/*
+		 * A class that holds itself has a fingerprint too.
+		 */
+		assertEquals(NBTSerializer.fingerprint(Node.class), NBTSerializer.fingerprint(Node.class));
+	}
+	
+	@Test
+	public void writesTheFingerprintFirst() throws Exception {
+		Player p = player();
+		ByteArrayOutputStream plain = new ByteArrayOutputStream();
+		NBTSerializer.writeTo(p, plain);
+		ByteArrayOutputStream schema = new ByteArrayOutputStream();
+		NBTSerializer.writeTo(p, schema, true);
+		
+		/*
+		 * The fingerprint is a long tag that directly follows the header of the root, and
+		 * the rest of the bytes are the same.
+		 */
+		ByteArrayOutputStream expected = new ByteArrayOutputStream();
+		DataOutputStream out = new DataOutputStream(expected);
+		out.write(plain.toByteArray(), 0, 3);
+		out.writeByte(NBTSerializer.NBT_TAG_LONG);
+		out.writeUTF(NBTSerializer.SCHEMA_TAG);
+		out.writeLong(NBTSerializer.fingerprint(Player.class));
+		out.write(plain.toByteArray(), 3, plain.size() - 3);
+		assertArrayEquals(expected.toByteArray(), schema.toByteArray());
+		
+		/*
+		 * Other readers see an ordinary tag, and ignore it.
+		 */
+		NBTTagCompound tree = CompressedStreamTools.read(new DataInputStream(new ByteArrayInputStream(schema.toByteArray())));
+		assertEquals(NBTSerializer.fingerprint(Player.class), tree.getLong(NBTSerializer.SCHEMA_TAG));
+		assertEquals(NBTSerializer.serialize(p), NBTSerializer.serialize(NBTSerializer.deserialize(Player.class, tree)));
+	}
+	
+	@Test
+	public void readsTheSameDataWithAMatchingFingerprint() throws Exception {
+		Player p = player();
+		assertReadsBack(p);
+		
+		/*
+		 * Null fields are not where they are expected, which must not throw off the fields
+		 * after them.
+		 */
+		p.name = null;
+		p.stats = null;
+		p.history.add(null);
+		assertReadsBack(p);
+		assertReadsBack(new Player());
+	}
+	
+	@Test
+	public void readsTagsThatAreNotWhereTheSchemaSaysAsUsual() throws Exception {
+		/*
+		 * A matching fingerprint in data that was not written by writeTo(), with the tags in
+		 * another order and of other types than expected, is still read correctly.
+		 */
+		Player p = player();
+		NBTTagCompound tree = NBTSerializer.serialize(p);
+		NBTTagCompound shuffled = new NBTTagCompound();
+		shuffled.setLong(NBTSerializer.SCHEMA_TAG, NBTSerializer.fingerprint(Player.class));
+		ArrayList<String> keys = new ArrayList<String>(tree.getKeySet());
+		for (int i = keys.size() - 1; i >= 0; i--) shuffled.setTag(keys.get(i), tree.getTag(keys.get(i)));
+		shuffled.setShort("health", (short) 20);
+		shuffled.setString("unknown", "skipped");
+		Player read = NBTSerializer.readFrom(Player.class, new ByteArrayInputStream(bytes(shuffled)));
+		assertEquals(tree, NBTSerializer.serialize(read));
+		
+		/*
+		 * Data written for another version of the class is read as usual.
+		 */
+		WiderPlayer wider = new WiderPlayer();
+		wider.name = "wide";
+		wider.health = 17;
+		wider.title = "Sir";
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		NBTSerializer.writeTo(wider, out, true);
+		read = NBTSerializer.readFrom(Player.class, new ByteArrayInputStream(out.toByteArray()));
+		assertEquals("wide", read.name);
+		assertEquals(17, read.health);
+	}
+	
+	@Test
+	public void rejectsFieldsNamedLikeTheFingerprint() throws Exception {
+		try {
+			NBTSerializer.serialize(new Reserved());
+			fail("A field must not be serialized to the schema tag");
+		} catch (IllegalStateException e) {
+			assertTrue(e.getMessage().contains(NBTSerializer.SCHEMA_TAG));
+		}
+	}
+	
+	private static void assertReadsBack(Player p) throws Exception {
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		NBTSerializer.writeTo(p, out, true);
+		Player read = NBTSerializer.readFrom(Player.class, new ByteArrayInputStream(out.toByteArray()));
+		assertEquals(NBTSerializer.serialize(p), NBTSerializer.serialize(read));
+	}
+	
+	private static Player player() {
+		Player p = new Player();
+		p.name = "Alex";
+		p.health = 20;
+		p.seen = System.currentTimeMillis();
+		p.x = 12.5;
+		p.op = true;
+		p.inventory = new int[] { 1, 2, 3 };
+		p.stats = new Stats();
+		p.stats.level = 4;
+		p.stats.history = new ArrayList<Integer>(Arrays.asList(1, 2, 3, 4));
+		p.history = new ArrayList<Stats>();
+		for (int i = 0; i < 3; i++) {
+			Stats s = new Stats();
+			s.level = i;
+			p.history.add(s);
+		}
+		p.scores = new HashMap<String, Integer>();
+		p.scores.put("kills", 3);
+		return p;
+	}
+	
+	private static byte[] bytes(NBTTagCompound tree) throws Exception {
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		CompressedStreamTools.write(tree, new DataOutputStream(out));
+		return out.toByteArray();
+	}
+}
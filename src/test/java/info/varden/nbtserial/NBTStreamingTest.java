@@ -0,0 +1,254 @@
+package info.varden.nbtserial;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.fail;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInput;
+import java.io.DataInputStream;
+import java.io.DataOutput;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedList;
+import java.util.TreeMap;
+
+import net.minecraft.nbt.CompressedStreamTools;
+import net.minecraft.nbt.NBTTagCompound;
+import net.minecraft.nbt.NBTTagList;
+
+import org.junit.Test;
+
+/**
+ * <p>Tests for {@link NBTSerializer#writeTo(INBTSerializable, DataOutput)} and
+ * {@link NBTSerializer#readFrom(Class, java.io.DataInput)}: streams must hold the same bytes
+ * as data structures written with {@link CompressedStreamTools}, and be read back to the
+ * same data.</p>
+ * 
+ * @author Marius
+ */
+public class NBTStreamingTest {
+	public static class Person implements INBTSerializable {
+		@NBTSerialize public String name;
+		@NBTSerialize public int age;
+		@NBTSerialize public double height;
+		@NBTSerialize public boolean admin;
+		@NBTSerialize public int[] scores;
+		@NBTSerialize public ArrayList<String> friends;
+		@NBTSerialize public HashMap<String, Integer> stats;
+		@NBTSerialize public Person partner;
+	}
+	
+	/**
+	 * <p>A field of every kind that is written differently.</p>
+	 */
+	public static class Everything implements INBTSerializable {
+		@NBTSerialize public byte b = -3;
+		@NBTSerialize public short s = 300;
+		@NBTSerialize public int i = -70000;
+		@NBTSerialize public long l = Long.MIN_VALUE;
+		@NBTSerialize public float f = 1.25f;
+		@NBTSerialize public double d = -0.0;
+		@NBTSerialize public boolean bool = true;
+		@NBTSerialize public Integer boxed = 12;
+		@NBTSerialize public Long missing;
+		@NBTSerialize public String text = "h\u00e9llo \u0000 \ud83d\ude00";
+		@NBTSerialize public String empty = "";
+		@NBTSerialize public byte[] bytes = { 1, -1, 0 };
+		@NBTSerialize public Byte[] boxedBytes = { 4, 5 };
+		@NBTSerialize public Integer[] boxedInts = { 6, 7, 8 };
+		@NBTSerialize public long[] longs = { 1L << 40, -1 };
+		@NBTSerialize public short[] shorts = { 1, -2 };
+		@NBTSerialize public float[] floats = { 0.5f };
+		@NBTSerialize public double[] doubles = { };
+		@NBTSerialize public boolean[] booleans = { true, false, true };
+		@NBTSerialize public LinkedList<Double> queue = new LinkedList<Double>(Arrays.asList(1.0, 2.0));
+		@NBTSerialize public HashSet<String> set = new HashSet<String>(Arrays.asList("x", "y", "z"));
+		@NBTSerialize public ArrayList<ArrayList<Integer>> nested = new ArrayList<ArrayList<Integer>>();
+		@NBTSerialize public ArrayList<String> none = new ArrayList<String>();
+		@NBTSerialize(packed = true) public ArrayList<Long> packed = new ArrayList<Long>(Arrays.asList(5L, 6L));
+		@NBTSerialize public TreeMap<Integer, String> entries = new TreeMap<Integer, String>();
+		@NBTSerialize(mapLayout = MapLayout.COMPOUND) public HashMap<String, Short> compound = new HashMap<String, Short>();
+		@NBTSerialize(mapLayout = MapLayout.LISTS) public HashMap<Long, Person> lists = new HashMap<Long, Person>();
+		@NBTSerialize(name = "renamed") public Person person = person();
+	}
+	
+	@Test
+	public void writesToEveryKindOfOutput() throws Exception {
+		Person p = person();
+		byte[] expected = root(NBTSerializer.serialize(p));
+		
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		NBTSerializer.writeTo(p, bytes);
+		assertArrayEquals(expected, bytes.toByteArray());
+		
+		bytes = new ByteArrayOutputStream();
+		NBTSerializer.writeTo(p, new DataOutputStream(bytes));
+		assertArrayEquals(expected, bytes.toByteArray());
+		
+		bytes = new ByteArrayOutputStream();
+		NBTSerializer.writeTo(p, (DataOutput) new DataOutputStream(bytes));
+		assertArrayEquals(expected, bytes.toByteArray());
+	}
+	
+	@Test
+	public void writesTheSameBytesForEveryKindOfField() throws Exception {
+		Everything e = new Everything();
+		e.nested.add(new ArrayList<Integer>(Arrays.asList(1, 2)));
+		e.nested.add(new ArrayList<Integer>());
+		e.entries.put(3, "three");
+		e.entries.put(-1, "minus one");
+		e.compound.put("a", (short) 1);
+		e.compound.put("b", (short) 2);
+		e.lists.put(9L, person());
+		assertSameBytes(e);
+		
+		/*
+		 * Null fields are left out of both, and empty maps are written the same way.
+		 */
+		e.text = null;
+		e.bytes = null;
+		e.person = null;
+		e.compound.clear();
+		e.lists.clear();
+		assertSameBytes(e);
+		assertSameBytes(new Person());
+	}
+	
+	@Test
+	public void readsFromEveryKindOfInput() throws Exception {
+		Person p = person();
+		byte[] data = root(NBTSerializer.serialize(p));
+		NBTTagCompound expected = NBTSerializer.serialize(p);
+		assertEquals(expected, NBTSerializer.serialize(NBTSerializer.readFrom(Person.class, new ByteArrayInputStream(data))));
+		assertEquals(expected, NBTSerializer.serialize(NBTSerializer.readFrom(Person.class, (DataInput) new DataInputStream(new ByteArrayInputStream(data)))));
+		
+		/*
+		 * A data input stream is read from directly, so whatever follows the instance is
+		 * left in it.
+		 */
+		byte[] twice = Arrays.copyOf(data, data.length * 2);
+		System.arraycopy(data, 0, twice, data.length, data.length);
+		DataInputStream in = new DataInputStream(new ByteArrayInputStream(twice));
+		assertEquals(expected, NBTSerializer.serialize(NBTSerializer.readFrom(Person.class, in)));
+		assertEquals(expected, NBTSerializer.serialize(NBTSerializer.readFrom(Person.class, in)));
+		assertEquals(-1, in.read());
+	}
+	
+	@Test
+	public void skipsTagsThatBelongToNoField() throws Exception {
+		Person p = person();
+		NBTTagCompound expected = NBTSerializer.serialize(p);
+		NBTTagCompound data = NBTSerializer.serialize(p);
+		data.setByte("xb", (byte) 1);
+		data.setShort("xs", (short) 2);
+		data.setLong("xl", 3);
+		data.setFloat("xf", 4);
+		data.setDouble("xd", 5);
+		data.setString("xstr", "six");
+		data.setByteArray("xba", new byte[] { 7, 8 });
+		data.setIntArray("xia", new int[] { 9, 10 });
+		NBTTagList list = new NBTTagList();
+		for (int i = 0; i < 3; i++) {
+			NBTTagCompound element = new NBTTagCompound();
+			element.setTag("inner", new NBTTagList());
+			element.setIntArray("name", new int[i]);
+			list.appendTag(element);
+		}
+		data.setTag("xlist", list);
+		data.setTag("xcompound", NBTSerializer.serialize(person()));
+		
+		/*
+		 * A tag with the name of a field inside an unknown compound must not be taken for it.
+		 */
+		((NBTTagCompound) data.getTag("xcompound")).setString("name", "Mallory");
+		Person read = NBTSerializer.readFrom(Person.class, new ByteArrayInputStream(root(data)));
+		assertEquals(expected, NBTSerializer.serialize(read));
+	}
+	
+	@Test
+	public void readsIntoExistingInstances() throws Exception {
+		Person partial = new Person();
+		partial.name = "Carol";
+		byte[] data = root(NBTSerializer.serialize(partial));
+		
+		Person p = person();
+		NBTSerializer.readFrom(p, new DataInputStream(new ByteArrayInputStream(data)), false);
+		assertEquals("Carol", p.name);
+		assertEquals(Arrays.asList("Bob", "Carol"), p.friends);
+		assertEquals("Bob", p.partner.name);
+		
+		NBTSerializer.readFrom(p, new DataInputStream(new ByteArrayInputStream(data)), true);
+		assertEquals("Carol", p.name);
+		assertNull(p.friends);
+		assertNull(p.stats);
+		assertNull(p.partner);
+		
+		/*
+		 * An empty root compound is written as a single end tag.
+		 */
+		NBTSerializer.readFrom(p, new DataInputStream(new ByteArrayInputStream(new byte[1])), false);
+		assertEquals("Carol", p.name);
+	}
+	
+	@Test
+	public void rejectsMalformedStreams() throws Exception {
+		byte[] data = root(NBTSerializer.serialize(person()));
+		byte[] string = data.clone();
+		string[0] = NBTSerializer.NBT_TAG_STRING;
+		try {
+			NBTSerializer.readFrom(Person.class, new ByteArrayInputStream(string));
+			fail("A root tag that is not a compound must be rejected");
+		} catch (IOException e) {
+		}
+		for (int length : new int[] { 0, 1, 3, data.length / 2, data.length - 1 }) {
+			try {
+				NBTSerializer.readFrom(Person.class, new ByteArrayInputStream(Arrays.copyOf(data, length)));
+				fail("A stream cut off after " + length + " bytes must be rejected");
+			} catch (EOFException e) {
+			}
+		}
+	}
+	
+	static void assertSameBytes(INBTSerializable object) throws Exception {
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		NBTSerializer.writeTo(object, bytes);
+		assertArrayEquals(root(NBTSerializer.serialize(object)), bytes.toByteArray());
+		
+		/*
+		 * The bytes are also read back to the same data.
+		 */
+		INBTSerializable read = NBTSerializer.readFrom(object.getClass(), new ByteArrayInputStream(bytes.toByteArray()));
+		assertEquals(NBTSerializer.serialize(object), NBTSerializer.serialize(read));
+	}
+	
+	static Person person() {
+		Person p = new Person();
+		p.name = "Alice";
+		p.age = 31;
+		p.height = 1.68;
+		p.admin = true;
+		p.scores = new int[] { 3, 1, 4, 1, 5 };
+		p.friends = new ArrayList<String>(Arrays.asList("Bob", "Carol"));
+		p.stats = new HashMap<String, Integer>();
+		p.stats.put("strength", 7);
+		p.stats.put("wisdom", 12);
+		p.partner = new Person();
+		p.partner.name = "Bob";
+		p.partner.age = 33;
+		return p;
+	}
+	
+	static byte[] root(NBTTagCompound tag) throws IOException {
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		CompressedStreamTools.write(tag, new DataOutputStream(out));
+		return out.toByteArray();
+	}
+}
@@ -0,0 +1,164 @@
+package info.varden.nbtserial;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.fail;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+
+import net.minecraft.nbt.CompressedStreamTools;
+import net.minecraft.nbt.NBTTagCompound;
+
+import org.junit.Test;
+
+/**
+ * <p>Tests for lists and fields that hold instances of several classes, with and without
+ * {@link NBTSubtypes registered subtypes}.</p>
+ * 
+ * @author Marius
+ */
+public class NBTSubtypesTest {
+	public static abstract class Shape implements INBTSerializable {
+		/*
+		 * These names put the subtype ID in the middle of the compound of a subtype, rather
+		 * than first, when it is iterated in hash map order.
+		 */
+		@NBTSerialize public int alpha;
+		@NBTSerialize public int zzzzz;
+		@NBTSerialize public int aa;
+		@NBTSerialize public int q;
+	}
+	
+	public static class Circle extends Shape {
+	}
+	
+	public static class Plain implements INBTSerializable {
+		@NBTSerialize public int alpha;
+		@NBTSerialize public int zzzzz;
+		@NBTSerialize public int aa;
+		@NBTSerialize public int q;
+	}
+	
+	public static class Drawing implements INBTSerializable {
+		@NBTSerialize public Shape main;
+		@NBTSerialize public ArrayList<Shape> shapes;
+		@NBTSerialize public Plain plain;
+	}
+	
+	public static class Mixed implements INBTSerializable {
+		@NBTSerialize public ArrayList<Object> values;
+	}
+	
+	static {
+		NBTSubtypes.register(Shape.class, 1, Circle.class);
+	}
+	
+	@Test
+	public void streamHoldsSameTagsAsTree() throws Exception {
+		Drawing d = drawing();
+		NBTTagCompound tree = NBTSerializer.serialize(d);
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		NBTSerializer.writeTo(d, out);
+		byte[] stream = out.toByteArray();
+		assertEquals(tree, CompressedStreamTools.read(new DataInputStream(new ByteArrayInputStream(stream))));
+		
+		/*
+		 * Both are read back as the subtype, whichever reader is used.
+		 */
+		byte[] fromTree = root(tree);
+		for (byte[] data : new byte[][] { stream, fromTree }) {
+			Drawing r = NBTSerializer.readFrom(Drawing.class, new ByteArrayInputStream(data));
+			assertSame(Circle.class, r.main.getClass());
+			assertEquals(3, r.main.zzzzz);
+			assertSame(Circle.class, r.shapes.get(1).getClass());
+			assertEquals(7, r.plain.q);
+		}
+		Drawing r = NBTSerializer.deserialize(Drawing.class, CompressedStreamTools.read(new DataInputStream(new ByteArrayInputStream(stream))));
+		assertSame(Circle.class, r.main.getClass());
+	}
+	
+	@Test
+	public void streamWritesSubtypeIdFirst() throws Exception {
+		Drawing d = new Drawing();
+		d.main = drawing().main;
+		NBTTagCompound tree = NBTSerializer.serialize(d);
+		assertFalse(NBTSerializer.SUBTYPE_TAG.equals(tree.getCompoundTag("main").getKeySet().iterator().next()));
+		
+		/*
+		 * The root compound holds only the compound tag of the shape, whose payload starts
+		 * after the root's type and empty name, and its own type and name.
+		 */
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		NBTSerializer.writeTo(d, out);
+		DataInputStream in = new DataInputStream(new ByteArrayInputStream(out.toByteArray()));
+		assertEquals(NBTSerializer.NBT_TAG_COMPOUND, in.readByte());
+		assertEquals("", in.readUTF());
+		assertEquals(NBTSerializer.NBT_TAG_COMPOUND, in.readByte());
+		assertEquals("main", in.readUTF());
+		assertEquals(NBTSerializer.NBT_TAG_BYTE, in.readByte());
+		assertEquals(NBTSerializer.SUBTYPE_TAG, in.readUTF());
+		assertEquals(1, in.readByte());
+	}
+	
+	@Test
+	public void streamIsByteIdenticalWithoutSubtypes() throws Exception {
+		Drawing d = drawing();
+		d.main = null;
+		d.shapes = null;
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		NBTSerializer.writeTo(d, out);
+		assertArrayEquals(root(NBTSerializer.serialize(d)), out.toByteArray());
+	}
+	
+	@Test
+	public void rejectsListsOfMixedTagTypes() throws IllegalAccessException {
+		Mixed m = new Mixed();
+		m.values = new ArrayList<Object>(Arrays.asList((Object) "a", 1));
+		try {
+			NBTSerializer.serialize(m);
+			fail("Tree serializer accepted a list of mixed tag types");
+		} catch (UnserializableClassException e) {
+			/* Expected. */
+		}
+		try {
+			NBTSerializer.writeTo(m, new ByteArrayOutputStream());
+			fail("Streaming serializer accepted a list of mixed tag types");
+		} catch (UnserializableClassException e) {
+			/* Expected. */
+		} catch (IOException e) {
+			throw new AssertionError(e);
+		}
+	}
+	
+	private static Drawing drawing() {
+		Circle c = new Circle();
+		c.alpha = 1;
+		c.zzzzz = 3;
+		c.aa = 5;
+		c.q = 7;
+		Plain p = new Plain();
+		p.alpha = 1;
+		p.zzzzz = 3;
+		p.aa = 5;
+		p.q = 7;
+		Drawing d = new Drawing();
+		d.main = c;
+		d.shapes = new ArrayList<Shape>(Arrays.asList((Shape) new Circle(), c));
+		d.plain = p;
+		return d;
+	}
+	
+	private static byte[] root(NBTTagCompound tag) throws IOException {
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		CompressedStreamTools.write(tag, new DataOutputStream(out));
+		return out.toByteArray();
+	}
+}
@@ -0,0 +1,338 @@
+package info.varden.nbtserial;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.TreeMap;
+import java.util.TreeSet;
+
+import net.minecraft.nbt.NBTTagCompound;
+import net.minecraft.nbt.NBTTagList;
+import net.minecraft.nbt.NBTTagString;
+
+import org.junit.Test;
+
+/**
+ * <p>Tests for {@link NBTTracker}: the complete data structure must always match what
+ * {@link NBTSerializer#serialize(INBTSerializable)} returns, and applying the deltas to
+ * another instance must leave it with the same data.</p>
+ * 
+ * @author Marius
+ */
+public class NBTTrackerTest {
+	public static class Player implements INBTSerializable {
+		@NBTSerialize public String name;
+		@NBTSerialize public NBTLazy<ArrayList<Integer>> hist = new NBTLazy<ArrayList<Integer>>(new ArrayList<Integer>());
+	}
+	
+	/**
+	 * <p>A serializable element that, like most, does not override {@code equals}.</p>
+	 */
+	public static class Item implements INBTSerializable {
+		@NBTSerialize public int id;
+	}
+	
+	public static class Inventory implements INBTSerializable {
+		@NBTSerialize public HashSet<Item> items;
+		@NBTSerialize public HashSet<String> tags;
+	}
+	
+	public static class Entity implements INBTSerializable {
+		@NBTSerialize public int x;
+		@NBTSerialize public double y;
+		@NBTSerialize public String name;
+		@NBTSerialize public Long owner;
+		@NBTSerialize public int[] counts;
+		@NBTSerialize public Entity rider;
+		@NBTSerialize public ArrayList<String> tags;
+		@NBTSerialize public HashMap<String, Integer> stats;
+	}
+	
+	@Test
+	public void sendsOnlyChangedFields() throws Exception {
+		Entity e = new Entity();
+		e.x = 1;
+		e.y = 2.5;
+		e.name = "zombie";
+		e.counts = new int[] { 1, 2, 3 };
+		e.rider = new Entity();
+		e.rider.name = "chicken";
+		e.tags = new ArrayList<String>(Arrays.asList("hostile"));
+		NBTTracker<Entity> tracker = new NBTTracker<Entity>(e);
+		Entity copy = new Entity();
+		copy.owner = 99L;
+		
+		/*
+		 * The first delta holds everything, and lists the null fields as removed.
+		 */
+		NBTTagCompound delta = tracker.delta();
+		assertTrue(delta.hasKey("name"));
+		assertEquals(Arrays.asList("owner", "stats"), removed(delta));
+		assertPatched(e, copy, delta);
+		assertNull(copy.owner);
+		assertTrue(tracker.delta().hasNoTags());
+		
+		e.x = 2;
+		assertPatched(e, copy, assertDelta(tracker.delta(), "x"));
+		e.y = -0.0;
+		assertPatched(e, copy, assertDelta(tracker.delta(), "y"));
+		e.name = new String("zombie");
+		assertTrue(tracker.delta().hasNoTags());
+		e.owner = 7L;
+		assertPatched(e, copy, assertDelta(tracker.delta(), "owner"));
+		
+		/*
+		 * Arrays are compared by their contents, so changes in place are seen.
+		 */
+		e.counts[1] = 20;
+		assertPatched(e, copy, assertDelta(tracker.delta(), "counts"));
+		
+		/*
+		 * A change to a nested instance is sent as a delta of its own.
+		 */
+		Entity rider = copy.rider;
+		e.rider.x = 5;
+		delta = assertDelta(tracker.delta(), "rider");
+		assertEquals(Collections.singleton("x"), delta.getCompoundTag("rider").getKeySet());
+		assertPatched(e, copy, delta);
+		assertSame(rider, copy.rider);
+		
+		e.name = null;
+		e.rider = null;
+		delta = tracker.delta();
+		assertEquals(Collections.singleton(NBTTracker.META_TAG), delta.getKeySet());
+		assertEquals(Arrays.asList("name", "rider"), removed(delta));
+		assertPatched(e, copy, delta);
+		assertNull(copy.name);
+		assertNull(copy.rider);
+		
+		/*
+		 * A new instance in a field is sent whole.
+		 */
+		e.tags = new ArrayList<String>(Arrays.asList("undead"));
+		e.stats = new HashMap<String, Integer>();
+		assertPatched(e, copy, assertDelta(tracker.delta(), "tags", "stats"));
+		
+		/*
+		 * The complete data structure is kept up to date with the deltas, and reset() makes
+		 * the next delta complete again.
+		 */
+		assertEquals(NBTSerializer.serialize(e), tracker.serialize());
+		tracker.reset();
+		delta = tracker.delta();
+		assertTrue(delta.hasKey("x"));
+		assertTrue(delta.hasKey("tags"));
+		assertEquals(Arrays.asList("name", "rider"), removed(delta));
+		assertPatched(e, new Entity(), delta);
+	}
+	
+	public static class Board implements INBTSerializable {
+		@NBTSerialize public ArrayList<Integer> cells = new ArrayList<Integer>();
+		@NBTSerialize public LinkedList<String> log = new LinkedList<String>();
+		@NBTSerialize public ArrayList<Item> items = new ArrayList<Item>();
+		@NBTSerialize public TreeMap<Integer, String> names = new TreeMap<Integer, String>();
+		@NBTSerialize(mapLayout = MapLayout.COMPOUND) public HashMap<String, Integer> scores = new HashMap<String, Integer>();
+	}
+	
+	@Test
+	public void patchesListsAndMapsInPlace() throws Exception {
+		Board b = new Board();
+		for (int i = 0; i < 10000; i++) b.cells.add(i);
+		for (int i = 0; i < 100; i++) {
+			b.log.add("line" + i);
+			Item item = new Item();
+			item.id = i;
+			b.items.add(item);
+			b.names.put(i, "name" + i);
+			b.scores.put("player" + i, i);
+		}
+		NBTTracker<Board> tracker = new NBTTracker<Board>(b);
+		Board copy = new Board();
+		NBTSerializer.patch(copy, tracker.delta());
+		ArrayList<Integer> cells = copy.cells;
+		LinkedList<String> log = copy.log;
+		ArrayList<Item> items = copy.items;
+		TreeMap<Integer, String> names = copy.names;
+		HashMap<String, Integer> scores = copy.scores;
+		
+		/*
+		 * Inserting, removing, replacing and appending elements, and putting, replacing and
+		 * removing entries, are sent as edits, and applied to the copy's own containers.
+		 */
+		b.cells.add(5000, -1);
+		assertEdited(b, copy, tracker.delta(), "cells");
+		b.cells.subList(10, 20).clear();
+		assertEdited(b, copy, tracker.delta(), "cells");
+		b.cells.set(b.cells.size() - 1, -2);
+		b.cells.add(-3);
+		assertEdited(b, copy, tracker.delta(), "cells");
+		b.log.removeFirst();
+		b.log.addFirst("first");
+		b.log.add(50, "middle");
+		assertEdited(b, copy, tracker.delta(), "log");
+		b.items.get(3).id = -3;
+		b.items.remove(7);
+		assertEdited(b, copy, tracker.delta(), "items");
+		b.names.put(1000, "new");
+		b.names.put(5, "renamed");
+		b.names.remove(6);
+		b.scores.put("player5", -5);
+		b.scores.remove("player6");
+		b.scores.put("newcomer", 0);
+		assertEdited(b, copy, tracker.delta(), "names", "scores");
+		assertEquals(b.names, copy.names);
+		assertEquals(b.scores, copy.scores);
+		
+		assertSame(cells, copy.cells);
+		assertSame(log, copy.log);
+		assertSame(items, copy.items);
+		assertSame(names, copy.names);
+		assertSame(scores, copy.scores);
+		
+		/*
+		 * Changing most of the elements sends the whole list instead.
+		 */
+		Collections.reverse(b.log);
+		NBTTagCompound delta = tracker.delta();
+		assertEquals(Collections.singleton("log"), delta.getKeySet());
+		NBTSerializer.patch(copy, delta);
+		assertEquals(b.log, copy.log);
+	}
+	
+	@Test
+	public void tracksLazyFields() throws Exception {
+		Player original = new Player();
+		original.name = "Steve";
+		original.hist.get().addAll(Arrays.asList(1, 2, 3));
+		
+		/*
+		 * Read from a tree and from a stream, the holder is not loaded until it is used.
+		 */
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		NBTSerializer.writeTo(original, out);
+		Player[] loaded = {
+			NBTSerializer.deserialize(Player.class, NBTSerializer.serialize(original)),
+			NBTSerializer.readFrom(Player.class, new ByteArrayInputStream(out.toByteArray())),
+		};
+		for (Player p : loaded) {
+			assertFalse(p.hist.isLoaded());
+			NBTTracker<Player> tracker = new NBTTracker<Player>(p);
+			Player copy = new Player();
+			NBTSerializer.patch(copy, tracker.delta());
+			assertEquals(NBTSerializer.serialize(original), NBTSerializer.serialize(copy));
+			
+			/*
+			 * A holder that is not loaded has not changed.
+			 */
+			assertTrue(tracker.delta().hasNoTags());
+			assertFalse(p.hist.isLoaded());
+			
+			p.hist.get().add(42);
+			NBTTagCompound delta = tracker.delta();
+			assertTrue(delta.hasKey("hist"));
+			NBTSerializer.patch(copy, delta);
+			assertEquals(Arrays.asList(1, 2, 3, 42), copy.hist.get());
+			assertEquals(NBTSerializer.serialize(p), tracker.serialize());
+			
+			/*
+			 * Once loaded, the value is tracked by its contents, so changing it in place
+			 * is seen as well.
+			 */
+			p.hist.get().remove(0);
+			assertEquals(NBTSerializer.serialize(p), tracker.serialize());
+			assertTrue(tracker.delta().hasNoTags());
+		}
+	}
+	
+	@Test
+	public void patchesSetsOfSerializableElements() throws Exception {
+		Inventory inv = new Inventory();
+		inv.items = new HashSet<Item>();
+		inv.tags = new HashSet<String>();
+		Item removed = null;
+		for (int i = 0; i < 100; i++) {
+			Item item = new Item();
+			item.id = i;
+			inv.items.add(item);
+			inv.tags.add("tag" + i);
+			if (i == 37) removed = item;
+		}
+		NBTTracker<Inventory> tracker = new NBTTracker<Inventory>(inv);
+		Inventory copy = new Inventory();
+		NBTSerializer.patch(copy, tracker.delta());
+		assertEquals(ids(inv), ids(copy));
+		
+		/*
+		 * The copy's items are different instances, which a removal by equality would not
+		 * find, so the whole set is sent. Strings are found by equality, so only the removed
+		 * one is.
+		 */
+		inv.items.remove(removed);
+		inv.tags.remove("tag37");
+		NBTTagCompound delta = tracker.delta();
+		assertTrue(delta.hasKey("items"));
+		assertFalse(delta.hasKey("tags"));
+		assertTrue(delta.getCompoundTag(NBTTracker.META_TAG).getCompoundTag("edits").hasKey("tags"));
+		NBTSerializer.patch(copy, delta);
+		assertEquals(99, copy.items.size());
+		assertEquals(ids(inv), ids(copy));
+		assertEquals(inv.tags, copy.tags);
+	}
+	
+	/**
+	 * <p>Asserts that the given delta holds only edits, of exactly the given fields, and
+	 * applies it to the given copy, which must then hold the same data as the tracked
+	 * instance.</p>
+	 */
+	private static void assertEdited(INBTSerializable tracked, INBTSerializable copy, NBTTagCompound delta, String... fields) throws Exception {
+		assertEquals(Collections.singleton(NBTTracker.META_TAG), delta.getKeySet());
+		assertEquals(new HashSet<String>(Arrays.asList(fields)), delta.getCompoundTag(NBTTracker.META_TAG).getCompoundTag("edits").getKeySet());
+		assertPatched(tracked, copy, delta);
+	}
+	
+	/**
+	 * <p>Asserts that the given delta holds exactly the tags of the given fields.</p>
+	 */
+	private static NBTTagCompound assertDelta(NBTTagCompound delta, String... fields) {
+		assertEquals(new HashSet<String>(Arrays.asList(fields)), delta.getKeySet());
+		return delta;
+	}
+	
+	/**
+	 * <p>Applies the given delta to the given copy, and asserts that it then holds the same
+	 * data as the tracked instance.</p>
+	 */
+	private static void assertPatched(INBTSerializable tracked, INBTSerializable copy, NBTTagCompound delta) throws Exception {
+		NBTSerializer.patch(copy, delta);
+		assertEquals(NBTSerializer.serialize(tracked), NBTSerializer.serialize(copy));
+	}
+	
+	/**
+	 * <p>Gets the tag names of the fields that the given delta lists as removed, sorted.</p>
+	 */
+	private static List<String> removed(NBTTagCompound delta) {
+		NBTTagList list = delta.getCompoundTag(NBTTracker.META_TAG).getTagList("removed", NBTSerializer.NBT_TAG_STRING);
+		List<String> names = new ArrayList<String>();
+		for (int i = 0; i < list.tagCount(); i++) names.add(((NBTTagString) list.get(i)).getString());
+		Collections.sort(names);
+		return names;
+	}
+	
+	private static TreeSet<Integer> ids(Inventory inv) {
+		TreeSet<Integer> ids = new TreeSet<Integer>();
+		for (Item item : inv.items) ids.add(item.id);
+		return ids;
+	}
+}